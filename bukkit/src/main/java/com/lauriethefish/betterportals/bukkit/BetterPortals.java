@@ -3,6 +3,7 @@ package com.lauriethefish.betterportals.bukkit;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.IChunkTicketManager;
 import com.lauriethefish.betterportals.bukkit.command.framework.CommandTree;
 import com.lauriethefish.betterportals.bukkit.config.ConfigManager;
 import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
@@ -10,10 +11,13 @@ import com.lauriethefish.betterportals.bukkit.config.ProxyConfig;
 import com.lauriethefish.betterportals.bukkit.events.IEventRegistrar;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerDataManager;
+import com.lauriethefish.betterportals.bukkit.player.IPlayerDataStore;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.IObsidianIndex;
 import com.lauriethefish.betterportals.bukkit.portal.storage.IPortalStorage;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.tasks.MainUpdate;
+import com.lauriethefish.betterportals.bukkit.tasks.WorkerPool;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.command.Command;
@@ -31,10 +35,14 @@ public class BetterPortals extends JavaPlugin {
     @Inject private CommandTree commandTree;
     @Inject private IPortalStorage portalStorage;
     @Inject private IPlayerDataManager playerDataManager;
+    @Inject private IPlayerDataStore playerDataStore;
     @Inject private UpdateManager updateManager;
     @Inject private MiscConfig miscConfig;
     @Inject private ProxyConfig proxyConfig;
     @Inject private IPortalClient portalClient;
+    @Inject private WorkerPool workerPool;
+    @Inject private IObsidianIndex obsidianIndex;
+    @Inject private IChunkTicketManager chunkTicketManager;
     @Inject private MainUpdate mainUpdate;
     @Inject private BlockUpdateFinisher blockUpdateFinisher;
     @Inject private IPortalManager portalManager;
@@ -74,6 +82,7 @@ public class BetterPortals extends JavaPlugin {
         blockUpdateFinisher.start();
         mainUpdate.start();
         portalStorage.start();
+        playerDataStore.start();
 
         apiImplementation.onEnable();
         firstEnable = false;
@@ -109,7 +118,7 @@ public class BetterPortals extends JavaPlugin {
         try {
             portalStorage.loadPortals();
         } catch(IOException | RuntimeException ex) {
-            getLogger().severe("Failed to load the portals from portals.yml. Did you modify it with an incorrect format?");
+            getLogger().severe("Failed to load the portals. Did you modify the portals file with an incorrect format?");
             ex.printStackTrace();
             didEnableFail = true;
             return;
@@ -156,16 +165,34 @@ public class BetterPortals extends JavaPlugin {
 
         blockUpdateFinisher.stop();
 
+        // Chunks forceloaded by portals would otherwise stay loaded after restarting
+        chunkTicketManager.releaseAll();
+
         try {
             portalStorage.savePortals();
         }   catch(RuntimeException | IOException ex) {
-            logger.severe("Error occurred while saving the portals to portals.yml. Check your file permissions!");
+            logger.severe("Error occurred while saving the portals. Check your file permissions!");
+            ex.printStackTrace();
+        }
+
+        try {
+            playerDataStore.close();
+        }   catch(RuntimeException ex) {
+            logger.severe("Error occurred while saving the player data. Check your file permissions!");
+            ex.printStackTrace();
+        }
+
+        try {
+            obsidianIndex.save();
+        }   catch(RuntimeException | IOException ex) {
+            logger.severe("Error occurred while saving the obsidian index. Check your file permissions!");
             ex.printStackTrace();
         }
 
         if(portalClient.isConnectionOpen()) {
             portalClient.shutDown();
         }
+        workerPool.shutDown();
         logger.fine("Goodbye!");
     }
 
@@ -5,8 +5,8 @@ import com.google.inject.Module;
 import com.lauriethefish.betterportals.bukkit.block.BlockModule;
 import com.lauriethefish.betterportals.bukkit.block.rotation.IBlockRotator;
 import com.lauriethefish.betterportals.bukkit.block.rotation.ModernBlockRotator;
-import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.IChunkLoader;
-import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.ModernChunkLoader;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.ChunkTicketManager;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.IChunkTicketManager;
 import com.lauriethefish.betterportals.bukkit.chunk.generation.IChunkGenerationChecker;
 import com.lauriethefish.betterportals.bukkit.chunk.generation.ModernChunkGenerationChecker;
 import com.lauriethefish.betterportals.bukkit.command.CommandsModule;
@@ -43,7 +43,7 @@ public class MainModule extends AbstractModule {
         bind(JavaPlugin.class).toInstance(pl);
         bind(BetterPortals.class).toInstance(pl);
         bind(Logger.class).toInstance(new OverrideLogger(pl.getLogger()));
-        bind(IChunkLoader.class).to(ModernChunkLoader.class);
+        bind(IChunkTicketManager.class).to(ChunkTicketManager.class);
         bind(IBlockRotator.class).to(ModernBlockRotator.class);
         bind(IChunkGenerationChecker.class).to(ModernChunkGenerationChecker.class);
 
@@ -22,6 +22,13 @@ import java.util.concurrent.ConcurrentHashMap;
  * Abstract viewable block map that is intended to have the update functions perform a flood fill to find which blocks are viewable.
  */
 public abstract class FloodFillBlockMap implements IBlockMap {
+    // Approximate sizes with compressed references, used to estimate the memory of the block map
+    private static final int REFERENCE_BYTES = 4;
+    // The block info, its position and its two wrapped block data
+    private static final int BLOCK_INFO_BYTES = 104;
+    // The map entry, its key and the packet container, not counting the packet's own data
+    private static final int TILE_STATE_BYTES = 80;
+
     protected final Logger logger;
     protected final RenderConfig renderConfig;
 
@@ -116,7 +123,7 @@ public abstract class FloodFillBlockMap implements IBlockMap {
             checkForChanges();
         }
         firstUpdate = false;
-        logger.fine("Viewable block array update took: %.3f ms. Block count: %d. Viewable count: %d", timer.getTimeTakenMillis(), nonObscuredStates.size(), stateQueue.stateCount());
+        logger.fine(() -> String.format("Viewable block array update took: %.3f ms. Block count: %d. Viewable count: %d", timer.getTimeTakenMillis(), nonObscuredStates.size(), stateQueue.stateCount()));
     }
 
     @Override
@@ -131,6 +138,16 @@ public abstract class FloodFillBlockMap implements IBlockMap {
         alreadyReachedMap = null;
     }
 
+    @Override
+    public long estimateMemoryUsage() {
+        long result = alreadyReachedMap == null ? 0 : alreadyReachedMap.length;
+        // Viewable states are also in the non-obscured states, so only their list slots are counted again
+        result += (long) nonObscuredStates.size() * (BLOCK_INFO_BYTES + REFERENCE_BYTES);
+        result += (long) stateQueue.stateCount() * REFERENCE_BYTES;
+        result += (long) (originTileStates.size() + destTileStates.size()) * TILE_STATE_BYTES;
+        return result;
+    }
+
     @Override
     public List<IViewableBlockInfo> getViewableStates() {
         if(stateQueue == null) {
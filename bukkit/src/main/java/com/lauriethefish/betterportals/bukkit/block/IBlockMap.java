@@ -55,6 +55,12 @@ public interface IBlockMap {
      */
     void reset();
 
+    /**
+     * Estimates the heap used by this block map, not counting the block data shared with the server.
+     * @return The estimated size in bytes
+     */
+    long estimateMemoryUsage();
+
     interface Factory {
         IBlockMap create(IPortal portal);
     }
@@ -0,0 +1,150 @@
+package com.lauriethefish.betterportals.bukkit.block.external;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.shared.net.protocol.BinaryReader;
+import com.lauriethefish.betterportals.shared.net.protocol.BinaryWriter;
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Block changes sent from the destination of a cross-server portal.
+ * These are stored as columns of coordinates and combined block IDs, rather than a map of boxed {@link IntVector}s and integers.
+ *
+ * In the binary protocol, each column is run-length encoded, with the coordinates stored as the difference from the previous position.
+ * The watcher scans the area in order, so most consecutive positions differ by the same amount and most neighbouring blocks are the same,
+ * which makes a full area a few kilobytes instead of hundreds.
+ */
+public class BlockChangeSet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Used to reject corrupt messages before allocating the columns.
+     */
+    private static final int MAX_SIZE = 16_777_216;
+
+    private int size = 0;
+    private int[] x;
+    private int[] y;
+    private int[] z;
+    private int[] combinedIds;
+
+    public BlockChangeSet() {
+        this(16);
+    }
+
+    public BlockChangeSet(int initialCapacity) {
+        x = new int[initialCapacity];
+        y = new int[initialCapacity];
+        z = new int[initialCapacity];
+        combinedIds = new int[initialCapacity];
+    }
+
+    /**
+     * Adds a change to the end of this set.
+     * @param position Position of the changed block
+     * @param combinedId The new block data, as a combined ID
+     */
+    public void add(@NotNull IntVector position, int combinedId) {
+        add(position.getX(), position.getY(), position.getZ(), combinedId);
+    }
+
+    /**
+     * Adds a change to the end of this set.
+     * @param combinedId The new block data, as a combined ID
+     */
+    public void add(int blockX, int blockY, int blockZ, int combinedId) {
+        if(size == x.length) {
+            int newCapacity = Math.max(16, size * 2);
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+            z = Arrays.copyOf(z, newCapacity);
+            combinedIds = Arrays.copyOf(combinedIds, newCapacity);
+        }
+
+        x[size] = blockX;
+        y[size] = blockY;
+        z[size] = blockZ;
+        combinedIds[size] = combinedId;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public @NotNull IntVector getPosition(int index) {
+        return new IntVector(x[index], y[index], z[index]);
+    }
+
+    public int getCombinedId(int index) {
+        return combinedIds[index];
+    }
+
+    public void write(@NotNull BinaryWriter writer) {
+        writer.writeVarInt(size);
+        writeColumn(x, size, true, writer);
+        writeColumn(y, size, true, writer);
+        writeColumn(z, size, true, writer);
+        writeColumn(combinedIds, size, false, writer);
+    }
+
+    public static @NotNull BlockChangeSet read(@NotNull BinaryReader reader) throws ProtocolException {
+        int size = reader.readVarInt();
+        if(size < 0 || size > MAX_SIZE) {
+            throw new ProtocolException("Invalid block change count " + size);
+        }
+
+        BlockChangeSet changes = new BlockChangeSet(size);
+        readColumn(changes.x, size, true, reader);
+        readColumn(changes.y, size, true, reader);
+        readColumn(changes.z, size, true, reader);
+        readColumn(changes.combinedIds, size, false, reader);
+        changes.size = size;
+        return changes;
+    }
+
+    /**
+     * Writes <code>column</code> as pairs of a run length and a value.
+     * @param isDelta Whether to store the difference from the previous value instead of the value itself
+     */
+    private static void writeColumn(int[] column, int size, boolean isDelta, BinaryWriter writer) {
+        int previous = 0;
+        int i = 0;
+        while(i < size) {
+            int value = isDelta ? column[i] - previous : column[i];
+            int runLength = 1;
+            previous = column[i];
+            while(i + runLength < size) {
+                int next = isDelta ? column[i + runLength] - previous : column[i + runLength];
+                if(next != value) {break;}
+
+                previous = column[i + runLength];
+                runLength++;
+            }
+
+            writer.writeVarInt(runLength);
+            writer.writeSignedVarInt(value);
+            i += runLength;
+        }
+    }
+
+    private static void readColumn(int[] column, int size, boolean isDelta, BinaryReader reader) throws ProtocolException {
+        int previous = 0;
+        int i = 0;
+        while(i < size) {
+            int runLength = reader.readVarInt();
+            if(runLength <= 0 || runLength > size - i) {
+                throw new ProtocolException("Invalid run length " + runLength);
+            }
+
+            int value = reader.readSignedVarInt();
+            for(int end = i + runLength; i < end; i++) {
+                previous = isDelta ? previous + value : value;
+                column[i] = previous;
+            }
+        }
+    }
+}
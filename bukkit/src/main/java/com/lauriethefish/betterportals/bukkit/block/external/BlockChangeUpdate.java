@@ -0,0 +1,34 @@
+package com.lauriethefish.betterportals.bukkit.block.external;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+
+/**
+ * Sent by the destination of a cross-server portal in reply to a {@link com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest}.
+ * Each update that contains changes has the next sequence number, so that the origin can tell when it has missed one.
+ */
+@Getter
+@AllArgsConstructor
+public class BlockChangeUpdate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Acknowledged by the origin before it has received any updates, which makes the destination send a full snapshot.
+     */
+    public static final long NO_SEQUENCE = 0;
+
+    /**
+     * Sequence number of this update. If there were no changes before the request timed out, this is the sequence number that the origin acknowledged.
+     */
+    private final long sequence;
+
+    /**
+     * Whether this contains every block in the area, rather than only the blocks that changed since the acknowledged update.
+     */
+    private final boolean fullSnapshot;
+
+    private final @NotNull BlockChangeSet changes;
+}
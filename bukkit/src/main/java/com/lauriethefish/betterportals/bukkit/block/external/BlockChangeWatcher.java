@@ -2,59 +2,89 @@ package com.lauriethefish.betterportals.bukkit.block.external;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import com.lauriethefish.betterportals.api.IntVector;
-import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.time.Instant;
 
 public class BlockChangeWatcher implements IBlockChangeWatcher  {
-    private final IntVector center;
-    private final Matrix rotationMatrix;
-    private World world;
+    /**
+     * Some changes, e.g. pistons, finish a few ticks after their event, so sections are scanned this many times after each event.
+     */
+    private static final int SCANS_PER_CHANGE = 4;
 
-    private final int xAndZRadius;
-    private final int yRadius;
+    /**
+     * Not every block change has an event, e.g. changes made by other plugins, so the whole area is checked again this often.
+     */
+    private static final Duration FULL_SCAN_INTERVAL = Duration.ofSeconds(30);
 
-    private final Map<IntVector, BlockData> previousData = new HashMap<>();
+    private final World world;
+    private final PalettedBlockArea<BlockData> area;
+
+    private long lastSentSequence = BlockChangeUpdate.NO_SEQUENCE;
+    private Instant lastFullScan = Instant.now();
 
     @Inject
     public BlockChangeWatcher(@Assisted GetBlockDataChangesRequest request) {
-        this.center = request.getPosition();
-        this.rotationMatrix = request.getRotateOriginToDest();
-        this.xAndZRadius = request.getXAndZRadius();
-        this.yRadius = request.getYRadius();
-        this.world = Bukkit.getWorld(request.getWorldId());
+        World world = Bukkit.getWorld(request.getWorldId());
+        if(world == null) {
+            world = Bukkit.getWorld(request.getWorldName());
+        }
         if(world == null) {
-            this.world = Bukkit.getWorld(request.getWorldName());
+            throw new IllegalStateException("Destination world no longer exists");
+        }
+
+        this.world = world;
+        this.area = new PalettedBlockArea<>(request.getAreaMin(), request.getAreaMax());
+    }
+
+    @Override
+    public void onBlockChanged(@NotNull World world, int x, int y, int z) {
+        if(world == this.world) {
+            area.markDirty(x, y, z, SCANS_PER_CHANGE);
         }
     }
 
-    public @NotNull Map<IntVector, Integer> checkForChanges() {
-        Map<IntVector, Integer> result = new HashMap<>();
+    @Override
+    public @Nullable BlockChangeUpdate checkForUpdate(long acknowledgedSequence) {
+        Instant now = Instant.now();
+        if(acknowledgedSequence == BlockChangeUpdate.NO_SEQUENCE || acknowledgedSequence != lastSentSequence) {
+            lastFullScan = now;
+            return new BlockChangeUpdate(++lastSentSequence, true, scanAll());
+        }
 
-        for(int x = -xAndZRadius; x <= xAndZRadius ; x++) {
-            for(int z = -xAndZRadius; z <= xAndZRadius; z++) {
-                for(int y = -yRadius; y <= yRadius; y++) {
-                    IntVector blockPos = rotationMatrix.transform(new IntVector(x, y, z)).add(center);
+        if(Duration.between(lastFullScan, now).compareTo(FULL_SCAN_INTERVAL) > 0) {
+            lastFullScan = now;
+            area.markAllDirty(1);
+        }
 
-                    BlockData data = blockPos.getBlock(world).getBlockData();
-                    BlockData oldData = previousData.get(blockPos);
+        if(!area.hasDirtySections()) {return null;}
 
-                    if(!data.equals(oldData)) {
-                        result.put(blockPos, BlockDataUtil.getCombinedId(data));
-                        previousData.put(blockPos, data);
-                    }
-                }
+        BlockChangeSet changes = new BlockChangeSet();
+        area.scanDirtySections((x, y, z) -> {
+            BlockData data = world.getBlockAt(x, y, z).getBlockData();
+            if(area.set(x, y, z, data)) {
+                changes.add(x, y, z, BlockDataUtil.getCombinedId(data));
             }
-        }
+        });
+
+        if(changes.size() == 0) {return null;}
+        return new BlockChangeUpdate(++lastSentSequence, false, changes);
+    }
 
-        return result;
+    private @NotNull BlockChangeSet scanAll() {
+        BlockChangeSet changes = new BlockChangeSet(area.getVolume());
+        area.forEachPosition((x, y, z) -> {
+            BlockData data = world.getBlockAt(x, y, z).getBlockData();
+            area.set(x, y, z, data);
+            changes.add(x, y, z, BlockDataUtil.getCombinedId(data));
+        });
+        return changes;
     }
 }
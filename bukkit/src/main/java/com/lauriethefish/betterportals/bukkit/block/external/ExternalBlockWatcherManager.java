@@ -1,18 +1,21 @@
 package com.lauriethefish.betterportals.bukkit.block.external;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
-import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.events.BlockChangeEvents;
+import com.lauriethefish.betterportals.bukkit.events.IEventRegistrar;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.Response;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
 import java.util.function.Consumer;
 
 @Singleton
@@ -22,15 +25,63 @@ public class ExternalBlockWatcherManager implements IExternalBlockWatcherManager
      */
     private static final int BLOCK_WATCHER_CLEAR_DELAY = 5;
 
+    /**
+     * Maximum time that a request is held for if there are no changes, after which it is responded to without any.
+     */
+    private static final Duration MAX_REQUEST_HOLD_TIME = Duration.ofSeconds(10);
+
     private final Logger logger;
     private final IBlockChangeWatcher.Factory blockChangeWatcherFactory;
+    private final IEventRegistrar eventRegistrar;
+    private final Provider<BlockChangeEvents> blockChangeEvents;
     private final Map<UUID, IBlockChangeWatcher> watchers = new HashMap<>();
     private final Map<UUID, Instant> lastRequested = new HashMap<>();
+    private final Map<UUID, HeldRequest> heldRequests = new HashMap<>();
+    private boolean listeningForChanges = false;
+
+    private static class HeldRequest {
+        private final long acknowledgedSequence;
+        private final Consumer<Response> onFinish;
+        private final Instant timeoutTime;
+
+        private HeldRequest(long acknowledgedSequence, Consumer<Response> onFinish, Instant timeoutTime) {
+            this.acknowledgedSequence = acknowledgedSequence;
+            this.onFinish = onFinish;
+            this.timeoutTime = timeoutTime;
+        }
+
+        private void respond(@Nullable BlockChangeUpdate update) {
+            // An update with the acknowledged sequence number tells the origin that nothing changed
+            if(update == null) {
+                update = new BlockChangeUpdate(acknowledgedSequence, false, new BlockChangeSet(0));
+            }
+
+            Response response = new Response();
+            response.setResult(update);
+            onFinish.accept(response);
+        }
+    }
 
     @Inject
-    public ExternalBlockWatcherManager(Logger logger, IBlockChangeWatcher.Factory blockChangeWatcherFactory) {
+    public ExternalBlockWatcherManager(Logger logger, IBlockChangeWatcher.Factory blockChangeWatcherFactory, IEventRegistrar eventRegistrar, Provider<BlockChangeEvents> blockChangeEvents) {
         this.logger = logger;
         this.blockChangeWatcherFactory = blockChangeWatcherFactory;
+        this.eventRegistrar = eventRegistrar;
+        this.blockChangeEvents = blockChangeEvents;
+    }
+
+    // Block change events are only listened to while there are watchers, so that servers without any don't pay for them
+    private void updateListening() {
+        boolean shouldListen = !watchers.isEmpty();
+        if(shouldListen == listeningForChanges) {return;}
+
+        logger.fine("%s block change events", shouldListen ? "Registering" : "Unregistering");
+        if(shouldListen) {
+            eventRegistrar.register(blockChangeEvents.get());
+        }   else    {
+            eventRegistrar.unregister(blockChangeEvents.get());
+        }
+        listeningForChanges = shouldListen;
     }
 
     @Override
@@ -38,23 +89,76 @@ public class ExternalBlockWatcherManager implements IExternalBlockWatcherManager
         logger.finer("Processing block changes with ID %s", request.getChangeSetId());
         UUID watcherId = request.getChangeSetId();
         IBlockChangeWatcher watcher = watchers.computeIfAbsent(watcherId, key -> blockChangeWatcherFactory.create(request));
-        lastRequested.put(request.getChangeSetId(), Instant.now());
+        updateListening();
+        Instant now = Instant.now();
+        lastRequested.put(watcherId, now);
 
-        Response response = new Response();
-        Map<IntVector, Integer> changes = watcher.checkForChanges();
-        logger.finer("Change count: %d", changes.size());
+        // The origin only sends one request at a time, so an existing one was probably lost on the way back after a reconnect
+        HeldRequest previous = heldRequests.remove(watcherId);
+        if(previous != null) {
+            previous.respond(null);
+        }
 
-        response.setResult(changes);
-        onFinish.accept(response);
+        HeldRequest heldRequest = new HeldRequest(request.getAcknowledgedSequence(), onFinish, now.plus(MAX_REQUEST_HOLD_TIME));
+        BlockChangeUpdate update = watcher.checkForUpdate(heldRequest.acknowledgedSequence);
+        if(update == null) {
+            logger.finer("No changes yet, holding request");
+            heldRequests.put(watcherId, heldRequest);
+        }   else    {
+            logger.finer("Change count: %d", update.getChanges().size());
+            heldRequest.respond(update);
+        }
+    }
+
+    @Override
+    public void releaseHeldRequest(@NotNull UUID changeSetId) {
+        HeldRequest heldRequest = heldRequests.remove(changeSetId);
+        if(heldRequest != null) {
+            heldRequest.respond(null);
+            lastRequested.put(changeSetId, Instant.now());
+        }
+    }
+
+    @Override
+    public void onBlockChanged(@NotNull Block block) {
+        if(watchers.isEmpty()) {return;}
+
+        World world = block.getWorld();
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+        for(IBlockChangeWatcher watcher : watchers.values()) {
+            watcher.onBlockChanged(world, x, y, z);
+        }
     }
 
     @Override
     public void update() {
-        // Clear any watchers that are inactive
         Instant now = Instant.now();
+
+        // Responding can release other held requests in the same batch, so this is done after iterating
+        List<Runnable> responses = new ArrayList<>();
+        Iterator<Map.Entry<UUID, HeldRequest>> heldIterator = heldRequests.entrySet().iterator();
+        while(heldIterator.hasNext()) {
+            Map.Entry<UUID, HeldRequest> entry = heldIterator.next();
+            HeldRequest heldRequest = entry.getValue();
+
+            BlockChangeUpdate update = watchers.get(entry.getKey()).checkForUpdate(heldRequest.acknowledgedSequence);
+            if(update != null || now.isAfter(heldRequest.timeoutTime)) {
+                logger.finer("Responding to held block change request. Has changes: %b", update != null);
+                heldIterator.remove();
+                lastRequested.put(entry.getKey(), now);
+                responses.add(() -> heldRequest.respond(update));
+            }
+        }
+        responses.forEach(Runnable::run);
+
+        // Clear any watchers that are inactive
         Iterator<Map.Entry<UUID, Instant>> iterator = lastRequested.entrySet().iterator();
         while(iterator.hasNext()) {
             Map.Entry<UUID, Instant> entry = iterator.next();
+            if(heldRequests.containsKey(entry.getKey())) {continue;}
+
             long secondsElapsed = Duration.between(entry.getValue(), now).getSeconds();
             if(secondsElapsed > BLOCK_WATCHER_CLEAR_DELAY) {
                 logger.fine("Clearing external block watcher due to inactivity");
@@ -63,5 +167,6 @@ public class ExternalBlockWatcherManager implements IExternalBlockWatcherManager
                 watchers.remove(entry.getKey());
             }
         }
+        updateListening();
     }
 }
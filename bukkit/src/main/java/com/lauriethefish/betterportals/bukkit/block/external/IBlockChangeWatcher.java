@@ -1,10 +1,9 @@
 package com.lauriethefish.betterportals.bukkit.block.external;
 
-import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
+import org.bukkit.World;
 import org.jetbrains.annotations.NotNull;
-
-import java.util.Map;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Used to check for changes of blocks at the destination of an external portal, then relay the changes back to the origin.
@@ -12,11 +11,19 @@ import java.util.Map;
  */
 public interface IBlockChangeWatcher {
     /**
-     * Checks for any changes in the configured area.
-     * This will return all blocks in the area the first time it is called on one instance.
-     * @return The new block data, as an integer.
+     * Called when a block might have changed, so that the section containing it is checked for changes.
+     * Positions outside the watched area are ignored.
+     * @param world World of the block
+     */
+    void onBlockChanged(@NotNull World world, int x, int y, int z);
+
+    /**
+     * Checks for any changes in the sections of the area that might have changed since the last check.
+     * If the origin hasn't applied the last update sent, every block in the area is sent instead, so that it can resync.
+     * @param acknowledgedSequence Sequence number of the last update that the origin applied
+     * @return The changes, or null if there were none
      */
-    @NotNull Map<IntVector, Integer> checkForChanges();
+    @Nullable BlockChangeUpdate checkForUpdate(long acknowledgedSequence);
 
     interface Factory {
         IBlockChangeWatcher create(GetBlockDataChangesRequest request);
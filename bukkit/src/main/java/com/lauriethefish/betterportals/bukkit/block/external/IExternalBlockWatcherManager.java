@@ -2,7 +2,10 @@ package com.lauriethefish.betterportals.bukkit.block.external;
 
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.shared.net.Response;
+import org.bukkit.block.Block;
+import org.jetbrains.annotations.NotNull;
 
+import java.util.UUID;
 import java.util.function.Consumer;
 
 public interface IExternalBlockWatcherManager {
@@ -13,13 +16,27 @@ public interface IExternalBlockWatcherManager {
 
     /**
      * Called whenever a request to fetch the block data changes is received (on the main thread) from an external server.
+     * If nothing has changed since the update that the request acknowledges, the response is held until something does, or until it times out.
      * @param request The change request
      * @param onFinish Given the response when responding is complete
      */
     void onRequestReceived(GetBlockDataChangesRequest request, Consumer<Response> onFinish);
 
     /**
-     * Removes any external change watchers that are unused.
+     * Responds to the held request for a watcher without any changes, if there is one.
+     * The origin then sends the request again, so this is safe to call at any time.
+     * @param changeSetId ID of the watcher
+     */
+    void releaseHeldRequest(@NotNull UUID changeSetId);
+
+    /**
+     * Called from block events, so that watchers of the area containing the block check it for changes.
+     * @param block The block that might have changed
+     */
+    void onBlockChanged(@NotNull Block block);
+
+    /**
+     * Responds to any held requests that now have changes or have timed out, then removes any external change watchers that are unused.
      */
     void update();
 }
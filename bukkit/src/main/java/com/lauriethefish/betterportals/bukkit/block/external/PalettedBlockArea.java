@@ -0,0 +1,256 @@
+package com.lauriethefish.betterportals.bukkit.block.external;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores a value for each block in a box, as an index into a palette of the distinct values in the box.
+ * Most areas only contain a few dozen different block states, so this is a couple of bytes per block instead of a map entry and boxed position.
+ *
+ * The box is split into 16x16x16 sections, lined up with the world's chunk sections.
+ * Sections are marked as dirty when blocks within them might have changed, so that only those sections need to be scanned again.
+ * @param <T> Type of the values stored, which must implement {@link Object#equals(Object)} and {@link Object#hashCode()}
+ */
+public class PalettedBlockArea<T> {
+    private static final int SECTION_SHIFT = 4;
+    private static final int MAX_PALETTE_SIZE = Character.MAX_VALUE + 1;
+
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+
+    // Indexed by x, then z, then y, which is the order the area is scanned in. Index 0 in the palette means that the value isn't known yet
+    private final char[] indices;
+    private final List<T> palette = new ArrayList<>();
+    private final Map<T, Integer> paletteIndices = new HashMap<>();
+
+    private final int minSectionX;
+    private final int minSectionY;
+    private final int minSectionZ;
+    private final int sectionCountX;
+    private final int sectionCountY;
+    private final int sectionCountZ;
+
+    // Number of times that each section should still be scanned
+    private final byte[] sectionScansRemaining;
+    private int dirtySectionCount = 0;
+
+    @FunctionalInterface
+    public interface PositionVisitor {
+        void visit(int x, int y, int z);
+    }
+
+    /**
+     * Creates an area with every value unknown.
+     * @param min Minimum corner of the box, inclusive
+     * @param max Maximum corner of the box, inclusive
+     */
+    public PalettedBlockArea(@NotNull IntVector min, @NotNull IntVector max) {
+        this.minX = min.getX();
+        this.minY = min.getY();
+        this.minZ = min.getZ();
+        this.sizeX = max.getX() - minX + 1;
+        this.sizeY = max.getY() - minY + 1;
+        this.sizeZ = max.getZ() - minZ + 1;
+        if(sizeX <= 0 || sizeY <= 0 || sizeZ <= 0) {
+            throw new IllegalArgumentException("Maximum corner of area was below the minimum corner");
+        }
+
+        this.indices = new char[Math.multiplyExact(Math.multiplyExact(sizeX, sizeY), sizeZ)];
+        palette.add(null);
+
+        this.minSectionX = minX >> SECTION_SHIFT;
+        this.minSectionY = minY >> SECTION_SHIFT;
+        this.minSectionZ = minZ >> SECTION_SHIFT;
+        this.sectionCountX = (max.getX() >> SECTION_SHIFT) - minSectionX + 1;
+        this.sectionCountY = (max.getY() >> SECTION_SHIFT) - minSectionY + 1;
+        this.sectionCountZ = (max.getZ() >> SECTION_SHIFT) - minSectionZ + 1;
+        this.sectionScansRemaining = new byte[sectionCountX * sectionCountY * sectionCountZ];
+    }
+
+    /**
+     * @return The number of blocks in the area
+     */
+    public int getVolume() {
+        return indices.length;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return x >= minX && y >= minY && z >= minZ && x < minX + sizeX && y < minY + sizeY && z < minZ + sizeZ;
+    }
+
+    private int getIndex(int x, int y, int z) {
+        return ((x - minX) * sizeZ + (z - minZ)) * sizeY + (y - minY);
+    }
+
+    /**
+     * @return The value at the position, or null if it is outside the area or hasn't been set
+     */
+    public @Nullable T get(int x, int y, int z) {
+        if(!contains(x, y, z)) {return null;}
+
+        return palette.get(indices[getIndex(x, y, z)]);
+    }
+
+    /**
+     * Sets the value at a position within the area.
+     * @return Whether the value was different to the existing one
+     */
+    public boolean set(int x, int y, int z, @NotNull T value) {
+        int index = getIndex(x, y, z);
+        T existing = palette.get(indices[index]);
+        if(value.equals(existing)) {return false;}
+
+        indices[index] = (char) getPaletteIndex(value);
+        return true;
+    }
+
+    private int getPaletteIndex(@NotNull T value) {
+        Integer existing = paletteIndices.get(value);
+        if(existing != null) {return existing;}
+
+        // Values that are no longer in the area are kept in the palette, since blocks often change back, e.g. with redstone.
+        // If the palette gets too big, these are removed.
+        if(palette.size() == MAX_PALETTE_SIZE) {
+            compactPalette();
+            if(palette.size() == MAX_PALETTE_SIZE) {
+                throw new IllegalStateException("Too many distinct values in area");
+            }
+        }
+
+        int index = palette.size();
+        palette.add(value);
+        paletteIndices.put(value, index);
+        return index;
+    }
+
+    private void compactPalette() {
+        int[] remapped = new int[palette.size()];
+        Arrays.fill(remapped, -1);
+        remapped[0] = 0;
+
+        List<T> newPalette = new ArrayList<>();
+        newPalette.add(null);
+        for(int i = 0; i < indices.length; i++) {
+            int oldIndex = indices[i];
+            if(remapped[oldIndex] == -1) {
+                remapped[oldIndex] = newPalette.size();
+                newPalette.add(palette.get(oldIndex));
+            }
+            indices[i] = (char) remapped[oldIndex];
+        }
+
+        palette.clear();
+        palette.addAll(newPalette);
+        paletteIndices.clear();
+        for(int i = 1; i < palette.size(); i++) {
+            paletteIndices.put(palette.get(i), i);
+        }
+    }
+
+    /**
+     * @return The number of distinct values in the palette, including values that are no longer in the area
+     */
+    public int getPaletteSize() {
+        return palette.size() - 1;
+    }
+
+    /**
+     * Marks the section containing a position as dirty, if the position is within the area.
+     * @param scans The number of times that the section should be scanned before it is no longer dirty
+     */
+    public void markDirty(int x, int y, int z, int scans) {
+        if(!contains(x, y, z)) {return;}
+
+        int section = ((x >> SECTION_SHIFT) - minSectionX) * sectionCountZ * sectionCountY
+                + ((z >> SECTION_SHIFT) - minSectionZ) * sectionCountY
+                + ((y >> SECTION_SHIFT) - minSectionY);
+        markSectionDirty(section, scans);
+    }
+
+    /**
+     * Marks every section in the area as dirty.
+     * @param scans The number of times that each section should be scanned before it is no longer dirty
+     */
+    public void markAllDirty(int scans) {
+        for(int section = 0; section < sectionScansRemaining.length; section++) {
+            markSectionDirty(section, scans);
+        }
+    }
+
+    private void markSectionDirty(int section, int scans) {
+        if(sectionScansRemaining[section] == 0 && scans > 0) {
+            dirtySectionCount++;
+        }
+        sectionScansRemaining[section] = (byte) Math.min(Math.max(sectionScansRemaining[section], scans), Byte.MAX_VALUE);
+    }
+
+    public boolean hasDirtySections() {
+        return dirtySectionCount > 0;
+    }
+
+    /**
+     * Visits each position within the area in the dirty sections, then reduces the number of scans remaining for those sections.
+     * @param visitor Called for each position
+     */
+    public void scanDirtySections(@NotNull PositionVisitor visitor) {
+        if(dirtySectionCount == 0) {return;}
+
+        int section = 0;
+        for(int sectionX = 0; sectionX < sectionCountX; sectionX++) {
+            for(int sectionZ = 0; sectionZ < sectionCountZ; sectionZ++) {
+                for(int sectionY = 0; sectionY < sectionCountY; sectionY++) {
+                    if(sectionScansRemaining[section] > 0) {
+                        visitSection(sectionX + minSectionX, sectionY + minSectionY, sectionZ + minSectionZ, visitor);
+                        sectionScansRemaining[section]--;
+                        if(sectionScansRemaining[section] == 0) {
+                            dirtySectionCount--;
+                        }
+                    }
+                    section++;
+                }
+            }
+        }
+    }
+
+    private void visitSection(int sectionX, int sectionY, int sectionZ, PositionVisitor visitor) {
+        int startX = Math.max(sectionX << SECTION_SHIFT, minX);
+        int startY = Math.max(sectionY << SECTION_SHIFT, minY);
+        int startZ = Math.max(sectionZ << SECTION_SHIFT, minZ);
+        int endX = Math.min((sectionX + 1) << SECTION_SHIFT, minX + sizeX);
+        int endY = Math.min((sectionY + 1) << SECTION_SHIFT, minY + sizeY);
+        int endZ = Math.min((sectionZ + 1) << SECTION_SHIFT, minZ + sizeZ);
+
+        for(int x = startX; x < endX; x++) {
+            for(int z = startZ; z < endZ; z++) {
+                for(int y = startY; y < endY; y++) {
+                    visitor.visit(x, y, z);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits every position in the area, in the same order that values are stored.
+     * @param visitor Called for each position
+     */
+    public void forEachPosition(@NotNull PositionVisitor visitor) {
+        for(int x = minX; x < minX + sizeX; x++) {
+            for(int z = minZ; z < minZ + sizeZ; z++) {
+                for(int y = minY; y < minY + sizeY; y++) {
+                    visitor.visit(x, y, z);
+                }
+            }
+        }
+    }
+}
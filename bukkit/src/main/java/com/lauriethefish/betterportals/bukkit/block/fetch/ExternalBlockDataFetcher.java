@@ -1,6 +1,9 @@
 package com.lauriethefish.betterportals.bukkit.block.fetch;
 
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeSet;
+import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeUpdate;
+import com.lauriethefish.betterportals.bukkit.block.external.PalettedBlockArea;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
@@ -11,9 +14,9 @@ import com.lauriethefish.betterportals.shared.net.RequestException;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Fetches the block data for external portals by sending a request to the destination server.
@@ -24,7 +27,11 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
     private final GetBlockDataChangesRequest request;
     private final String destServerName;
 
-    private final Map<IntVector, BlockData> currentStates = new HashMap<>();
+    // Only accessed on the main thread. Updates are applied from there so that they don't change the states while they're being read
+    private final PalettedBlockArea<BlockData> currentStates;
+    private final Queue<BlockChangeUpdate> receivedUpdates = new ConcurrentLinkedQueue<>();
+    private long lastSequence = BlockChangeUpdate.NO_SEQUENCE;
+
     private volatile boolean hasFirstRequestFinished = false;
     private volatile boolean hasPreviousRequestFinished = true;
 
@@ -41,33 +48,63 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
         request.setWorldId(portal.getDestPos().getWorldId());
         request.setPosition(new IntVector(portal.getDestPos().getVector()));
         request.setRotateOriginToDest(portal.getTransformations().getRotateToDestination());
+        this.currentStates = new PalettedBlockArea<>(request.getAreaMin(), request.getAreaMax());
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void update() {
+        // The destination holds each request until something changes, so there is usually one waiting
         if(!hasPreviousRequestFinished) {
-            logger.fine("Still awaiting block data response");
+            logger.finest("Still awaiting block data response");
             return;
         }
 
+        BlockChangeUpdate update;
+        while((update = receivedUpdates.poll()) != null) {
+            applyUpdate(update);
+        }
+
         hasPreviousRequestFinished = false;
+        request.setAcknowledgedSequence(lastSequence);
         portalClient.sendRequestToServer(request, destServerName, (response) -> {
-            hasPreviousRequestFinished = true;
             try {
                 logger.finer("Received response to get block data request");
-                Map<IntVector, Integer> serializedChanges = (Map<IntVector, Integer>) response.getResult();
-
-                serializedChanges.forEach((position, newValue) -> currentStates.put(position, BlockDataUtil.getByCombinedId(newValue)));
-
-                hasFirstRequestFinished = true;
+                receivedUpdates.add((BlockChangeUpdate) response.getResult());
             }   catch(RequestException ex) {
                 logger.warning("Failed to fetch block changes for external portal: ");
                 ex.printStackTrace();
+            }   finally     {
+                hasPreviousRequestFinished = true;
             }
         });
     }
 
+    private void applyUpdate(BlockChangeUpdate update) {
+        if(!update.isFullSnapshot()) {
+            // Nothing changed before the request timed out
+            if(update.getSequence() == lastSequence) {return;}
+
+            if(update.getSequence() != lastSequence + 1) {
+                logger.fine("Missed block changes for external portal (expected update %d, got %d). Requesting all blocks again", lastSequence + 1, update.getSequence());
+                lastSequence = BlockChangeUpdate.NO_SEQUENCE;
+                return;
+            }
+        }
+
+        BlockChangeSet changes = update.getChanges();
+        for(int i = 0; i < changes.size(); i++) {
+            IntVector position = changes.getPosition(i);
+            if(currentStates.contains(position.getX(), position.getY(), position.getZ())) {
+                currentStates.set(position.getX(), position.getY(), position.getZ(), BlockDataUtil.getByCombinedId(changes.getCombinedId(i)));
+            }
+        }
+
+        lastSequence = update.getSequence();
+        if(update.isFullSnapshot()) {
+            hasFirstRequestFinished = true;
+        }
+    }
+
     @Override
     public boolean isReady() {
         return hasFirstRequestFinished;
@@ -75,6 +112,6 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
 
     @Override
     public @NotNull BlockData getData(@NotNull IntVector position) {
-        return currentStates.get(position);
+        return currentStates.get(position.getX(), position.getY(), position.getZ());
     }
 }
@@ -0,0 +1,148 @@
+package com.lauriethefish.betterportals.bukkit.chunk.chunkloading;
+
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+@Singleton
+public class ChunkTicketManager implements IChunkTicketManager {
+    private static class Ticket {
+        private int count;
+        // Chunks that were already force loaded, e.g. with the forceload command, are never unforceloaded by us
+        private final boolean forcedByUs;
+        // Tick at which this chunk is unforceloaded, if there aren't any tickets for it
+        private int releaseTick;
+
+        private Ticket(boolean forcedByUs) {
+            this.forcedByUs = forcedByUs;
+        }
+    }
+
+    private final MiscConfig miscConfig;
+    private final Logger logger;
+
+    private final Map<ChunkPosition, Ticket> tickets = new HashMap<>();
+    private final Set<ChunkPosition> lingeringChunks = new HashSet<>();
+    private final Set<ChunkPosition> pendingLoads = new HashSet<>();
+
+    private int currentTick;
+
+    @Inject
+    public ChunkTicketManager(MiscConfig miscConfig, Logger logger) {
+        this.miscConfig = miscConfig;
+        this.logger = logger;
+    }
+
+    @Override
+    public void addTicket(@NotNull ChunkPosition chunk) {
+        Ticket ticket = tickets.get(chunk);
+        if(ticket == null) {
+            boolean alreadyForced = chunk.world.isChunkForceLoaded(chunk.x, chunk.z);
+            ticket = new Ticket(!alreadyForced);
+            tickets.put(chunk, ticket);
+
+            // Unlike getting the chunk, this doesn't wait for the chunk to load, the server loads it over the next few ticks
+            if(!alreadyForced) {
+                chunk.world.setChunkForceLoaded(chunk.x, chunk.z, true);
+            }
+            if(!chunk.isLoaded()) {
+                pendingLoads.add(chunk);
+            }
+        }   else if(ticket.count == 0)  {
+            lingeringChunks.remove(chunk);
+        }
+
+        ticket.count++;
+    }
+
+    @Override
+    public void removeTicket(@NotNull ChunkPosition chunk) {
+        Ticket ticket = tickets.get(chunk);
+        if(ticket == null || ticket.count == 0) {
+            logger.warning("Attempted to remove a chunk ticket that wasn't added, at %s", chunk);
+            return;
+        }
+
+        ticket.count--;
+        if(ticket.count > 0) {return;}
+
+        int lingerTicks = miscConfig.getChunkLingerTime();
+        if(lingerTicks <= 0) {
+            release(chunk, ticket);
+            tickets.remove(chunk);
+        }   else    {
+            ticket.releaseTick = currentTick + lingerTicks;
+            lingeringChunks.add(chunk);
+        }
+    }
+
+    private void release(ChunkPosition chunk, Ticket ticket) {
+        pendingLoads.remove(chunk);
+        if(ticket.forcedByUs) {
+            // Do it this way to avoid loading the chunk by calling getChunk
+            chunk.world.setChunkForceLoaded(chunk.x, chunk.z, false);
+        }
+    }
+
+    @Override
+    public int getTicketCount(@NotNull ChunkPosition chunk) {
+        Ticket ticket = tickets.get(chunk);
+        return ticket == null ? 0 : ticket.count;
+    }
+
+    @Override
+    public boolean isForceLoaded(@NotNull ChunkPosition chunk) {
+        return tickets.containsKey(chunk);
+    }
+
+    @Override
+    public int getTicketedChunkCount() {
+        return tickets.size() - lingeringChunks.size();
+    }
+
+    @Override
+    public int getLingeringChunkCount() {
+        return lingeringChunks.size();
+    }
+
+    @Override
+    public int getPendingLoadCount() {
+        return pendingLoads.size();
+    }
+
+    @Override
+    public void update() {
+        currentTick++;
+
+        Iterator<ChunkPosition> lingeringIterator = lingeringChunks.iterator();
+        while(lingeringIterator.hasNext()) {
+            ChunkPosition chunk = lingeringIterator.next();
+            Ticket ticket = tickets.get(chunk);
+            if(currentTick < ticket.releaseTick) {continue;}
+
+            release(chunk, ticket);
+            tickets.remove(chunk);
+            lingeringIterator.remove();
+        }
+
+        pendingLoads.removeIf(ChunkPosition::isLoaded);
+    }
+
+    @Override
+    public void releaseAll() {
+        logger.fine("Unforceloading %d chunks", tickets.size());
+        tickets.forEach(this::release);
+        tickets.clear();
+        lingeringChunks.clear();
+        pendingLoads.clear();
+    }
+}
@@ -0,0 +1,63 @@
+package com.lauriethefish.betterportals.bukkit.chunk.chunkloading;
+
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps chunks force loaded while anything holds a ticket for them.
+ * Tickets are reference counted, so a chunk shared by multiple portals stays loaded until all of them have released it.
+ * Chunks stay loaded for a while after their last ticket is released, so that activating and deactivating a portal repeatedly doesn't keep loading and unloading its chunks.
+ * Chunks are never loaded synchronously, the server loads them in the background once they have a ticket.
+ */
+public interface IChunkTicketManager {
+    /**
+     * Adds a ticket for the chunk, force loading it if this is the first one.
+     * @param chunk The chunk to keep loaded
+     */
+    void addTicket(@NotNull ChunkPosition chunk);
+
+    /**
+     * Releases a ticket added with {@link IChunkTicketManager#addTicket(ChunkPosition)}.
+     * If this is the last ticket, the chunk is unforceloaded once the linger time has passed, unless another ticket is added before then.
+     * @param chunk The chunk to release
+     */
+    void removeTicket(@NotNull ChunkPosition chunk);
+
+    /**
+     * @return The number of tickets held for the chunk
+     */
+    int getTicketCount(@NotNull ChunkPosition chunk);
+
+    /**
+     * Checks if the chunk is currently force loaded by this manager, including while it is lingering.
+     * @param chunk The chunk to check if force loaded
+     * @return Whether or not it is force loaded
+     */
+    boolean isForceLoaded(@NotNull ChunkPosition chunk);
+
+    /**
+     * @return The number of chunks with at least one ticket
+     */
+    int getTicketedChunkCount();
+
+    /**
+     * @return The number of chunks without any tickets that are waiting for their linger time to pass
+     */
+    int getLingeringChunkCount();
+
+    /**
+     * @return The number of force loaded chunks that the server hasn't finished loading yet
+     */
+    int getPendingLoadCount();
+
+    /**
+     * Unforceloads chunks whose linger time has passed, and checks which pending chunks have loaded. Called every tick.
+     */
+    void update();
+
+    /**
+     * Unforceloads every chunk loaded by this manager, regardless of its tickets.
+     * Force loaded chunks are saved with the world, so this must be called when the plugin is disabled.
+     */
+    void releaseAll();
+}
@@ -1,9 +1,22 @@
 package com.lauriethefish.betterportals.bukkit.chunk.chunkloading;
 
 import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
+
 public interface IPortalChunkLoader {
-    void forceloadPortalChunks(@NotNull PortalPosition destPosition);
-    void unforceloadPortalChunks(@NotNull PortalPosition destPosition);
+    /**
+     * Adds tickets for the chunks around the destination of a portal.
+     * @param destPosition The destination of the portal
+     * @return The chunks that were given tickets, which must be passed to {@link IPortalChunkLoader#unforceloadPortalChunks(List)} when the portal is deactivated
+     */
+    @NotNull List<ChunkPosition> forceloadPortalChunks(@NotNull PortalPosition destPosition);
+
+    /**
+     * Releases the tickets added by {@link IPortalChunkLoader#forceloadPortalChunks(PortalPosition)}.
+     * @param chunks The chunks that were given tickets
+     */
+    void unforceloadPortalChunks(@NotNull List<ChunkPosition> chunks);
 }
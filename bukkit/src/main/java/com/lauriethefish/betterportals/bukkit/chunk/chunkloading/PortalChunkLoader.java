@@ -1,6 +1,7 @@
 package com.lauriethefish.betterportals.bukkit.chunk.chunkloading;
 
 import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
 import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.SquareChunkAreaIterator;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import org.bukkit.Location;
@@ -9,6 +10,9 @@ import org.jetbrains.annotations.NotNull;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Used to load the destination chunks of a portal, this is done to make entities move
@@ -16,12 +20,12 @@ import javax.inject.Singleton;
 @Singleton
 public class PortalChunkLoader implements IPortalChunkLoader   {
     private final RenderConfig config;
-    private final IChunkLoader chunkLoader;
+    private final IChunkTicketManager ticketManager;
 
     @Inject
-    public PortalChunkLoader(RenderConfig config, IChunkLoader chunkLoader) {
+    public PortalChunkLoader(RenderConfig config, IChunkTicketManager ticketManager) {
         this.config = config;
-        this.chunkLoader = chunkLoader;
+        this.ticketManager = ticketManager;
     }
 
     private SquareChunkAreaIterator getAreaIterator(PortalPosition destPosition) {
@@ -34,16 +38,25 @@ public class PortalChunkLoader implements IPortalChunkLoader   {
     }
 
     @Override
-    public void forceloadPortalChunks(@NotNull PortalPosition destPosition) {
-        if(destPosition.isExternal()) {return;}
-
-        chunkLoader.forceLoadAllPos(getAreaIterator(destPosition));
+    public @NotNull List<ChunkPosition> forceloadPortalChunks(@NotNull PortalPosition destPosition) {
+        if(destPosition.isExternal()) {return Collections.emptyList();}
+
+        // The chunks are stored, since the render size may change before they are released
+        List<ChunkPosition> chunks = new ArrayList<>();
+        SquareChunkAreaIterator iterator = getAreaIterator(destPosition);
+        while(iterator.hasNext()) {
+            ChunkPosition chunk = iterator.next();
+            ticketManager.addTicket(chunk);
+            chunks.add(chunk);
+        }
+
+        return chunks;
     }
 
     @Override
-    public void unforceloadPortalChunks(@NotNull PortalPosition destPosition) {
-        if(destPosition.isExternal()) {return;}
-
-        chunkLoader.unForceLoadAllPos(getAreaIterator(destPosition));
+    public void unforceloadPortalChunks(@NotNull List<ChunkPosition> chunks) {
+        for(ChunkPosition chunk : chunks) {
+            ticketManager.removeTicket(chunk);
+        }
     }
 }
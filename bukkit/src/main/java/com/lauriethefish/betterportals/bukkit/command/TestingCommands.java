@@ -4,17 +4,36 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.IChunkTicketManager;
 import com.lauriethefish.betterportals.bukkit.command.framework.annotations.*;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityInfo;
+import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.entity.faking.IEntityPacketManipulator;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.net.requests.TestForwardedRequest;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
+import com.lauriethefish.betterportals.bukkit.config.WorldLink;
+import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
+import com.lauriethefish.betterportals.bukkit.portal.IPortalPrefetcher;
+import com.lauriethefish.betterportals.bukkit.portal.Portal;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.AsyncPortalChecker;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.ChunkSnapshotSpawnArea;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.IPortalSpawner;
 import com.lauriethefish.betterportals.bukkit.portal.spawning.NewPortalChecker;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.PortalSpawningContext;
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.rpc.LatencyHistogram;
+import com.lauriethefish.betterportals.shared.net.rpc.RequestMetrics;
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
+import com.lauriethefish.betterportals.shared.net.stream.StreamStatistics;
 import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.command.CommandSender;
@@ -22,22 +41,39 @@ import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Singleton
 public class TestingCommands {
     private final NewPortalChecker spawnChecker;
     private final IEntityPacketManipulator entityPacketManipulator;
     private final IPortalClient portalClient;
+    private final EntityTrackingManager entityTrackingManager;
+    private final RequestMetrics requestMetrics;
+    private final IPortalManager portalManager;
+    private final IPortalSpawner portalSpawner;
+    private final IChunkTicketManager chunkTicketManager;
+    private final IPortalPrefetcher portalPrefetcher;
     private List<Integer> storedData;
 
     @Inject
-    public TestingCommands(NewPortalChecker spawnChecker, IEntityPacketManipulator entityPacketManipulator, IPortalClient portalClient) {
+    public TestingCommands(NewPortalChecker spawnChecker, IEntityPacketManipulator entityPacketManipulator, IPortalClient portalClient, EntityTrackingManager entityTrackingManager, RequestMetrics requestMetrics,
+                           IPortalManager portalManager, IPortalSpawner portalSpawner, IChunkTicketManager chunkTicketManager, IPortalPrefetcher portalPrefetcher) {
         this.spawnChecker = spawnChecker;
         this.entityPacketManipulator = entityPacketManipulator;
         this.portalClient = portalClient;
+        this.entityTrackingManager = entityTrackingManager;
+        this.requestMetrics = requestMetrics;
+        this.portalManager = portalManager;
+        this.portalSpawner = portalSpawner;
+        this.chunkTicketManager = chunkTicketManager;
+        this.portalPrefetcher = portalPrefetcher;
     }
 
     @Command
@@ -63,7 +99,49 @@ public class TestingCommands {
     @RequiresPlayer
     public boolean testIsValidSpawnPos(Player player, PortalDirection direction, int sizeX, int sizeY) {
         Vector size = new Vector(sizeX, sizeY, 0.0);
-        player.sendMessage(String.valueOf(spawnChecker.isValidPortalSpawnPosition(player.getLocation().subtract(0.0, 1.0, 0.0), direction, size)));
+        Location location = player.getLocation().subtract(0.0, 1.0, 0.0);
+        World world = player.getWorld();
+
+        List<Location> portalOrigins = new ArrayList<>();
+        for(IPortal portal : portalManager.getAllPortals()) {
+            portalOrigins.add(portal.getOriginPos().getLocation());
+        }
+
+        // Capture enough chunks around the player to fit the portal in any direction
+        int margin = (sizeX + 3 + 15) / 16;
+        int chunkX = location.getBlockX() >> 4;
+        int chunkZ = location.getBlockZ() >> 4;
+        ChunkSnapshotSpawnArea area = new ChunkSnapshotSpawnArea(world, chunkX - margin, chunkZ - margin, chunkX + margin, chunkZ + margin, portalOrigins);
+        for(int x = chunkX - margin; x <= chunkX + margin; x++) {
+            for(int z = chunkZ - margin; z <= chunkZ + margin; z++) {
+                area.addChunk(world.getChunkAt(x, z));
+            }
+        }
+
+        player.sendMessage(String.valueOf(spawnChecker.isValidPortalSpawnPosition(area, location.getBlockX(), location.getBlockY(), location.getBlockZ(), direction, size)));
+
+        return true;
+    }
+
+    @Command
+    @Path("betterportals/test/spawnSearch")
+    @Argument(name = "sizeX")
+    @Argument(name = "sizeY")
+    @RequiresPlayer
+    public boolean benchmarkSpawnSearch(Player player, int sizeX, int sizeY) {
+        World world = player.getWorld();
+        WorldLink link = new WorldLink(world, world, 1.0, HeightUtil.getMinHeight(world), HeightUtil.getMaxHeight(world));
+        PortalSpawningContext context = new PortalSpawningContext(link, player.getLocation(), new Vector(sizeX, sizeY, 0.0));
+
+        long startTime = System.nanoTime();
+        AtomicReference<AsyncPortalChecker> search = new AtomicReference<>();
+        search.set(portalSpawner.findSpawnPosition(context, (position) -> {
+            AsyncPortalChecker checker = search.get();
+            player.sendMessage(String.format("Found position: %s", position == null ? "none" : position.getPosition().toVector()));
+            player.sendMessage(String.format("Took %d ticks, %.2fms total", checker.getUpdateCount(), (System.nanoTime() - startTime) / 1_000_000d));
+            player.sendMessage(String.format("Main thread time: %.2fms", checker.getMainThreadMillis()));
+            player.sendMessage(String.format("Chunks captured: %d, chunks checked: %d, chunks skipped: %d", checker.getChunksCaptured(), checker.getChunksChecked(), checker.getChunksSkipped()));
+        }));
 
         return true;
     }
@@ -96,6 +174,107 @@ public class TestingCommands {
         return true;
     }
 
+    @Command
+    @Path("betterportals/test/entityTrackerStats")
+    public boolean showEntityTrackerStats(CommandSender sender) {
+        sender.sendMessage(String.format("Replicated entities: %d", entityTrackingManager.getTrackerCount()));
+        sender.sendMessage(String.format("Packets suppressed since startup: %d", entityTrackingManager.getSuppressedPacketCount()));
+        return true;
+    }
+
+    @Command
+    @Path("betterportals/test/streamStats")
+    public boolean showStreamStats(CommandSender sender) {
+        for(MessagePriority priority : MessagePriority.values()) {
+            StreamStatistics stats = portalClient.getStreamStatistics(priority);
+            if(stats == null) {
+                sender.sendMessage("Not connected to the proxy");
+                return true;
+            }
+
+            sender.sendMessage(String.format("%s: %d queued (%d bytes), %d sent in %d frames, latency %.2fms average, %.2fms max",
+                    priority, stats.getQueuedMessages(), stats.getQueuedBytes(), stats.getSentMessages(), stats.getSentFrames(), stats.getAverageLatencyMillis(), stats.getMaxLatencyMillis()));
+        }
+        return true;
+    }
+
+    @Command
+    @Path("betterportals/test/requestStats")
+    public boolean showRequestStats(CommandSender sender) {
+        List<RequestMetrics.Entry> entries = requestMetrics.getEntries();
+        if(entries.isEmpty()) {
+            sender.sendMessage("No requests have been sent to other servers");
+            return true;
+        }
+
+        for(RequestMetrics.Entry entry : entries) {
+            LatencyHistogram histogram = entry.getHistogram();
+            sender.sendMessage(String.format("%s to %s: %d sent, %d failed, %d timed out, p50 %.2fms, p99 %.2fms, max %.2fms",
+                    entry.getRequestType(), entry.getDestination(), histogram.getCount(), entry.getFailures().get(), entry.getTimeouts().get(),
+                    histogram.getPercentileMillis(50.0), histogram.getPercentileMillis(99.0), histogram.getMaxMillis()));
+        }
+        return true;
+    }
+
+    @Command
+    @Path("betterportals/test/chunkTickets")
+    public boolean showChunkTickets(CommandSender sender) {
+        sender.sendMessage(String.format("Chunks with tickets: %d, lingering: %d, waiting to load: %d",
+                chunkTicketManager.getTicketedChunkCount(), chunkTicketManager.getLingeringChunkCount(), chunkTicketManager.getPendingLoadCount()));
+        return true;
+    }
+
+    @Command
+    @Path("betterportals/test/prefetchStats")
+    public boolean showPrefetchStats(CommandSender sender) {
+        sender.sendMessage(String.format("Portals being prefetched: %d, hits: %d, misses: %d",
+                portalPrefetcher.getPrefetchCount(), portalPrefetcher.getHits(), portalPrefetcher.getMisses()));
+        return true;
+    }
+
+    @Command
+    @Path("betterportals/test/portalMemory")
+    public boolean showPortalMemory(CommandSender sender) {
+        int withResources = 0;
+        long resourceBytes = 0;
+        for(IPortal portal : portalManager.getAllPortals()) {
+            if(!portal.hasResources()) {continue;}
+
+            withResources++;
+            resourceBytes += portal.estimateResourceMemoryUsage();
+        }
+
+        // An idle portal only holds itself, its ID, its two positions and its size. Names aren't counted, since their length varies
+        long idleBytes = getShallowSize(Portal.class) + getShallowSize(UUID.class) + getShallowSize(PortalPosition.class) * 2 + getShallowSize(Vector.class);
+        int portalCount = portalManager.getAllPortals().size();
+        sender.sendMessage(String.format("Registered portals: %d, estimated resident memory: %d bytes each, %d bytes in total", portalCount, idleBytes, idleBytes * portalCount));
+        sender.sendMessage(String.format("Portals with their view resources created: %d, estimated memory of their block maps: %d bytes", withResources, resourceBytes));
+        return true;
+    }
+
+    // Estimates the size of an instance of the class, without the objects that it references, assuming compressed references
+    private static long getShallowSize(Class<?> type) {
+        long size = 12; // Object header
+        for(Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for(Field field : current.getDeclaredFields()) {
+                if(Modifier.isStatic(field.getModifiers())) {continue;}
+
+                size += getFieldSize(field.getType());
+            }
+        }
+
+        // Objects are aligned to 8 bytes
+        return (size + 7) & ~7;
+    }
+
+    private static int getFieldSize(Class<?> type) {
+        if(type == long.class || type == double.class) {return 8;}
+        if(type == int.class || type == float.class) {return 4;}
+        if(type == short.class || type == char.class) {return 2;}
+        if(type == byte.class || type == boolean.class) {return 1;}
+        return 4; // Compressed reference
+    }
+
     @Command
     @Path("betterportals/test/smallTeleport")
     @RequiresPlayer
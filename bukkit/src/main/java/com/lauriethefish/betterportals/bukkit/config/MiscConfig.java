@@ -25,6 +25,12 @@ public class MiscConfig {
 
     @Getter private int portalSaveInterval;
 
+    @Getter private int chunkLingerTime;
+    @Getter private int portalIdleTime;
+
+    @Getter private double prefetchLookahead;
+    @Getter private int maxConcurrentPrefetches;
+
     @Inject
     public MiscConfig(Logger logger) {
         this.logger = logger;
@@ -51,5 +57,10 @@ public class MiscConfig {
         teleportCooldown = config.getInt("teleportCooldown");
         testingCommandsEnabled = config.getBoolean("enableTestingCommands");
         portalSaveInterval = config.getInt("portalSaveInterval");
+        chunkLingerTime = config.getInt("chunkLingerTime");
+        portalIdleTime = config.getInt("portalIdleTime");
+
+        prefetchLookahead = config.getDouble("prefetchLookahead");
+        maxConcurrentPrefetches = config.getInt("maxConcurrentPrefetches");
     }
 }
@@ -124,4 +124,14 @@ public class PortalSpawnConfig {
     public @Nullable WorldLink getWorldLink(@NotNull World originWorld) {
         return worldLinks.get(originWorld);
     }
+
+    /**
+     * @return Whether portals can be spawned in <code>world</code>, i.e. it is the destination of a world link
+     */
+    public boolean isSpawnDestination(@NotNull World world) {
+        for(WorldLink link : worldLinks.values()) {
+            if(link.getDestinationWorld() == world) {return true;}
+        }
+        return false;
+    }
 }
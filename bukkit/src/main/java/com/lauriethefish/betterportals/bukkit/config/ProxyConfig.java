@@ -3,6 +3,7 @@ package com.lauriethefish.betterportals.bukkit.config;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
 import lombok.Getter;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -22,6 +23,13 @@ public class ProxyConfig {
     @Getter private boolean warnOnMissingSelection;
     @Getter public String overrideServerName;
     @Getter public boolean keepAlive; // Whether or not the socket used will have keepAlive enabled
+    @Getter private CompressionType compression; // Codec used to compress messages before encryption, if the proxy supports it
+    @Getter private int compressionLevel; // Only used by deflate
+    @Getter private int compressionThreshold; // Messages smaller than this many bytes are sent uncompressed
+    @Getter private boolean directConnectionsEnabled; // Whether other servers can send requests directly to this one, and whether this server tries to connect directly to others
+    @Getter private int directConnectionPort;
+    @Getter private String directConnectionAddress; // Null to use the address that this server connects to the proxy from
+    @Getter private long requestHandlingBudgetNanos; // Time each tick that requests from other servers can take on the main thread
 
     @Inject
     public ProxyConfig(Logger logger) {
@@ -70,5 +78,40 @@ public class ProxyConfig {
 
         warnOnMissingSelection = section.getBoolean("warnOnMissingSelection");
         keepAlive = section.getBoolean("keepAlive", true);
+
+        String compressionName = section.getString("compression", "lz4");
+        compression = CompressionType.fromConfigName(compressionName);
+        if(!compression.getConfigName().equalsIgnoreCase(compressionName)) {
+            logger.warning("Unknown compression type %s, valid values are none, deflate and lz4. Compression will be disabled.", compressionName);
+        }
+
+        compressionLevel = section.getInt("compressionLevel", CompressionType.DEFAULT_LEVEL);
+        if(compressionLevel < CompressionType.MIN_LEVEL || compressionLevel > CompressionType.MAX_LEVEL) {
+            logger.warning("Compression level must be between %d and %d, using %d", CompressionType.MIN_LEVEL, CompressionType.MAX_LEVEL, CompressionType.DEFAULT_LEVEL);
+            compressionLevel = CompressionType.DEFAULT_LEVEL;
+        }
+        compressionThreshold = section.getInt("compressionThreshold", 256);
+
+        double requestHandlingBudget = section.getDouble("requestHandlingBudget", 5.0);
+        if(requestHandlingBudget <= 0.0) {
+            logger.warning("Request handling budget must be above zero, using 5ms");
+            requestHandlingBudget = 5.0;
+        }
+        requestHandlingBudgetNanos = (long) (requestHandlingBudget * 1_000_000);
+
+        ConfigurationSection directSection = section.getConfigurationSection("directConnections");
+        directConnectionsEnabled = directSection != null && directSection.getBoolean("enable");
+        if(directConnectionsEnabled) {
+            directConnectionPort = directSection.getInt("port", 25511);
+            if(directConnectionPort <= 0 || directConnectionPort > 65535) {
+                logger.warning("Invalid direct connection port %d. Direct connections will be disabled.", directConnectionPort);
+                directConnectionsEnabled = false;
+            }
+
+            directConnectionAddress = directSection.getString("address");
+            if(directConnectionAddress != null && directConnectionAddress.isEmpty()) {
+                directConnectionAddress = null;
+            }
+        }
     }
 }
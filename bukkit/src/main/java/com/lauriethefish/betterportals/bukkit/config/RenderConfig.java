@@ -52,6 +52,13 @@ public class RenderConfig {
 
     private int entityMetadataUpdateInterval;
 
+    private double entityNearDistanceSquared;
+    private double entityFarDistanceSquared;
+    private int entityMediumUpdateInterval;
+    private int entityFarUpdateInterval;
+    private int maxReplicatedEntities;
+    private double itemCoalesceDistance;
+
     private int lightSimulationInterval;
     private int forceLightLevel;
 
@@ -103,6 +110,19 @@ public class RenderConfig {
 
         entityMetadataUpdateInterval = file.getInt("entityMetadataUpdateInterval");
 
+        ConfigurationSection replicationSection = Objects.requireNonNull(file.getConfigurationSection("entityReplication"), "Entity replication section missing");
+        double nearDistance = replicationSection.getDouble("nearDistance");
+        double farDistance = replicationSection.getDouble("farDistance");
+        entityNearDistanceSquared = nearDistance * nearDistance;
+        entityFarDistanceSquared = farDistance * farDistance;
+        entityMediumUpdateInterval = replicationSection.getInt("mediumUpdateInterval");
+        entityFarUpdateInterval = replicationSection.getInt("farUpdateInterval");
+        if(entityMediumUpdateInterval <= 0 || entityFarUpdateInterval <= 0) {
+            throw new IllegalArgumentException("Entity update intervals must be at least 1");
+        }
+        maxReplicatedEntities = replicationSection.getInt("maxEntitiesPerPlayer");
+        itemCoalesceDistance = replicationSection.getDouble("itemCoalesceDistance");
+
         worldSwitchWaitTime = file.getInt("waitTimeAfterSwitchingWorlds"); // TODO: implement or yeet
         portalBlocksHidden = file.getBoolean("hidePortalBlocks");
         blockStateRefreshInterval = file.getInt("blockStateRefreshInterval");
@@ -145,6 +165,21 @@ public class RenderConfig {
         return x <= minXZ || x >= maxXZ || y <= minY || y >= maxY || z <= minXZ || z >= maxXZ;
     }
 
+    /**
+     * Finds how often an entity seen through a portal should be updated.
+     * @param distanceSquared Squared distance between the player and the entity, as seen through the portal
+     * @return The interval in ticks between updates of the entity
+     */
+    public int getEntityUpdateInterval(double distanceSquared) {
+        if(distanceSquared <= entityNearDistanceSquared) {
+            return 1;
+        }   else if(distanceSquared <= entityFarDistanceSquared) {
+            return entityMediumUpdateInterval;
+        }   else    {
+            return entityFarUpdateInterval;
+        }
+    }
+
     public WrappedBlockData findBackgroundData(PortalPosition destPosition) {
         if(backgroundBlockData != null) {
             return backgroundBlockData;
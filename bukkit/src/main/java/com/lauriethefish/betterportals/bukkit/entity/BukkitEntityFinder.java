@@ -5,20 +5,78 @@ import org.bukkit.World;
 import org.bukkit.entity.Entity;
 
 import javax.inject.Singleton;
-import java.util.Collection;
-import java.util.Objects;
+import java.util.*;
 import java.util.function.Consumer;
 
+/**
+ * Finds entities using a {@link WorldEntitySnapshot} of each world, which captures each chunk at most once per tick.
+ * Since every active portal queries the same snapshot, overlapping portals no longer each scan the entities around them.
+ */
 @Singleton
 public class BukkitEntityFinder implements IEntityFinder {
+    /**
+     * Number of ticks that an unused world snapshot is kept for, so that its buckets can be reused if the world is queried again.
+     */
+    private static final int SNAPSHOT_EXPIRY_TICKS = 200;
+
+    private final Map<World, WorldEntitySnapshot> snapshots = new HashMap<>();
+    private final Location scratchLocation = new Location(null, 0.0, 0.0, 0.0);
+    private int currentTick = 0;
+
+    @Override
+    public void onTick() {
+        currentTick++;
+        snapshots.values().removeIf(snapshot -> currentTick - snapshot.getLastResetTick() > SNAPSHOT_EXPIRY_TICKS);
+    }
+
+    private WorldEntitySnapshot getSnapshot(World world) {
+        WorldEntitySnapshot snapshot = snapshots.computeIfAbsent(world, WorldEntitySnapshot::new);
+        if(snapshot.getLastResetTick() != currentTick) {
+            snapshot.reset(currentTick);
+        }
+
+        return snapshot;
+    }
+
     @Override
     public Collection<Entity> getNearbyEntities(Collection<Entity> existing, Location location, double xRadius, double yRadius, double zRadius) {
         World world = Objects.requireNonNull(location.getWorld());
-        return world.getNearbyEntities(location, xRadius, yRadius, zRadius);
+
+        double minX = location.getX() - xRadius;
+        double minY = location.getY() - yRadius;
+        double minZ = location.getZ() - zRadius;
+        double maxX = location.getX() + xRadius;
+        double maxY = location.getY() + yRadius;
+        double maxZ = location.getZ() + zRadius;
+
+        // Entities returned by a previous call are updated in place, instead of building a new collection each time
+        Set<Entity> result = existing instanceof HashSet ? (HashSet<Entity>) existing : new HashSet<>();
+
+        // Remove the entities that have left the area, or that no longer exist
+        result.removeIf(entity -> {
+            if(!entity.isValid() || entity.getWorld() != world) {return true;}
+
+            entity.getLocation(scratchLocation);
+            double x = scratchLocation.getX();
+            double y = scratchLocation.getY();
+            double z = scratchLocation.getZ();
+            return x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ;
+        });
+        scratchLocation.setWorld(null);
+
+        // Add any entities that have entered the area
+        getSnapshot(world).forEachInBox(minX, minY, minZ, maxX, maxY, maxZ, result::add);
+        return result;
     }
 
     @Override
     public void getNearbyEntities(Location location, double xRadius, double yRadius, double zRadius, Consumer<Entity> consumer) {
-        getNearbyEntities(null, location, xRadius, yRadius, zRadius).forEach(consumer);
+        World world = Objects.requireNonNull(location.getWorld());
+
+        getSnapshot(world).forEachInBox(
+                location.getX() - xRadius, location.getY() - yRadius, location.getZ() - zRadius,
+                location.getX() + xRadius, location.getY() + yRadius, location.getZ() + zRadius,
+                consumer
+        );
     }
 }
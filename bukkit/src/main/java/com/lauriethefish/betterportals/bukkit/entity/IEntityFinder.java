@@ -12,9 +12,15 @@ import java.util.function.Consumer;
  * This has both an NMS and bukkit implementation
  */
 public interface IEntityFinder {
+    /**
+     * Called at the start of every tick, before any entities are found.
+     * Implementations that cache entity positions should invalidate them here.
+     */
+    default void onTick() {}
+
     /**
      * Finds the nearby entities in a given area, in a box, and collects them.
-     * @param existing An existing collection to be reused to avoid re-allocating memory. This can be null, and the implementor doesn't have to use it
+     * @param existing A collection previously returned by this method, which may be updated in place with the entities that entered and left the area, instead of re-allocating it. This can be null, and the implementor doesn't have to use it
      * @param location The location to find the entities from
      * @param xRadius X radius from the location
      * @param yRadius Y radius from the location
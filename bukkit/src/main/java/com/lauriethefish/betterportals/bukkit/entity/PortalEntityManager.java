@@ -25,7 +25,6 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.inject.Inject;
 import java.util.*;
-import java.util.function.Consumer;
 
 // Stores the two lists of entities at the origin and destination of a portal
 // (or only 1 if specified)
@@ -44,7 +43,8 @@ public class PortalEntityManager implements IPortalEntityManager {
     private final boolean requireDestination;
 
     @Getter private Collection<Entity> destinationEntities = null;
-    private Map<Entity, Location> originEntities = null;
+    private Collection<Entity> nearbyOriginEntities = null;
+    private final Map<Entity, Location> originEntities = new HashMap<>();
 
     @Inject
     public PortalEntityManager(@Assisted IPortal portal, @Assisted boolean requireDestination, MiscConfig miscConfig, RenderConfig renderConfig, IPortalPredicateManager predicateManager, Logger logger, IPortalClient
@@ -76,14 +76,12 @@ public class PortalEntityManager implements IPortalEntityManager {
             destinationEntities = getNearbyEntities(destinationEntities, portal.getDestPos());
         }
 
-        // Copy the old entities over to a new hashmap
-        Map<Entity, Location> oldOriginEntities = originEntities;
-        originEntities = new HashMap<>();
-
-        getNearbyEntities(portal.getOriginPos(), entity -> {
-            Location oldLocation = oldOriginEntities == null ? null : oldOriginEntities.get(entity);
-            originEntities.put(entity, oldLocation != null ? oldLocation : entity.getLocation());
-        });
+        // Update the origin entities in place, keeping the last location of entities that were already nearby
+        nearbyOriginEntities = getNearbyEntities(nearbyOriginEntities, portal.getOriginPos());
+        originEntities.keySet().retainAll(nearbyOriginEntities);
+        for(Entity entity : nearbyOriginEntities) {
+            originEntities.computeIfAbsent(entity, Entity::getLocation);
+        }
     }
 
     private void handleTeleportation() {
@@ -132,10 +130,6 @@ public class PortalEntityManager implements IPortalEntityManager {
         return entityFinder.getNearbyEntities(existing, position.getLocation(), renderConfig.getMaxXZ(), renderConfig.getMaxY(), renderConfig.getMaxXZ());
     }
 
-    private void getNearbyEntities(PortalPosition position, Consumer<Entity> sendTo) {
-        entityFinder.getNearbyEntities(position.getLocation(), renderConfig.getMaxXZ(), renderConfig.getMaxY(), renderConfig.getMaxXZ(), sendTo);
-    }
-
     /**
      * Verifies that <code>entity</code> can teleport using {@link IPortalPredicateManager}
      * @param entity Entity to check
@@ -177,7 +171,7 @@ public class PortalEntityManager implements IPortalEntityManager {
         if(blockOffset.getX() < 0.4 && preferred.clone().add(-1.0, 0.0, 0.0).getBlock().getType().isSolid()) {
             blockOffset.setX(0.4);
         }
-        logger.finer("Fixing position. Floored pos: %s. Block offset: %s", flooredPos.toVector(), blockOffset.toVector());
+        logger.finer(() -> String.format("Fixing position. Floored pos: %s. Block offset: %s", flooredPos.toVector(), blockOffset.toVector()));
 
         return blockOffset.add(flooredPos);
     }
@@ -0,0 +1,159 @@
+package com.lauriethefish.betterportals.bukkit.entity;
+
+import com.lauriethefish.betterportals.bukkit.util.LongObjectMap;
+import lombok.Getter;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Snapshot of the positions of the entities in a world, bucketed by the chunk section (16x16x16 blocks) that they're in.
+ * Chunks are only captured when a query first overlaps them during a tick, then shared by every portal querying the world,
+ * instead of each portal calling {@link World#getNearbyEntities(Location, double, double, double)} for its origin and destination.
+ * Since portal views are far shorter than the world is tall, queries only check the sections in their box instead of every entity in each chunk.
+ * Buckets are reused between ticks to avoid re-allocating memory every tick.
+ */
+public class WorldEntitySnapshot {
+    private static final int INITIAL_BUCKET_CAPACITY = 8;
+
+    private static class Bucket {
+        private Entity[] entities = new Entity[INITIAL_BUCKET_CAPACITY];
+        private double[] positions = new double[INITIAL_BUCKET_CAPACITY * 3];
+        private int size = 0;
+
+        private void add(Entity entity, double x, double y, double z) {
+            if(size == entities.length) {
+                entities = Arrays.copyOf(entities, size * 2);
+                positions = Arrays.copyOf(positions, size * 6);
+            }
+
+            entities[size] = entity;
+            positions[size * 3] = x;
+            positions[size * 3 + 1] = y;
+            positions[size * 3 + 2] = z;
+            size++;
+        }
+
+        private void clear() {
+            // Avoid keeping removed entities in memory
+            Arrays.fill(entities, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private final World world;
+    // Only sections with entities in them have a bucket
+    private final LongObjectMap<Bucket> sections = new LongObjectMap<>();
+    private final LongObjectMap<Boolean> capturedChunks = new LongObjectMap<>();
+    // Buckets of the sections captured on previous ticks, ready to be reused
+    private final List<Bucket> freeBuckets = new ArrayList<>();
+    private final List<Bucket> usedBuckets = new ArrayList<>();
+    private final Location scratchLocation = new Location(null, 0.0, 0.0, 0.0);
+
+    @Getter private int lastResetTick = -1;
+
+    public WorldEntitySnapshot(World world) {
+        this.world = world;
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    // Chunk coordinates fit in 22 bits, which leaves 20 bits for the section Y coordinate
+    private static long getSectionKey(int chunkX, int sectionY, int chunkZ) {
+        return ((chunkX & 0x3FFFFFL) << 42) | ((chunkZ & 0x3FFFFFL) << 20) | (sectionY & 0xFFFFFL);
+    }
+
+    private static int toChunk(double coordinate) {
+        return ((int) Math.floor(coordinate)) >> 4;
+    }
+
+    /**
+     * Forgets the chunks captured on previous ticks, since the entities in them may have moved.
+     * @param currentTick The tick that this snapshot is being used on
+     */
+    public void reset(int currentTick) {
+        lastResetTick = currentTick;
+
+        for(Bucket bucket : usedBuckets) {
+            bucket.clear();
+            freeBuckets.add(bucket);
+        }
+        usedBuckets.clear();
+        sections.clear();
+        capturedChunks.clear();
+    }
+
+    // Captures the current position of every entity in the chunk into the bucket of its section, if this hasn't been done since the last reset
+    private void captureChunk(int chunkX, int chunkZ) {
+        long chunkKey = getChunkKey(chunkX, chunkZ);
+        if(capturedChunks.get(chunkKey) != null) {return;}
+        capturedChunks.put(chunkKey, Boolean.TRUE);
+
+        // Unloaded chunks have no entities, and checking them must not load them
+        if(!world.isChunkLoaded(chunkX, chunkZ)) {return;}
+
+        for(Entity entity : world.getChunkAt(chunkX, chunkZ).getEntities()) {
+            entity.getLocation(scratchLocation);
+            double y = scratchLocation.getY();
+
+            // Entities are kept in the column of the chunk that lists them, which may lag behind their position by a tick
+            long sectionKey = getSectionKey(chunkX, toChunk(y), chunkZ);
+            Bucket bucket = sections.get(sectionKey);
+            if(bucket == null) {
+                bucket = freeBuckets.isEmpty() ? new Bucket() : freeBuckets.remove(freeBuckets.size() - 1);
+                usedBuckets.add(bucket);
+                sections.put(sectionKey, bucket);
+            }
+
+            bucket.add(entity, scratchLocation.getX(), y, scratchLocation.getZ());
+        }
+        scratchLocation.setWorld(null);
+    }
+
+    /**
+     * Sends each entity with a position inside the given box through <code>consumer</code>.
+     * Unlike {@link World#getNearbyEntities(Location, double, double, double)}, this uses the entity position rather than its bounding box.
+     * @param minX Minimum X coordinate of the box
+     * @param minY Minimum Y coordinate of the box
+     * @param minZ Minimum Z coordinate of the box
+     * @param maxX Maximum X coordinate of the box
+     * @param maxY Maximum Y coordinate of the box
+     * @param maxZ Maximum Z coordinate of the box
+     * @param consumer Consumer to send the entities in the box through
+     */
+    public void forEachInBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ, Consumer<Entity> consumer) {
+        int maxChunkX = toChunk(maxX);
+        int maxChunkZ = toChunk(maxZ);
+        int minSectionY = toChunk(minY);
+        int maxSectionY = toChunk(maxY);
+
+        for(int chunkX = toChunk(minX); chunkX <= maxChunkX; chunkX++) {
+            for(int chunkZ = toChunk(minZ); chunkZ <= maxChunkZ; chunkZ++) {
+                captureChunk(chunkX, chunkZ);
+
+                for(int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+                    Bucket bucket = sections.get(getSectionKey(chunkX, sectionY, chunkZ));
+                    if(bucket == null) {continue;}
+
+                    double[] positions = bucket.positions;
+                    for(int i = 0; i < bucket.size; i++) {
+                        double x = positions[i * 3];
+                        double y = positions[i * 3 + 1];
+                        double z = positions[i * 3 + 2];
+
+                        if(x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                            consumer.accept(bucket.entities[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -5,7 +5,7 @@ import org.bukkit.entity.LivingEntity;
 import org.bukkit.inventory.EntityEquipment;
 import org.bukkit.inventory.ItemStack;
 
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
 
 /**
@@ -22,6 +22,8 @@ public class EntityEquipmentWatcher {
     private ItemStack leggings;
     private ItemStack boots;
 
+    private final Map<EnumWrappers.ItemSlot, ItemStack> result = new EnumMap<>(EnumWrappers.ItemSlot.class);
+
     public EntityEquipmentWatcher(LivingEntity entity) {
         this.entity = entity;
     }
@@ -30,37 +32,45 @@ public class EntityEquipmentWatcher {
      * Checks for any changed pieces of equipment and returns a map of them
      * Will return every slot the first time
      * The values may be null
+     * The returned map is reused, so it is only valid until the next call
      * @return A map of which slots changed, and their new value
      */
     public Map<EnumWrappers.ItemSlot, ItemStack> checkForChanges() {
-        Map<EnumWrappers.ItemSlot, ItemStack> result = new HashMap<>();
+        result.clear();
 
         EntityEquipment current = entity.getEquipment();
         if(current == null) {return result;}
 
         // Compare each item of equipment, and add it to the map if any changes are found
-        if(isStateDifferent(mainHand, current.getItemInMainHand())) {
-            mainHand = current.getItemInMainHand();
+        // Bukkit copies the item in each getter, so each is only called once
+        ItemStack mainHandNow = current.getItemInMainHand();
+        if(isStateDifferent(mainHand, mainHandNow)) {
+            mainHand = mainHandNow;
             result.put(EnumWrappers.ItemSlot.MAINHAND, mainHand);
         }
-        if(isStateDifferent(offHand, current.getItemInOffHand())) {
-            offHand = current.getItemInOffHand();
+        ItemStack offHandNow = current.getItemInOffHand();
+        if(isStateDifferent(offHand, offHandNow)) {
+            offHand = offHandNow;
             result.put(EnumWrappers.ItemSlot.OFFHAND, offHand);
         }
-        if(isStateDifferent(helmet, current.getHelmet())) {
-            helmet = current.getHelmet();
+        ItemStack helmetNow = current.getHelmet();
+        if(isStateDifferent(helmet, helmetNow)) {
+            helmet = helmetNow;
             result.put(EnumWrappers.ItemSlot.HEAD, helmet);
         }
-        if(isStateDifferent(chestplate, current.getChestplate())) {
-            chestplate = current.getChestplate();
+        ItemStack chestplateNow = current.getChestplate();
+        if(isStateDifferent(chestplate, chestplateNow)) {
+            chestplate = chestplateNow;
             result.put(EnumWrappers.ItemSlot.CHEST, chestplate);
         }
-        if(isStateDifferent(leggings, current.getLeggings())) {
-            leggings = current.getLeggings();
+        ItemStack leggingsNow = current.getLeggings();
+        if(isStateDifferent(leggings, leggingsNow)) {
+            leggings = leggingsNow;
             result.put(EnumWrappers.ItemSlot.LEGS, leggings);
         }
-        if(isStateDifferent(boots, current.getBoots())) {
-            boots = current.getBoots();
+        ItemStack bootsNow = current.getBoots();
+        if(isStateDifferent(boots, bootsNow)) {
+            boots = bootsNow;
             result.put(EnumWrappers.ItemSlot.FEET, boots);
         }
 
@@ -0,0 +1,146 @@
+package com.lauriethefish.betterportals.bukkit.entity.faking;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.reflect.StructureModifier;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.util.ReflectionException;
+import com.lauriethefish.betterportals.shared.util.ReflectionUtil;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Collects the entity packets sent to each player while a batch is active, then sends them all at once when it is flushed.
+ * On 1.19.4 and above, the packets for each player are wrapped in bundle packets, so that the client processes them all in the same frame.
+ * Each packet is only created once, then the same instance is queued for every player viewing the entity.
+ */
+@Singleton
+public class EntityPacketBatcher {
+    private static final boolean useBundlePackets = VersionUtil.isMcVersionAtLeast("1.19.4");
+
+    /**
+     * The client disconnects if a bundle contains more packets than this.
+     */
+    private static final int MAX_BUNDLE_SIZE = 4096;
+
+    private final Logger logger;
+
+    private final Map<Player, List<PacketContainer>> pendingPackets = new HashMap<>();
+    private boolean isBatching = false;
+
+    private final @Nullable PacketType bundleType;
+    private final @Nullable Method getPacketBundles;
+
+    @Inject
+    public EntityPacketBatcher(Logger logger) {
+        this.logger = logger;
+
+        PacketType bundleType = null;
+        Method getPacketBundles = null;
+        if(useBundlePackets) {
+            // Bundles don't exist in the version of ProtocolLib that we compile against, so we find them with reflection
+            try {
+                bundleType = (PacketType) ReflectionUtil.getField(null, ReflectionUtil.findField(PacketType.Play.Server.class, "BUNDLE"));
+                getPacketBundles = ReflectionUtil.findMethod(PacketContainer.class, "getPacketBundles");
+            }   catch(ReflectionException ex) {
+                logger.warning("Unable to find the bundle packet, entity packets will be sent individually. Please update ProtocolLib!");
+                bundleType = null;
+                getPacketBundles = null;
+            }
+        }
+
+        this.bundleType = bundleType;
+        this.getPacketBundles = getPacketBundles;
+    }
+
+    /**
+     * Starts queueing packets instead of sending them immediately.
+     */
+    public void beginBatch() {
+        isBatching = true;
+    }
+
+    /**
+     * Sends <code>packet</code> to <code>players</code>, or queues it for each of them if a batch is active.
+     * @param packet The packet to send
+     * @param players The players to send it to
+     */
+    public void sendPacket(PacketContainer packet, Collection<Player> players) {
+        if(!isBatching) {
+            ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
+            for(Player player : players) {
+                sendServerPacket(protocolManager, player, packet);
+            }
+            return;
+        }
+
+        for(Player player : players) {
+            pendingPackets.computeIfAbsent(player, key -> new ArrayList<>()).add(packet);
+        }
+    }
+
+    /**
+     * Sends all of the packets queued during this batch, and stops batching.
+     */
+    public void flush() {
+        isBatching = false;
+
+        ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
+        Iterator<Map.Entry<Player, List<PacketContainer>>> iterator = pendingPackets.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Player, List<PacketContainer>> entry = iterator.next();
+            List<PacketContainer> packets = entry.getValue();
+
+            // Remove players that were sent nothing since the last flush, so that we don't hold onto players that have left
+            if(packets.isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+
+            Player player = entry.getKey();
+            if(bundleType != null && packets.size() > 1) {
+                sendBundled(protocolManager, player, packets);
+            }   else    {
+                for(PacketContainer packet : packets) {
+                    sendServerPacket(protocolManager, player, packet);
+                }
+            }
+
+            packets.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void sendBundled(ProtocolManager protocolManager, Player player, List<PacketContainer> packets) {
+        assert bundleType != null && getPacketBundles != null;
+
+        for(int start = 0; start < packets.size(); start += MAX_BUNDLE_SIZE) {
+            // The bundle is sent asynchronously, so it needs its own copy of the list
+            List<PacketContainer> bundled = new ArrayList<>(packets.subList(start, Math.min(start + MAX_BUNDLE_SIZE, packets.size())));
+
+            PacketContainer bundle = new PacketContainer(bundleType);
+            StructureModifier<Iterable<PacketContainer>> bundles = (StructureModifier<Iterable<PacketContainer>>) ReflectionUtil.invokeMethod(bundle, getPacketBundles);
+            bundles.write(0, bundled);
+
+            sendServerPacket(protocolManager, player, bundle);
+        }
+        logger.finest("Sent %d entity packets in a bundle", packets.size());
+    }
+
+    private void sendServerPacket(ProtocolManager protocolManager, Player player, PacketContainer packet) {
+        try {
+            protocolManager.sendServerPacket(player, packet);
+        }   catch(InvocationTargetException ex) {
+            throw new RuntimeException("Failed to send packet", ex);
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package com.lauriethefish.betterportals.bukkit.entity.faking;
 
 import com.comphenix.protocol.PacketType;
-import com.comphenix.protocol.ProtocolLibrary;
-import com.comphenix.protocol.ProtocolManager;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.reflect.StructureModifier;
 import com.comphenix.protocol.wrappers.*;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.bukkit.math.MathUtil;
 import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
@@ -18,7 +17,6 @@ import org.bukkit.entity.*;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.util.Vector;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 
 
@@ -33,6 +31,13 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
     private static final int entityDataFieldIndex = VersionUtil.isMcVersionAtLeast("1.19.0") ? 4 : 6;
     private static final boolean useNewEntityRotationFields = VersionUtil.isMcVersionAtLeast("1.19.0");
 
+    private final EntityPacketBatcher packetBatcher;
+
+    @Inject
+    public EntityPacketManipulator(EntityPacketBatcher packetBatcher) {
+        this.packetBatcher = packetBatcher;
+    }
+
     @Override
     public void showEntity(EntityInfo tracker, Collection<Player> players) {
         // Generate the packet that NMS would normally use to spawn the entity
@@ -239,6 +244,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         bytes.write(1, (byte) (int) (entityPos.getPitch() * 256.0f / 360.0f));
 
         packet.getBooleans().write(0, tracker.getEntity().isOnGround());
+        sendPacket(packet, players);
     }
 
     @Override
@@ -381,13 +387,6 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
     }
 
     private void sendPacket(PacketContainer packet, Collection<Player> players) {
-        ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
-        try {
-            for (Player player : players) {
-                protocolManager.sendServerPacket(player, packet);
-            }
-        }   catch(InvocationTargetException ex) {
-            throw new RuntimeException("Failed to send packet", ex);
-        }
+        packetBatcher.sendPacket(packet, players);
     }
 }
@@ -8,6 +8,7 @@ import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
@@ -32,17 +33,47 @@ public class EntityTracker implements IEntityTracker    {
     private final JavaPlugin pl;
 
     private final Set<Player> trackingPlayers = new HashSet<>();
+    private final Map<Player, Integer> requestedUpdateIntervals = new HashMap<>();
 
     private final EntityEquipmentWatcher equipmentWatcher;
-    private Vector lastPosition;
-    private Vector lastDirection;
-    private Vector lastVelocity;
+
+    /**
+     * Reused each update to avoid allocating a new location
+     */
+    private final Location currentLocation = new Location(null, 0.0, 0.0, 0.0);
+
+    // Snapshot of the entity state last sent to the tracking players, so that packets are only sent for real changes
+    private boolean hasInitialState = false;
+    private double lastX;
+    private double lastY;
+    private double lastZ;
+    private float lastYaw;
+    private float lastPitch;
     private float lastHeadRotation;
-    private List<Entity> lastMounts;
+    private double lastVelX;
+    private double lastVelY;
+    private double lastVelZ;
+    private boolean movedLastUpdate = false;
+    private List<Entity> lastMounts = Collections.emptyList();
+
+    /**
+     * Set by {@link IEntityTracker#onEquipmentMayHaveChanged()}, and initially true so that the first update sends every slot
+     */
+    private boolean equipmentMayHaveChanged = true;
 
     private final int metadataUpdateInterval;
     private int ticksSinceCreated = 0;
 
+    /**
+     * Interval between movement updates, the fastest requested by any of the tracking players
+     */
+    private int updateInterval = 1;
+
+    /**
+     * Number of packets skipped during the current update since their state was unchanged
+     */
+    private int suppressedPackets = 0;
+
     @Inject
     public EntityTracker(@Assisted Entity entity, @Assisted IPortal portal, IEntityPacketManipulator packetManipulator, EntityTrackingManager entityTrackingManager, RenderConfig renderConfig, JavaPlugin pl) {
         // Non-living entities don't have equipment
@@ -57,45 +88,29 @@ public class EntityTracker implements IEntityTracker    {
     }
 
     public void update() {
-        sendMovementUpdates();
-
-        // Equipment is disabled for living entities
-        if(equipmentWatcher != null) {
-            Map<EnumWrappers.ItemSlot, ItemStack> equipmentChanges = equipmentWatcher.checkForChanges();
-            if(equipmentChanges.size() > 0) {
-                packetManipulator.sendEntityEquipment(entityInfo, equipmentChanges, trackingPlayers);
-            }
+        // Distant entities are updated less often, and their relative moves are combined since we compare against the last sent position
+        if(ticksSinceCreated % updateInterval != 0) {
+            ticksSinceCreated++;
+            return;
         }
 
-        List<Entity> newMounts = entity.getPassengers();
-        if(!newMounts.equals(lastMounts)) {
-            lastMounts = newMounts;
-
-            List<EntityInfo> visibleMounts = new ArrayList<>();
-            for(Entity entity : newMounts) {
-                IEntityTracker tracker = entityTrackingManager.getTracker(portal, entity);
-                if(tracker != null) {
-                    visibleMounts.add(tracker.getEntityInfo());
-                }
-            }
+        entity.getLocation(currentLocation);
 
-            packetManipulator.sendMount(entityInfo, visibleMounts, trackingPlayers);
-        }
+        boolean moved = sendMovementUpdates();
+        sendVelocityUpdates(moved);
+        sendMountUpdates();
 
         // The metadata packet contains tons of stuff, e.g. sneaking and beds on newer versions
-        // It's quite expensive to send a full update, so we only do this every N ticks
-        if(ticksSinceCreated % metadataUpdateInterval == 0) {
+        // It's quite expensive to send a full update, so we only do this every N ticks, scaled by the update interval
+        boolean isMetadataUpdate = ticksSinceCreated % (metadataUpdateInterval * updateInterval) == 0;
+        sendEquipmentUpdates(isMetadataUpdate);
+        if(isMetadataUpdate) {
             packetManipulator.sendMetadata(entityInfo, trackingPlayers);
         }
 
-        packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
-
-        Vector velocity = entity.getVelocity();
-        if(lastVelocity != null && !velocity.equals(lastVelocity)) {
-            packetManipulator.sendEntityVelocity(entityInfo, velocity, trackingPlayers);
-            lastVelocity = velocity;
-        }
-
+        currentLocation.setWorld(null);
+        entityTrackingManager.onPacketsSuppressed(suppressedPackets);
+        suppressedPackets = 0;
         ticksSinceCreated++;
     }
 
@@ -104,41 +119,147 @@ public class EntityTracker implements IEntityTracker    {
         packetManipulator.sendEntityAnimation(entityInfo, trackingPlayers, animationType);
     }
 
+    @Override
+    public void onEquipmentMayHaveChanged() {
+        equipmentMayHaveChanged = true;
+    }
+
     @Override
     public void onPickup(@NotNull EntityInfo pickedUp) {
         packetManipulator.sendEntityPickupItem(entityInfo, pickedUp, trackingPlayers);
     }
 
-    // Handles sending all movement and looking packets
-    private void sendMovementUpdates() {
-        Vector currentPosition = entity.getLocation().toVector();
-        Vector currentDirection = entity.getLocation().getDirection();
-
-        boolean positionChanged = lastPosition != null && !currentPosition.equals(lastPosition);
-        boolean rotationChanged = lastDirection != null && !currentDirection.equals(lastDirection);
-        Vector posOffset = lastPosition == null ? new Vector() : currentPosition.clone().subtract(lastPosition);
-
-        lastPosition = currentPosition;
-        lastDirection = currentDirection;
-
-        // Relative move packets have a limit of 8 blocks before we have to just send a teleport packet
-        boolean canUseRelativeMove = posOffset.getX() < 8 && posOffset.getY() < 8 && posOffset.getZ() < 8;
-        // We must combine the move and look to avoid issues on newer versions
-        if (positionChanged && !canUseRelativeMove) {
-            packetManipulator.sendEntityTeleport(entityInfo, trackingPlayers);
-        } else if (positionChanged && rotationChanged) {
-            packetManipulator.sendEntityMoveLook(entityInfo, posOffset, trackingPlayers);
-        } else if (positionChanged) {
-            packetManipulator.sendEntityMove(entityInfo, posOffset, trackingPlayers);
-        } else if (rotationChanged) {
+    /**
+     * Handles sending all movement and looking packets
+     * @return Whether the entity moved since the last update
+     */
+    private boolean sendMovementUpdates() {
+        double x = currentLocation.getX();
+        double y = currentLocation.getY();
+        double z = currentLocation.getZ();
+        float yaw = currentLocation.getYaw();
+        float pitch = currentLocation.getPitch();
+
+        // The spawn packet already contains the initial position and rotation
+        if(!hasInitialState) {
+            hasInitialState = true;
+            lastX = x;
+            lastY = y;
+            lastZ = z;
+            lastYaw = yaw;
+            lastPitch = pitch;
+            lastHeadRotation = yaw;
+            return false;
+        }
+
+        boolean positionChanged = x != lastX || y != lastY || z != lastZ;
+        boolean rotationChanged = yaw != lastYaw || pitch != lastPitch;
+
+        if(positionChanged) {
+            Vector posOffset = new Vector(x - lastX, y - lastY, z - lastZ);
+
+            // Relative move packets have a limit of 8 blocks before we have to just send a teleport packet
+            boolean canUseRelativeMove = Math.abs(posOffset.getX()) < 8 && Math.abs(posOffset.getY()) < 8 && Math.abs(posOffset.getZ()) < 8;
+            // We must combine the move and look to avoid issues on newer versions
+            if(!canUseRelativeMove) {
+                packetManipulator.sendEntityTeleport(entityInfo, trackingPlayers);
+            }   else if(rotationChanged) {
+                packetManipulator.sendEntityMoveLook(entityInfo, posOffset, trackingPlayers);
+            }   else    {
+                packetManipulator.sendEntityMove(entityInfo, posOffset, trackingPlayers);
+            }
+        }   else if(rotationChanged) {
             packetManipulator.sendEntityLook(entityInfo, trackingPlayers);
+        }   else    {
+            suppressedPackets++;
         }
 
+        lastX = x;
+        lastY = y;
+        lastZ = z;
+        lastYaw = yaw;
+        lastPitch = pitch;
+
         // Bukkit uses the yaw as the head rotation for some reason, so we do it with that
-        float headRotation = entity.getLocation().getYaw();
-        if(lastHeadRotation != headRotation) {
-            lastHeadRotation = headRotation;
+        if(lastHeadRotation != yaw) {
+            lastHeadRotation = yaw;
             packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
+        }   else    {
+            suppressedPackets++;
+        }
+
+        return positionChanged;
+    }
+
+    /**
+     * Sends a velocity packet if the entity's velocity has changed.
+     * Bukkit allocates a new vector when getting the velocity, so it is only checked while the entity is moving, and on the update after it stops.
+     * @param moved Whether the entity moved during this update
+     */
+    private void sendVelocityUpdates(boolean moved) {
+        boolean shouldCheck = moved || movedLastUpdate;
+        movedLastUpdate = moved;
+        if(!shouldCheck) {
+            suppressedPackets++;
+            return;
+        }
+
+        Vector velocity = entity.getVelocity();
+        if(velocity.getX() != lastVelX || velocity.getY() != lastVelY || velocity.getZ() != lastVelZ) {
+            lastVelX = velocity.getX();
+            lastVelY = velocity.getY();
+            lastVelZ = velocity.getZ();
+            packetManipulator.sendEntityVelocity(entityInfo, velocity, trackingPlayers);
+        }   else    {
+            suppressedPackets++;
+        }
+    }
+
+    private void sendMountUpdates() {
+        // Checking if the entity has any passengers doesn't allocate, unlike getting the list of passengers
+        if(entity.isEmpty() && lastMounts.isEmpty()) {
+            suppressedPackets++;
+            return;
+        }
+
+        List<Entity> newMounts = entity.getPassengers();
+        if(newMounts.equals(lastMounts)) {
+            suppressedPackets++;
+            return;
+        }
+        lastMounts = newMounts;
+
+        List<EntityInfo> visibleMounts = new ArrayList<>();
+        for(Entity entity : newMounts) {
+            IEntityTracker tracker = entityTrackingManager.getTracker(portal, entity);
+            if(tracker != null) {
+                visibleMounts.add(tracker.getEntityInfo());
+            }
+        }
+
+        packetManipulator.sendMount(entityInfo, visibleMounts, trackingPlayers);
+    }
+
+    /**
+     * Sends an equipment packet if any of the entity's equipment has changed.
+     * Bukkit copies each item when getting the equipment, so it is only checked after an event that may have changed it.
+     * Changes without an event, e.g. from other plugins, are picked up along with the metadata.
+     * @param isMetadataUpdate Whether the metadata is sent during this update
+     */
+    private void sendEquipmentUpdates(boolean isMetadataUpdate) {
+        // Equipment is disabled for non-living entities
+        if(equipmentWatcher == null) {return;}
+        if(!equipmentMayHaveChanged && !isMetadataUpdate) {
+            suppressedPackets++;
+            return;
+        }
+        equipmentMayHaveChanged = false;
+
+        Map<EnumWrappers.ItemSlot, ItemStack> equipmentChanges = equipmentWatcher.checkForChanges();
+        if(equipmentChanges.size() > 0) {
+            packetManipulator.sendEntityEquipment(entityInfo, equipmentChanges, trackingPlayers);
+        }   else    {
+            suppressedPackets++;
         }
     }
 
@@ -146,6 +267,8 @@ public class EntityTracker implements IEntityTracker    {
         if(trackingPlayers.contains(player)) {throw new IllegalArgumentException("Player is already tracking this entity");}
 
         trackingPlayers.add(player);
+        requestedUpdateIntervals.put(player, 1);
+        updateInterval = 1;
 
         // If the tracker's entity UID is different, and they are a player, we must send a player info packet to add their profile to the server
         boolean sendingPlayerProfile = !entityInfo.getEntityUniqueId().equals(entityInfo.getEntity().getUniqueId()) && entityInfo.getEntity() instanceof Player;
@@ -164,11 +287,33 @@ public class EntityTracker implements IEntityTracker    {
         if(!trackingPlayers.contains(player)) {throw new IllegalArgumentException("Cannot stop player from tracking entity, they weren't viewing in the first place");}
 
         trackingPlayers.remove(player);
+        requestedUpdateIntervals.remove(player);
+        recalculateUpdateInterval();
         if(sendPackets) {
             packetManipulator.hideEntity(entityInfo, player);
         }
     }
 
+    @Override
+    public void setUpdateInterval(@NotNull Player player, int updateInterval) {
+        if(updateInterval < 1) {throw new IllegalArgumentException("Update interval must be at least 1");}
+        if(!trackingPlayers.contains(player)) {throw new IllegalArgumentException("Cannot set the update interval of a player that isn't tracking this entity");}
+
+        Integer previous = requestedUpdateIntervals.put(player, updateInterval);
+        if(previous == null || previous != updateInterval) {
+            recalculateUpdateInterval();
+        }
+    }
+
+    private void recalculateUpdateInterval() {
+        int fastest = Integer.MAX_VALUE;
+        for(int interval : requestedUpdateIntervals.values()) {
+            fastest = Math.min(fastest, interval);
+        }
+
+        updateInterval = fastest == Integer.MAX_VALUE ? 1 : fastest;
+    }
+
     public int getTrackingPlayerCount() {
         return trackingPlayers.size();
     }
@@ -3,6 +3,7 @@ package com.lauriethefish.betterportals.bukkit.entity.faking;
 import com.google.inject.Inject;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import lombok.Getter;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.Nullable;
@@ -18,6 +19,11 @@ public abstract class EntityTrackingManager {
     protected final Map<IPortal, Map<Entity, IEntityTracker>> trackersByPortal = new HashMap<>(); // Used for separating trackers based on portal
     protected final Logger logger;
 
+    /**
+     * Total number of entity packets that weren't sent because the tracked state was unchanged
+     */
+    @Getter private long suppressedPacketCount = 0;
+
     @Inject
     public EntityTrackingManager(Logger logger, IEntityTracker.Factory entityTrackerFactory) {
         this.logger = logger;
@@ -102,4 +108,23 @@ public abstract class EntityTrackingManager {
 
         return portalTrackers.get(entity);
     }
+
+    /**
+     * Called by trackers after each update to count the packets they skipped.
+     * @param count Number of packets not sent since their state was unchanged
+     */
+    public void onPacketsSuppressed(int count) {
+        suppressedPacketCount += count;
+    }
+
+    /**
+     * @return The number of entities currently being replicated across all portals
+     */
+    public int getTrackerCount() {
+        int count = 0;
+        for(Map<Entity, IEntityTracker> portalTrackers : trackersByPortal.values()) {
+            count += portalTrackers.size();
+        }
+        return count;
+    }
 }
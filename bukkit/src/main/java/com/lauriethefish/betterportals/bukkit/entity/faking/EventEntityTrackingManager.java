@@ -8,12 +8,16 @@ import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.entity.Entity;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockDispenseArmorEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.entity.EntityPickupItemEvent;
-import org.bukkit.event.player.PlayerAnimationEvent;
-import org.bukkit.event.player.PlayerAnimationType;
-import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.entity.EntityShootBowEvent;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.player.*;
 import org.bukkit.inventory.EquipmentSlot;
 import org.jetbrains.annotations.Nullable;
 
@@ -26,6 +30,7 @@ import java.util.function.Consumer;
 @Singleton
 public class EventEntityTrackingManager extends EntityTrackingManager implements Listener {
     private final Map<Entity, List<IEntityTracker>> trackersByEntity = new HashMap<>();
+    private final EntityPacketBatcher packetBatcher;
 
     /**
      * Bukkit doesn't allow us to get the hand used from {@link PlayerAnimationEvent}, so we get it from {@link PlayerInteractEvent} then store it for later.
@@ -33,8 +38,9 @@ public class EventEntityTrackingManager extends EntityTrackingManager implements
     private final Map<Entity, EquipmentSlot> lastHandUsed = new HashMap<>();
 
     @Inject
-    public EventEntityTrackingManager(Logger logger, IEventRegistrar eventRegistrar, IEntityTracker.Factory entityTrackerFactory) {
+    public EventEntityTrackingManager(Logger logger, IEventRegistrar eventRegistrar, IEntityTracker.Factory entityTrackerFactory, EntityPacketBatcher packetBatcher) {
         super(logger, entityTrackerFactory);
+        this.packetBatcher = packetBatcher;
         eventRegistrar.register(this);
     }
 
@@ -93,6 +99,7 @@ public class EventEntityTrackingManager extends EntityTrackingManager implements
     @EventHandler
     public void onEntityPickupItem(EntityPickupItemEvent event) {
         Entity entity = event.getEntity();
+        forEachTracker(entity, IEntityTracker::onEquipmentMayHaveChanged);
 
         forEachTracker(entity, (tracker) -> {
             Map<Entity, IEntityTracker> portalTrackers = trackersByPortal.get(tracker.getPortal());
@@ -117,11 +124,89 @@ public class EventEntityTrackingManager extends EntityTrackingManager implements
         if(hand != null) {
             lastHandUsed.put(event.getPlayer(), hand);
         }
+
+        // Right clicking with armour equips it, and using an item can use it up
+        forEachTracker(event.getPlayer(), IEntityTracker::onEquipmentMayHaveChanged);
+    }
+
+    /**
+     * Marks the equipment of <code>entity</code> to be checked on the next update.
+     * Equipment changes without one of these events are still sent, but only along with the metadata.
+     * @param entity Entity whose equipment may have changed
+     */
+    private void onEquipmentMayHaveChanged(Entity entity) {
+        forEachTracker(entity, IEntityTracker::onEquipmentMayHaveChanged);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemHeld(PlayerItemHeldEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSwapHandItems(PlayerSwapHandItemsEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onInventoryClick(InventoryClickEvent event) {
+        onEquipmentMayHaveChanged(event.getWhoClicked());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onInventoryDrag(InventoryDragEvent event) {
+        onEquipmentMayHaveChanged(event.getWhoClicked());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onDropItem(PlayerDropItemEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onItemBreak(PlayerItemBreakEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemConsume(PlayerItemConsumeEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketEmpty(PlayerBucketEmptyEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketFill(PlayerBucketFillEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        onEquipmentMayHaveChanged(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onShootBow(EntityShootBowEvent event) {
+        onEquipmentMayHaveChanged(event.getEntity());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onDispenseArmor(BlockDispenseArmorEvent event) {
+        onEquipmentMayHaveChanged(event.getTargetEntity());
     }
 
     @Override
     public void update() {
-        trackersByPortal.values().forEach((map) -> map.values().forEach(IEntityTracker::update));
+        // The packets from every tracker are collected, then sent to each player together
+        packetBatcher.beginBatch();
+        try {
+            trackersByPortal.values().forEach((map) -> map.values().forEach(IEntityTracker::update));
+        }   finally {
+            packetBatcher.flush();
+        }
     }
 
     @Override
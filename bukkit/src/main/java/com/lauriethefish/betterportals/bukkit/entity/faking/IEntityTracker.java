@@ -38,6 +38,14 @@ public interface IEntityTracker {
      */
     int getTrackingPlayerCount();
 
+    /**
+     * Sets how often the replicated entity is updated for <code>player</code>.
+     * The tracker is updated at the fastest interval requested by any of its players.
+     * @param player The player tracking the entity
+     * @param updateInterval Ticks between movement updates. The metadata interval is multiplied by this.
+     */
+    void setUpdateInterval(@NotNull Player player, int updateInterval);
+
     /**
      * Sends packets to update the movement, equipment, etc. of the entity.
      * Called whenever the {@link EventEntityTrackingManager} updates.
@@ -50,6 +58,12 @@ public interface IEntityTracker {
      */
     void onAnimation(@NotNull AnimationType animationType);
 
+    /**
+     * Called whenever the {@link EventEntityTrackingManager} gets an event fired that may change the entity's equipment.
+     * The equipment is then checked for changes on the next update, instead of every update.
+     */
+    void onEquipmentMayHaveChanged();
+
     /**
      * Called whenever the {@link EventEntityTrackingManager} detects that an item that is also tracked was picked up.
      * @param pickedUp The info of the entity that got picked up
@@ -0,0 +1,185 @@
+package com.lauriethefish.betterportals.bukkit.events;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.player.PlayerBucketEmptyEvent;
+import org.bukkit.event.player.PlayerBucketFillEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+
+import java.util.List;
+
+/**
+ * Tells the external block watchers about blocks that might have changed, so that they only need to check the areas around them.
+ * Changes without an event are found by the occasional full check that the watchers do.
+ * This is only registered by the {@link IExternalBlockWatcherManager} while there are watchers, since some of these events are called very often.
+ */
+@Singleton
+public class BlockChangeEvents implements Listener {
+    private final IExternalBlockWatcherManager blockWatcherManager;
+
+    @Inject
+    public BlockChangeEvents(IExternalBlockWatcherManager blockWatcherManager) {
+        this.blockWatcherManager = blockWatcherManager;
+    }
+
+    private void onBlocksChanged(List<Block> blocks) {
+        for(Block block : blocks) {
+            blockWatcherManager.onBlockChanged(block);
+        }
+    }
+
+    private void onStatesChanged(List<BlockState> states) {
+        for(BlockState state : states) {
+            blockWatcherManager.onBlockChanged(state.getBlock());
+        }
+    }
+
+    // This also receives BlockMultiPlaceEvent, e.g. for beds and doors, which places more than one block
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        if(event instanceof BlockMultiPlaceEvent) {
+            onStatesChanged(((BlockMultiPlaceEvent) event).getReplacedBlockStates());
+        }   else    {
+            blockWatcherManager.onBlockChanged(event.getBlock());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        blockWatcherManager.onBlockChanged(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+        for(Block block : event.getBlocks()) {
+            blockWatcherManager.onBlockChanged(block);
+            blockWatcherManager.onBlockChanged(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+        blockWatcherManager.onBlockChanged(event.getBlock().getRelative(event.getDirection().getOppositeFace()));
+        for(Block block : event.getBlocks()) {
+            blockWatcherManager.onBlockChanged(block);
+            blockWatcherManager.onBlockChanged(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+        onBlocksChanged(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        onBlocksChanged(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockIgnite(BlockIgniteEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    // Also receives EntityBlockFormEvent
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockSpread(BlockSpreadEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockRedstone(BlockRedstoneEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFertilize(BlockFertilizeEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+        onStatesChanged(event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSpongeAbsorb(SpongeAbsorbEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+        onStatesChanged(event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onFluidLevelChange(FluidLevelChangeEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onCauldronLevelChange(CauldronLevelChangeEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onMoistureChange(MoistureChangeEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        blockWatcherManager.onBlockChanged(event.getLocation().getBlock());
+        onStatesChanged(event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketEmpty(PlayerBucketEmptyEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlockClicked().getRelative(event.getBlockFace()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketFill(PlayerBucketFillEvent event) {
+        blockWatcherManager.onBlockChanged(event.getBlockClicked());
+        blockWatcherManager.onBlockChanged(event.getBlockClicked().getRelative(event.getBlockFace()));
+    }
+}
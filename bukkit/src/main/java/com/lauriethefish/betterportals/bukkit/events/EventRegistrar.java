@@ -3,6 +3,7 @@ package com.lauriethefish.betterportals.bukkit.events;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.NotNull;
@@ -28,6 +29,12 @@ public class EventRegistrar implements IEventRegistrar {
         allRegisteredListeners.add(listener);
     }
 
+    @Override
+    public void unregister(@NotNull Listener listener) {
+        HandlerList.unregisterAll(listener);
+        allRegisteredListeners.remove(listener);
+    }
+
     @Override
     public void onPluginReload() {
         logger.fine("Re-registering events . . .");
@@ -10,5 +10,7 @@ public class EventsModule extends AbstractModule {
         bind(PortalTeleportationEvents.class).asEagerSingleton();
         bind(SelectionEvents.class).asEagerSingleton();
         bind(SpawningEvents.class).asEagerSingleton();
+        bind(ObsidianIndexEvents.class).asEagerSingleton();
+        bind(WorldLoadEvents.class).asEagerSingleton();
     }
 }
@@ -13,6 +13,12 @@ public interface IEventRegistrar {
      */
     void register(@NotNull Listener listener);
 
+    /**
+     * Unregisters <code>listener</code> from Bukkit, so that it isn't re-registered when the plugin reloads.
+     * @param listener The listener to unregister
+     */
+    void unregister(@NotNull Listener listener);
+
     /**
      * Re-registers all previously registered listeners
      */
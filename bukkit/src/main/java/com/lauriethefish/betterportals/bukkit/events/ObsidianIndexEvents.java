@@ -0,0 +1,80 @@
+package com.lauriethefish.betterportals.bukkit.events;
+
+import com.google.inject.Inject;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.IObsidianIndex;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+/**
+ * Keeps the obsidian index up to date with the events that can place or remove obsidian, and indexes chunks as they're loaded.
+ */
+public class ObsidianIndexEvents implements Listener {
+    private final IObsidianIndex obsidianIndex;
+
+    @Inject
+    public ObsidianIndexEvents(IEventRegistrar eventRegistrar, IObsidianIndex obsidianIndex) {
+        this.obsidianIndex = obsidianIndex;
+
+        eventRegistrar.register(this);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        obsidianIndex.onChunkLoad(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        obsidianIndex.onChunkUnload(event.getChunk());
+    }
+
+    // This also receives BlockMultiPlaceEvent
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        if(event instanceof BlockMultiPlaceEvent) {
+            for(BlockState state : ((BlockMultiPlaceEvent) event).getReplacedBlockStates()) {
+                obsidianIndex.onBlockChanged(state.getBlock());
+            }
+        }   else    {
+            obsidianIndex.onBlockChanged(event.getBlock());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        obsidianIndex.onBlockChanged(event.getBlock());
+    }
+
+    // Lava turning into obsidian
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        obsidianIndex.onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        for(Block block : event.blockList()) {
+            obsidianIndex.onBlockChanged(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for(Block block : event.blockList()) {
+            obsidianIndex.onBlockChanged(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        obsidianIndex.onBlockChanged(event.getBlock());
+    }
+}
@@ -0,0 +1,33 @@
+package com.lauriethefish.betterportals.bukkit.events;
+
+import com.google.inject.Inject;
+import com.lauriethefish.betterportals.bukkit.portal.storage.IPortalStorage;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+/**
+ * Loads the portals in each world when it is loaded, and unloads them with the world.
+ */
+public class WorldLoadEvents implements Listener {
+    private final IPortalStorage portalStorage;
+
+    @Inject
+    public WorldLoadEvents(IEventRegistrar eventRegistrar, IPortalStorage portalStorage) {
+        this.portalStorage = portalStorage;
+
+        eventRegistrar.register(this);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldLoad(WorldLoadEvent event) {
+        portalStorage.onWorldLoad(event.getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        portalStorage.onWorldUnload(event.getWorld());
+    }
+}
@@ -113,6 +113,16 @@ public class PortalTransformations {
         return result;
     }
 
+    /**
+     * Moves the position from the destination coordinate space to the origin coordinate space.
+     * This is cheaper than {@link PortalTransformations#moveToOrigin(Location)} if the direction isn't needed.
+     * @param vec The position to be moved
+     * @return A new vector in the origin coordinate space
+     */
+    public Vector moveToOrigin(Vector vec) {
+        return destinationToOrigin.transform(vec);
+    }
+
     /**
      * Rotates the vector from the origin coordinate space to the destination coordinate space - no translation is performed.
      * @param vec The vector to be rotated
@@ -0,0 +1,142 @@
+package com.lauriethefish.betterportals.bukkit.net;
+
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeSet;
+import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeUpdate;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.bukkit.net.requests.CheckDestinationValidityRequest;
+import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
+import com.lauriethefish.betterportals.bukkit.net.requests.GetSelectionRequest;
+import com.lauriethefish.betterportals.bukkit.net.requests.TestForwardedRequest;
+import com.lauriethefish.betterportals.shared.net.protocol.BinaryReader;
+import com.lauriethefish.betterportals.shared.net.protocol.BinaryWriter;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Adds the requests and results that are only used between servers to the binary protocol.
+ * These are only ever sent inside relayed requests, so the proxy doesn't need to know about them.
+ */
+@Singleton
+public class BukkitMessageRegistry extends MessageRegistry {
+    public BukkitMessageRegistry() {
+        register(FIRST_PLUGIN_MESSAGE_ID, CheckDestinationValidityRequest.class, (request, writer) -> {
+            writer.writeString(request.getDestinationWorldName());
+            writer.writeUuid(request.getDestinationWorldId());
+            writer.writeString(request.getOriginGameVersion());
+        }, reader -> {
+            CheckDestinationValidityRequest request = new CheckDestinationValidityRequest();
+            request.setDestinationWorldName(reader.readString());
+            request.setDestinationWorldId(reader.readUuid());
+            request.setOriginGameVersion(reader.readString());
+            return request;
+        });
+
+        register(FIRST_PLUGIN_MESSAGE_ID + 1, GetBlockDataChangesRequest.class, (request, writer) -> {
+            writer.writeUuid(request.getChangeSetId());
+            writeIntVector(request.getPosition(), writer);
+            writeMatrix(request.getRotateOriginToDest(), writer);
+            writer.writeUuid(request.getWorldId());
+            writer.writeString(request.getWorldName());
+            writer.writeVarInt(request.getXAndZRadius());
+            writer.writeVarInt(request.getYRadius());
+            writer.writeVarLong(request.getAcknowledgedSequence());
+        }, reader -> {
+            GetBlockDataChangesRequest request = new GetBlockDataChangesRequest();
+            request.setChangeSetId(reader.readUuid());
+            request.setPosition(readIntVector(reader));
+            request.setRotateOriginToDest(readMatrix(reader));
+            request.setWorldId(reader.readUuid());
+            request.setWorldName(reader.readString());
+            request.setXAndZRadius(reader.readVarInt());
+            request.setYRadius(reader.readVarInt());
+            request.setAcknowledgedSequence(reader.readVarLong());
+            return request;
+        });
+
+        register(FIRST_PLUGIN_MESSAGE_ID + 2, GetSelectionRequest.class, (request, writer) -> writer.writeUuid(request.getPlayerId()), reader -> {
+            GetSelectionRequest request = new GetSelectionRequest();
+            request.setPlayerId(reader.readUuid());
+            return request;
+        });
+
+        register(FIRST_PLUGIN_MESSAGE_ID + 3, TestForwardedRequest.class, (request, writer) -> writeIntVector(request.getTestField(), writer), reader -> {
+            TestForwardedRequest request = new TestForwardedRequest();
+            request.setTestField(readIntVector(reader));
+            return request;
+        });
+
+        register(FIRST_PLUGIN_MESSAGE_ID + 4, GetSelectionRequest.ExternalSelectionInfo.class, (info, writer) -> {
+            writePortalPosition(info.getPosition(), writer);
+            writer.writeVarInt(info.getSizeX());
+            writer.writeVarInt(info.getSizeY());
+        }, reader -> new GetSelectionRequest.ExternalSelectionInfo(readPortalPosition(reader), reader.readVarInt(), reader.readVarInt()));
+
+        register(FIRST_PLUGIN_MESSAGE_ID + 5, BlockChangeSet.class, BlockChangeSet::write, BlockChangeSet::read);
+        register(FIRST_PLUGIN_MESSAGE_ID + 6, IntVector.class, BukkitMessageRegistry::writeIntVector, BukkitMessageRegistry::readIntVector);
+
+        register(FIRST_PLUGIN_MESSAGE_ID + 7, BlockChangeUpdate.class, (update, writer) -> {
+            writer.writeVarLong(update.getSequence());
+            writer.writeBoolean(update.isFullSnapshot());
+            update.getChanges().write(writer);
+        }, reader -> new BlockChangeUpdate(reader.readVarLong(), reader.readBoolean(), BlockChangeSet.read(reader)));
+    }
+
+    private static void writeIntVector(@NotNull IntVector vector, @NotNull BinaryWriter writer) {
+        writer.writeSignedVarInt(vector.getX());
+        writer.writeSignedVarInt(vector.getY());
+        writer.writeSignedVarInt(vector.getZ());
+    }
+
+    private static @NotNull IntVector readIntVector(@NotNull BinaryReader reader) throws ProtocolException {
+        return new IntVector(reader.readSignedVarInt(), reader.readSignedVarInt(), reader.readSignedVarInt());
+    }
+
+    private static void writeMatrix(@NotNull Matrix matrix, @NotNull BinaryWriter writer) {
+        for(double[] row : matrix.m) {
+            for(double value : row) {
+                writer.writeDouble(value);
+            }
+        }
+    }
+
+    private static @NotNull Matrix readMatrix(@NotNull BinaryReader reader) throws ProtocolException {
+        double[][] values = new double[4][4];
+        for(double[] row : values) {
+            for(int column = 0; column < row.length; column++) {
+                row[column] = reader.readDouble();
+            }
+        }
+        return new Matrix(values);
+    }
+
+    /**
+     * Selections are only sent to other servers, so the world ID isn't sent. The receiver looks up the world by name, as with other external positions.
+     */
+    private static void writePortalPosition(@NotNull PortalPosition position, @NotNull BinaryWriter writer) {
+        Vector location = position.getVector();
+        writer.writeDouble(location.getX());
+        writer.writeDouble(location.getY());
+        writer.writeDouble(location.getZ());
+        writer.writeVarInt(position.getDirection().ordinal());
+        writer.writeString(position.getServerName());
+        writer.writeString(position.getWorldName());
+    }
+
+    private static @NotNull PortalPosition readPortalPosition(@NotNull BinaryReader reader) throws ProtocolException {
+        Vector location = new Vector(reader.readDouble(), reader.readDouble(), reader.readDouble());
+
+        int directionIndex = reader.readVarInt();
+        PortalDirection[] directions = PortalDirection.values();
+        if(directionIndex < 0 || directionIndex >= directions.length) {
+            throw new ProtocolException("Invalid portal direction " + directionIndex);
+        }
+
+        return new PortalPosition(location, directions[directionIndex], reader.readString(), reader.readString());
+    }
+}
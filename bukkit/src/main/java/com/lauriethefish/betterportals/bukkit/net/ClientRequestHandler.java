@@ -2,63 +2,114 @@ package com.lauriethefish.betterportals.bukkit.net;
 
 import com.comphenix.protocol.wrappers.Pair;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
+import com.lauriethefish.betterportals.bukkit.config.ProxyConfig;
+import com.lauriethefish.betterportals.bukkit.net.direct.IDirectConnectionManager;
 import com.lauriethefish.betterportals.bukkit.net.requests.CheckDestinationValidityRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetSelectionRequest;
 import com.lauriethefish.betterportals.bukkit.net.requests.TestForwardedRequest;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerDataManager;
 import com.lauriethefish.betterportals.bukkit.portal.selection.IPortalSelection;
+import com.lauriethefish.betterportals.bukkit.tasks.WorkerPool;
 import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.net.BatchResponse;
 import com.lauriethefish.betterportals.shared.net.IRequestHandler;
 import com.lauriethefish.betterportals.shared.net.RequestException;
 import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.protocol.IObjectSerializer;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.requests.BatchRequest;
+import com.lauriethefish.betterportals.shared.net.requests.DirectSessionRequest;
 import com.lauriethefish.betterportals.shared.net.requests.PreviousServerPutRequest;
 import com.lauriethefish.betterportals.shared.net.requests.RelayRequest;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
 import com.lauriethefish.betterportals.shared.net.requests.TeleportRequest;
+import com.lauriethefish.betterportals.shared.net.requests.ThreadingRequirement;
 import org.bukkit.Bukkit;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 
+/**
+ * Handles requests from the proxy and other servers.
+ * Each request is handled on the thread given by its {@link ThreadingRequirement}: requests that don't need the main thread are handled straight away on the {@link WorkerPool},
+ * and the rest are queued until the next tick.
+ */
 @Singleton
 public class ClientRequestHandler implements IRequestHandler {
     private final Logger logger;
     private final IExternalBlockWatcherManager blockWatcherManager;
     private final IPlayerDataManager playerDataManager;
     private final IPortalClient portalClient;
-    private final ConcurrentLinkedQueue<Pair<Request, Consumer<Response>>> awaitingHandling = new ConcurrentLinkedQueue<>();
+    private final MessageRegistry messageRegistry;
+    private final Provider<IDirectConnectionManager> directConnectionManager;
+    private final ProxyConfig proxyConfig;
+
+    private final ConcurrentLinkedQueue<Pair<Request, Consumer<Response>>> awaitingRegionSnapshot = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Pair<Request, Consumer<Response>>> awaitingMainThread = new ConcurrentLinkedQueue<>();
+    private final WorkerPool workerPool;
 
     @Inject
-    public ClientRequestHandler(Logger logger, IExternalBlockWatcherManager blockWatcherManager, IPlayerDataManager playerDataManager, IPortalClient portalClient) {
+    public ClientRequestHandler(Logger logger, IExternalBlockWatcherManager blockWatcherManager, IPlayerDataManager playerDataManager, IPortalClient portalClient, MessageRegistry messageRegistry, Provider<IDirectConnectionManager> directConnectionManager, ProxyConfig proxyConfig, WorkerPool workerPool) {
         this.logger = logger;
         this.blockWatcherManager = blockWatcherManager;
         this.playerDataManager = playerDataManager;
         this.portalClient = portalClient;
+        this.messageRegistry = messageRegistry;
+        this.directConnectionManager = directConnectionManager;
+        this.proxyConfig = proxyConfig;
+        this.workerPool = workerPool;
     }
 
     /**
-     * Requests must be handled on the main thread, since they access the Bukkit API.
-     * This is called by main update, and handles any pending requests
+     * Handles the requests that need the main thread. This is called by main update.
+     * Region snapshot requests are always handled, then other requests are handled until the time budget for this tick runs out.
+     * At least one request is handled each tick, so a slow request can't stop the rest from ever being handled.
      */
     public void handlePendingRequests() {
-        while(awaitingHandling.size() > 0) {
-            Pair<Request, Consumer<Response>> next = awaitingHandling.remove();
+        Pair<Request, Consumer<Response>> next;
+        while((next = awaitingRegionSnapshot.poll()) != null) {
             handleRequestInternal(next.getFirst(), next.getSecond());
         }
+
+        long deadline = System.nanoTime() + proxyConfig.getRequestHandlingBudgetNanos();
+        do {
+            next = awaitingMainThread.poll();
+            if(next == null) {return;}
+
+            handleRequestInternal(next.getFirst(), next.getSecond());
+        }   while(System.nanoTime() - deadline < 0);
+
+        logger.finer("Request handling budget used up, %d requests left until next tick", awaitingMainThread.size());
     }
 
     @Override
     public void handleRequest(@NotNull Request request, @NotNull Consumer<Response> onFinish) {
-        awaitingHandling.add(new Pair<>(request, onFinish));
+        ThreadingRequirement requirement = request.getThreadingRequirement();
+        if(requirement == ThreadingRequirement.ANY_THREAD) {
+            try {
+                workerPool.execute(() -> handleRequestInternal(request, onFinish));
+                return;
+            }   catch(RejectedExecutionException ex) {
+                // The workers have been shut down, so the main thread handles it instead
+            }
+        }
+
+        if(requirement == ThreadingRequirement.REGION_SNAPSHOT) {
+            awaitingRegionSnapshot.add(new Pair<>(request, onFinish));
+        }   else    {
+            awaitingMainThread.add(new Pair<>(request, onFinish));
+        }
     }
 
     private void handleRequestInternal(@NotNull Request request, @NotNull Consumer<Response> onFinish) {
@@ -67,6 +118,8 @@ public class ClientRequestHandler implements IRequestHandler {
         try {
             if(request instanceof RelayRequest) {
                 handleRelayedRequest((RelayRequest) request, onFinish);
+            }   else if(request instanceof BatchRequest) {
+                handleBatchRequest((BatchRequest) request, onFinish);
             }   else if(request instanceof GetBlockDataChangesRequest) {
                 handleGetBlockDataChangesRequest((GetBlockDataChangesRequest) request, onFinish);
             }   else if(request instanceof TestForwardedRequest) {
@@ -79,6 +132,8 @@ public class ClientRequestHandler implements IRequestHandler {
                 handleGetSelectionRequest((GetSelectionRequest) request, onFinish);
             }   else if(request instanceof PreviousServerPutRequest) {
                 handlePreviousServerPutRequest((PreviousServerPutRequest) request, onFinish);
+            }   else if(request instanceof DirectSessionRequest) {
+                handleDirectSessionRequest((DirectSessionRequest) request, onFinish);
             }   else    {
                 throw new IllegalStateException("Received request of unknown type");
             }
@@ -94,22 +149,99 @@ public class ClientRequestHandler implements IRequestHandler {
     }
 
     private void handleRelayedRequest(RelayRequest request, Consumer<Response> onFinish) throws IOException, ClassNotFoundException {
-        Request innerRequest = request.getInnerRequest();
+        // Reply in the same format as the request, since the sending server may have negotiated a different protocol version with the proxy
+        IObjectSerializer serializer = messageRegistry.detectSerializer(request.getInnerRequest());
+        Request innerRequest = (Request) serializer.deserialize(request.getInnerRequest());
         handleRequest(innerRequest, (response) -> {
-            ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
-            try {
-                new ObjectOutputStream(byteOutputStream).writeObject(response);
-            } catch (IOException ex) {
-                // This should never happen
-            }
-
             // Wrap the response as a byte array to avoid the proxy trying to deserialize a type that doesn't exist on bungeecord
             Response wrappedResponse = new Response();
-            wrappedResponse.setResult(byteOutputStream.toByteArray());
+            try {
+                wrappedResponse.setResult(serializer.serialize(response));
+            }   catch(IOException ex) {
+                wrappedResponse.setError(new RequestException(ex, "Failed to serialize relayed response"));
+            }
             onFinish.accept(wrappedResponse);
         });
     }
 
+    private void handleBatchRequest(@NotNull BatchRequest request, @NotNull Consumer<Response> onFinish) {
+        new PendingBatch(request, onFinish).handle();
+    }
+
+    /**
+     * Collects the responses to a {@link BatchRequest}, and replies once every request in it has a response.
+     * Block change requests are held by the destination until something changes. If any other request in the batch has a response, these are released,
+     * so that the changes for one portal aren't delayed until every other portal in the batch has changes.
+     * Batches handled on a worker thread can get responses on the main thread, so this is synchronized.
+     */
+    private class PendingBatch {
+        private final BatchRequest request;
+        private final Consumer<Response> onFinish;
+        private final Response[] responses;
+        private int remaining;
+        private boolean isDispatched = false;
+        private boolean isReleasing = false;
+
+        private PendingBatch(BatchRequest request, Consumer<Response> onFinish) {
+            this.request = request;
+            this.onFinish = onFinish;
+            this.responses = new Response[request.getRequests().size()];
+            this.remaining = responses.length;
+        }
+
+        private synchronized void handle() {
+            List<Request> requests = request.getRequests();
+            for(int i = 0; i < requests.size(); i++) {
+                int index = i;
+                Request inner = requests.get(i);
+                handleRequestInternal(inner, (response) -> onResponse(index, inner, response));
+            }
+
+            isDispatched = true;
+            if(remaining == 0) {
+                finish();
+            }   else if(remaining < responses.length) {
+                releaseHeldRequests();
+            }
+        }
+
+        private synchronized void onResponse(int index, Request inner, Response response) {
+            if(responses[index] != null) {return;}
+
+            response.setId(inner.getId());
+            responses[index] = response;
+            remaining--;
+
+            // Wait until every request has been handled, since some of them may respond straight away
+            if(!isDispatched) {return;}
+
+            if(remaining == 0) {
+                finish();
+            }   else    {
+                releaseHeldRequests();
+            }
+        }
+
+        private void releaseHeldRequests() {
+            if(isReleasing) {return;}
+            isReleasing = true;
+
+            List<Request> requests = request.getRequests();
+            for(int i = 0; i < requests.size(); i++) {
+                if(responses[i] == null && requests.get(i) instanceof GetBlockDataChangesRequest) {
+                    blockWatcherManager.releaseHeldRequest(((GetBlockDataChangesRequest) requests.get(i)).getChangeSetId());
+                }
+            }
+            isReleasing = false;
+        }
+
+        private void finish() {
+            Response response = new Response();
+            response.setResult(new BatchResponse(Arrays.asList(responses)));
+            onFinish.accept(response);
+        }
+    }
+
     private void handleGetBlockDataChangesRequest(@NotNull GetBlockDataChangesRequest request, @NotNull Consumer<Response> onFinish) {
         blockWatcherManager.onRequestReceived(request, onFinish);
     }
@@ -151,6 +283,11 @@ public class ClientRequestHandler implements IRequestHandler {
         onFinish.accept(response);
     }
 
+    private void handleDirectSessionRequest(@NotNull DirectSessionRequest request, @NotNull Consumer<Response> onFinish) throws RequestException {
+        directConnectionManager.get().onSessionRequest(request);
+        onFinish.accept(new Response());
+    }
+
     private void handlePreviousServerPutRequest(@NotNull PreviousServerPutRequest request, @NotNull Consumer<Response> onFinish) throws RequestException {
         String previousServer = request.getPreviousServer();
 
@@ -3,7 +3,10 @@ package com.lauriethefish.betterportals.bukkit.net;
 import com.lauriethefish.betterportals.bukkit.config.ProxyConfig;
 import com.lauriethefish.betterportals.shared.net.Response;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
+import com.lauriethefish.betterportals.shared.net.stream.StreamStatistics;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.function.Consumer;
 
@@ -57,10 +60,23 @@ public interface IPortalClient {
 
     /**
      * Forwards <code>request</code> to one of the servers connected to the proxy, and calls <code>onReceive</code> once a response is read.
+     * The request is sent at the end of the tick, in one batch with any other requests to the same server.
      * @param request The request to forward
      * @param destinationServer The server to forward to
      * @param onReceive Called with the response on the main thread once the client thread receives it.
      * @throws IllegalStateException If the client is not connected to the proxy
      */
     void sendRequestToServer(Request request, String destinationServer, Consumer<Response> onReceive);
+
+    /**
+     * Sends any requests queued by {@link IPortalClient#sendRequestToServer(Request, String, Consumer)}.
+     * This is called at the end of each tick, and is also scheduled when a request is queued in case it was queued after that.
+     */
+    void flushQueuedRequests();
+
+    /**
+     * @param priority The priority to get the statistics of
+     * @return The queue depth and latency of messages sent to the proxy at <code>priority</code>, or null if not connected
+     */
+    @Nullable StreamStatistics getStreamStatistics(@NotNull MessagePriority priority);
 }
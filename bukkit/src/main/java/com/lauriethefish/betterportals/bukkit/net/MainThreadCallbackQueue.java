@@ -0,0 +1,49 @@
+package com.lauriethefish.betterportals.bukkit.net;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs callbacks from network threads on the main thread.
+ * Callbacks added before the main thread gets to them are all run in one task, rather than scheduling a task for each one.
+ */
+@Singleton
+public class MainThreadCallbackQueue {
+    private final JavaPlugin pl;
+
+    private final Queue<Runnable> pendingCallbacks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+
+    @Inject
+    public MainThreadCallbackQueue(JavaPlugin pl) {
+        this.pl = pl;
+    }
+
+    /**
+     * Runs <code>callback</code> on the main thread.
+     * @param callback The callback to run
+     */
+    public void add(@NotNull Runnable callback) {
+        pendingCallbacks.add(callback);
+        if(isScheduled.compareAndSet(false, true)) {
+            Bukkit.getScheduler().runTask(pl, this::runPending);
+        }
+    }
+
+    private void runPending() {
+        // Cleared first, so that callbacks added while running these schedule another task
+        isScheduled.set(false);
+
+        Runnable callback;
+        while((callback = pendingCallbacks.poll()) != null) {
+            callback.run();
+        }
+    }
+}
@@ -2,10 +2,13 @@ package com.lauriethefish.betterportals.bukkit.net;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
+import com.lauriethefish.betterportals.bukkit.net.direct.DirectConnectionManager;
+import com.lauriethefish.betterportals.bukkit.net.direct.IDirectConnectionManager;
 import com.lauriethefish.betterportals.shared.net.IRequestHandler;
 import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStream;
 import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStreamFactory;
 import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
 
 public class NetworkModule extends AbstractModule {
     @Override
@@ -18,5 +21,7 @@ public class NetworkModule extends AbstractModule {
         bind(IPortalClient.class).to(PortalClient.class);
         bind(IRequestHandler.class).to(ClientRequestHandler.class);
         bind(IClientReconnectHandler.class).to(ClientReconnectHandler.class);
+        bind(MessageRegistry.class).to(BukkitMessageRegistry.class);
+        bind(IDirectConnectionManager.class).to(DirectConnectionManager.class);
     }
 }
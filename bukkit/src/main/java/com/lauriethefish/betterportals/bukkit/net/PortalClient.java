@@ -3,32 +3,63 @@ package com.lauriethefish.betterportals.bukkit.net;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.bukkit.config.ProxyConfig;
+import com.lauriethefish.betterportals.bukkit.net.direct.DirectConnection;
+import com.lauriethefish.betterportals.bukkit.net.direct.IDirectConnectionManager;
 import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.*;
 import com.lauriethefish.betterportals.shared.net.encryption.CipherManager;
 import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStreamFactory;
 import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import com.lauriethefish.betterportals.shared.net.requests.BatchRequest;
 import com.lauriethefish.betterportals.shared.net.requests.RelayRequest;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.rpc.PendingRequests;
+import com.lauriethefish.betterportals.shared.net.rpc.RequestMetrics;
+import com.lauriethefish.betterportals.shared.net.rpc.RequestTimeoutException;
+import com.lauriethefish.betterportals.shared.net.rpc.TimerWheel;
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
+import com.lauriethefish.betterportals.shared.net.stream.PrioritizedObjectWriter;
+import com.lauriethefish.betterportals.shared.net.stream.StreamStatistics;
+import lombok.AllArgsConstructor;
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.crypto.AEADBadTagException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 @Singleton
 public class PortalClient implements IPortalClient {
+    /**
+     * Limits the requests waiting for a response from the proxy, mostly so that a bug can't use up memory.
+     */
+    private static final int MAX_IN_FLIGHT_TO_PROXY = 4096;
+
+    /**
+     * Limits on the requests waiting for a response from each server, where a batch counts as one request.
+     * The limit is halved each time a request to the server times out, and increases by one for each response received in time.
+     */
+    private static final int MAX_IN_FLIGHT_PER_SERVER = 64;
+    private static final int INITIAL_IN_FLIGHT_PER_SERVER = 16;
+
+    /**
+     * After a request to a server times out, nothing more is sent to it for this long, doubling with each timeout in a row.
+     */
+    private static final long MIN_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+
     private final JavaPlugin pl;
     private final ProxyConfig proxyConfig;
     private final Logger logger;
@@ -36,6 +67,10 @@ public class PortalClient implements IPortalClient {
     private final IRequestHandler requestHandler;
     private final IClientReconnectHandler reconnectHandler;
     private final CipherManager cipherManager;
+    private final MessageRegistry messageRegistry;
+    private final MainThreadCallbackQueue callbackQueue;
+    private final IDirectConnectionManager directConnectionManager;
+    private final RequestMetrics requestMetrics;
 
     private Socket socket;
     private volatile boolean isRunning = false;
@@ -44,12 +79,49 @@ public class PortalClient implements IPortalClient {
     private volatile boolean shouldReconnectIfFailed;
 
     private IEncryptedObjectStream objectStream;
+    private volatile PrioritizedObjectWriter objectWriter; // Created once the handshake has finished
+    private volatile WireFormat wireFormat = WireFormat.LEGACY; // Negotiated during the handshake
+
+    private final PendingRequests pendingRequests;
+
+    // Requests to other servers are queued for each destination until the end of the tick, then sent together
+    private final Map<String, List<QueuedRequest>> queuedRequests = new HashMap<>();
+    private final AtomicBoolean isFlushScheduled = new AtomicBoolean();
 
-    private final AtomicInteger currentRequestId = new AtomicInteger();
-    private final ConcurrentMap<Integer, Consumer<Response>> waitingRequests = new ConcurrentHashMap<>();
+    // Only used on the main thread
+    private final Map<String, DestinationState> destinationStates = new HashMap<>();
+
+    private static class DestinationState {
+        private int inFlight = 0;
+        private int inFlightLimit = INITIAL_IN_FLIGHT_PER_SERVER;
+        private long backoffMillis = 0;
+        private long backoffEndTime = 0; // From System.nanoTime()
+
+        private boolean canSend(long now) {
+            return inFlight < inFlightLimit && now - backoffEndTime >= 0;
+        }
+
+        private void onFinished(boolean timedOut) {
+            inFlight--;
+            if(timedOut) {
+                inFlightLimit = Math.max(1, inFlightLimit / 2);
+                backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                backoffEndTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+            }   else    {
+                inFlightLimit = Math.min(inFlightLimit + 1, MAX_IN_FLIGHT_PER_SERVER);
+                backoffMillis = 0;
+            }
+        }
+    }
+
+    @AllArgsConstructor
+    private static class QueuedRequest {
+        private final Request request;
+        private final Consumer<Response> onFinish;
+    }
 
     @Inject
-    public PortalClient(JavaPlugin pl, ProxyConfig proxyConfig, Logger logger, CipherManager cipherManager, EncryptedObjectStreamFactory encryptedObjectStreamFactory, IRequestHandler requestHandler, IClientReconnectHandler reconnectHandler) {
+    public PortalClient(JavaPlugin pl, ProxyConfig proxyConfig, Logger logger, CipherManager cipherManager, EncryptedObjectStreamFactory encryptedObjectStreamFactory, IRequestHandler requestHandler, IClientReconnectHandler reconnectHandler, MessageRegistry messageRegistry, MainThreadCallbackQueue callbackQueue, IDirectConnectionManager directConnectionManager, TimerWheel timerWheel, RequestMetrics requestMetrics) {
         this.pl = pl;
         this.proxyConfig = proxyConfig;
         this.logger = logger;
@@ -57,6 +129,11 @@ public class PortalClient implements IPortalClient {
         this.requestHandler = requestHandler;
         this.reconnectHandler = reconnectHandler;
         this.cipherManager = cipherManager;
+        this.messageRegistry = messageRegistry;
+        this.callbackQueue = callbackQueue;
+        this.directConnectionManager = directConnectionManager;
+        this.requestMetrics = requestMetrics;
+        this.pendingRequests = new PendingRequests(timerWheel, MAX_IN_FLIGHT_TO_PROXY, "the proxy");
     }
 
     @Override
@@ -71,6 +148,7 @@ public class PortalClient implements IPortalClient {
             logger.severe("Unable to find algorithm to encrypt proxy connection");
             ex.printStackTrace();
         }
+        directConnectionManager.start();
 
         new Thread(() -> {
             try {
@@ -116,6 +194,7 @@ public class PortalClient implements IPortalClient {
         }
 
         logger.info("Successfully connected to the proxy");
+        objectWriter.start();
 
         while(true) {
             Object next = objectStream.readObject();
@@ -131,21 +210,29 @@ public class PortalClient implements IPortalClient {
     }
 
     /**
-     * Sends <code>request</code> to the request handler on the main thread.
+     * Sends <code>request</code> to the request handler, which handles it on the thread that it requires.
      * @param request The request to process
      */
     private void processRequest(Request request) {
-        // We don't just send the response directly, since it may take some time to process the request, and we need to be ready for more requests.
-        requestHandler.handleRequest(request, (response) -> Bukkit.getScheduler().runTaskAsynchronously(pl, () -> {
-            response.setId((request).getId()); // Assign the correct request ID so that the proxy knows which request this response is for
-            try {
-                send(response);
-            } catch (IOException | GeneralSecurityException ex) {
-                logger.warning("IO Error occurred while sending a response to a request");
-                ex.printStackTrace();
-                disconnect();
+        requestHandler.handleRequest(request, (response) -> {
+            Runnable sendResponse = () -> {
+                response.setId((request).getId()); // Assign the correct request ID so that the proxy knows which request this response is for
+                try {
+                    send(response, request.getPriority());
+                } catch (IOException ex) {
+                    logger.warning("IO Error occurred while sending a response to a request");
+                    ex.printStackTrace();
+                    disconnect();
+                }
+            };
+
+            // Serializing the response can take some time, so this is kept off the main thread. Responses from worker threads are sent straight away
+            if(Bukkit.isPrimaryThread()) {
+                Bukkit.getScheduler().runTaskAsynchronously(pl, sendResponse);
+            }   else    {
+                sendResponse.run();
             }
-        }));
+        });
     }
 
     /**
@@ -153,13 +240,9 @@ public class PortalClient implements IPortalClient {
      * @param response The response to consume
      */
     private void processResponse(Response response) {
-        Consumer<Response> waiter = waitingRequests.remove(response.getId());
-        if(waiter == null) {
-            throw new IllegalStateException("Received response for request that didn't exist");
+        if(!pendingRequests.complete(response)) {
+            logger.fine("Received response to request %d after it timed out", response.getId());
         }
-
-        // Call it on the main server thread
-        Bukkit.getScheduler().runTask(pl, () -> waiter.accept(response));
     }
 
     /**
@@ -173,13 +256,24 @@ public class PortalClient implements IPortalClient {
         handshake.setServerPort(Bukkit.getPort());
         handshake.setGameVersion(VersionUtil.getCurrentVersion());
         handshake.setOverrideServerName(proxyConfig.getOverrideServerName());
+        handshake.setProtocolVersion(MessageRegistry.PROTOCOL_VERSION);
+        handshake.setCompression(proxyConfig.getCompression().getConfigName());
+        handshake.setCompressionLevel(proxyConfig.getCompressionLevel());
+        handshake.setCompressionThreshold(proxyConfig.getCompressionThreshold());
+        handshake.setDirectConnectionPort(directConnectionManager.getListeningPort());
+        handshake.setDirectConnectionAddress(proxyConfig.getDirectConnectionAddress());
         objectStream.writeObject(handshake);
 
         HandshakeResponse response = (HandshakeResponse) objectStream.readObject();
 
         switch(response.getStatus()) {
             case SUCCESS:
-                logger.fine("Handshake was successful");
+                logger.fine("Handshake was successful, using protocol version %d and compression %s", response.getProtocolVersion(), response.getCompression());
+                // Older proxies don't send a compression type, in which case this will be NONE
+                CompressionType compression = CompressionType.fromConfigName(response.getCompression());
+                wireFormat = WireFormat.create(messageRegistry, response.getProtocolVersion(), compression, proxyConfig.getCompressionLevel(), proxyConfig.getCompressionThreshold());
+                objectStream.setWireFormat(wireFormat);
+                objectWriter = new PrioritizedObjectWriter(objectStream, "BetterPortals proxy connection writer", this::onWriteError);
                 hasHandshakeFinished = true;
                 return true;
             case PLUGIN_VERSION_MISMATCH:
@@ -200,8 +294,9 @@ public class PortalClient implements IPortalClient {
         shouldReconnectIfFailed = false;
 
         try {
+            // Written straight away rather than queued, since the socket is closed after this
             if(objectStream != null) {
-                send(new DisconnectNotice());
+                objectStream.writeObject(new DisconnectNotice());
             }
         }   catch(IOException | GeneralSecurityException ex) {
             logger.warning("Error occurred while sending disconnection notice to proxy");
@@ -209,6 +304,7 @@ public class PortalClient implements IPortalClient {
         }
 
         disconnect(true); // Force it since we've set isRunning to false
+        directConnectionManager.shutDown();
     }
 
     @Override
@@ -244,6 +340,10 @@ public class PortalClient implements IPortalClient {
         isRunning = false;
         hasHandshakeFinished = false;
 
+        if(objectWriter != null) {
+            objectWriter.close();
+        }
+
         try {
             if(socket != null) {
                 socket.close();
@@ -253,23 +353,15 @@ public class PortalClient implements IPortalClient {
             ex.printStackTrace();
         }
 
-        Response disconnectResponse = new Response();
-        disconnectResponse.setError(new RequestException("Disconnected from proxy while sending the request"));
-        for(Consumer<Response> responseConsumer : waitingRequests.values()) {
-            responseConsumer.accept(disconnectResponse);
-        }
-        waitingRequests.clear();
+        pendingRequests.failAll(new RequestException("Disconnected from proxy while sending the request"));
+        // Start from the initial limits after reconnecting. Requests still finishing only update the old states
+        callbackQueue.add(destinationStates::clear);
 
         reconnectHandler.onClientDisconnect();
     }
 
     @Override
     public void sendRequestToProxy(@NotNull Request request, @NotNull Consumer<Response> onFinish) {
-        int requestId = currentRequestId.getAndIncrement();
-        // Set a new request ID to preserve order in case the request doesn't come back straight away
-        request.setId(requestId);
-        waitingRequests.put(requestId, onFinish);
-
         if(!hasHandshakeFinished) {
             Response notConnected = new Response();
             notConnected.setError(new RequestException("Not connected to the proxy"));
@@ -277,11 +369,14 @@ public class PortalClient implements IPortalClient {
             return;
         }
 
+        // Responses, timeouts and disconnections all call back on the main server thread
+        if(!pendingRequests.add(request, (response) -> callbackQueue.add(() -> onFinish.accept(response)))) {return;}
+
         // Avoid blocking the main thread
         Bukkit.getScheduler().runTaskAsynchronously(pl, () -> {
             try {
-                send(request);
-            } catch (IOException | GeneralSecurityException ex) {
+                send(request, request.getPriority());
+            } catch (IOException ex) {
                 logger.warning("Disconnected from proxy while sending request");
                 disconnect();
             }
@@ -290,16 +385,137 @@ public class PortalClient implements IPortalClient {
 
     @Override
     public void sendRequestToServer(@NotNull Request request, @NotNull String destinationServer, @NotNull Consumer<Response> onFinish) {
+        synchronized(queuedRequests) {
+            queuedRequests.computeIfAbsent(destinationServer, key -> new ArrayList<>()).add(new QueuedRequest(request, onFinish));
+        }
+
+        // Main update flushes at the end of each tick, but requests can be sent from elsewhere
+        if(isFlushScheduled.compareAndSet(false, true)) {
+            Bukkit.getScheduler().runTask(pl, this::flushQueuedRequests);
+        }
+    }
+
+    @Override
+    public void flushQueuedRequests() {
+        isFlushScheduled.set(false);
+
+        Map<String, List<QueuedRequest>> toSend;
+        synchronized(queuedRequests) {
+            if(queuedRequests.isEmpty()) {return;}
+
+            toSend = new HashMap<>(queuedRequests);
+            queuedRequests.clear();
+        }
+
+        long now = System.nanoTime();
+        for(Map.Entry<String, List<QueuedRequest>> entry : toSend.entrySet()) {
+            String destinationServer = entry.getKey();
+            List<QueuedRequest> requests = entry.getValue();
+
+            DestinationState state = destinationStates.computeIfAbsent(destinationServer, key -> new DestinationState());
+            if(!state.canSend(now)) {
+                // Sent on a later tick, once the server has caught up
+                logger.finer("Delaying %d requests to %s, which has %d requests in flight", requests.size(), destinationServer, state.inFlight);
+                synchronized(queuedRequests) {
+                    queuedRequests.computeIfAbsent(destinationServer, key -> new ArrayList<>()).addAll(0, requests);
+                }
+                continue;
+            }
+
+            List<QueuedRequest> trackedRequests = new ArrayList<>(requests.size());
+            for(QueuedRequest request : requests) {
+                trackedRequests.add(new QueuedRequest(request.request, trackResponse(request, destinationServer, now)));
+            }
+
+            state.inFlight++;
+            Consumer<Response> onSent = (response) -> state.onFinished(response.getError() instanceof RequestTimeoutException);
+            if(requests.size() == 1) {
+                QueuedRequest request = trackedRequests.get(0);
+                sendToServer(request.request, destinationServer, (response) -> {
+                    onSent.accept(response);
+                    request.onFinish.accept(response);
+                });
+            }   else    {
+                sendBatch(trackedRequests, destinationServer, onSent);
+            }
+        }
+    }
+
+    /**
+     * Wraps the callback of <code>request</code> to record its round trip time.
+     */
+    private Consumer<Response> trackResponse(QueuedRequest request, String destinationServer, long sendTime) {
+        return (response) -> {
+            RequestException error = response.getError();
+            requestMetrics.record(request.request.getClass(), destinationServer, System.nanoTime() - sendTime, error != null, error instanceof RequestTimeoutException);
+            request.onFinish.accept(response);
+        };
+    }
+
+    private void sendBatch(List<QueuedRequest> requests, String destinationServer, Consumer<Response> onSent) {
+        logger.finer("Sending batch of %d requests to %s", requests.size(), destinationServer);
+        BatchRequest batch = new BatchRequest();
+        for(int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i).request;
+            request.setId(i);
+            batch.getRequests().add(request);
+        }
+
+        sendToServer(batch, destinationServer, (response) -> {
+            onSent.accept(response);
+
+            List<Response> responses;
+            try {
+                responses = ((BatchResponse) response.getResult()).getResponses();
+                if(responses.size() != requests.size()) {
+                    throw new RequestException(String.format("Received %d responses to a batch of %d requests", responses.size(), requests.size()));
+                }
+            }   catch(RequestException ex) {
+                // The whole batch failed, e.g. if the destination isn't connected
+                for(QueuedRequest request : requests) {
+                    Response eResponse = new Response();
+                    eResponse.setError(ex);
+                    request.onFinish.accept(eResponse);
+                }
+                return;
+            }
+
+            for(int i = 0; i < requests.size(); i++) {
+                requests.get(i).onFinish.accept(responses.get(i));
+            }
+        });
+    }
+
+    /**
+     * Sends <code>request</code> over a direct connection to the destination if one is open, otherwise relays it through the proxy.
+     */
+    private void sendToServer(@NotNull Request request, @NotNull String destinationServer, @NotNull Consumer<Response> onFinish) {
+        DirectConnection connection = directConnectionManager.getConnection(destinationServer);
+        if(connection != null && connection.sendRequest(request, onFinish)) {return;}
+
+        relayRequest(request, destinationServer, onFinish);
+    }
+
+    private void relayRequest(@NotNull Request request, @NotNull String destinationServer, @NotNull Consumer<Response> onFinish) {
         // Tell the proxy to send the request to the correct server
         RelayRequest relayRequest = new RelayRequest();
-        relayRequest.setInnerRequest(request);
         relayRequest.setDestination(destinationServer);
+        relayRequest.setPriority(request.getPriority());
+        try {
+            relayRequest.setInnerRequest(wireFormat.getSerializer().serialize(request));
+        }   catch(IOException ex) {
+            Response eResponse = new Response();
+            eResponse.setError(new RequestException(ex, "Failed to serialize relayed request"));
+            onFinish.accept(eResponse);
+            return;
+        }
 
         // Relayed responses are wrapped so that they can be treated as opaque on the proxy side
         sendRequestToProxy(relayRequest, (response) -> {
             try {
                 byte[] responseData = (byte[]) response.getResult();
-                Object deserializedResponse = new ObjectInputStream(new ByteArrayInputStream(responseData)).readObject();
+                // The destination replies in the same format as the request, but detecting it avoids depending on that
+                Object deserializedResponse = messageRegistry.detectSerializer(responseData).deserialize(responseData);
                 onFinish.accept((Response) deserializedResponse);
 
             }   catch(RequestException ex) { // This is thrown if there is an error while forwarding the request, not in its processing at the destination
@@ -307,12 +523,33 @@ public class PortalClient implements IPortalClient {
                 eResponse.setError(ex);
                 onFinish.accept(eResponse);
             }   catch(IOException | ClassNotFoundException ex) {
+                // The request still needs to finish, otherwise it would keep its in-flight slot forever
+                Response eResponse = new Response();
+                eResponse.setError(new RequestException(ex, "Failed to deserialize relayed response"));
+                onFinish.accept(eResponse);
                 disconnect();
             }
         });
     }
 
-    public synchronized void send(Object obj) throws GeneralSecurityException, IOException {
-        objectStream.writeObject(obj);
+    private void send(Object obj, MessagePriority priority) throws IOException {
+        PrioritizedObjectWriter writer = objectWriter;
+        if(writer == null || !writer.send(obj, priority)) {
+            throw new IOException("Connection to the proxy was closed");
+        }
+    }
+
+    private void onWriteError(Exception ex) {
+        if(!isRunning) {return;}
+
+        logger.warning("An error occurred while sending to the proxy");
+        logger.warning("%s: %s", ex.getClass().getName(), ex.getMessage());
+        disconnect();
+    }
+
+    @Override
+    public @Nullable StreamStatistics getStreamStatistics(@NotNull MessagePriority priority) {
+        PrioritizedObjectWriter writer = objectWriter;
+        return writer == null ? null : writer.getStatistics(priority);
     }
 }
@@ -0,0 +1,181 @@
+package com.lauriethefish.betterportals.bukkit.net.direct;
+
+import com.lauriethefish.betterportals.bukkit.net.MainThreadCallbackQueue;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.net.DisconnectNotice;
+import com.lauriethefish.betterportals.shared.net.IRequestHandler;
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.rpc.PendingRequests;
+import com.lauriethefish.betterportals.shared.net.rpc.TimerWheel;
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
+import com.lauriethefish.betterportals.shared.net.stream.PrioritizedObjectWriter;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.function.Consumer;
+
+/**
+ * An encrypted connection to another server that doesn't go through the proxy, set up by {@link DirectConnectionManager}.
+ * The server that connected sends requests, and the server that accepted the connection handles them and sends back the responses.
+ */
+public class DirectConnection {
+    /**
+     * Requests after this many are waiting go through the proxy instead.
+     */
+    private static final int MAX_IN_FLIGHT = 1024;
+
+    private final Logger logger;
+    private final IRequestHandler requestHandler;
+    private final MainThreadCallbackQueue callbackQueue;
+    private final Socket socket;
+    private final IEncryptedObjectStream objectStream;
+    @Getter private final String name; // Name of the server if we connected to it, otherwise its address
+    private final Runnable onClose;
+
+    // Writes are done on one thread for each connection, so that the main thread doesn't block on the socket
+    private final PrioritizedObjectWriter writer;
+
+    private volatile boolean isOpen = true;
+    private final PendingRequests pendingRequests;
+
+    DirectConnection(Logger logger, IRequestHandler requestHandler, MainThreadCallbackQueue callbackQueue, TimerWheel timerWheel, Socket socket, IEncryptedObjectStream objectStream, String name, Runnable onClose) {
+        this.logger = logger;
+        this.requestHandler = requestHandler;
+        this.callbackQueue = callbackQueue;
+        this.socket = socket;
+        this.objectStream = objectStream;
+        this.name = name;
+        this.onClose = onClose;
+        this.pendingRequests = new PendingRequests(timerWheel, MAX_IN_FLIGHT, name);
+        this.writer = new PrioritizedObjectWriter(objectStream, "BetterPortals direct connection writer (" + name + ")", ex -> {
+            logger.fine("Failed to write to direct connection to %s: %s", name, ex.getMessage());
+            close();
+        });
+    }
+
+    /**
+     * Starts a thread that reads from this connection until it is closed.
+     */
+    void start() {
+        writer.start();
+        Thread thread = new Thread(() -> {
+            try {
+                run();
+            }   catch(IOException ex) {
+                if(isOpen) {
+                    logger.fine("Direct connection to %s was lost: %s: %s", name, ex.getClass().getName(), ex.getMessage());
+                }
+            }   catch(Exception ex) {
+                logger.warning("An error occurred on the direct connection to %s", name);
+                ex.printStackTrace();
+            }   finally     {
+                close();
+            }
+        }, "BetterPortals direct connection reader (" + name + ")");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() throws IOException, GeneralSecurityException, ClassNotFoundException {
+        while(isOpen) {
+            Object next = objectStream.readObject();
+            if(next instanceof DisconnectNotice) {
+                logger.fine("Direct connection to %s was closed by the other server", name);
+                return;
+            }   else if(next instanceof Response) {
+                processResponse((Response) next);
+            }   else if(next instanceof Request) {
+                processRequest((Request) next);
+            }
+        }
+    }
+
+    private void processRequest(Request request) {
+        requestHandler.handleRequest(request, (response) -> {
+            response.setId(request.getId());
+            write(response, request.getPriority());
+        });
+    }
+
+    private void processResponse(Response response) {
+        if(!pendingRequests.complete(response)) {
+            logger.fine("Received response to request %d from %s after it timed out", response.getId(), name);
+        }
+    }
+
+    /**
+     * Sends <code>request</code> to the other server, and calls <code>onFinish</code> on the main thread once the response is received.
+     * @param request The request to send
+     * @param onFinish Called with the response, or with an error if the connection is closed or the request times out before the response is received
+     * @return false if the connection is already closed or too many requests are waiting, in which case <code>onFinish</code> isn't called
+     */
+    public boolean sendRequest(@NotNull Request request, @NotNull Consumer<Response> onFinish) {
+        if(!isOpen || pendingRequests.size() >= MAX_IN_FLIGHT) {return false;}
+
+        if(!pendingRequests.add(request, (response) -> callbackQueue.add(() -> onFinish.accept(response)))) {return true;}
+
+        // If the connection was closed after checking, then the request may have missed getting an error
+        if(!isOpen && pendingRequests.remove(request.getId())) {
+            return false;
+        }
+
+        write(request, request.getPriority());
+        return true;
+    }
+
+    private void write(Object obj, MessagePriority priority) {
+        try {
+            // If the connection was closed, then any waiting requests have already been given an error
+            writer.send(obj, priority);
+        }   catch(IOException ex) {
+            logger.warning("Failed to serialize message for direct connection to %s", name);
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    /**
+     * Sends a disconnection notice, then closes the connection.
+     */
+    public void shutDown() {
+        if(!isOpen) {return;}
+        try {
+            // Written straight away rather than queued, since the socket is closed after this
+            objectStream.writeObject(new DisconnectNotice());
+        }   catch(IOException | GeneralSecurityException ex) {
+            logger.fine("Failed to send disconnection notice to %s: %s", name, ex.getMessage());
+        }
+        close();
+    }
+
+    /**
+     * Closes the connection, and gives an error to any requests waiting for a response.
+     * Does nothing if already closed.
+     */
+    public synchronized void close() {
+        if(!isOpen) {return;}
+        isOpen = false;
+
+        writer.close();
+        try {
+            socket.close();
+        }   catch(IOException ex) {
+            logger.warning("Error occurred while closing direct connection socket");
+            ex.printStackTrace();
+        }
+
+        pendingRequests.failAll(new RequestException(String.format("Direct connection to %s was closed while sending the request", name)));
+
+        onClose.run();
+    }
+}
@@ -0,0 +1,336 @@
+package com.lauriethefish.betterportals.bukkit.net.direct;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.ProxyConfig;
+import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
+import com.lauriethefish.betterportals.bukkit.net.MainThreadCallbackQueue;
+import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.net.DirectConnectionInfo;
+import com.lauriethefish.betterportals.shared.net.Handshake;
+import com.lauriethefish.betterportals.shared.net.HandshakeResponse;
+import com.lauriethefish.betterportals.shared.net.IRequestHandler;
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.encryption.BufferPool;
+import com.lauriethefish.betterportals.shared.net.encryption.CipherManager;
+import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectCodec;
+import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import com.lauriethefish.betterportals.shared.net.requests.DirectConnectionRequest;
+import com.lauriethefish.betterportals.shared.net.rpc.TimerWheel;
+import com.lauriethefish.betterportals.shared.net.requests.DirectSessionRequest;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Singleton
+public class DirectConnectionManager implements IDirectConnectionManager {
+    /**
+     * Time that a session from the proxy can be used for before it expires.
+     */
+    private static final Duration SESSION_EXPIRY_TIME = Duration.ofSeconds(30);
+
+    /**
+     * Time to wait after failing to connect to a server before trying again. Requests are relayed through the proxy in the meantime.
+     */
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(60);
+
+    private static final int CONNECT_TIMEOUT = 5000; // Milliseconds
+    private static final int HANDSHAKE_TIMEOUT = 10_000; // Milliseconds
+
+    /**
+     * Maximum number of accepted connections that can be handshaking at once, and waiting to start handshaking.
+     * Connections past this are closed, since anything that can reach the port can connect before its session is checked.
+     */
+    private static final int MAX_CONCURRENT_HANDSHAKES = 4;
+    private static final int MAX_QUEUED_HANDSHAKES = 16;
+
+    private final JavaPlugin pl;
+    private final Logger logger;
+    private final ProxyConfig proxyConfig;
+    private final Provider<IPortalClient> portalClient;
+    private final IRequestHandler requestHandler;
+    private final MainThreadCallbackQueue callbackQueue;
+    private final MessageRegistry messageRegistry;
+    private final BufferPool bufferPool;
+    private final TimerWheel timerWheel;
+
+    private volatile ServerSocket serverSocket;
+    private final ThreadPoolExecutor handshakeExecutor;
+
+    // Connections that we made to other servers, by server name
+    private final Map<String, DirectConnection> connections = new ConcurrentHashMap<>();
+    private final Set<String> connectingServers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Instant> nextAttemptTimes = new ConcurrentHashMap<>();
+
+    // Connections that other servers made to us
+    private final Set<DirectConnection> acceptedConnections = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, PendingSession> pendingSessions = new ConcurrentHashMap<>();
+
+    private static class PendingSession {
+        private final UUID sessionKey;
+        private final Instant expiryTime;
+
+        private PendingSession(UUID sessionKey, Instant expiryTime) {
+            this.sessionKey = sessionKey;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    @Inject
+    public DirectConnectionManager(JavaPlugin pl, Logger logger, ProxyConfig proxyConfig, Provider<IPortalClient> portalClient, IRequestHandler requestHandler, MainThreadCallbackQueue callbackQueue, MessageRegistry messageRegistry, BufferPool bufferPool, TimerWheel timerWheel) {
+        this.pl = pl;
+        this.logger = logger;
+        this.proxyConfig = proxyConfig;
+        this.portalClient = portalClient;
+        this.requestHandler = requestHandler;
+        this.callbackQueue = callbackQueue;
+        this.messageRegistry = messageRegistry;
+        this.bufferPool = bufferPool;
+        this.timerWheel = timerWheel;
+
+        this.handshakeExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_HANDSHAKES, MAX_CONCURRENT_HANDSHAKES, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_HANDSHAKES), (runnable) -> {
+            Thread thread = new Thread(runnable, "BetterPortals direct connection handshake");
+            thread.setDaemon(true);
+            return thread;
+        });
+        handshakeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public synchronized void start() {
+        if(!proxyConfig.isDirectConnectionsEnabled() || serverSocket != null) {return;}
+
+        try {
+            serverSocket = new ServerSocket(proxyConfig.getDirectConnectionPort());
+        }   catch(IOException ex) {
+            logger.warning("Failed to listen for direct connections on port %d, requests from other servers will go through the proxy: %s", proxyConfig.getDirectConnectionPort(), ex.getMessage());
+            return;
+        }
+
+        ServerSocket listeningSocket = serverSocket;
+        Thread thread = new Thread(() -> {
+            while(!listeningSocket.isClosed()) {
+                try {
+                    Socket socket = listeningSocket.accept();
+                    // Stops connections that never send their session from holding a handshake thread forever
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                    try {
+                        handshakeExecutor.execute(() -> acceptConnection(socket));
+                    }   catch(RejectedExecutionException ex) {
+                        logger.warning("Rejected direct connection from %s, too many connections are already handshaking", socket.getRemoteSocketAddress());
+                        closeQuietly(socket);
+                    }
+                }   catch(IOException ex) {
+                    if(!listeningSocket.isClosed()) {
+                        logger.warning("Error occurred while accepting a direct connection: %s", ex.getMessage());
+                    }
+                }
+            }
+        }, "BetterPortals direct connection listener");
+        thread.setDaemon(true);
+        thread.start();
+        logger.fine("Listening for direct connections on port %d", serverSocket.getLocalPort());
+    }
+
+    @Override
+    public synchronized void shutDown() {
+        if(serverSocket != null) {
+            try {
+                serverSocket.close();
+            }   catch(IOException ex) {
+                logger.warning("Error occurred while closing direct connection listener");
+                ex.printStackTrace();
+            }
+            serverSocket = null;
+        }
+
+        connections.values().forEach(DirectConnection::shutDown);
+        acceptedConnections.forEach(DirectConnection::shutDown);
+        connections.clear();
+        acceptedConnections.clear();
+        pendingSessions.clear();
+        nextAttemptTimes.clear();
+    }
+
+    @Override
+    public int getListeningPort() {
+        ServerSocket socket = serverSocket;
+        return socket == null ? 0 : socket.getLocalPort();
+    }
+
+    @Override
+    public @Nullable DirectConnection getConnection(@NotNull String serverName) {
+        if(!proxyConfig.isDirectConnectionsEnabled()) {return null;}
+
+        DirectConnection connection = connections.get(serverName);
+        if(connection != null && connection.isOpen()) {
+            return connection;
+        }
+
+        Instant nextAttemptTime = nextAttemptTimes.get(serverName);
+        if(nextAttemptTime != null && Instant.now().isBefore(nextAttemptTime)) {return null;}
+        if(!portalClient.get().canReceiveRequests() || !connectingServers.add(serverName)) {return null;}
+
+        logger.fine("Requesting direct connection to %s", serverName);
+        DirectConnectionRequest request = new DirectConnectionRequest();
+        request.setDestination(serverName);
+        portalClient.get().sendRequestToProxy(request, (response) -> {
+            try {
+                DirectConnectionInfo info = (DirectConnectionInfo) response.getResult();
+                new Thread(() -> connect(serverName, info), "BetterPortals direct connection to " + serverName).start();
+            }   catch(RequestException ex) {
+                logger.fine("Unable to connect directly to %s, using the proxy instead: %s", serverName, ex.getMessage());
+                onConnectFailed(serverName);
+            }
+        });
+        return null;
+    }
+
+    private void onConnectFailed(String serverName) {
+        nextAttemptTimes.put(serverName, Instant.now().plus(RETRY_DELAY));
+        connectingServers.remove(serverName);
+    }
+
+    private IEncryptedObjectStream createStream(Socket socket, UUID sessionKey) throws IOException, GeneralSecurityException {
+        CipherManager cipherManager = new CipherManager();
+        cipherManager.init(sessionKey);
+        return new EncryptedObjectStream(new BufferedInputStream(socket.getInputStream()), socket.getOutputStream(), new EncryptedObjectCodec(cipherManager, bufferPool));
+    }
+
+    private void connect(String serverName, DirectConnectionInfo info) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(info.getHost(), info.getPort()), CONNECT_TIMEOUT);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+
+            // The session ID tells the other server which key to use, so it is sent before anything is encrypted
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeLong(info.getSessionId().getMostSignificantBits());
+            outputStream.writeLong(info.getSessionId().getLeastSignificantBits());
+            outputStream.flush();
+
+            IEncryptedObjectStream objectStream = createStream(socket, info.getSessionKey());
+            Handshake handshake = new Handshake();
+            handshake.setPluginVersion(pl.getDescription().getVersion());
+            handshake.setGameVersion(VersionUtil.getCurrentVersion());
+            handshake.setProtocolVersion(MessageRegistry.PROTOCOL_VERSION);
+            handshake.setCompression(proxyConfig.getCompression().getConfigName());
+            handshake.setCompressionLevel(proxyConfig.getCompressionLevel());
+            handshake.setCompressionThreshold(proxyConfig.getCompressionThreshold());
+            objectStream.writeObject(handshake);
+
+            HandshakeResponse response = (HandshakeResponse) objectStream.readObject();
+            if(response.getStatus() != HandshakeResponse.Result.SUCCESS) {
+                throw new IOException("Server refused direct connection: " + response.getStatus());
+            }
+
+            CompressionType compression = CompressionType.fromConfigName(response.getCompression());
+            objectStream.setWireFormat(WireFormat.create(messageRegistry, response.getProtocolVersion(), compression, proxyConfig.getCompressionLevel(), proxyConfig.getCompressionThreshold()));
+            socket.setSoTimeout(0);
+
+            DirectConnection connection = new DirectConnection(logger, requestHandler, callbackQueue, timerWheel, socket, objectStream, serverName, () -> connections.remove(serverName));
+            connections.put(serverName, connection);
+            connectingServers.remove(serverName);
+            nextAttemptTimes.remove(serverName);
+            connection.start();
+            logger.info("Connected directly to %s", serverName);
+        }   catch(IOException | GeneralSecurityException | ClassNotFoundException | ClassCastException ex) {
+            logger.warning("Failed to connect directly to %s at %s:%d, using the proxy instead: %s", serverName, info.getHost(), info.getPort(), ex.getMessage());
+            closeQuietly(socket);
+            onConnectFailed(serverName);
+        }
+    }
+
+    private void acceptConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            UUID sessionId = new UUID(inputStream.readLong(), inputStream.readLong());
+            PendingSession session = pendingSessions.remove(sessionId);
+            if(session == null || Instant.now().isAfter(session.expiryTime)) {
+                logger.warning("Rejected direct connection from %s with an unknown or expired session", socket.getRemoteSocketAddress());
+                closeQuietly(socket);
+                return;
+            }
+
+            IEncryptedObjectStream objectStream = createStream(socket, session.sessionKey);
+            Handshake handshake = (Handshake) objectStream.readObject();
+
+            HandshakeResponse response = new HandshakeResponse();
+            boolean isVersionCorrect = pl.getDescription().getVersion().equals(handshake.getPluginVersion());
+            response.setStatus(isVersionCorrect ? HandshakeResponse.Result.SUCCESS : HandshakeResponse.Result.PLUGIN_VERSION_MISMATCH);
+
+            int protocolVersion = messageRegistry.negotiateVersion(handshake.getProtocolVersion());
+            CompressionType compression = CompressionType.fromConfigName(handshake.getCompression());
+            response.setProtocolVersion(protocolVersion);
+            response.setCompression(compression.getConfigName());
+            objectStream.writeObject(response);
+
+            if(!isVersionCorrect) {
+                logger.warning("Rejected direct connection from %s with a different plugin version (%s)", socket.getRemoteSocketAddress(), handshake.getPluginVersion());
+                closeQuietly(socket);
+                return;
+            }
+
+            objectStream.setWireFormat(WireFormat.create(messageRegistry, protocolVersion, compression, handshake.getCompressionLevel(), handshake.getCompressionThreshold()));
+            socket.setSoTimeout(0);
+
+            String name = String.valueOf(socket.getRemoteSocketAddress());
+            DirectConnection[] connection = new DirectConnection[1];
+            connection[0] = new DirectConnection(logger, requestHandler, callbackQueue, timerWheel, socket, objectStream, name, () -> acceptedConnections.remove(connection[0]));
+            acceptedConnections.add(connection[0]);
+            connection[0].start();
+            logger.fine("Accepted direct connection from %s", name);
+        }   catch(IOException | GeneralSecurityException | ClassNotFoundException | ClassCastException ex) {
+            logger.warning("Failed to accept direct connection from %s: %s", socket.getRemoteSocketAddress(), ex.getMessage());
+            closeQuietly(socket);
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }   catch(IOException ignored) {}
+    }
+
+    @Override
+    public void onSessionRequest(@NotNull DirectSessionRequest request) throws RequestException {
+        if(serverSocket == null) {
+            throw new RequestException("Direct connections are not enabled on this server");
+        }
+
+        // Remove any sessions that were never used
+        Instant now = Instant.now();
+        pendingSessions.values().removeIf(session -> now.isAfter(session.expiryTime));
+
+        logger.fine("Expecting direct connection with session %s", request.getSessionId());
+        pendingSessions.put(request.getSessionId(), new PendingSession(request.getSessionKey(), now.plus(SESSION_EXPIRY_TIME)));
+    }
+}
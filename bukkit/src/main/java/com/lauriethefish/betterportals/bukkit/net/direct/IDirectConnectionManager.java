@@ -0,0 +1,43 @@
+package com.lauriethefish.betterportals.bukkit.net.direct;
+
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.requests.DirectSessionRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Manages connections between servers that don't go through the proxy.
+ * The proxy gives out the address and a key for each connection, and requests are relayed through the proxy if there is no direct connection.
+ */
+public interface IDirectConnectionManager {
+    /**
+     * Starts accepting direct connections, if they are enabled in the config.
+     * Does nothing if already started.
+     */
+    void start();
+
+    /**
+     * Stops accepting direct connections, and closes any open ones.
+     */
+    void shutDown();
+
+    /**
+     * @return The port that direct connections are accepted on, or zero if they aren't.
+     */
+    int getListeningPort();
+
+    /**
+     * Gets an open connection to <code>serverName</code>.
+     * If there isn't one, a connection is started in the background, unless one failed recently.
+     * @param serverName The server to connect to
+     * @return The connection, or null if there isn't one open yet
+     */
+    @Nullable DirectConnection getConnection(@NotNull String serverName);
+
+    /**
+     * Called when the proxy tells this server to expect a connection from another server.
+     * @param request Contains the session ID and key for the connection
+     * @throws RequestException If direct connections aren't enabled
+     */
+    void onSessionRequest(@NotNull DirectSessionRequest request) throws RequestException;
+}
@@ -1,16 +1,20 @@
 package com.lauriethefish.betterportals.bukkit.net.requests;
 
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeUpdate;
 import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.requests.ThreadingRequirement;
 import lombok.Getter;
 import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.UUID;
 
 /**
- * Used to request a set of block data changes from the destination of a cross-server portal.
- * This will send all of the blocks within the portal area the first time it's sent with a particular {@link GetBlockDataChangesRequest#changeSetId}.
+ * Used to subscribe to block data changes from the destination of a cross-server portal.
+ * The destination replies with a {@link BlockChangeUpdate} as soon as any blocks change, or after a timeout if none do, and the origin then sends the request again.
+ * All of the blocks within the portal area are sent the first time it's sent with a particular {@link GetBlockDataChangesRequest#changeSetId}, or if the origin missed an update.
  */
 @Getter
 @Setter
@@ -28,4 +32,32 @@ public class GetBlockDataChangesRequest extends Request {
      */
     private int xAndZRadius;
     private int yRadius;
+
+    /**
+     * Sequence number of the last {@link BlockChangeUpdate} that the origin applied, or {@link BlockChangeUpdate#NO_SEQUENCE} if it has none.
+     */
+    private long acknowledgedSequence = BlockChangeUpdate.NO_SEQUENCE;
+
+    @Override
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        return ThreadingRequirement.REGION_SNAPSHOT;
+    }
+
+    /**
+     * @return The minimum corner of the area at the destination, inclusive
+     */
+    public @NotNull IntVector getAreaMin() {
+        IntVector a = rotateOriginToDest.transform(-xAndZRadius, -yRadius, -xAndZRadius);
+        IntVector b = rotateOriginToDest.transform(xAndZRadius, yRadius, xAndZRadius);
+        return new IntVector(Math.min(a.getX(), b.getX()), Math.min(a.getY(), b.getY()), Math.min(a.getZ(), b.getZ())).add(position);
+    }
+
+    /**
+     * @return The maximum corner of the area at the destination, inclusive
+     */
+    public @NotNull IntVector getAreaMax() {
+        IntVector a = rotateOriginToDest.transform(-xAndZRadius, -yRadius, -xAndZRadius);
+        IntVector b = rotateOriginToDest.transform(xAndZRadius, yRadius, xAndZRadius);
+        return new IntVector(Math.max(a.getX(), b.getX()), Math.max(a.getY(), b.getY()), Math.max(a.getZ(), b.getZ())).add(position);
+    }
 }
@@ -3,8 +3,10 @@ package com.lauriethefish.betterportals.bukkit.net.requests;
 import com.lauriethefish.betterportals.api.PortalPosition;
 import com.lauriethefish.betterportals.bukkit.portal.selection.IPortalSelection;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
 import lombok.Getter;
 import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.Serializable;
 import java.util.UUID;
@@ -32,7 +34,19 @@ public class GetSelectionRequest extends Request {
             this.sizeX = portalSelection.getPortalSize().getBlockX();
             this.sizeY = portalSelection.getPortalSize().getBlockY();
         }
+
+        public ExternalSelectionInfo(PortalPosition position, int sizeX, int sizeY) {
+            this.position = position;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+        }
     }
 
     private UUID playerId;
+
+    // Sent while the player is joining
+    @Override
+    public @NotNull MessagePriority getPriority() {
+        return MessagePriority.HIGH;
+    }
 }
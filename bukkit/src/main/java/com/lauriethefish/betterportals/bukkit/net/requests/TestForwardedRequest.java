@@ -2,8 +2,10 @@ package com.lauriethefish.betterportals.bukkit.net.requests;
 
 import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.requests.ThreadingRequirement;
 import lombok.Getter;
 import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
 
 @Getter
 @Setter
@@ -11,4 +13,9 @@ public class TestForwardedRequest extends Request {
     private static final long serialVersionUID = 1L;
 
     private IntVector testField;
+
+    @Override
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        return ThreadingRequirement.ANY_THREAD;
+    }
 }
@@ -20,12 +20,13 @@ public interface IPlayerData {
     @NotNull Player getPlayer();
 
     /**
-     * @return The player's permanent data .yml
+     * The saved data is loaded in the background after the player joins, so this contains the defaults until it has loaded.
+     * @return The player's permanent data
      */
     @NotNull YamlConfiguration getPermanentData();
 
     /**
-     * Saves the player data after changes, if any.
+     * Queues the permanent data to be saved after changes, if any. It is written in the background.
      */
     void savePermanentData();
 
@@ -0,0 +1,44 @@
+package com.lauriethefish.betterportals.bukkit.player;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Stores the permanent data of each player.
+ * Loading and saving is done on a background thread, so that players joining doesn't block the main thread.
+ * All methods must be called on the main thread.
+ */
+public interface IPlayerDataStore {
+    /**
+     * Loads the saved data of a player in the background.
+     * @param playerId ID of the player
+     * @param callback Called on the main thread with the saved data, or null if the player has none
+     */
+    void load(@NotNull UUID playerId, @NotNull Consumer<@Nullable YamlConfiguration> callback);
+
+    /**
+     * Queues the data of a player to be saved. Saved data is written in batches, so this doesn't write it straight away.
+     * @param playerId ID of the player
+     * @param data The data to save, which is copied, so it can be modified afterwards
+     */
+    void save(@NotNull UUID playerId, @NotNull YamlConfiguration data);
+
+    /**
+     * Starts the task that regularly writes the queued data.
+     */
+    void start();
+
+    /**
+     * Writes all queued data, and waits for all loads and writes to finish.
+     */
+    void close();
+
+    /**
+     * @return The number of players with data queued to be written
+     */
+    int getPendingCount();
+}
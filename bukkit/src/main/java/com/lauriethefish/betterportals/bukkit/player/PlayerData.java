@@ -2,7 +2,6 @@ package com.lauriethefish.betterportals.bukkit.player;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import com.lauriethefish.betterportals.bukkit.BetterPortals;
 import com.lauriethefish.betterportals.bukkit.portal.selection.ISelectionManager;
 import com.lauriethefish.betterportals.bukkit.player.view.IPlayerPortalView;
 import com.lauriethefish.betterportals.bukkit.player.view.PlayerPortalViewFactory;
@@ -16,9 +15,8 @@ import lombok.Setter;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -30,7 +28,7 @@ public class PlayerData implements IPlayerData  {
     @Getter private final YamlConfiguration permanentData;
     @Getter @Setter private ISelectionManager selection;
 
-    private final BetterPortals pl;
+    private final IPlayerDataStore playerDataStore;
     private final Logger logger;
     private final IPortalManager portalManager;
     private final IPortalPredicateManager portalPredicateManager;
@@ -42,19 +40,35 @@ public class PlayerData implements IPlayerData  {
     private final Map<IPortal, IPlayerPortalView> portalViews = new ConcurrentHashMap<>();
 
     private boolean viewsFrozen;
+    // If the data was changed before the saved data was loaded, the saved data is out of date
+    private boolean permanentDataChanged;
 
     @Inject
-    public PlayerData(@Assisted Player player, ISelectionManager selection, IPortalManager portalManager, IPortalPredicateManager portalPredicateManager, BetterPortals pl, Logger logger, IPortalActivityManager portalActivityManager, PlayerPortalViewFactory playerPortalViewFactory) {
+    public PlayerData(@Assisted Player player, ISelectionManager selection, IPortalManager portalManager, IPortalPredicateManager portalPredicateManager, IPlayerDataStore playerDataStore, Logger logger, IPortalActivityManager portalActivityManager, PlayerPortalViewFactory playerPortalViewFactory) {
         this.player = player;
         this.selection = selection;
         this.portalManager = portalManager;
         this.portalPredicateManager = portalPredicateManager;
-        this.pl = pl;
+        this.playerDataStore = playerDataStore;
         this.logger = logger;
         this.portalActivityManager = portalActivityManager;
         this.playerPortalViewFactory = playerPortalViewFactory;
 
-        permanentData = loadPermanentDataYml();
+        // The defaults are used until the saved data is loaded, so that joining doesn't wait for the disk
+        permanentData = new YamlConfiguration();
+        permanentData.addDefault("seeThroughPortal", true);
+        permanentData.options().copyDefaults(true);
+        playerDataStore.load(player.getUniqueId(), this::onPermanentDataLoaded);
+    }
+
+    private void onPermanentDataLoaded(@Nullable YamlConfiguration savedData) {
+        if(savedData == null || permanentDataChanged) {return;}
+
+        logger.finer("Loaded permanent data for player %s", player.getUniqueId());
+        for(String key : savedData.getKeys(true)) {
+            if(savedData.isConfigurationSection(key)) {continue;}
+            permanentData.set(key, savedData.get(key));
+        }
     }
 
     @Override
@@ -132,27 +146,8 @@ public class PlayerData implements IPlayerData  {
 
     @Override
     public void savePermanentData() {
-
-        File dataFolder = new File(pl.getDataFolder(), "playerData");
-
-        if (!dataFolder.exists()) //noinspection ResultOfMethodCallIgnored
-            dataFolder.mkdirs();
-
-        File permanentDataFile = new File(dataFolder, player.getUniqueId() + ".yml");
-
-        try {
-            if (!permanentDataFile.exists()) //noinspection ResultOfMethodCallIgnored
-                permanentDataFile.createNewFile();
-
-            permanentData.options().copyHeader(true);
-            permanentData.save(permanentDataFile);
-
-        } catch (IOException ex) {
-            logger.severe("Unable to save " + player.getName() + "'s permanent player data! \n" +
-                    ex.getMessage()); //Do nothing, as we cannot save.
-        }
-
-
+        permanentDataChanged = true;
+        playerDataStore.save(player.getUniqueId(), permanentData);
     }
 
     @Override
@@ -167,38 +162,4 @@ public class PlayerData implements IPlayerData  {
     private void setNotViewing(IPortal portal) {
         portalViews.remove(portal).onDeactivate(false);
     }
-
-    private YamlConfiguration loadPermanentDataYml() {
-
-        File dataFolder = new File(pl.getDataFolder(), "playerData");
-
-        if (!dataFolder.exists()) //noinspection ResultOfMethodCallIgnored
-            dataFolder.mkdirs();
-
-        File permanentDataFile = new File(dataFolder, player.getUniqueId() + ".yml");
-
-        try {
-            if (!permanentDataFile.exists()) //noinspection ResultOfMethodCallIgnored
-                permanentDataFile.createNewFile();
-
-            YamlConfiguration permanentDataYml = createDefaultDataFile(permanentDataFile);
-            permanentDataYml.save(permanentDataFile);
-            return permanentDataYml;
-
-        } catch (IOException ex) {
-            logger.severe("Unable to load " + player.getName() + "'s permanent player data! " +
-                    "Default data will be used. \n" + ex.getMessage());
-
-            return createDefaultDataFile(permanentDataFile); //We don't save anything, and this is kept in memory.
-
-        }
-
-    }
-
-    private YamlConfiguration createDefaultDataFile(File permanentDataFile) {
-        YamlConfiguration permanentDataYml = YamlConfiguration.loadConfiguration(permanentDataFile);
-        permanentDataYml.addDefault("seeThroughPortal", true);
-        permanentDataYml.options().copyDefaults(true);
-        return permanentDataYml;
-    }
 }
@@ -22,20 +22,22 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Singleton
 public class PlayerDataManager implements IPlayerDataManager, Listener   {
     private final Logger logger;
     private final IPlayerData.Factory playerDataFactory;
-    private final Map<Player, IPlayerData> players = new HashMap<>();
     private final ProxyConfig proxyConfig;
 
-    private final Map<UUID, TeleportRequest> pendingTeleportOnJoin = new HashMap<>();
-    private final Map<UUID, GetSelectionRequest.ExternalSelectionInfo> pendingSelectionOnJoin = new HashMap<>();
+    // These are modified on the main thread, but can be read by requests from other servers on worker threads
+    private final Map<Player, IPlayerData> players = new ConcurrentHashMap<>();
+    private final Map<UUID, TeleportRequest> pendingTeleportOnJoin = new ConcurrentHashMap<>();
+    private final Map<UUID, GetSelectionRequest.ExternalSelectionInfo> pendingSelectionOnJoin = new ConcurrentHashMap<>();
     /**
      * Used to retain selections throughout logouts.
      */
-    private final Map<UUID, ISelectionManager> loggedOutPlayerSelections = new HashMap<>();
+    private final Map<UUID, ISelectionManager> loggedOutPlayerSelections = new ConcurrentHashMap<>();
 
     @Inject
     public PlayerDataManager(IEventRegistrar eventRegistrar, Logger logger, IPlayerData.Factory playerDataFactory, ProxyConfig proxyConfig) {
@@ -80,15 +82,20 @@ public class PlayerDataManager implements IPlayerDataManager, Listener   {
             players.get(player).getSelection().setExternalSelection(selection);
         }   else    { // If the player is not online yet, add it to this map so that it will be set when they log in
             logger.fine("Setting external selection to pending for player with ID %s", uniqueId);
-            pendingSelectionOnJoin.put(uniqueId, selection);
+            if(selection == null) {
+                pendingSelectionOnJoin.remove(uniqueId);
+            }   else    {
+                pendingSelectionOnJoin.put(uniqueId, selection);
+            }
         }
     }
 
     @Override
     public @Nullable IPortalSelection getDestinationSelectionWhenLoggedOut(UUID uniqueId) {
         Player player = Bukkit.getPlayer(uniqueId);
-        if(player != null) {
-            return players.get(player).getSelection().getDestSelection();
+        IPlayerData playerData = player == null ? null : players.get(player);
+        if(playerData != null) {
+            return playerData.getSelection().getDestSelection();
         }   else    {
             ISelectionManager selection = loggedOutPlayerSelections.get(uniqueId);
             if(selection == null) {
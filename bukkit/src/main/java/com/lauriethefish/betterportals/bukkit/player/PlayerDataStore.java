@@ -0,0 +1,179 @@
+package com.lauriethefish.betterportals.bukkit.player;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.util.RecordLog;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Stores the permanent data of every player as YAML in a {@link RecordLog} at <code>plugins/BetterPortals/data/playerData.dat</code>.
+ * Saved data is kept in memory until the next flush, then written in one batch on the IO thread.
+ * Players without a record are loaded from their old <code>playerData/&lt;uuid&gt;.yml</code> file if it exists, which is then added to the log.
+ */
+@Singleton
+public class PlayerDataStore implements IPlayerDataStore    {
+    // Ticks between writing the queued data
+    private static final int FLUSH_INTERVAL = 100;
+
+    private final JavaPlugin pl;
+    private final Logger logger;
+
+    // The log is only accessed on this thread, which stops when there's nothing to do
+    private final ThreadPoolExecutor ioExecutor;
+    private RecordLog log;
+
+    // Data saved since the last flush
+    private Map<UUID, byte[]> pendingWrites = new HashMap<>();
+    private BukkitTask flushTask;
+
+    @Inject
+    public PlayerDataStore(JavaPlugin pl, Logger logger) {
+        this.pl = pl;
+        this.logger = logger;
+
+        this.ioExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, "BetterPortals player data");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void load(@NotNull UUID playerId, @NotNull Consumer<@Nullable YamlConfiguration> callback) {
+        // Data that hasn't been written yet is newer than what's in the file
+        byte[] pending = pendingWrites.get(playerId);
+        if(pending != null) {
+            callback.accept(parse(playerId, pending));
+            return;
+        }
+
+        ioExecutor.execute(() -> {
+            YamlConfiguration data = null;
+            try {
+                byte[] saved = getLog().getRecords().get(playerId);
+                data = saved == null ? loadLegacy(playerId) : parse(playerId, saved);
+            }   catch(IOException | RuntimeException ex) {
+                logger.warning("Unable to load the permanent data of player %s, default data will be used: %s", playerId, ex.getMessage());
+            }
+
+            YamlConfiguration result = data;
+            if(pl.isEnabled()) {
+                Bukkit.getScheduler().runTask(pl, () -> callback.accept(result));
+            }
+        });
+    }
+
+    @Override
+    public void save(@NotNull UUID playerId, @NotNull YamlConfiguration data) {
+        pendingWrites.put(playerId, data.saveToString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void start() {
+        if(flushTask != null) {
+            flushTask.cancel();
+        }
+        flushTask = Bukkit.getScheduler().runTaskTimer(pl, this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL);
+    }
+
+    private void flush() {
+        if(pendingWrites.isEmpty()) {return;}
+
+        Map<UUID, byte[]> batch = pendingWrites;
+        pendingWrites = new HashMap<>();
+        ioExecutor.execute(() -> {
+            try {
+                logger.finer("Writing the permanent data of %d players", batch.size());
+                getLog().write(batch, Collections.emptyList());
+            }   catch(IOException | RuntimeException ex) {
+                logger.severe("Unable to save the permanent data of %d players: %s", batch.size(), ex.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if(flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        flush();
+
+        try {
+            ioExecutor.submit(() -> {}).get();
+        }   catch(ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }   catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int getPendingCount() {
+        return pendingWrites.size();
+    }
+
+    // Must only be called on the IO thread
+    private RecordLog getLog() throws IOException {
+        if(log != null) {return log;}
+
+        Path path = pl.getDataFolder().toPath().resolve("data").resolve("playerData.dat");
+        RecordLog newLog = new RecordLog(path);
+        try {
+            newLog.load();
+        }   catch(IOException ex) {
+            // Keep the unreadable file, but don't let it stop new data being saved
+            logger.severe("Unable to read the player data file, it will be moved to playerData.dat.broken: %s", ex.getMessage());
+            Files.move(path, path.resolveSibling("playerData.dat.broken"), StandardCopyOption.REPLACE_EXISTING);
+            newLog.load();
+        }
+
+        log = newLog;
+        return log;
+    }
+
+    // Must only be called on the IO thread
+    private @Nullable YamlConfiguration loadLegacy(UUID playerId) throws IOException {
+        Path legacyPath = pl.getDataFolder().toPath().resolve("playerData").resolve(playerId + ".yml");
+        if(!Files.exists(legacyPath)) {return null;}
+
+        byte[] saved = Files.readAllBytes(legacyPath);
+        logger.fine("Migrating the permanent data of player %s from %s", playerId, legacyPath.getFileName());
+        getLog().write(Collections.singletonMap(playerId, saved), Collections.emptyList());
+        return parse(playerId, saved);
+    }
+
+    private @Nullable YamlConfiguration parse(UUID playerId, byte[] saved) {
+        YamlConfiguration data = new YamlConfiguration();
+        try {
+            data.loadFromString(new String(saved, StandardCharsets.UTF_8));
+        }   catch(InvalidConfigurationException ex) {
+            logger.warning("The permanent data of player %s is invalid, default data will be used: %s", playerId, ex.getMessage());
+            return null;
+        }
+        return data;
+    }
+}
@@ -34,6 +34,7 @@ public class PlayerModule extends AbstractModule {
         double blockSendUpdateDistance = Bukkit.getServer().getViewDistance() * 25;
         bind(double.class).annotatedWith(Names.named("blockSendUpdateDistance")).toInstance(blockSendUpdateDistance);
         bind(IPlayerDataManager.class).to(PlayerDataManager.class).asEagerSingleton();
+        bind(IPlayerDataStore.class).to(PlayerDataStore.class);
 
         bind(ISelectionManager.class).to(SelectionManager.class);
         bind(IPortalSelection.class).to(PortalSelection.class);
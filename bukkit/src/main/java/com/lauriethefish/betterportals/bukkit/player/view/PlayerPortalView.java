@@ -43,7 +43,7 @@ public class PlayerPortalView implements IPlayerPortalView  {
         if(previousPosition == null) {return false;} // This condition shouldn't happen unless a player gets near a portal really quickly before going away, but to be on the safe side
         Location currentPosition = player.getLocation();
 
-        logger.finer("Checking deactivation type of portal view, previous pos: %s, current pos: %s", StringUtil.locationToString(previousPosition), StringUtil.locationToString(currentPosition));
+        logger.finer(() -> String.format("Checking deactivation type of portal view, previous pos: %s, current pos: %s", StringUtil.locationToString(previousPosition), StringUtil.locationToString(currentPosition)));
         if(previousPosition.getWorld() != currentPosition.getWorld()) {return false;} // No need to bother if the player has switched worlds
         // Roughly measure whether or not the player moved so far that they're out of render distance
         // This is needed to not send the block reset packets if the player moved a long distance away
@@ -2,58 +2,122 @@ package com.lauriethefish.betterportals.bukkit.player.view.entity;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityInfo;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.entity.faking.IEntityPacketManipulator;
+import com.lauriethefish.betterportals.bukkit.entity.faking.IEntityTracker;
 import com.lauriethefish.betterportals.bukkit.math.PlaneIntersectionChecker;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.ExperienceOrb;
+import org.bukkit.entity.Item;
 import org.bukkit.entity.Player;
 import org.bukkit.metadata.MetadataValue;
+import org.bukkit.util.Vector;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 public class PlayerEntityView implements IPlayerEntityView  {
+    /**
+     * Used for entities that aren't coalesced with other entities in the same cell
+     */
+    private static final long NO_CELL = Long.MIN_VALUE;
+
+    private static final Comparator<ReplicationState> closestFirst = Comparator.comparingDouble(state -> state.distanceSquared);
+
+    /**
+     * Stores the last evaluated state of each entity visible through the portal
+     */
+    private static class ReplicationState {
+        private final Entity entity;
+        private double distanceSquared;
+        private int updateInterval = 1;
+        private int appliedUpdateInterval = 1;
+        private long cell = NO_CELL;
+        private int lastReplicatedTick = -1;
+
+        private ReplicationState(Entity entity) {
+            this.entity = entity;
+        }
+    }
+
     private final Logger logger;
     private final IPortal portal;
     private final Player player;
     private final IEntityPacketManipulator packetManipulator;
     private final EntityTrackingManager trackingManager;
+    private final RenderConfig renderConfig;
     private final Map<Entity, EntityInfo> hiddenEntities = new HashMap<>();
-    private final Set<Entity> replicatedEntities = new HashSet<>();
+    private final Map<Entity, ReplicationState> replicatedEntities = new HashMap<>();
+
+    // Reused between updates to avoid allocating new collections every tick
+    private final Set<Entity> nowHidden = new HashSet<>();
+    private final List<ReplicationState> candidates = new ArrayList<>();
+    private final Set<Long> coalescedCells = new HashSet<>();
+    private final Location scratchLocation = new Location(null, 0.0, 0.0, 0.0);
+    private final Vector scratchPosition = new Vector();
+
+    private int currentTick = 0;
 
     @Inject
-    public PlayerEntityView(@Assisted IPortal portal, @Assisted Player player, IEntityPacketManipulator packetManipulator, Logger logger, EntityTrackingManager trackingManager) {
+    public PlayerEntityView(@Assisted IPortal portal, @Assisted Player player, IEntityPacketManipulator packetManipulator, Logger logger, EntityTrackingManager trackingManager, RenderConfig renderConfig) {
         this.portal = portal;
         this.player = player;
         this.packetManipulator = packetManipulator;
         this.logger = logger;
         this.trackingManager = trackingManager;
+        this.renderConfig = renderConfig;
     }
 
     @Override
     public void update() {
-        updateHiddenEntities();
+        Vector eyePosition = player.getEyeLocation().toVector();
+        PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(eyePosition);
+
+        updateHiddenEntities(eyePosition, intersectionChecker);
         if(!portal.isCrossServer()) {
-            updateReplicatedEntities();
+            updateReplicatedEntities(eyePosition, intersectionChecker);
         }
+        currentTick++;
     }
 
-    private void updateHiddenEntities() {
-        PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(player.getEyeLocation().toVector());
+    /**
+     * Finds if an entity with the given update interval should be re-evaluated this tick.
+     * The entity ID is used to spread out the entities, so that they aren't all evaluated on the same tick.
+     * @param entity The entity to check
+     * @param updateInterval Interval between evaluations of the entity
+     * @return Whether the entity should be evaluated
+     */
+    private boolean isDueForUpdate(Entity entity, int updateInterval) {
+        return updateInterval <= 1 || (currentTick + entity.getEntityId()) % updateInterval == 0;
+    }
 
-        Set<Entity> nowHidden = new HashSet<>();
+    private void updateHiddenEntities(Vector eyePosition, PlaneIntersectionChecker intersectionChecker) {
+        nowHidden.clear();
 
         for(Entity entity : portal.getEntityList().getOriginEntities()) {
             if(entity == player) {continue;}
 
+            entity.getLocation(scratchLocation);
+            scratchPosition.setX(scratchLocation.getX());
+            scratchPosition.setY(scratchLocation.getY());
+            scratchPosition.setZ(scratchLocation.getZ());
+
+            // Distant entities that are already hidden are only checked on their update interval, since showing them a few ticks late isn't noticeable
+            // Entities that aren't hidden are always checked, otherwise they would appear in front of the portal
+            if(hiddenEntities.containsKey(entity)) {
+                int updateInterval = renderConfig.getEntityUpdateInterval(scratchPosition.distanceSquared(eyePosition));
+                if(!isDueForUpdate(entity, updateInterval)) {
+                    nowHidden.add(entity);
+                    continue;
+                }
+            }
+
             // If the line from the player's position to the entity intersects the portal, then hide it since it'll spoil the effect by appearing in front of the blocks
-            boolean shouldBeHidden = intersectionChecker.checkIfIntersects(entity.getLocation().toVector());
+            boolean shouldBeHidden = intersectionChecker.checkIfIntersects(scratchPosition);
             if(!shouldBeHidden) {continue;}
 
             nowHidden.add(entity);
@@ -61,6 +125,7 @@ public class PlayerEntityView implements IPlayerEntityView  {
                 hide(entity);
             }
         }
+        scratchLocation.setWorld(null);
 
         hiddenEntities.entrySet().removeIf(entry -> {
             boolean isHidden = nowHidden.contains(entry.getKey());
@@ -72,40 +137,109 @@ public class PlayerEntityView implements IPlayerEntityView  {
         });
     }
 
-    private void updateReplicatedEntities() {
-        PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(player.getEyeLocation().toVector());
-
-        // Start tracking newly replicated entities
-        Set<Entity> nowReplicated = new HashSet<>();
+    private void updateReplicatedEntities(Vector eyePosition, PlaneIntersectionChecker intersectionChecker) {
+        candidates.clear();
         for(Entity entity : portal.getEntityList().getDestinationEntities()) {
+            // Entities that are already replicated are only re-evaluated on their update interval
+            ReplicationState state = replicatedEntities.get(entity);
+            if(state != null && !isDueForUpdate(entity, state.updateInterval)) {
+                candidates.add(state);
+                continue;
+            }
+
             if(isVanished(entity)) {
                 continue;
             }
 
-            Location originPos = portal.getTransformations().moveToOrigin(entity.getLocation());
+            entity.getLocation(scratchLocation);
+            scratchPosition.setX(scratchLocation.getX());
+            scratchPosition.setY(scratchLocation.getY());
+            scratchPosition.setZ(scratchLocation.getZ());
+            Vector originPos = portal.getTransformations().moveToOrigin(scratchPosition);
 
-            boolean shouldBeReplicated = intersectionChecker.checkIfIntersects(originPos.toVector());
+            boolean shouldBeReplicated = intersectionChecker.checkIfIntersects(originPos);
             if(!shouldBeReplicated) {continue;}
-            nowReplicated.add(entity);
+
+            if(state == null) {
+                state = new ReplicationState(entity);
+            }
+            state.distanceSquared = originPos.distanceSquared(eyePosition);
+            state.updateInterval = renderConfig.getEntityUpdateInterval(state.distanceSquared);
+            state.cell = isCoalesced(entity) ? getCell(originPos) : NO_CELL;
+            candidates.add(state);
+        }
+        scratchLocation.setWorld(null);
+
+        // Only sort if we're over budget, since otherwise every candidate gets replicated anyway
+        int maxReplicated = renderConfig.getMaxReplicatedEntities();
+        if(candidates.size() > maxReplicated) {
+            candidates.sort(closestFirst);
+        }
+
+        coalescedCells.clear();
+        int replicatedCount = 0;
+        for(ReplicationState state : candidates) {
+            if(replicatedCount >= maxReplicated) {break;}
+
+            // Only one item or experience orb is shown in each cell, since farms can produce hundreds of them in one place
+            if(state.cell != NO_CELL && !coalescedCells.add(state.cell)) {continue;}
+
+            replicatedCount++;
+            state.lastReplicatedTick = currentTick;
 
             // Only set it to be tracking if it wasn't previously
-            if(!replicatedEntities.contains(entity)) {
-                replicatedEntities.add(entity);
-                trackingManager.setTracking(entity, portal, player);
+            if(!replicatedEntities.containsKey(state.entity)) {
+                replicatedEntities.put(state.entity, state);
+                trackingManager.setTracking(state.entity, portal, player);
+                state.appliedUpdateInterval = 1;
+            }
+
+            if(state.appliedUpdateInterval != state.updateInterval) {
+                IEntityTracker tracker = trackingManager.getTracker(portal, state.entity);
+                if(tracker != null) {
+                    tracker.setUpdateInterval(player, state.updateInterval);
+                }
+                state.appliedUpdateInterval = state.updateInterval;
             }
         }
 
-        // Stop tracking entities that are no longer visible through the portal
-        replicatedEntities.removeIf(entity -> {
-            boolean isReplicated = nowReplicated.contains(entity);
+        if(replicatedCount < candidates.size()) {
+            logger.finest("Skipped replicating %d entities due to the replication budget or coalescing", candidates.size() - replicatedCount);
+        }
+
+        // Stop tracking entities that are no longer visible through the portal, or that are no longer within the budget
+        replicatedEntities.values().removeIf(state -> {
+            boolean isReplicated = state.lastReplicatedTick == currentTick;
 
             if(!isReplicated) {
-                trackingManager.setNoLongerTracking(entity, portal, player, true);
+                trackingManager.setNoLongerTracking(state.entity, portal, player, true);
             }
             return !isReplicated;
         });
     }
 
+    /**
+     * @param entity The entity to check
+     * @return Whether <code>entity</code> should only be shown once for each cell
+     */
+    private boolean isCoalesced(Entity entity) {
+        return renderConfig.getItemCoalesceDistance() > 0.0 && (entity instanceof Item || entity instanceof ExperienceOrb);
+    }
+
+    /**
+     * Packs the coalescing cell that <code>position</code> is in into a long. X and Z get 22 bits each, Y gets 20 bits.
+     * @param position The position to find the cell of
+     * @return The packed cell coordinates
+     */
+    private long getCell(Vector position) {
+        double cellSize = renderConfig.getItemCoalesceDistance();
+        long x = (long) Math.floor(position.getX() / cellSize);
+        long y = (long) Math.floor(position.getY() / cellSize);
+        long z = (long) Math.floor(position.getZ() / cellSize);
+
+        return ((x & 0x3FFFFFL) << 42) | ((z & 0x3FFFFFL) << 20) | (y & 0xFFFFFL);
+    }
+
     /**
      * Finds if the given entity is currently vanished
      * @param entity The entity to check if vanished
@@ -135,6 +269,6 @@ public class PlayerEntityView implements IPlayerEntityView  {
         if(shouldResetEntities) {
             hiddenEntities.forEach((entity, entityInfo) -> packetManipulator.showEntity(entityInfo, player));
         }
-        replicatedEntities.forEach(entity -> trackingManager.setNoLongerTracking(entity, portal, player, shouldResetEntities));
+        replicatedEntities.keySet().forEach(entity -> trackingManager.setNoLongerTracking(entity, portal, player, shouldResetEntities));
     }
 }
@@ -43,6 +43,7 @@ public interface IPortal extends BetterPortal {
     void onViewDeactivate();
 
     /**
+     * The transformations, block map and entity lists are created when first used.
      * @return Transformations for moving positions relative to this portal.
      */
     @NotNull PortalTransformations getTransformations();
@@ -57,6 +58,24 @@ public interface IPortal extends BetterPortal {
      */
     @NotNull IPortalEntityManager getEntityList();
 
+    /**
+     * Releases the transformations, block map and entity lists of this portal, which are created again when next used.
+     * Called once the portal has been inactive for the configured idle time.
+     */
+    void releaseResources();
+
+    /**
+     * @return Whether the transformations, block map or entity lists of this portal are currently created
+     */
+    boolean hasResources();
+
+    /**
+     * Estimates the heap used by the resources of this portal, without creating them.
+     * Only the block map is counted, since the transformations and entity lists are far smaller.
+     * @return The estimated size in bytes, or 0 if the portal has no block map
+     */
+    long estimateResourceMemoryUsage();
+
     /**
      * Gets the end of the permissions for this portal.
      * e.g. <code>nether.world_nether</code> or <code>custom.myPortal</code>
@@ -18,5 +18,11 @@ public interface IPortalActivityManager {
      */
     void postUpdate();
 
+    /**
+     * @param portal The portal to check
+     * @return Whether the portal is currently active
+     */
+    boolean isActive(IPortal portal);
+
     void resetActivity();
 }
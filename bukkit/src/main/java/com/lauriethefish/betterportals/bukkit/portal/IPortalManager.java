@@ -1,6 +1,7 @@
 package com.lauriethefish.betterportals.bukkit.portal;
 
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -15,6 +16,7 @@ import java.util.function.Predicate;
  */
 public interface IPortalManager {
     /**
+     * Any portals still being loaded after startup are registered first, so this should be avoided on hot paths.
      * @return Every registered custom or nether portal
      */
     Collection<IPortal> getAllPortals();
@@ -80,6 +82,15 @@ public interface IPortalManager {
         return findClosestPortal(position, Double.POSITIVE_INFINITY);
     }
 
+    /**
+     * Finds the portals near <code>position</code> without checking every registered portal.
+     * This may include portals up to one 512 block region further away than <code>radius</code>, so callers should check the distance themselves if it matters.
+     * @param position The position to look for portals around
+     * @param radius Distance from the position on the X and Z axes
+     * @return The portals found, may be empty.
+     */
+    @NotNull Collection<IPortal> findPortalsWithin(@NotNull Location position, double radius);
+
     /**
      * Tests the portals against the {@link com.lauriethefish.betterportals.bukkit.portal.predicate.PortalPredicateManager} to find which ones are activatable by this player.
      * @param player The player to test
@@ -93,6 +104,19 @@ public interface IPortalManager {
      */
     void registerPortal(@NotNull IPortal portal);
 
+    /**
+     * Registers a portal that was loaded from storage. Unlike {@link IPortalManager#registerPortal(IPortal)}, it isn't saved again.
+     * @param portal The portal to be registered
+     */
+    void loadPortal(@NotNull IPortal portal);
+
+    /**
+     * Unregisters all portals with their origin in <code>world</code>, since it is being unloaded. They are not removed from storage.
+     * @param world The world being unloaded
+     * @return The unregistered portals
+     */
+    @NotNull Collection<IPortal> unloadPortalsIn(@NotNull World world);
+
     /**
      * Removes all portals at <code>originLoc</code>.
      * @param originLoc The location to remove portals at
@@ -0,0 +1,27 @@
+package com.lauriethefish.betterportals.bukkit.portal;
+
+/**
+ * Predicts which portals players are about to reach from their velocity, and loads the destination chunks and block map of these portals in advance.
+ * This means that fast moving players, e.g. flying with an elytra or riding a minecart, don't reach a portal before its destination is ready.
+ */
+public interface IPortalPrefetcher {
+    /**
+     * Updates the predicted portals for each player, and starts/stops prefetching portals. Called every tick, after the portals have been activated.
+     */
+    void update();
+
+    /**
+     * @return The number of portals currently being prefetched
+     */
+    int getPrefetchCount();
+
+    /**
+     * @return The number of prefetched portals that were activated before the prefetch ended
+     */
+    int getHits();
+
+    /**
+     * @return The number of prefetched portals that weren't activated before the prefetch ended
+     */
+    int getMisses();
+}
@@ -0,0 +1,103 @@
+package com.lauriethefish.betterportals.bukkit.portal;
+
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.portal.storage.PortalRecord;
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Portals that have been loaded from storage, but not yet registered, since they are registered over several ticks after startup.
+ * They are grouped by region in a {@link RegionIndex}, so that the {@link PortalManager} can register the portals near a position before looking it up, and indexed by ID for lookups by ID.
+ * Must only be used from the main thread.
+ */
+@Singleton
+public class PendingPortals {
+    private final RegionIndex<PortalRecord> regions = new RegionIndex<>();
+    private final Map<UUID, PortalRecord> portalsById = new HashMap<>();
+
+    /**
+     * Adds a portal to be registered.
+     * @param world The world that the origin of the portal is in
+     * @param record The portal to register
+     */
+    public void add(@NotNull World world, @NotNull PortalRecord record) {
+        Vector origin = record.getOriginPos().getVector();
+        regions.add(world, origin.getBlockX(), origin.getBlockZ(), record);
+        portalsById.put(record.getId(), record);
+    }
+
+    /**
+     * Removes the portal with ID <code>id</code>, if it is pending.
+     * @param id ID of the portal
+     * @return The removed portal, or null if there is no pending portal with this ID
+     */
+    public @Nullable PortalRecord take(@NotNull UUID id) {
+        PortalRecord record = portalsById.remove(id);
+        if(record == null) {return null;}
+
+        Vector origin = record.getOriginPos().getVector();
+        regions.remove(origin.getBlockX(), origin.getBlockZ(), record);
+        return record;
+    }
+
+    /**
+     * Removes the portals in every region that is at least partly within <code>radius</code> blocks on the X and Z axes.
+     * @param world World to find portals in
+     * @param radius Distance from the position. If this is infinite, all portals in the world are removed
+     * @return The removed portals
+     */
+    public @NotNull List<PortalRecord> takeWithin(@NotNull World world, double x, double z, double radius) {
+        return removeFromIndex(regions.takeWithin(world, x, z, radius));
+    }
+
+    /**
+     * Removes all portals with their origin in <code>world</code>.
+     * @param world World to remove the portals of
+     * @return The removed portals
+     */
+    public @NotNull List<PortalRecord> takeWorld(@NotNull World world) {
+        return removeFromIndex(regions.takeWorld(world));
+    }
+
+    /**
+     * Removes up to <code>maxCount</code> portals, in any order.
+     * @param maxCount Maximum number of portals to remove
+     * @return The removed portals
+     */
+    public @NotNull List<PortalRecord> takeBatch(int maxCount) {
+        return removeFromIndex(regions.takeBatch(maxCount));
+    }
+
+    private List<PortalRecord> removeFromIndex(List<PortalRecord> removed) {
+        for(PortalRecord record : removed) {
+            portalsById.remove(record.getId());
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all portals without registering them.
+     */
+    public void clear() {
+        regions.clear();
+        portalsById.clear();
+    }
+
+    /**
+     * @return The number of portals waiting to be registered
+     */
+    public int size() {
+        return portalsById.size();
+    }
+
+    public boolean isEmpty() {
+        return portalsById.isEmpty();
+    }
+}
@@ -5,10 +5,12 @@ import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.PortalPosition;
 import com.lauriethefish.betterportals.bukkit.block.IBlockMap;
 import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.PortalChunkLoader;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
 import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
 import com.lauriethefish.betterportals.bukkit.entity.IPortalEntityManager;
 import com.lauriethefish.betterportals.bukkit.math.PortalTransformations;
 import com.lauriethefish.betterportals.bukkit.math.PortalTransformationsFactory;
+import com.lauriethefish.betterportals.bukkit.portal.storage.PortalChangeTracker;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import lombok.Getter;
@@ -18,7 +20,9 @@ import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -28,6 +32,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
     @Getter private String name;
 
     private final IPortalManager portalManager;
+    private final PortalChangeTracker changeTracker;
     private final Logger logger;
 
     @Getter private final PortalPosition originPos;
@@ -37,23 +42,32 @@ public class Portal implements IPortal, ConfigurationSerializable {
     @Getter private final boolean isCustom;
     private boolean allowNonPlayerTeleportation;
 
-    @Getter private final PortalTransformations transformations;
-    @Getter private final IBlockMap viewableBlocks;
+    // These use a lot more memory than the rest of the portal, so they're only created when the portal is used, and released once it's idle
+    private final IPortalEntityManager.Factory entityListFactory;
+    private final IBlockMap.Factory viewableBlockArrayFactory;
+    private final PortalTransformationsFactory transformationsFactory;
+    private final boolean entitySupportEnabled;
+
+    private volatile PortalTransformations transformations;
+    private volatile IBlockMap viewableBlocks;
+    private volatile IPortalEntityManager entityList;
 
-    @Getter private final IPortalEntityManager entityList;
     private final PortalChunkLoader chunkLoader;
+    // Chunks given tickets when this portal was activated
+    private List<ChunkPosition> loadedChunks = Collections.emptyList();
 
     private int ticksSinceActivated = -1;
     private int ticksSinceViewActivated = -1;
 
     @Inject
-    public Portal(IPortalManager portalManager, IPortalEntityManager.Factory entityListFactory, IBlockMap.Factory viewableBlockArrayFactory,
+    public Portal(IPortalManager portalManager, PortalChangeTracker changeTracker, IPortalEntityManager.Factory entityListFactory, IBlockMap.Factory viewableBlockArrayFactory,
                   PortalChunkLoader chunkLoader, MiscConfig miscConfig,
                   Logger logger, PortalTransformationsFactory transformationsFactory,
                   @Assisted("originPos") PortalPosition originPos, @Assisted("destPos") PortalPosition destPos,
                   @Assisted Vector size, @Assisted("isCustom") boolean isCustom,
                   @Assisted("id") UUID id, @Nullable @Assisted("ownerId") UUID ownerId, @Nullable @Assisted("name") String name, @Assisted("allowNonPlayerTeleportation") boolean allowNonPlayerTeleportation) {
         this.portalManager = portalManager;
+        this.changeTracker = changeTracker;
         this.logger = logger;
         this.originPos = originPos;
         this.destPos = destPos;
@@ -62,14 +76,78 @@ public class Portal implements IPortal, ConfigurationSerializable {
         this.isCustom = isCustom;
         this.allowNonPlayerTeleportation = allowNonPlayerTeleportation;
         // We do not need to get the destination entities if viewing entities through portals is disabled, or if entity support is disabled
-        this.entityList = entityListFactory.create(this, !isCrossServer && miscConfig.isEntitySupportEnabled());
+        this.entitySupportEnabled = !isCrossServer && miscConfig.isEntitySupportEnabled();
+        this.entityListFactory = entityListFactory;
+        this.viewableBlockArrayFactory = viewableBlockArrayFactory;
+        this.transformationsFactory = transformationsFactory;
         this.chunkLoader = chunkLoader;
         this.id = id;
         this.ownerId = ownerId;
         this.name = name;
+    }
+
+    // The components can be used from the view update threads, so they're created while synchronized to avoid creating them twice
+    @Override
+    public @NotNull PortalTransformations getTransformations() {
+        PortalTransformations result = transformations;
+        if(result != null) {return result;}
+
+        synchronized(this) {
+            if(transformations == null) {
+                transformations = transformationsFactory.create(this);
+            }
+            return transformations;
+        }
+    }
+
+    @Override
+    public @NotNull IBlockMap getViewableBlocks() {
+        IBlockMap result = viewableBlocks;
+        if(result != null) {return result;}
+
+        synchronized(this) {
+            if(viewableBlocks == null) {
+                viewableBlocks = viewableBlockArrayFactory.create(this);
+            }
+            return viewableBlocks;
+        }
+    }
+
+    @Override
+    public @NotNull IPortalEntityManager getEntityList() {
+        IPortalEntityManager result = entityList;
+        if(result != null) {return result;}
+
+        synchronized(this) {
+            if(entityList == null) {
+                entityList = entityListFactory.create(this, entitySupportEnabled);
+            }
+            return entityList;
+        }
+    }
+
+    @Override
+    public synchronized void releaseResources() {
+        if(!hasResources()) {return;}
 
-        this.transformations = transformationsFactory.create(this);
-        this.viewableBlocks = viewableBlockArrayFactory.create(this);
+        logger.finer("Releasing the resources of idle portal %s", id);
+        if(viewableBlocks != null) {
+            viewableBlocks.reset();
+        }
+        viewableBlocks = null;
+        entityList = null;
+        transformations = null;
+    }
+
+    @Override
+    public boolean hasResources() {
+        return transformations != null || viewableBlocks != null || entityList != null;
+    }
+
+    @Override
+    public long estimateResourceMemoryUsage() {
+        IBlockMap blockMap = viewableBlocks;
+        return blockMap == null ? 0 : blockMap.estimateMemoryUsage();
     }
 
     @Override
@@ -78,14 +156,14 @@ public class Portal implements IPortal, ConfigurationSerializable {
         if(!isStillValid()) {
             remove(true);
         }
-        entityList.update(ticksSinceActivated);
+        getEntityList().update(ticksSinceActivated);
 
         ticksSinceActivated++;
     }
 
     @Override
     public void onViewUpdate() {
-        viewableBlocks.update(ticksSinceViewActivated);
+        getViewableBlocks().update(ticksSinceViewActivated);
 
         ticksSinceViewActivated++;
     }
@@ -93,15 +171,20 @@ public class Portal implements IPortal, ConfigurationSerializable {
     @Override
     public void onActivate() {
         logger.finer("Portal was activated");
-        chunkLoader.forceloadPortalChunks(destPos);
+        loadedChunks = chunkLoader.forceloadPortalChunks(destPos);
         ticksSinceActivated = 0;
     }
 
     @Override
     public void onDeactivate() {
         logger.finer("Portal was deactivated");
-        chunkLoader.unforceloadPortalChunks(destPos);
-        viewableBlocks.reset();
+        chunkLoader.unforceloadPortalChunks(loadedChunks);
+        loadedChunks = Collections.emptyList();
+        // The block map is kept until the portal is idle, but the blocks in it would be out of date
+        IBlockMap blockMap = viewableBlocks;
+        if(blockMap != null) {
+            blockMap.reset();
+        }
         ticksSinceActivated = -1;
     }
 
@@ -153,6 +236,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
         if(isNetherPortal()) throw new IllegalStateException("Cannot set name of nether portal");
 
         name = newName;
+        changeTracker.onPortalChanged(this);
     }
 
     @Override
@@ -163,6 +247,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
     @Override
     public void setAllowsNonPlayerTeleportation(boolean allow) {
         allowNonPlayerTeleportation = allow;
+        changeTracker.onPortalChanged(this);
     }
 
     private boolean isStillValid() {
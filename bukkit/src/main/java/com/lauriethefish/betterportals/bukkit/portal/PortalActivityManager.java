@@ -2,14 +2,19 @@ package com.lauriethefish.betterportals.bukkit.portal;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 @Singleton
 public class PortalActivityManager implements IPortalActivityManager    {
     private final Logger logger;
+    private final MiscConfig miscConfig;
 
     private final Set<IPortal> activePortals = new HashSet<>();
     private final Set<IPortal> activePortalsYetToUpdate = new HashSet<>();
@@ -17,9 +22,14 @@ public class PortalActivityManager implements IPortalActivityManager    {
     private final Set<IPortal> viewedPortals = new HashSet<>();
     private final Set<IPortal> viewActivePortalsYetToUpdate = new HashSet<>();
 
+    // The tick that each portal was deactivated on, so that its resources can be released once it's idle
+    private final Map<IPortal, Integer> deactivatedPortals = new HashMap<>();
+    private int currentTick;
+
     @Inject
-    public PortalActivityManager(Logger logger) {
+    public PortalActivityManager(Logger logger, MiscConfig miscConfig) {
         this.logger = logger;
+        this.miscConfig = miscConfig;
     }
 
     @Override
@@ -27,6 +37,7 @@ public class PortalActivityManager implements IPortalActivityManager    {
         // If the portal is being activated and has not yet been added to the active list, activate it
         if(!activePortals.contains(portal)) {
             portal.onActivate();
+            deactivatedPortals.remove(portal);
             activePortals.add(portal);
             activePortalsYetToUpdate.add(portal);
         }
@@ -67,11 +78,31 @@ public class PortalActivityManager implements IPortalActivityManager    {
         for(IPortal portal : activePortalsYetToUpdate) {
             activePortals.remove(portal);
             portal.onDeactivate();
+            deactivatedPortals.put(portal, currentTick);
         }
 
         // Prepare the portals yet to update for the next tick
         activePortalsYetToUpdate.clear();
         activePortalsYetToUpdate.addAll(activePortals);
+
+        releaseIdlePortals();
+        currentTick++;
+    }
+
+    private void releaseIdlePortals() {
+        Iterator<Map.Entry<IPortal, Integer>> iterator = deactivatedPortals.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<IPortal, Integer> entry = iterator.next();
+            if(currentTick - entry.getValue() < miscConfig.getPortalIdleTime()) {continue;}
+
+            entry.getKey().releaseResources();
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public boolean isActive(IPortal portal) {
+        return activePortals.contains(portal);
     }
 
     @Override
@@ -81,6 +112,7 @@ public class PortalActivityManager implements IPortalActivityManager    {
             if(viewedPortals.contains(portal)) {
                 portal.onViewDeactivate();
             }
+            deactivatedPortals.put(portal, currentTick);
         }
 
         activePortals.clear();
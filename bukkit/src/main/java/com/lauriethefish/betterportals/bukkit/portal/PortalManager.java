@@ -3,9 +3,12 @@ package com.lauriethefish.betterportals.bukkit.portal;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.bukkit.portal.predicate.IPortalPredicateManager;
+import com.lauriethefish.betterportals.bukkit.portal.storage.PortalChangeTracker;
+import com.lauriethefish.betterportals.bukkit.portal.storage.PortalRecord;
 import com.lauriethefish.betterportals.bukkit.util.StringUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -15,39 +18,83 @@ import java.util.function.Predicate;
 
 @Singleton
 public class PortalManager implements IPortalManager    {
+    // Portals being loaded are registered this far around players, so that any they could activate or prefetch are registered first
+    private static final double PLAYER_LOAD_DISTANCE = 256.0;
+
     private final Logger logger;
     private final IPortalPredicateManager predicateManager;
     private final IPortalActivityManager portalActivityManager;
+    private final PortalChangeTracker changeTracker;
+    private final PendingPortals pendingPortals;
+    private final IPortal.Factory portalFactory;
 
     // Multiple portals can have the same origin position
     private final Map<Location, Set<IPortal>> portals = new HashMap<>();
     private final Map<UUID, IPortal> portalsById = new HashMap<>();
+    private final RegionIndex<IPortal> portalsByRegion = new RegionIndex<>();
 
     @Inject
-    public PortalManager(Logger logger, IPortalPredicateManager predicateManager, IPortalActivityManager portalActivityManager) {
+    public PortalManager(Logger logger, IPortalPredicateManager predicateManager, IPortalActivityManager portalActivityManager, PortalChangeTracker changeTracker,
+                         PendingPortals pendingPortals, IPortal.Factory portalFactory) {
         this.logger = logger;
         this.predicateManager = predicateManager;
         this.portalActivityManager = portalActivityManager;
+        this.changeTracker = changeTracker;
+        this.pendingPortals = pendingPortals;
+        this.portalFactory = portalFactory;
+    }
+
+    // Registers the portals still being loaded near a position, so that lookups don't miss them
+    private void loadPendingWithin(Location position, double radius) {
+        if(pendingPortals.isEmpty() || position.getWorld() == null) {return;}
+
+        for(PortalRecord record : pendingPortals.takeWithin(position.getWorld(), position.getX(), position.getZ(), radius)) {
+            addPortal(record.createPortal(portalFactory));
+        }
+    }
+
+    // Registers the portal with this ID if it is still being loaded
+    private void loadPendingById(@Nullable UUID id) {
+        if(pendingPortals.isEmpty() || id == null) {return;}
+
+        PortalRecord record = pendingPortals.take(id);
+        if(record != null) {
+            addPortal(record.createPortal(portalFactory));
+        }
+    }
+
+    // Registers every portal still being loaded, for callers that need all of them
+    private void loadAllPending() {
+        while(!pendingPortals.isEmpty()) {
+            for(PortalRecord record : pendingPortals.takeBatch(pendingPortals.size())) {
+                addPortal(record.createPortal(portalFactory));
+            }
+        }
     }
 
     @Override
     public Collection<IPortal> getAllPortals() {
+        loadAllPending();
         return portalsById.values();
     }
 
     @Override
     public Collection<IPortal> getPortalsAt(Location originLoc) {
+        loadPendingWithin(originLoc, 0.0);
         Set<IPortal> portalsAtLoc = portals.get(originLoc);
         return portalsAtLoc == null ? Collections.emptyList() : portalsAtLoc;
     }
 
     @Override
     public IPortal getPortalById(@Nullable UUID id) {
+        loadPendingById(id);
         return portalsById.get(id);
     }
 
     @Override
     public IPortal findClosestPortal(@NotNull Location position, double maximumDistance, Predicate<IPortal> predicate) {
+        loadPendingWithin(position, maximumDistance);
+
         IPortal currentClosest = null;
         double currentClosestDistance = maximumDistance;
         for(Map.Entry<Location, Set<IPortal>> entry : portals.entrySet()) {
@@ -72,8 +119,15 @@ public class PortalManager implements IPortalManager    {
         return currentClosest;
     }
 
+    @Override
+    public @NotNull Collection<IPortal> findPortalsWithin(@NotNull Location position, double radius) {
+        loadPendingWithin(position, radius);
+        return portalsByRegion.getWithin(position.getWorld(), position.getX(), position.getZ(), radius);
+    }
+
     @Override
     public @NotNull Collection<IPortal> findActivatablePortals(@NotNull Player player) {
+        loadPendingWithin(player.getLocation(), PLAYER_LOAD_DISTANCE);
         List<IPortal> result = new ArrayList<>();
 
         for(Set<IPortal> portalSet : portals.values()) {
@@ -90,6 +144,16 @@ public class PortalManager implements IPortalManager    {
 
     @Override
     public void registerPortal(@NotNull IPortal portal) {
+        addPortal(portal);
+        changeTracker.onPortalChanged(portal);
+    }
+
+    @Override
+    public void loadPortal(@NotNull IPortal portal) {
+        addPortal(portal);
+    }
+
+    private void addPortal(IPortal portal) {
         logger.fine("Registering portal with origin position %s", portal.getOriginPos());
 
         // Add a new portal array if one doesn't already exist for this location
@@ -100,16 +164,53 @@ public class PortalManager implements IPortalManager    {
         portalsById.put(portal.getId(), portal);
 
         portals.get(originLoc).add(portal);
+        portalsByRegion.add(originLoc.getWorld(), originLoc.getBlockX(), originLoc.getBlockZ(), portal);
+    }
+
+    private void removeFromRegion(IPortal portal, Location originLoc) {
+        portalsByRegion.remove(originLoc.getWorld(), originLoc.getBlockX(), originLoc.getBlockZ(), portal);
+    }
+
+    @Override
+    public @NotNull Collection<IPortal> unloadPortalsIn(@NotNull World world) {
+        List<IPortal> unloaded = new ArrayList<>();
+        for(IPortal portal : portalsById.values()) {
+            if(portal.getOriginPos().getWorld() == world) {
+                unloaded.add(portal);
+            }
+        }
+
+        // The portals aren't passed to the change tracker, since they should stay in storage
+        for(IPortal portal : unloaded) {
+            portalsById.remove(portal.getId());
+
+            Location originLoc = portal.getOriginPos().getLocation();
+            removeFromRegion(portal, originLoc);
+            Set<IPortal> portalsAtLoc = portals.get(originLoc);
+            if(portalsAtLoc == null) {continue;}
+
+            portalsAtLoc.remove(portal);
+            if(portalsAtLoc.size() == 0) {
+                portals.remove(originLoc);
+            }
+        }
+
+        logger.fine("Unloaded %d portal(s) in world %s", unloaded.size(), world.getName());
+        return unloaded;
     }
 
     @Override
     public int removePortalsAt(@NotNull Location originLoc) {
+        // Otherwise, a pending portal here would be registered later on and stay in storage
+        loadPendingWithin(originLoc, 0.0);
         Set<IPortal> portalsRemoved = portals.remove(originLoc);
         if(portalsRemoved == null) {return 0;}
 
         // Make sure to also remove them from the ID map
         for(IPortal portal : portalsRemoved) {
             portalsById.remove(portal.getId());
+            removeFromRegion(portal, originLoc);
+            changeTracker.onPortalRemoved(portal);
         }
 
         logger.fine("Unregistering %d portal(s) at position %s", portalsRemoved.size(), StringUtil.locationToString(originLoc));
@@ -120,20 +221,24 @@ public class PortalManager implements IPortalManager    {
     public boolean removePortal(@NotNull IPortal portal) {
         logger.fine("Unregistering portal at position %s", StringUtil.locationToString(portal.getOriginPos().getLocation()));
 
-        Set<IPortal> portalsAtLoc = portals.get(portal.getOriginPos().getLocation());
+        Location originLoc = portal.getOriginPos().getLocation();
+        Set<IPortal> portalsAtLoc = portals.get(originLoc);
         if(portalsAtLoc == null) {return false;}
 
         boolean wasRemoved = portalsAtLoc.remove(portal);
         // Remove the portal array if there are no longer any portals at this location
         if(portalsAtLoc.size() == 0) {
-            portals.remove(portal.getOriginPos().getLocation());
+            portals.remove(originLoc);
         }
         portalsById.remove(portal.getId());
+        removeFromRegion(portal, originLoc);
+        changeTracker.onPortalRemoved(portal);
         return wasRemoved;
     }
 
     @Override
     public boolean removePortalById(@NotNull UUID id) {
+        loadPendingById(id);
         IPortal removed = portalsById.remove(id);
         if(removed == null) {return false;}
         removePortal(removed); // Also remove it in the location map
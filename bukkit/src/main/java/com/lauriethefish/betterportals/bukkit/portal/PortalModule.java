@@ -9,10 +9,12 @@ import com.lauriethefish.betterportals.bukkit.portal.blend.DimensionBlendManager
 import com.lauriethefish.betterportals.bukkit.portal.blend.IDimensionBlendManager;
 import com.lauriethefish.betterportals.bukkit.portal.predicate.IPortalPredicateManager;
 import com.lauriethefish.betterportals.bukkit.portal.predicate.PortalPredicateManager;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.IObsidianIndex;
 import com.lauriethefish.betterportals.bukkit.portal.spawning.IPortalSpawner;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.ObsidianIndex;
 import com.lauriethefish.betterportals.bukkit.portal.spawning.PortalSpawner;
+import com.lauriethefish.betterportals.bukkit.portal.storage.BinaryPortalStorage;
 import com.lauriethefish.betterportals.bukkit.portal.storage.IPortalStorage;
-import com.lauriethefish.betterportals.bukkit.portal.storage.YamlPortalStorage;
 
 public class PortalModule extends AbstractModule {
     @Override
@@ -28,12 +30,14 @@ public class PortalModule extends AbstractModule {
         install(new FactoryModuleBuilder().build(PortalTransformationsFactory.class));
 
         bind(IPortalPredicateManager.class).to(PortalPredicateManager.class);
-        bind(IPortalStorage.class).to(YamlPortalStorage.class);
+        bind(IPortalStorage.class).to(BinaryPortalStorage.class);
 
         bind(IPortalManager.class).to(PortalManager.class);
         bind(IPortalActivityManager.class).to(PortalActivityManager.class);
+        bind(IPortalPrefetcher.class).to(PortalPrefetcher.class);
 
         bind(IPortalSpawner.class).to(PortalSpawner.class);
+        bind(IObsidianIndex.class).to(ObsidianIndex.class);
         bind(IDimensionBlendManager.class).to(DimensionBlendManager.class);
 
 
@@ -0,0 +1,221 @@
+package com.lauriethefish.betterportals.bukkit.portal;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.PortalChunkLoader;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
+import com.lauriethefish.betterportals.bukkit.player.IPlayerData;
+import com.lauriethefish.betterportals.bukkit.player.IPlayerDataManager;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import lombok.Getter;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+@Singleton
+public class PortalPrefetcher implements IPortalPrefetcher {
+    /**
+     * Number of ticks that a prefetch is kept for after the portal was last predicted.
+     */
+    private static final int PREFETCH_TIMEOUT = 40;
+
+    /**
+     * Players moving further than this in one tick were teleported, so their velocity isn't updated from it.
+     */
+    private static final double MAX_MOVE_PER_TICK = 10.0;
+
+    /**
+     * Weight of the latest movement when smoothing player velocity, so that one tick of movement doesn't start a prefetch.
+     */
+    private static final double VELOCITY_SMOOTHING = 0.5;
+
+    /**
+     * Building a block map flood-fills the destination on the main thread, so only this many prefetched block maps are built each tick.
+     */
+    private static final int MAX_BLOCK_MAP_BUILDS_PER_TICK = 1;
+
+    private static class PlayerMovement {
+        private World world;
+        private Vector lastPosition;
+        private final Vector velocity = new Vector();
+    }
+
+    private static class Prefetch {
+        private final IPortal portal;
+        private List<ChunkPosition> loadedChunks;
+        private boolean blockMapBuilt;
+        private int lastPredictedTick;
+
+        private Prefetch(IPortal portal) {
+            this.portal = portal;
+        }
+    }
+
+    // A portal that a player is predicted to reach
+    private static class Prediction {
+        private final IPortal portal;
+        private final double ticksUntilReached;
+
+        private Prediction(IPortal portal, double ticksUntilReached) {
+            this.portal = portal;
+            this.ticksUntilReached = ticksUntilReached;
+        }
+    }
+
+    private final IPlayerDataManager playerDataManager;
+    private final IPortalManager portalManager;
+    private final IPortalActivityManager activityManager;
+    private final PortalChunkLoader chunkLoader;
+    private final MiscConfig miscConfig;
+    private final Logger logger;
+
+    private final Map<UUID, PlayerMovement> playerMovements = new HashMap<>();
+    private final Map<UUID, Prefetch> prefetches = new HashMap<>();
+
+    private int currentTick;
+    @Getter private int hits;
+    @Getter private int misses;
+
+    @Inject
+    public PortalPrefetcher(IPlayerDataManager playerDataManager, IPortalManager portalManager, IPortalActivityManager activityManager,
+                            PortalChunkLoader chunkLoader, MiscConfig miscConfig, Logger logger) {
+        this.playerDataManager = playerDataManager;
+        this.portalManager = portalManager;
+        this.activityManager = activityManager;
+        this.chunkLoader = chunkLoader;
+        this.miscConfig = miscConfig;
+        this.logger = logger;
+    }
+
+    @Override
+    public void update() {
+        currentTick++;
+
+        List<Prediction> predictions = new ArrayList<>();
+        if(miscConfig.getPrefetchLookahead() > 0.0) {
+            Set<UUID> onlinePlayers = new HashSet<>();
+            for(IPlayerData playerData : playerDataManager.getPlayers()) {
+                Player player = playerData.getPlayer();
+                onlinePlayers.add(player.getUniqueId());
+                predictPortals(player, predictions);
+            }
+            playerMovements.keySet().retainAll(onlinePlayers);
+        }
+
+        // Portals that will be reached soonest are prefetched first
+        predictions.sort(Comparator.comparingDouble(prediction -> prediction.ticksUntilReached));
+        for(Prediction prediction : predictions) {
+            Prefetch prefetch = prefetches.get(prediction.portal.getId());
+            if(prefetch == null) {
+                if(prefetches.size() >= miscConfig.getMaxConcurrentPrefetches()) {continue;}
+                prefetch = startPrefetch(prediction.portal);
+            }
+
+            prefetch.lastPredictedTick = currentTick;
+        }
+
+        updatePrefetches();
+    }
+
+    // Finds the portals that the player will be close enough to activate within the lookahead time, if they keep moving in the same direction
+    private void predictPortals(Player player, List<Prediction> predictions) {
+        Location location = player.getLocation();
+        Vector position = location.toVector();
+
+        PlayerMovement movement = playerMovements.computeIfAbsent(player.getUniqueId(), uuid -> new PlayerMovement());
+        if(movement.world == location.getWorld() && movement.lastPosition.distance(position) < MAX_MOVE_PER_TICK) {
+            Vector moved = position.clone().subtract(movement.lastPosition);
+            movement.velocity.multiply(1.0 - VELOCITY_SMOOTHING).add(moved.multiply(VELOCITY_SMOOTHING));
+        }   else    {
+            movement.velocity.zero();
+        }
+        movement.world = location.getWorld();
+        movement.lastPosition = position;
+
+        double speedSquared = movement.velocity.lengthSquared();
+        if(speedSquared == 0.0) {return;}
+
+        double lookaheadTicks = miscConfig.getPrefetchLookahead() * 20.0;
+        double activationDistance = miscConfig.getPortalActivationDistance();
+        // The player can't reach any portals further away than this within the lookahead time
+        double searchRadius = Math.sqrt(speedSquared) * lookaheadTicks + activationDistance;
+        for(IPortal portal : portalManager.findPortalsWithin(location, searchRadius)) {
+            // Cross-server portals don't have any chunks on this server to load
+            if(portal.isCrossServer() || activityManager.isActive(portal)) {continue;}
+
+            // Find the point along the player's path that is closest to the portal
+            Vector relativePortalPos = portal.getOriginPos().getVector().subtract(position);
+            // Portals that the player is moving away from are left alone, since they're either already activated or can't be activated by this player
+            double closestTicks = Math.min(lookaheadTicks, relativePortalPos.dot(movement.velocity) / speedSquared);
+            if(closestTicks <= 0.0) {continue;}
+
+            Vector closestRelativePos = movement.velocity.clone().multiply(closestTicks);
+            if(closestRelativePos.distance(relativePortalPos) > activationDistance) {continue;}
+
+            predictions.add(new Prediction(portal, closestTicks));
+        }
+    }
+
+    private Prefetch startPrefetch(IPortal portal) {
+        logger.finer("Prefetching destination of portal %s", portal.getId());
+        Prefetch prefetch = new Prefetch(portal);
+        prefetch.loadedChunks = chunkLoader.forceloadPortalChunks(portal.getDestPos());
+        prefetches.put(portal.getId(), prefetch);
+        return prefetch;
+    }
+
+    private void updatePrefetches() {
+        int blockMapBuilds = 0;
+        Iterator<Prefetch> iterator = prefetches.values().iterator();
+        while(iterator.hasNext()) {
+            Prefetch prefetch = iterator.next();
+            IPortal portal = prefetch.portal;
+
+            boolean wasActivated = activityManager.isActive(portal);
+            boolean timedOut = currentTick - prefetch.lastPredictedTick >= PREFETCH_TIMEOUT;
+            if(wasActivated || timedOut || !portal.isRegistered()) {
+                endPrefetch(prefetch, wasActivated);
+                iterator.remove();
+                continue;
+            }
+
+            // The block map is built once the chunks have loaded, since building it would otherwise load them synchronously
+            if(!prefetch.blockMapBuilt && blockMapBuilds < MAX_BLOCK_MAP_BUILDS_PER_TICK && prefetch.loadedChunks.stream().allMatch(ChunkPosition::isLoaded)) {
+                portal.getViewableBlocks().update(0);
+                prefetch.blockMapBuilt = true;
+                blockMapBuilds++;
+            }
+        }
+    }
+
+    private void endPrefetch(Prefetch prefetch, boolean wasActivated) {
+        // The portal has its own tickets for its chunks if it is active, so ours can be released either way
+        chunkLoader.unforceloadPortalChunks(prefetch.loadedChunks);
+
+        if(wasActivated) {
+            logger.finer("Prefetched portal %s was activated", prefetch.portal.getId());
+            hits++;
+        }   else    {
+            // The portal isn't going to be used, so there's no need to wait for it to be idle
+            prefetch.portal.releaseResources();
+            misses++;
+        }
+    }
+
+    @Override
+    public int getPrefetchCount() {
+        return prefetches.size();
+    }
+}
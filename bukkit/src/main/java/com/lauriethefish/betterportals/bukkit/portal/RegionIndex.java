@@ -0,0 +1,209 @@
+package com.lauriethefish.betterportals.bukkit.portal;
+
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups values by the 512x512 block region that they are in, so that the values near a position can be found without checking every one.
+ * Used for both registered portals in the {@link PortalManager} and portals waiting to be registered in the {@link PendingPortals}.
+ * Must only be used from the main thread.
+ * @param <T> Type of the values in the index
+ */
+public class RegionIndex<T> {
+    // Regions are 512x512 blocks
+    private static final int REGION_SHIFT = 9;
+
+    private final Map<World, Map<Long, Set<T>>> regions = new HashMap<>();
+
+    private static long getRegionKey(int regionX, int regionZ) {
+        return ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+    }
+
+    private static long getRegionKeyOfBlock(int blockX, int blockZ) {
+        return getRegionKey(blockX >> REGION_SHIFT, blockZ >> REGION_SHIFT);
+    }
+
+    /**
+     * Adds <code>value</code> in the region containing the given block.
+     * @param world World that the value is in
+     * @param blockX Block X coordinate of the value
+     * @param blockZ Block Z coordinate of the value
+     * @param value The value to add
+     */
+    public void add(@Nullable World world, int blockX, int blockZ, @NotNull T value) {
+        regions.computeIfAbsent(world, w -> new HashMap<>())
+                .computeIfAbsent(getRegionKeyOfBlock(blockX, blockZ), k -> new HashSet<>())
+                .add(value);
+    }
+
+    /**
+     * Removes <code>value</code> from the region containing the given block.
+     * @param world World that the value is in
+     * @param blockX Block X coordinate that the value was added at
+     * @param blockZ Block Z coordinate that the value was added at
+     * @param value The value to remove
+     * @return Whether the value was in the index
+     */
+    public boolean remove(@Nullable World world, int blockX, int blockZ, @NotNull T value) {
+        Map<Long, Set<T>> worldRegions = regions.get(world);
+        if(worldRegions == null) {return false;}
+
+        long key = getRegionKeyOfBlock(blockX, blockZ);
+        Set<T> region = worldRegions.get(key);
+        if(region == null || !region.remove(value)) {return false;}
+
+        if(region.isEmpty()) {
+            worldRegions.remove(key);
+        }
+        if(worldRegions.isEmpty()) {
+            regions.remove(world);
+        }
+        return true;
+    }
+
+    /**
+     * Removes <code>value</code> from the region containing the given block, in whichever world it was added in.
+     * @param blockX Block X coordinate that the value was added at
+     * @param blockZ Block Z coordinate that the value was added at
+     * @param value The value to remove
+     * @return Whether the value was in the index
+     */
+    public boolean remove(int blockX, int blockZ, @NotNull T value) {
+        // There are only a few worlds, so checking each of them is cheap
+        for(World world : new ArrayList<>(regions.keySet())) {
+            if(remove(world, blockX, blockZ, value)) {return true;}
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the values in every region that is at least partly within <code>radius</code> blocks on the X and Z axes.
+     * This may include values further away than <code>radius</code>, so callers should check the distance themselves if it matters.
+     * @param world World to find values in
+     * @param radius Distance from the position. If this is infinite, all values in the world are returned
+     * @return The values found
+     */
+    public @NotNull List<T> getWithin(@Nullable World world, double x, double z, double radius) {
+        return collectWithin(world, x, z, radius, false);
+    }
+
+    /**
+     * Removes the values in every region that is at least partly within <code>radius</code> blocks on the X and Z axes.
+     * @param world World to remove values in
+     * @param radius Distance from the position. If this is infinite, all values in the world are removed
+     * @return The removed values
+     */
+    public @NotNull List<T> takeWithin(@Nullable World world, double x, double z, double radius) {
+        return collectWithin(world, x, z, radius, true);
+    }
+
+    private List<T> collectWithin(World world, double x, double z, double radius, boolean remove) {
+        Map<Long, Set<T>> worldRegions = regions.get(world);
+        if(worldRegions == null) {return Collections.emptyList();}
+        if(Double.isInfinite(radius)) {
+            return remove ? takeWorld(world) : getWorld(worldRegions);
+        }
+
+        long minRegionX = (long) Math.floor(x - radius) >> REGION_SHIFT;
+        long maxRegionX = (long) Math.floor(x + radius) >> REGION_SHIFT;
+        long minRegionZ = (long) Math.floor(z - radius) >> REGION_SHIFT;
+        long maxRegionZ = (long) Math.floor(z + radius) >> REGION_SHIFT;
+
+        List<T> result = new ArrayList<>();
+        // Check every region with values in it instead of every region in range if there are fewer of them
+        double regionsInRange = ((double) maxRegionX - minRegionX + 1) * ((double) maxRegionZ - minRegionZ + 1);
+        if(regionsInRange > worldRegions.size()) {
+            Iterator<Map.Entry<Long, Set<T>>> iterator = worldRegions.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<Long, Set<T>> entry = iterator.next();
+                int regionX = (int) (entry.getKey() >> 32);
+                int regionZ = (int) (long) entry.getKey();
+                if(regionX < minRegionX || regionX > maxRegionX || regionZ < minRegionZ || regionZ > maxRegionZ) {continue;}
+
+                result.addAll(entry.getValue());
+                if(remove) {
+                    iterator.remove();
+                }
+            }
+        }   else    {
+            for(long regionX = minRegionX; regionX <= maxRegionX; regionX++) {
+                for(long regionZ = minRegionZ; regionZ <= maxRegionZ; regionZ++) {
+                    long key = getRegionKey((int) regionX, (int) regionZ);
+                    Set<T> region = remove ? worldRegions.remove(key) : worldRegions.get(key);
+                    if(region != null) {
+                        result.addAll(region);
+                    }
+                }
+            }
+        }
+
+        if(worldRegions.isEmpty()) {
+            regions.remove(world);
+        }
+        return result;
+    }
+
+    private List<T> getWorld(Map<Long, Set<T>> worldRegions) {
+        List<T> result = new ArrayList<>();
+        worldRegions.values().forEach(result::addAll);
+        return result;
+    }
+
+    /**
+     * Removes every value in <code>world</code>.
+     * @param world World to remove the values of
+     * @return The removed values
+     */
+    public @NotNull List<T> takeWorld(@Nullable World world) {
+        Map<Long, Set<T>> worldRegions = regions.remove(world);
+        if(worldRegions == null) {return Collections.emptyList();}
+
+        return getWorld(worldRegions);
+    }
+
+    /**
+     * Removes up to <code>maxCount</code> values, in any order.
+     * @param maxCount Maximum number of values to remove
+     * @return The removed values
+     */
+    public @NotNull List<T> takeBatch(int maxCount) {
+        List<T> result = new ArrayList<>();
+
+        Iterator<Map<Long, Set<T>>> worldIterator = regions.values().iterator();
+        while(worldIterator.hasNext() && result.size() < maxCount) {
+            Iterator<Set<T>> regionIterator = worldIterator.next().values().iterator();
+            while(regionIterator.hasNext() && result.size() < maxCount) {
+                Iterator<T> valueIterator = regionIterator.next().iterator();
+                while(valueIterator.hasNext() && result.size() < maxCount) {
+                    result.add(valueIterator.next());
+                    valueIterator.remove();
+                }
+
+                if(!valueIterator.hasNext()) {
+                    regionIterator.remove();
+                }
+            }
+        }
+
+        regions.values().removeIf(Map::isEmpty);
+        return result;
+    }
+
+    /**
+     * Removes every value in every world.
+     */
+    public void clear() {
+        regions.clear();
+    }
+}
@@ -1,71 +1,149 @@
 package com.lauriethefish.betterportals.bukkit.portal.spawning;
 
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
-import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.SpiralChunkAreaIterator;
+import com.lauriethefish.betterportals.bukkit.chunk.generation.IChunkGenerationChecker;
 import com.lauriethefish.betterportals.bukkit.config.PortalSpawnConfig;
-import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
+import com.lauriethefish.betterportals.bukkit.tasks.WorkerPool;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
  * Handles checking for existing/new spawn position across multiple ticks.
- * This is done to avoid freezing the server, since checking for a spawn position can take a couple of seconds
- * This class also contains various optimisations that improve the speed by allowing us to skip certain chunks
+ * Each tick, chunks are loaded (or generated if a new position might be needed) and captured as snapshots on the main thread, within the allowed time per tick.
+ * The checkers are then run on the {@link WorkerPool} over the snapshots, and their results are collected back on the main thread.
+ * Both checkers are run in the same search, so each chunk only has to be captured once. Existing portals are always preferred over new positions.
+ * Chunks are checked in order of the minimum distance of any position in them, and chunks that can't contain anything closer than the closest position found so far are skipped.
+ * This means that the closest position is always found, without having to check most of the chunks in the search area.
  */
 public class AsyncPortalChecker implements Runnable {
     /**
-     * Used to skip this chunk if there's no way that any block in the chunk can be any closer.
-     * We approximate this by finding the distance to the chunk center, then subtracting this value.
-     * Theoretically, this could skip a portal and not actually find the closest portal.
-     * However, I haven't seen any get missed.
-     * Ideally, the chunk skip distance would be nearly 150 - half of the the diagonal length of a chunk. However, this slows down portal spawning quite a lot
+     * Radius for existing portal checking/portal spawning.
      */
-    private static final double CHUNK_SKIP_DISTANCE = 45.0;
+    private static final double PORTAL_SEARCH_RADIUS = 128.0;
 
     /**
-     * Radius for existing portal checking/portal spawning.
+     * Maximum number of chunks waiting to be checked per worker thread.
+     * Capturing stops once this is reached, so that results can come back and let more chunks be skipped.
      */
-    private static final double PORTAL_SEARCH_RADIUS = 128.0;
+    private static final int MAX_QUEUED_PER_THREAD = 4;
+
+    // Chunk waiting to be checked, with the minimum distance of any position that each checker could find in it
+    private static class ChunkCandidate {
+        private final ChunkPosition position;
+        private final double existingMinDistance;
+        private final double newMinDistance;
+
+        private ChunkCandidate(ChunkPosition position, double existingMinDistance, double newMinDistance) {
+            this.position = position;
+            this.existingMinDistance = existingMinDistance;
+            this.newMinDistance = newMinDistance;
+        }
+    }
+
+    // Result of checking one chunk, posted back by the worker threads
+    private static class ChunkResult {
+        private final PortalSpawnPosition existingPosition;
+        private final PortalSpawnPosition newPosition;
+
+        private ChunkResult(PortalSpawnPosition existingPosition, PortalSpawnPosition newPosition) {
+            this.existingPosition = existingPosition;
+            this.newPosition = newPosition;
+        }
+    }
 
     private final Logger logger;
     private final PortalSpawningContext context;
     private final PortalSpawnConfig config;
+    private final IChunkGenerationChecker generationChecker;
+    private final IObsidianIndex obsidianIndex;
+    private final WorkerPool workerPool;
 
-    private final Iterator<ChunkPosition> iterator;
-    private final IChunkChecker chunkChecker;
+    // Existing positions can be just outside of their chunk, so their minimum distance is never more than the one for new positions
+    private final PriorityQueue<ChunkCandidate> candidates = new PriorityQueue<>(Comparator.comparingDouble(candidate -> candidate.existingMinDistance));
+    private final ExistingPortalChecker existingChecker;
+    private final NewPortalChecker newChecker;
     private final Consumer<PortalSpawnPosition> onFinish;
     private final BukkitTask repeatingTask;
 
-    private PortalSpawnPosition currentClosest;
-    private double closestDistance = Double.POSITIVE_INFINITY;
+    private final World world;
+    private final ChunkSnapshotSpawnArea area;
+    // Number of chunks around each checked chunk that the checkers may read blocks from
+    private final int chunkMargin;
+
+    // Chunks that weren't indexed when captured, which the index is told about once the search is done
+    private final List<ChunkPosition> unindexedCaptures = new ArrayList<>();
+
+    private final Queue<ChunkResult> completedChunks = new ConcurrentLinkedQueue<>();
+    private int outstandingChunks;
 
-    private int updateCount;
+    private PortalSpawnPosition closestExisting;
+    private double closestExistingDistance = Double.POSITIVE_INFINITY;
+    private PortalSpawnPosition closestNew;
+    private double closestNewDistance = Double.POSITIVE_INFINITY;
+
+    @Getter private int updateCount;
+    @Getter private int chunksCaptured;
+    @Getter private int chunksChecked;
+    @Getter private int chunksSkipped;
+    private long mainThreadNanos;
+    @Getter private boolean finished;
 
     /**
-     * Starts checking for portals in a spiral area
+     * Starts checking for portals in a square area around the preferred location
      * @param context Position/size to check for and {@link com.lauriethefish.betterportals.bukkit.config.WorldLink} to use.
-     * @param chunkChecker Used to find the closest {@link PortalSpawnPosition} in each chunk.
-     * @param onFinish Called with the spawn position (may be null), when this check is complete
+     * @param existingChecker Used to find the closest existing portal frame in each chunk
+     * @param newChecker Used to find the closest new spawn position in each chunk, if there aren't any existing frames
+     * @param portalOrigins Origin positions of the current portals, used to keep new portals spaced out
+     * @param onFinish Called on the main thread with the spawn position (may be null), when this check is complete
      */
-    public AsyncPortalChecker(PortalSpawningContext context, IChunkChecker chunkChecker,
-                              Consumer<PortalSpawnPosition> onFinish, JavaPlugin pl, Logger logger, PortalSpawnConfig config) {
+    public AsyncPortalChecker(PortalSpawningContext context, ExistingPortalChecker existingChecker, NewPortalChecker newChecker, Collection<Location> portalOrigins,
+                              Consumer<PortalSpawnPosition> onFinish, JavaPlugin pl, Logger logger, PortalSpawnConfig config,
+                              IChunkGenerationChecker generationChecker, IObsidianIndex obsidianIndex, WorkerPool workerPool) {
         this.logger = logger;
         this.context = context;
         this.config = config;
-        this.chunkChecker = chunkChecker;
+        this.existingChecker = existingChecker;
+        this.newChecker = newChecker;
         this.onFinish = onFinish;
+        this.generationChecker = generationChecker;
+        this.obsidianIndex = obsidianIndex;
+        this.workerPool = workerPool;
 
-        // Make an iterator around the chunks of the portal search radius from our destination position
+        // Queue the chunks of the portal search radius from our destination position, closest first
         Location spawnPos = context.getPreferredLocation();
-        this.iterator = new SpiralChunkAreaIterator(
-            spawnPos.clone().subtract(PORTAL_SEARCH_RADIUS, 0.0, PORTAL_SEARCH_RADIUS),
-            spawnPos.clone().add(PORTAL_SEARCH_RADIUS, 0.0, PORTAL_SEARCH_RADIUS)
+        Location low = spawnPos.clone().subtract(PORTAL_SEARCH_RADIUS, 0.0, PORTAL_SEARCH_RADIUS);
+        Location high = spawnPos.clone().add(PORTAL_SEARCH_RADIUS, 0.0, PORTAL_SEARCH_RADIUS);
+        for(int x = low.getBlockX() >> 4; x <= high.getBlockX() >> 4; x++) {
+            for(int z = low.getBlockZ() >> 4; z <= high.getBlockZ() >> 4; z++) {
+                ChunkPosition chunk = new ChunkPosition(spawnPos.getWorld(), x, z);
+                candidates.add(new ChunkCandidate(chunk, ExistingPortalChecker.getMinimumDistance(chunk, context), NewPortalChecker.getMinimumDistance(chunk, context)));
+            }
+        }
+
+        // Portal frames can extend out of the chunk that they start in, so the chunks around the edge of the search area are also captured
+        this.chunkMargin = (context.getSize().getBlockX() + 3 + 15) / 16;
+        this.world = spawnPos.getWorld();
+        this.area = new ChunkSnapshotSpawnArea(world,
+                (low.getBlockX() >> 4) - chunkMargin, (low.getBlockZ() >> 4) - chunkMargin,
+                (high.getBlockX() >> 4) + chunkMargin, (high.getBlockZ() >> 4) + chunkMargin,
+                portalOrigins
         );
 
         this.repeatingTask = Bukkit.getScheduler().runTaskTimer(pl, this, 1, 1);
@@ -74,42 +152,150 @@ public class AsyncPortalChecker implements Runnable {
     @Override
     public void run() {
         updateCount += 1;
+        long startTime = System.nanoTime();
 
-        OperationTimer timer = new OperationTimer();
+        collectResults();
 
         // Make sure to stop when we're over the maximum allowed time
-        // NOTE: This might go a little over (by 1ms or so), depending on how long the IChunkChecker takes to do its think
-        while(timer.getTimeTakenMillis() < config.getAllowedSpawnTimePerTick()) {
-            if(!iterator.hasNext()) {
-                onFinish();
-                return;
+        // NOTE: This might go a little over (by 1ms or so), depending on how long loading or generating the chunk takes
+        int maxQueued = workerPool.getThreadCount() * MAX_QUEUED_PER_THREAD;
+        while(!candidates.isEmpty() && outstandingChunks < maxQueued && System.nanoTime() - startTime < config.getAllowedSpawnTimePerTick() * 1_000_000L) {
+            // Once an existing portal is found, no chunk after this one can contain anything closer
+            if(closestExisting != null && candidates.peek().existingMinDistance >= closestExistingDistance) {
+                chunksSkipped += candidates.size();
+                candidates.clear();
+                break;
             }
 
-            checkChunk(iterator.next());
+            captureAndCheck(candidates.poll());
+        }
+
+        mainThreadNanos += System.nanoTime() - startTime;
+        if(candidates.isEmpty() && outstandingChunks == 0) {
+            onFinish();
         }
     }
 
+    /**
+     * @return The total time spent on the main thread by this search, in milliseconds
+     */
+    public double getMainThreadMillis() {
+        return mainThreadNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
     private void onFinish() {
-        logger.fine("Finished delayed portal check within %d ticks", updateCount);
+        logger.fine("Finished delayed portal check within %d ticks. Captured %d chunks, checked %d on the worker threads and skipped %d, taking %.2fms on the main thread", updateCount, chunksCaptured, chunksChecked, chunksSkipped, getMainThreadMillis());
         repeatingTask.cancel();
-        onFinish.accept(currentClosest);
+        finished = true;
+
+        for(ChunkPosition chunk : unindexedCaptures) {
+            obsidianIndex.onCaptureDiscarded(world, chunk.x, chunk.z);
+        }
+
+        if(closestExisting != null) {
+            logger.fine("Found existing position");
+            onFinish.accept(closestExisting);
+        }   else    {
+            onFinish.accept(closestNew);
+        }
     }
 
-    // Checks this chunk to see if there are any valid positions in it closer than our current closest
-    private void checkChunk(ChunkPosition chunk) {
-        // Perform the rough check specified in the comment for CHUNK_SKIP_DISTANCE
-        double closestTheoreticalDistanceInChunk = chunk.getCenterPos().distance(context.getPreferredLocation()) - CHUNK_SKIP_DISTANCE;
-        if(closestTheoreticalDistanceInChunk > closestDistance) {
+    private void collectResults() {
+        ChunkResult result;
+        while((result = completedChunks.poll()) != null) {
+            outstandingChunks--;
+            chunksChecked++;
+
+            if(result.existingPosition != null) {
+                double distance = result.existingPosition.getPosition().distance(context.getPreferredLocation());
+                if(distance < closestExistingDistance) {
+                    closestExistingDistance = distance;
+                    closestExisting = result.existingPosition;
+                }
+            }
+
+            if(result.newPosition != null) {
+                double distance = result.newPosition.getPosition().distance(context.getPreferredLocation());
+                if(distance < closestNewDistance) {
+                    closestNewDistance = distance;
+                    closestNew = result.newPosition;
+                }
+            }
+        }
+    }
+
+    // Captures this chunk and the chunks around it, then checks it on a worker thread if there could be any valid positions in it closer than our current closest
+    private void captureAndCheck(ChunkCandidate candidate) {
+        ChunkPosition chunk = candidate.position;
+
+        // Positions are only replaced by closer ones, so a chunk can be skipped if it can't have anything closer
+        boolean existingNeeded = candidate.existingMinDistance < closestExistingDistance;
+        // New positions are only used if there are no existing portals, so there's no point looking once one is found
+        boolean newNeeded = closestExisting == null && candidate.newMinDistance < closestNewDistance;
+        if(!existingNeeded && !newNeeded) {
+            chunksSkipped++;
             return;
         }
 
-        PortalSpawnPosition result = chunkChecker.findClosestInChunk(chunk, context);
-        if(result == null) {return;} // Some chunks might not have any valid positions
+        if(!newNeeded) {
+            // Chunks that haven't been generated can't contain any existing portals
+            if(!generationChecker.isChunkGenerated(world, chunk.x, chunk.z)) {
+                chunksSkipped++;
+                return;
+            }
+
+            // Existing portals are only found around obsidian blocks, so indexed chunks without any don't need to be captured
+            // Only entries known to be up to date are returned, so this never skips a chunk based on a stale entry from a previous run
+            List<IntVector> obsidian = obsidianIndex.findObsidian(world, chunk.x, chunk.z, context.getWorldLink().getMinSpawnY(), context.getWorldLink().getMaxSpawnY());
+            if(obsidian != null && obsidian.isEmpty()) {
+                chunksSkipped++;
+                return;
+            }
+        }
+
+        for(int x = chunk.x - chunkMargin; x <= chunk.x + chunkMargin; x++) {
+            for(int z = chunk.z - chunkMargin; z <= chunk.z + chunkMargin; z++) {
+                captureChunk(x, z, newNeeded);
+            }
+        }
+
+        outstandingChunks++;
+        workerPool.execute(() -> {
+            PortalSpawnPosition existingPosition = null;
+            PortalSpawnPosition newPosition = null;
+            try {
+                if(existingNeeded) {
+                    existingPosition = existingChecker.findClosestInChunk(chunk, context, area);
+                }
+                if(newNeeded) {
+                    newPosition = newChecker.findClosestInChunk(chunk, context, area);
+                }
+            }   catch(RuntimeException ex) {
+                logger.warning("Error occurred while checking chunk %s for portal spawn positions", chunk);
+                ex.printStackTrace();
+            }   finally     {
+                // Always post a result, otherwise the search would never finish
+                completedChunks.add(new ChunkResult(existingPosition, newPosition));
+            }
+        });
+    }
+
+    /**
+     * Loads and captures the chunk if it isn't captured already.
+     * @param generate Whether to generate the chunk if it hasn't been generated yet
+     */
+    private void captureChunk(int x, int z, boolean generate) {
+        if(!area.contains(x, z) || area.hasChunk(x, z)) {return;}
+        if(!generate && !generationChecker.isChunkGenerated(world, x, z)) {return;}
+
+        // Loading the chunk also checks any entry it has in the obsidian index from a previous run
+        Chunk chunk = world.getChunkAt(x, z);
+        area.addChunk(chunk);
+        chunksCaptured++;
 
-        double distance = result.getPosition().distance(context.getPreferredLocation());
-        if(distance < closestDistance) {
-            closestDistance = distance;
-            currentClosest = result;
+        if(!obsidianIndex.isIndexed(world, x, z)) {
+            obsidianIndex.onChunkCaptured(chunk);
+            unindexedCaptures.add(new ChunkPosition(world, x, z));
         }
     }
 }
@@ -0,0 +1,85 @@
+package com.lauriethefish.betterportals.bukkit.portal.spawning;
+
+import org.bukkit.Material;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Which blocks are solid and which are air in each column of a chunk, packed as bitmasks over the Y coordinate.
+ * Bit <code>i</code> of a column is the block at <code>minHeight + i</code>, and bit <code>i</code> is stored in word <code>i / 64</code>.
+ * This lets the {@link NewPortalChecker} test a whole column of spawn positions at once with a few word operations, instead of reading every block around each position.
+ */
+public class ChunkColumnSummary {
+    private final int minHeight;
+    private final int height;
+    private final int words;
+
+    // Indexed by (localZ * 16 + localX) * words + word
+    private final long[] solid;
+    private final long[] air;
+
+    private ChunkColumnSummary(int minHeight, int height) {
+        this.minHeight = minHeight;
+        this.height = height;
+        this.words = (height + 63) >> 6;
+        this.solid = new long[256 * words];
+        this.air = new long[256 * words];
+    }
+
+    /**
+     * Reads every block in a chunk of the area.
+     * @param area Area containing the chunk, which must have been captured
+     * @return The summary of the chunk
+     */
+    public static @NotNull ChunkColumnSummary build(@NotNull ISpawnArea area, int chunkX, int chunkZ) {
+        ChunkColumnSummary summary = new ChunkColumnSummary(area.getMinHeight(), area.getMaxHeight() - area.getMinHeight());
+
+        int minX = chunkX << 4;
+        int minZ = chunkZ << 4;
+        for(int z = 0; z < 16; z++) {
+            for(int x = 0; x < 16; x++) {
+                int offset = (z * 16 + x) * summary.words;
+                for(int i = 0; i < summary.height; i++) {
+                    Material type = area.getType(minX + x, summary.minHeight + i, minZ + z);
+                    if(type == null) {continue;}
+
+                    long bit = 1L << (i & 63);
+                    if(type.isSolid()) {
+                        summary.solid[offset + (i >> 6)] |= bit;
+                    }
+                    if(isAir(type)) {
+                        summary.air[offset + (i >> 6)] |= bit;
+                    }
+                }
+            }
+        }
+
+        return summary;
+    }
+
+    // The same materials as MaterialUtil#isAir. MaterialUtil isn't used since it needs ProtocolLib to be loaded
+    static boolean isAir(Material type) {
+        return type == Material.AIR || type == Material.CAVE_AIR || type == Material.VOID_AIR;
+    }
+
+    public int getMinHeight() {
+        return minHeight;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Copies the solid blocks of a column into <code>dest</code>. Words of <code>dest</code> above the chunk are left as they are.
+     */
+    public void copySolid(int localX, int localZ, long[] dest) {
+        System.arraycopy(solid, (localZ * 16 + localX) * words, dest, 0, words);
+    }
+
+    /**
+     * Copies the air blocks of a column into <code>dest</code>. Words of <code>dest</code> above the chunk are left as they are.
+     */
+    public void copyAir(int localX, int localZ, long[] dest) {
+        System.arraycopy(air, (localZ * 16 + localX) * words, dest, 0, words);
+    }
+}
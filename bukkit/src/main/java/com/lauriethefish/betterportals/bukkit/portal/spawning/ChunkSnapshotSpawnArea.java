@@ -0,0 +1,165 @@
+package com.lauriethefish.betterportals.bukkit.portal.spawning;
+
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.WorldBorder;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A box of chunks captured as {@link ChunkSnapshot}s.
+ * Chunks are added on the main thread, and can be read from any thread once added.
+ */
+public class ChunkSnapshotSpawnArea implements ISpawnArea {
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int sizeX;
+    private final int sizeZ;
+    private final AtomicReferenceArray<ChunkSnapshot> snapshots;
+    // Built the first time that they're needed, since each chunk is read by the checks of the chunks around it
+    private final AtomicReferenceArray<ChunkColumnSummary> summaries;
+
+    private final int minHeight;
+    private final int maxHeight;
+
+    private final double borderMinX;
+    private final double borderMaxX;
+    private final double borderMinZ;
+    private final double borderMaxZ;
+
+    private final List<Vector> portalPositions = new ArrayList<>();
+
+    /**
+     * Creates an area with no chunks captured yet. Must be called on the main thread.
+     * @param world World that the chunks are in
+     * @param minChunkX Minimum chunk X coordinate, inclusive
+     * @param minChunkZ Minimum chunk Z coordinate, inclusive
+     * @param maxChunkX Maximum chunk X coordinate, inclusive
+     * @param maxChunkZ Maximum chunk Z coordinate, inclusive
+     * @param portalOrigins Origin positions of the existing portals which might be near the area
+     */
+    public ChunkSnapshotSpawnArea(@NotNull World world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ, @NotNull Collection<Location> portalOrigins) {
+        this.minChunkX = minChunkX;
+        this.minChunkZ = minChunkZ;
+        this.sizeX = maxChunkX - minChunkX + 1;
+        this.sizeZ = maxChunkZ - minChunkZ + 1;
+        this.snapshots = new AtomicReferenceArray<>(sizeX * sizeZ);
+        this.summaries = new AtomicReferenceArray<>(sizeX * sizeZ);
+
+        this.minHeight = HeightUtil.getMinHeight(world);
+        this.maxHeight = HeightUtil.getMaxHeight(world);
+
+        WorldBorder border = world.getWorldBorder();
+        double radius = border.getSize() / 2.0;
+        this.borderMinX = border.getCenter().getX() - radius;
+        this.borderMaxX = border.getCenter().getX() + radius;
+        this.borderMinZ = border.getCenter().getZ() - radius;
+        this.borderMaxZ = border.getCenter().getZ() + radius;
+
+        for(Location origin : portalOrigins) {
+            if(origin.getWorld() == world) {
+                portalPositions.add(origin.toVector());
+            }
+        }
+    }
+
+    private int getIndex(int chunkX, int chunkZ) {
+        int offsetX = chunkX - minChunkX;
+        int offsetZ = chunkZ - minChunkZ;
+        if(offsetX < 0 || offsetZ < 0 || offsetX >= sizeX || offsetZ >= sizeZ) {return -1;}
+
+        return offsetX * sizeZ + offsetZ;
+    }
+
+    /**
+     * @return Whether the chunk is within the bounds of this area, whether or not it has been captured
+     */
+    public boolean contains(int chunkX, int chunkZ) {
+        return getIndex(chunkX, chunkZ) != -1;
+    }
+
+    /**
+     * Captures the blocks in <code>chunk</code>. Must be called on the main thread.
+     * @param chunk The chunk to capture, which must be within the area
+     */
+    public void addChunk(@NotNull Chunk chunk) {
+        int index = getIndex(chunk.getX(), chunk.getZ());
+        if(index == -1) {
+            throw new IllegalArgumentException("Chunk is outside of the spawn area");
+        }
+
+        snapshots.set(index, chunk.getChunkSnapshot(false, false, false));
+    }
+
+    @Override
+    public boolean hasChunk(int chunkX, int chunkZ) {
+        int index = getIndex(chunkX, chunkZ);
+        return index != -1 && snapshots.get(index) != null;
+    }
+
+    @Override
+    public @Nullable Material getType(int x, int y, int z) {
+        int index = getIndex(x >> 4, z >> 4);
+        if(index == -1) {return null;}
+
+        ChunkSnapshot snapshot = snapshots.get(index);
+        if(snapshot == null) {return null;}
+        if(y < minHeight || y >= maxHeight) {return Material.VOID_AIR;}
+
+        return snapshot.getBlockType(x & 15, y, z & 15);
+    }
+
+    @Override
+    public @Nullable ChunkColumnSummary getColumnSummary(int chunkX, int chunkZ) {
+        int index = getIndex(chunkX, chunkZ);
+        if(index == -1 || snapshots.get(index) == null) {return null;}
+
+        ChunkColumnSummary summary = summaries.get(index);
+        if(summary == null) {
+            // Two threads may both build the summary, but they'll be the same, so it doesn't matter which one is kept
+            summary = ChunkColumnSummary.build(this, chunkX, chunkZ);
+            summaries.compareAndSet(index, null, summary);
+        }
+        return summary;
+    }
+
+    @Override
+    public int getMinHeight() {
+        return minHeight;
+    }
+
+    @Override
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    @Override
+    public boolean isInsideWorldBorder(int x, int z) {
+        // Same as the check used by the server for block positions
+        return x + 1 > borderMinX && x < borderMaxX && z + 1 > borderMinZ && z < borderMaxZ;
+    }
+
+    @Override
+    public boolean isPortalWithin(int x, int y, int z, double distance) {
+        double distanceSquared = distance * distance;
+        for(Vector position : portalPositions) {
+            double dX = position.getX() - x;
+            double dY = position.getY() - y;
+            double dZ = position.getZ() - z;
+            if(dX * dX + dY * dY + dZ * dZ < distanceSquared) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -2,22 +2,20 @@ package com.lauriethefish.betterportals.bukkit.portal.spawning;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.api.PortalDirection;
 import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
-import com.lauriethefish.betterportals.bukkit.chunk.generation.IChunkGenerationChecker;
 import com.lauriethefish.betterportals.bukkit.config.PortalSpawnConfig;
 import com.lauriethefish.betterportals.bukkit.config.WorldLink;
-import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
-import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Material;
-import org.bukkit.block.Block;
+import org.bukkit.World;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 
 /**
  * Finds valid existing portal frames within a chunk to avoid respawning portals when one already exists.
@@ -40,52 +38,64 @@ public class ExistingPortalChecker implements IChunkChecker    {
             PortalDirection.NORTH,
             PortalDirection.EAST
     };
-    private static final Vector[] XZ_CHECK_OFFSETS = new Vector[] {
-        new Vector(0.0, 0.0, 0.0),
-        new Vector(1.0, 0.0, 0.0),
-        new Vector(-1.0, 0.0, 0.0),
-        new Vector(0.0, 0.0, -1.0),
-        new Vector(0.0, 0.0, 1.0),
+    private static final IntVector[] XZ_CHECK_OFFSETS = new IntVector[] {
+        new IntVector(0, 0, 0),
+        new IntVector(1, 0, 0),
+        new IntVector(-1, 0, 0),
+        new IntVector(0, 0, -1),
+        new IntVector(0, 0, 1),
     };
 
-    private final IPortalManager portalManager;
     private final PortalSpawnConfig spawnConfig;
-    private final IChunkGenerationChecker generationChecker;
+    private final IObsidianIndex obsidianIndex;
 
     @Inject
-    public ExistingPortalChecker(IPortalManager portalManager, PortalSpawnConfig spawnConfig, IChunkGenerationChecker generationChecker) {
-        this.portalManager = portalManager;
+    public ExistingPortalChecker(PortalSpawnConfig spawnConfig, IObsidianIndex obsidianIndex) {
         this.spawnConfig = spawnConfig;
-        this.generationChecker = generationChecker;
+        this.obsidianIndex = obsidianIndex;
     }
 
     @Override
-    public PortalSpawnPosition findClosestInChunk(@NotNull ChunkPosition chunk, @NotNull PortalSpawningContext context) {
-        if(!generationChecker.isChunkGenerated(chunk)) {
-            return null;
+    public PortalSpawnPosition findClosestInChunk(@NotNull ChunkPosition chunk, @NotNull PortalSpawningContext context, @NotNull ISpawnArea area) {
+        World world = context.getPreferredLocation().getWorld();
+        WorldLink link = context.getWorldLink();
+        List<IntVector> indexedBlocks = obsidianIndex.findObsidian(world, chunk.x, chunk.z, link.getMinSpawnY(), link.getMaxSpawnY());
+        if(indexedBlocks == null) {
+            // Chunks that haven't been generated can't contain any portals, so aren't captured
+            if(!area.hasChunk(chunk.x, chunk.z)) {
+                return null;
+            }
+
+            // Scan the whole chunk once so that later searches can use the index instead
+            int[] scannedBlocks = ObsidianIndex.scanArea(area, chunk.x, chunk.z);
+            obsidianIndex.onChunkScanned(world, chunk.x, chunk.z, scannedBlocks);
+            indexedBlocks = ObsidianIndex.unpackRange(scannedBlocks, chunk.x, chunk.z, link.getMinSpawnY(), link.getMaxSpawnY());
         }
 
         int frameSize = context.getSize().getBlockY() + 2;
-        Collection<Location> obsidianBlocks = searchForObsidianBlocks(chunk, frameSize, context.getWorldLink());
+        List<IntVector> obsidianBlocks = filterObsidianBlocks(indexedBlocks, frameSize, link);
 
+        Location preferred = context.getPreferredLocation();
         PortalSpawnPosition closestPosition = null;
         double closestDistance = Double.POSITIVE_INFINITY;
 
-        for(Location block : obsidianBlocks) {
+        for(IntVector block : obsidianBlocks) {
             // Because the above may only check every frameSize(th) block, we have to check the surrounding areas for portals here
             // This ends up being faster, since most chunks have very little obsidian in them
             for(int yOffset = -frameSize; yOffset <= frameSize; yOffset++) {
                 // We also must check surrounding blocks on the X/Z for portals, since otherwise it wouldn't work if the portal corners don't exist.
-                for(Vector offset : XZ_CHECK_OFFSETS) {
-                    Location offsetBlock = block.clone().add(offset);
-                    offsetBlock.setY(offsetBlock.getY() + yOffset);
+                for(IntVector offset : XZ_CHECK_OFFSETS) {
+                    int x = block.getX() + offset.getX();
+                    int y = block.getY() + yOffset;
+                    int z = block.getZ() + offset.getZ();
+
                     // Check the distance here to speed it up a bit if a location gets found
-                    double distance = offsetBlock.distance(context.getPreferredLocation());
+                    double distance = getDistance(preferred, x, y, z);
                     if (distance >= closestDistance) {continue;}
 
                     for (PortalDirection direction : CHECKED_DIRECTIONS) {
-                        if (validPortalExists(offsetBlock, direction, context.getSize())) {
-                            closestPosition = new PortalSpawnPosition(offsetBlock, context.getSize(), direction);
+                        if (validPortalExists(area, x, y, z, direction, context.getSize())) {
+                            closestPosition = new PortalSpawnPosition(new Location(preferred.getWorld(), x, y, z), context.getSize(), direction);
                             closestDistance = distance;
                         }
                     }
@@ -96,27 +106,50 @@ public class ExistingPortalChecker implements IChunkChecker    {
         return closestPosition;
     }
 
+    static double getDistance(Location location, int x, int y, int z) {
+        double dX = location.getX() - x;
+        double dY = location.getY() - y;
+        double dZ = location.getZ() - z;
+        return Math.sqrt(dX * dX + dY * dY + dZ * dZ);
+    }
+
     /**
-     * We first do a (relatively) quick check for all the obsidian blocks in the chunk to make this faster.
-     * @param yIncrement We can skip some of the blocks in the chunk for larger portals, because they are so tall we can skip even 1 out of 5 blocks and we'll always hit at least one obsidian
-     * @param worldLink Used for the minimum and maximum spawn height
-     * @return The list of obsidian blocks
+     * @return The distance from <code>location</code> to the closest block position in the box, all coordinates inclusive
      */
-    private Collection<Location> searchForObsidianBlocks(ChunkPosition chunkPos, int yIncrement, WorldLink worldLink) {
-        Collection<Location> result = new ArrayList<>();
+    static double getDistanceToBox(Location location, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        double dX = Math.max(0.0, Math.max(minX - location.getX(), location.getX() - maxX));
+        double dY = Math.max(0.0, Math.max(minY - location.getY(), location.getY() - maxY));
+        double dZ = Math.max(0.0, Math.max(minZ - location.getZ(), location.getZ() - maxZ));
+        return Math.sqrt(dX * dX + dY * dY + dZ * dZ);
+    }
 
-        Chunk chunk = chunkPos.getChunk();
-        // The yIncrement is used to skip checking some Y levels as for 5 tall portals, we only need to check every fifth Y coordinate to guarantee that we hit one of the obsidian blocks
+    /**
+     * Positions found in a chunk may be just outside it, since portals are searched for around the obsidian blocks in the chunk.
+     * @return The minimum distance from the preferred location of any position that {@link ExistingPortalChecker#findClosestInChunk} could return for this chunk
+     */
+    static double getMinimumDistance(ChunkPosition chunk, PortalSpawningContext context) {
+        int frameSize = context.getSize().getBlockY() + 2;
+        WorldLink link = context.getWorldLink();
+        return getDistanceToBox(context.getPreferredLocation(),
+                (chunk.x << 4) - 1, link.getMinSpawnY() - frameSize, (chunk.z << 4) - 1,
+                (chunk.x << 4) + 16, link.getMaxSpawnY() - 1 + frameSize, (chunk.z << 4) + 16
+        );
+    }
+
+    /**
+     * Only some of the obsidian blocks need to be checked for portals around them.
+     * @param yIncrement We can skip some of the blocks for larger portals, because they are so tall we can skip even 1 out of 5 Y levels and we'll always hit at least one obsidian
+     * @param worldLink Used for the minimum spawn height
+     * @return The obsidian blocks to check around
+     */
+    private List<IntVector> filterObsidianBlocks(List<IntVector> obsidianBlocks, int yIncrement, WorldLink worldLink) {
+        // For 5 tall portals, we only need to check every fifth Y coordinate to guarantee that we hit one of the obsidian blocks
         // Then we can just search the surrounding area for portal positions afterwards
         // This helps performance a ton
-        for(int y = worldLink.getMinSpawnY(); y < worldLink.getMaxSpawnY(); y += yIncrement) {
-            for(int z = 0; z < 16; z += 1) {
-                for(int x = 0; x < 16; x += 1) {
-                    Block block = chunk.getBlock(x, y, z);
-                    if(block.getType() == Material.OBSIDIAN) {
-                        result.add(block.getLocation());
-                    }
-                }
+        List<IntVector> result = new ArrayList<>();
+        for(IntVector block : obsidianBlocks) {
+            if((block.getY() - worldLink.getMinSpawnY()) % yIncrement == 0) {
+                result.add(block);
             }
         }
 
@@ -124,34 +157,34 @@ public class ExistingPortalChecker implements IChunkChecker    {
     }
 
     /**
-     * 
-     * @param location The bottom left corner of the portal (lowest of the coordinates)
+     * @param area Blocks around the portal
+     * @param x X coordinate of the bottom left corner of the portal (lowest of the coordinates)
+     * @param y Y coordinate of the bottom left corner
+     * @param z Z coordinate of the bottom left corner
      * @param direction Direction of the portal
      * @param size Size to test
-     * @return Whether a portal frame already exists at <code>location</code>.
+     * @return Whether a portal frame already exists at the position.
      */
-    private boolean validPortalExists(Location location, PortalDirection direction, Vector size) {
+    private boolean validPortalExists(ISpawnArea area, int x, int y, int z, PortalDirection direction, Vector size) {
         // We need the size of the actual portal frame, not the portal window
-        size = new Vector(size.getX() + 1.0, size.getY() + 1.0, 0.0);
+        int sizeX = size.getBlockX() + 1;
+        int sizeY = size.getBlockY() + 1;
+        boolean swapXZ = direction == PortalDirection.EAST || direction == PortalDirection.WEST;
 
         // Find which blocks of the portal frame are correct
         int blocks = 0;
         int validBlocks = 0;
-        for(int x = 0; x <= size.getX(); x++) {
-            for(int y = 0; y <= size.getY(); y++) {
+        for(int frameX = 0; frameX <= sizeX; frameX++) {
+            for(int frameY = 0; frameY <= sizeY; frameY++) {
                 // Corner blocks don't need to be taken into account - these aren't required
-                if((x == 0 && y == 0) || (x == size.getX() && y == 0) || (x == 0 && y == size.getY()) || (x == size.getX() && y == size.getY())) {
+                if((frameX == 0 || frameX == sizeX) && (frameY == 0 || frameY == sizeY)) {
                     continue;
                 }
 
-                boolean isFrame = x == 0 || y == 0 || x == size.getX() || y == size.getY();
-
-                Vector offset = direction.swapVector(new Vector(x, y, 0.0));
-
-                Location blockPos = location.clone().add(offset);
+                boolean isFrame = frameX == 0 || frameY == 0 || frameX == sizeX || frameY == sizeY;
 
                 blocks++;
-                Material type = blockPos.getBlock().getType();
+                Material type = swapXZ ? area.getType(x, y + frameY, z + frameX) : area.getType(x + frameX, y + frameY, z);
                 // Frame blocks must only be obsidian, interior blocks can be air or portal blocks
                 if(isFrame) {
                     if(type == Material.OBSIDIAN) {
@@ -166,12 +199,9 @@ public class ExistingPortalChecker implements IChunkChecker    {
         }
 
         double percentageValid = (double) validBlocks / (double) blocks;
-        boolean isValid = percentageValid >= VALIDITY_THRESHOLD;
-        // Make sure that there aren't any other portals too close
-        boolean isFarEnoughSpaced = portalManager.findClosestPortal(location, spawnConfig.getMinimumPortalSpawnDistance()) == null;
-        // Don't spawn portals outside the world border!
-        boolean isInsideWorldBorder = location.getWorld().getWorldBorder().isInside(location);
+        if(percentageValid < VALIDITY_THRESHOLD) {return false;}
 
-        return isInsideWorldBorder && isFarEnoughSpaced && isValid;
+        // Make sure that there aren't any other portals too close, and don't spawn portals outside the world border!
+        return area.isInsideWorldBorder(x, z) && !area.isPortalWithin(x, y, z, spawnConfig.getMinimumPortalSpawnDistance());
     }
 }
@@ -6,13 +6,15 @@ import org.jetbrains.annotations.Nullable;
 
 /**
  * Checks a chunk for either existing or new {@link PortalSpawnPosition}s.
+ * Checkers only read blocks from an {@link ISpawnArea}, so can be called from any thread.
  */
 public interface IChunkChecker {
     /**
      * Finds the closest valid position in <code>chunk</code>.
      * @param chunk The chunk to check
      * @param context The preferred spawn position and size
+     * @param area Blocks of the chunk and the chunks around it
      * @return The closest position in the chunk to the context's preferred position, or null if there is none.
      */
-    @Nullable PortalSpawnPosition findClosestInChunk(@NotNull ChunkPosition chunk, @NotNull PortalSpawningContext context);
+    @Nullable PortalSpawnPosition findClosestInChunk(@NotNull ChunkPosition chunk, @NotNull PortalSpawningContext context, @NotNull ISpawnArea area);
 }
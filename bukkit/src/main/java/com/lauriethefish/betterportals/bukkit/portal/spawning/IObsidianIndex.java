@@ -0,0 +1,76 @@
+package com.lauriethefish.betterportals.bukkit.portal.spawning;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Index of the obsidian blocks in each chunk of the worlds that portals can spawn in, so that finding existing portal frames doesn't need to scan every block in the search area.
+ * Chunks are indexed by scanning a snapshot of them, either when they're loaded or when a spawn search first captures them.
+ * After that, they're kept up to date from block change events, and the index is saved between restarts.
+ * Entries saved by a previous run are only used once their chunk has been loaded and its inhabited time shows that it hasn't changed.
+ */
+public interface IObsidianIndex {
+    /**
+     * Finds the indexed obsidian blocks in a chunk. Can be called from any thread.
+     * @param minY Minimum Y coordinate, inclusive
+     * @param maxY Maximum Y coordinate, exclusive
+     * @return The positions of the obsidian blocks between <code>minY</code> and <code>maxY</code>, or null if the chunk isn't indexed
+     */
+    @Nullable List<IntVector> findObsidian(@NotNull World world, int chunkX, int chunkZ, int minY, int maxY);
+
+    /**
+     * @return Whether the chunk has an up to date entry. Can be called from any thread
+     */
+    boolean isIndexed(@NotNull World world, int chunkX, int chunkZ);
+
+    /**
+     * Must be called on the main thread when a snapshot of a chunk that isn't indexed is captured, so that changes made while it's being scanned aren't lost.
+     * The capture must then be finished with either {@link IObsidianIndex#onChunkScanned} or {@link IObsidianIndex#onCaptureDiscarded}.
+     */
+    void onChunkCaptured(@NotNull Chunk chunk);
+
+    /**
+     * Adds a scanned chunk to the index. Can be called from any thread. Chunks that weren't captured with {@link IObsidianIndex#onChunkCaptured} are ignored.
+     * @param obsidian Every obsidian block in the chunk, packed with {@link ObsidianIndex#packPosition(int, int, int)}
+     */
+    void onChunkScanned(@NotNull World world, int chunkX, int chunkZ, @NotNull int[] obsidian);
+
+    /**
+     * Called on the main thread when a captured chunk won't be scanned after all.
+     */
+    void onCaptureDiscarded(@NotNull World world, int chunkX, int chunkZ);
+
+    /**
+     * Called on the main thread when a block may have been changed to or from obsidian.
+     * The block's type is checked at the end of the tick, since some events are called before the change happens.
+     */
+    void onBlockChanged(@NotNull Block block);
+
+    /**
+     * Checks the entry of the chunk from the previous run, if there is one, otherwise queues the chunk to be indexed if it isn't already.
+     */
+    void onChunkLoad(@NotNull Chunk chunk);
+
+    /**
+     * Saves the inhabited time of the chunk, so that its entry can be checked when it is next loaded.
+     */
+    void onChunkUnload(@NotNull Chunk chunk);
+
+    /**
+     * Applies block changes and scanned chunks, and captures some of the loaded chunks that are waiting to be indexed. Called every tick.
+     */
+    void update();
+
+    /**
+     * Saves the regions of the index that changed since they were last saved. Must be called on the main thread.
+     * @throws IOException If writing the files failed
+     */
+    void save() throws IOException;
+}
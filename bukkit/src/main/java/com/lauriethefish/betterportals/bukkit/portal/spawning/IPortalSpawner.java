@@ -15,4 +15,12 @@ public interface IPortalSpawner {
      * @return true once the spawn has started, false if no valid WorldLink was found.
      */
     boolean findAndSpawnDestination(@NotNull Location originPosition, @NotNull Vector size, Consumer<PortalSpawnPosition> onFinish);
+
+    /**
+     * Starts searching for the closest existing portal frame, or the closest new spawn position if there aren't any, without spawning a portal.
+     * @param context Position/size to search around
+     * @param onFinish Called with the resultant position, or null if none was found
+     * @return The running search
+     */
+    @NotNull AsyncPortalChecker findSpawnPosition(@NotNull PortalSpawningContext context, @NotNull Consumer<PortalSpawnPosition> onFinish);
 }
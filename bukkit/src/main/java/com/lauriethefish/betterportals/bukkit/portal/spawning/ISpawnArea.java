@@ -0,0 +1,48 @@
+package com.lauriethefish.betterportals.bukkit.portal.spawning;
+
+import org.bukkit.Material;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The blocks and other state of the world needed to check for portal spawn positions, captured on the main thread so that it can be read from any thread.
+ */
+public interface ISpawnArea {
+    /**
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @return Whether the blocks in the chunk were captured. Chunks that weren't generated may not be
+     */
+    boolean hasChunk(int chunkX, int chunkZ);
+
+    /**
+     * @return The type of the block, {@link Material#VOID_AIR} if it is above or below the world, or null if its chunk wasn't captured
+     */
+    @Nullable Material getType(int x, int y, int z);
+
+    /**
+     * @return The solid and air blocks in the chunk, or null if it wasn't captured
+     */
+    default @Nullable ChunkColumnSummary getColumnSummary(int chunkX, int chunkZ) {
+        return hasChunk(chunkX, chunkZ) ? ChunkColumnSummary.build(this, chunkX, chunkZ) : null;
+    }
+
+    /**
+     * @return The lowest Y coordinate in the world, inclusive
+     */
+    int getMinHeight();
+
+    /**
+     * @return The highest Y coordinate in the world, exclusive
+     */
+    int getMaxHeight();
+
+    /**
+     * @return Whether the block position is inside the world border
+     */
+    boolean isInsideWorldBorder(int x, int z);
+
+    /**
+     * @return Whether the origin of an existing portal is closer than <code>distance</code> to the block position
+     */
+    boolean isPortalWithin(int x, int y, int z, double distance);
+}
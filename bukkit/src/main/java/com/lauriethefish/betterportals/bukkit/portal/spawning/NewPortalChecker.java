@@ -6,7 +6,6 @@ import com.lauriethefish.betterportals.api.PortalDirection;
 import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
 import com.lauriethefish.betterportals.bukkit.config.PortalSpawnConfig;
 import com.lauriethefish.betterportals.bukkit.config.WorldLink;
-import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -14,6 +13,8 @@ import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
+
 /**
  * Finds new valid portal positions in a chunk
  *
@@ -27,76 +28,236 @@ import org.jetbrains.annotations.Nullable;
  */
 @Singleton
 public class NewPortalChecker implements IChunkChecker  {
-    private static final PortalDirection[] CHECKED_DIRECTIONS = new PortalDirection[] {
-            PortalDirection.NORTH,
-            PortalDirection.EAST
-    };
-
-    private final IPortalManager portalManager;
     private final PortalSpawnConfig spawnConfig;
 
     @Inject
-    public NewPortalChecker(IPortalManager portalManager, PortalSpawnConfig spawnConfig) {
-        this.portalManager = portalManager;
+    public NewPortalChecker(PortalSpawnConfig spawnConfig) {
         this.spawnConfig = spawnConfig;
     }
 
+    /**
+     * Finds the closest valid position using the {@link ChunkColumnSummary} of the chunk and the chunks around it.
+     * For each X/Z position in the chunk and each direction, the solid and air masks of the columns around the portal are combined into a mask of the valid Y coordinates.
+     * Gives the same result as calling {@link NewPortalChecker#isValidPortalSpawnPosition} for every position in the chunk.
+     */
     @Override
-    public @Nullable PortalSpawnPosition findClosestInChunk(@NotNull ChunkPosition chunk, @NotNull PortalSpawningContext context) {
+    public @Nullable PortalSpawnPosition findClosestInChunk(@NotNull ChunkPosition chunk, @NotNull PortalSpawningContext context, @NotNull ISpawnArea area) {
+        SpawnMasks masks = new SpawnMasks(chunk, context.getSize(), area);
+        if(!masks.hasAnyValid()) {return null;}
+
         PortalSpawnPosition currentClosest = null;
         double closestDistance = Double.POSITIVE_INFINITY;
 
+        Location preferred = context.getPreferredLocation();
+        int minX = chunk.x << 4;
+        int minZ = chunk.z << 4;
+
+        // Floors outside the world are never solid
         WorldLink link = context.getWorldLink();
-        for(int y = link.getMinSpawnY(); y < link.getMaxSpawnY(); y++) {
+        int minY = Math.max(link.getMinSpawnY(), area.getMinHeight());
+        int maxY = Math.min(link.getMaxSpawnY(), area.getMaxHeight());
+        for(int y = minY; y < maxY; y++) {
             for(int x = 0; x < 16; x++) {
                 for(int z = 0; z < 16; z++) {
-                    Location blockPos = chunk.getBottomLeft().add(x, y, z);
-                    // Do this here to avoid the expensive check if at-all possible
-                    double distance = blockPos.distance(context.getPreferredLocation());
+                    boolean validNorth = masks.isValid(masks.north, x, y, z);
+                    boolean validEast = masks.isValid(masks.east, x, y, z);
+                    if(!validNorth && !validEast) {continue;}
+
+                    double distance = ExistingPortalChecker.getDistance(preferred, minX + x, y, minZ + z);
                     if(distance >= closestDistance) {continue;}
+                    if(!isFarEnoughSpaced(area, minX + x, y, minZ + z)) {continue;}
+
+                    // If both directions are valid, the last one checked by isValidPortalSpawnPosition is used
+                    closestDistance = distance;
+                    PortalDirection direction = validEast ? PortalDirection.EAST : PortalDirection.NORTH;
+                    currentClosest = new PortalSpawnPosition(new Location(preferred.getWorld(), minX + x, y, minZ + z), context.getSize(), direction);
+                }
+            }
+        }
+
+        return currentClosest;
+    }
+
+    /**
+     * @return The minimum distance from the preferred location of any position that {@link NewPortalChecker#findClosestInChunk} could return for this chunk
+     */
+    static double getMinimumDistance(ChunkPosition chunk, PortalSpawningContext context) {
+        WorldLink link = context.getWorldLink();
+        return ExistingPortalChecker.getDistanceToBox(context.getPreferredLocation(),
+                chunk.x << 4, link.getMinSpawnY(), chunk.z << 4,
+                (chunk.x << 4) + 15, link.getMaxSpawnY() - 1, (chunk.z << 4) + 15
+        );
+    }
+
+    /**
+     * Masks of the valid Y coordinates at each X/Z position in a chunk, in the same layout as {@link ChunkColumnSummary}.
+     * Above the world counts as air, like {@link org.bukkit.Material#VOID_AIR}. Columns in chunks that weren't captured are neither solid or air, so positions next to them are never valid.
+     */
+    private static class SpawnMasks {
+        private final int minHeight;
+        private final int words;
+        private final long[] north;
+        private final long[] east;
+
+        private SpawnMasks(ChunkPosition chunk, Vector size, ISpawnArea area) {
+            // Size of the frame, minus one, as in isValidPortalSpawnPosition
+            int sizeX = size.getBlockX() + 1;
+            int sizeY = size.getBlockY() + 1;
+
+            this.minHeight = area.getMinHeight();
+            int height = area.getMaxHeight() - minHeight;
+            // Leave room for the air above the top of the world
+            this.words = (height + sizeY + 64) >> 6;
+
+            // Columns that can be read: one either side of the chunk for the blocks through the portal, and the width of the frame along it
+            int regionMinX = (chunk.x << 4) - 1;
+            int regionMinZ = (chunk.z << 4) - 1;
+            int regionSize = 17 + sizeX;
+
+            long[][] solid = new long[regionSize * regionSize][];
+            long[][] airWindow = new long[regionSize * regionSize][];
+            long[] empty = new long[words];
+
+            // Each summary is only fetched once, since they're built on demand
+            int minChunkX = regionMinX >> 4;
+            int minChunkZ = regionMinZ >> 4;
+            int summariesSize = ((regionMinX + regionSize - 1) >> 4) - minChunkX + 1;
+            ChunkColumnSummary[] summaries = new ChunkColumnSummary[summariesSize * summariesSize];
+            boolean[] summaryFetched = new boolean[summaries.length];
+
+            for(int rz = 0; rz < regionSize; rz++) {
+                for(int rx = 0; rx < regionSize; rx++) {
+                    int x = regionMinX + rx;
+                    int z = regionMinZ + rz;
+
+                    int summaryIndex = ((x >> 4) - minChunkX) * summariesSize + ((z >> 4) - minChunkZ);
+                    if(!summaryFetched[summaryIndex]) {
+                        summaries[summaryIndex] = area.getColumnSummary(x >> 4, z >> 4);
+                        summaryFetched[summaryIndex] = true;
+                    }
 
-                    // Make sure to check both directions for a valid spawn position
-                    for(PortalDirection direction : CHECKED_DIRECTIONS) {
-                        if(isValidPortalSpawnPosition(blockPos, direction, context.getSize())) {
-                            closestDistance = distance;
-                            currentClosest = new PortalSpawnPosition(blockPos, context.getSize(), direction);
+                    ChunkColumnSummary summary = summaries[summaryIndex];
+                    int column = rz * regionSize + rx;
+                    if(summary == null) {
+                        solid[column] = empty;
+                        airWindow[column] = empty;
+                        continue;
+                    }
+
+                    solid[column] = new long[words];
+                    summary.copySolid(x & 15, z & 15, solid[column]);
+
+                    long[] air = new long[words];
+                    summary.copyAir(x & 15, z & 15, air);
+                    for(int i = height; i < words * 64; i++) {
+                        air[i >> 6] |= 1L << (i & 63);
+                    }
+
+                    // Bit i is set if the blocks from i + 1 to i + sizeY - 1 are all air, i.e. the inside of a portal with its floor at i
+                    long[] window = new long[words];
+                    Arrays.fill(window, -1L);
+                    for(int offset = 1; offset < sizeY; offset++) {
+                        andShiftedRight(window, air, offset);
+                    }
+                    airWindow[column] = window;
+                }
+            }
+
+            this.north = new long[256 * words];
+            this.east = new long[256 * words];
+            Arrays.fill(north, -1L);
+            Arrays.fill(east, -1L);
+
+            for(int x = 0; x < 16; x++) {
+                for(int z = 0; z < 16; z++) {
+                    int offset = (z * 16 + x) * words;
+                    for(int frameZ = -1; frameZ <= 1; frameZ++) {
+                        for(int frameX = 0; frameX <= sizeX; frameX++) {
+                            boolean isInside = frameX != 0 && frameX != sizeX;
+
+                            // Region coordinates are offset by one, since the region starts one block before the chunk
+                            int northColumn = (z + frameZ + 1) * regionSize + (x + frameX + 1);
+                            int eastColumn = (z + frameX + 1) * regionSize + (x + frameZ + 1);
+                            and(north, offset, solid[northColumn]);
+                            and(east, offset, solid[eastColumn]);
+                            if(isInside) {
+                                and(north, offset, airWindow[northColumn]);
+                                and(east, offset, airWindow[eastColumn]);
+                            }
                         }
                     }
                 }
             }
         }
 
-        return currentClosest;
+        private void and(long[] dest, int offset, long[] mask) {
+            for(int i = 0; i < words; i++) {
+                dest[offset + i] &= mask[i];
+            }
+        }
+
+        private boolean isValid(long[] mask, int x, int y, int z) {
+            int i = y - minHeight;
+            return (mask[(z * 16 + x) * words + (i >> 6)] & (1L << (i & 63))) != 0;
+        }
+
+        private boolean hasAnyValid() {
+            for(int i = 0; i < north.length; i++) {
+                if(north[i] != 0 || east[i] != 0) {return true;}
+            }
+            return false;
+        }
     }
 
-    public boolean isValidPortalSpawnPosition(Location location, PortalDirection direction, Vector size) {
-        size = new Vector(size.getX() + 1, size.getY() + 1, 0.0);
+    // dest &= (src >>> shift), treating src as one long bit array
+    private static void andShiftedRight(long[] dest, long[] src, int shift) {
+        int wordShift = shift >> 6;
+        int bitShift = shift & 63;
+        for(int i = 0; i < dest.length; i++) {
+            int srcIndex = i + wordShift;
+            long low = srcIndex < src.length ? src[srcIndex] : 0;
+            long high = srcIndex + 1 < src.length ? src[srcIndex + 1] : 0;
+            dest[i] &= bitShift == 0 ? low : (low >>> bitShift) | (high << (64 - bitShift));
+        }
+    }
 
-        for(int z = -1; z <= 1; z++) {
-            for (int x = 0; x <= size.getX(); x++) {
-                for (int y = 0; y <= size.getY(); y++) {
-                    Vector frameRelativePos = new Vector(x, y, z);
+    /**
+     * @param area Blocks around the position. Blocks in chunks that weren't captured count as invalid
+     * @param x X coordinate of the bottom left of the portal frame
+     * @param y Y coordinate of the bottom left of the portal frame
+     * @param z Z coordinate of the bottom left of the portal frame
+     * @param direction Direction of the portal
+     * @param size Size of the portal window
+     * @return Whether a portal could be spawned here
+     */
+    public boolean isValidPortalSpawnPosition(ISpawnArea area, int x, int y, int z, PortalDirection direction, Vector size) {
+        int sizeX = size.getBlockX() + 1;
+        int sizeY = size.getBlockY() + 1;
+        boolean swapXZ = direction == PortalDirection.EAST || direction == PortalDirection.WEST;
 
-                    Location blockPos = location.clone().add(direction.swapVector(frameRelativePos));
-                    Material type = blockPos.getBlock().getType();
+        for(int frameZ = -1; frameZ <= 1; frameZ++) {
+            for (int frameX = 0; frameX <= sizeX; frameX++) {
+                for (int frameY = 0; frameY <= sizeY; frameY++) {
+                    Material type = swapXZ ? area.getType(x + frameZ, y + frameY, z + frameX) : area.getType(x + frameX, y + frameY, z + frameZ);
+                    if(type == null) {return false;}
 
-                    boolean isFrame = x == 0 || y == 0 || x == size.getX() || y == size.getY();
+                    boolean isFrame = frameX == 0 || frameY == 0 || frameX == sizeX || frameY == sizeY;
 
                     if ((!isFrame) && !MaterialUtil.isAir(type)) { // Portal block positions must be air
                         return false;
                     }
-                    if (y == 0 && (!type.isSolid())) { // The floor blocks must be solid
+                    if (frameY == 0 && (!type.isSolid())) { // The floor blocks must be solid
                         return false;
                     }
                 }
             }
         }
 
-        // Make sure that there aren't any other portals too close
-        boolean isFarEnoughSpaced = portalManager.findClosestPortal(location, spawnConfig.getMinimumPortalSpawnDistance()) == null;
-        // Don't spawn portals outside the world border!
-        boolean isInsideWorldBorder = location.getWorld().getWorldBorder().isInside(location);
+        return isFarEnoughSpaced(area, x, y, z);
+    }
 
-        return isFarEnoughSpaced && isInsideWorldBorder;
+    // Make sure that there aren't any other portals too close, and don't spawn portals outside the world border!
+    private boolean isFarEnoughSpaced(ISpawnArea area, int x, int y, int z) {
+        return area.isInsideWorldBorder(x, z) && !area.isPortalWithin(x, y, z, spawnConfig.getMinimumPortalSpawnDistance());
     }
 }
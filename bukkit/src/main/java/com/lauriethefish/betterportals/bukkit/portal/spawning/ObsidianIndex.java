@@ -0,0 +1,592 @@
+package com.lauriethefish.betterportals.bukkit.portal.spawning;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
+import com.lauriethefish.betterportals.bukkit.config.PortalSpawnConfig;
+import com.lauriethefish.betterportals.bukkit.tasks.WorkerPool;
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
+import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the obsidian blocks of each indexed chunk as a sorted array of packed positions, so that the blocks within a range of Y coordinates can be found with a binary search.
+ * Entries are grouped into {@link ObsidianRegion}s, so that chunks without any obsidian don't need a map entry each.
+ * The arrays are replaced rather than modified, so they can be read from any thread.
+ * Each region is saved to <code>plugins/BetterPortals/data/obsidian/&lt;world UUID&gt;/&lt;region X&gt;.&lt;region Z&gt;.dat</code> when it changes, and each world is loaded on the worker threads.
+ */
+@Singleton
+public class ObsidianIndex implements IObsidianIndex {
+    private static final int[] EMPTY_CHUNK = new int[0];
+
+    // Chunks loaded faster than this are dropped, and are instead indexed when they're next loaded or captured by a spawn search
+    private static final int MAX_QUEUED_CHUNKS = 4096;
+    private static final long INDEXING_TIME_PER_TICK_NANOS = 1_000_000;
+
+    private final JavaPlugin pl;
+    private final Logger logger;
+    private final PortalSpawnConfig spawnConfig;
+    private final MiscConfig miscConfig;
+    private final WorkerPool workerPool;
+
+    // Inhabited time was added in 1.15.2, and without it entries from previous runs are never trusted
+    private final boolean canVerifyEntries = VersionUtil.isMcVersionAtLeast("1.15.2");
+
+    private final Map<UUID, WorldIndex> worlds = new ConcurrentHashMap<>();
+
+    // Everything below is only used on the main thread, apart from the scanned chunks and loaded worlds queues
+    private final Queue<ScannedChunk> scannedChunks = new ConcurrentLinkedQueue<>();
+    private final Queue<LoadedWorld> loadedWorlds = new ConcurrentLinkedQueue<>();
+    private final Set<UUID> loadingWorlds = new HashSet<>();
+    private final Set<Block> changedBlocks = new HashSet<>();
+    private final Set<Chunk> queuedChunks = new LinkedHashSet<>();
+    private int ticksSinceSave;
+
+    private static class WorldIndex {
+        private final Map<Long, ObsidianRegion> regions;
+        // Chunks that have been captured but not scanned yet, and the blocks changed in them since they were captured
+        private final Map<Long, ChunkCapture> captures = new HashMap<>();
+
+        private WorldIndex(Map<Long, ObsidianRegion> regions) {
+            this.regions = regions;
+        }
+
+        private @Nullable ObsidianRegion getRegion(int chunkX, int chunkZ) {
+            return regions.get(getChunkKey(chunkX >> ObsidianRegion.SHIFT, chunkZ >> ObsidianRegion.SHIFT));
+        }
+
+        private boolean isTrusted(int chunkX, int chunkZ) {
+            ObsidianRegion region = getRegion(chunkX, chunkZ);
+            return region != null && region.isTrusted(chunkX, chunkZ);
+        }
+    }
+
+    private static class ChunkCapture {
+        private int references;
+        private long inhabitedTime;
+        private final List<Block> changedBlocks = new ArrayList<>();
+    }
+
+    private static class LoadedWorld {
+        private final UUID worldId;
+        private final Map<Long, ObsidianRegion> regions;
+
+        private LoadedWorld(UUID worldId, Map<Long, ObsidianRegion> regions) {
+            this.worldId = worldId;
+            this.regions = regions;
+        }
+    }
+
+    private static class ScannedChunk {
+        private final World world;
+        private final int chunkX;
+        private final int chunkZ;
+        private final int[] obsidian;
+
+        private ScannedChunk(World world, int chunkX, int chunkZ, int[] obsidian) {
+            this.world = world;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.obsidian = obsidian;
+        }
+    }
+
+    @Inject
+    public ObsidianIndex(JavaPlugin pl, Logger logger, PortalSpawnConfig spawnConfig, MiscConfig miscConfig, WorkerPool workerPool) {
+        this.pl = pl;
+        this.logger = logger;
+        this.spawnConfig = spawnConfig;
+        this.miscConfig = miscConfig;
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * Packs a block position into an int, with the Y coordinate in the upper bits so that sorting by the packed value sorts by Y.
+     * @param x X coordinate. Only the position within the chunk is stored
+     * @param y Y coordinate
+     * @param z Z coordinate. Only the position within the chunk is stored
+     * @return The packed position
+     */
+    public static int packPosition(int x, int y, int z) {
+        return (y << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Finds every obsidian block in a snapshot.
+     * @return The sorted, packed positions of the obsidian blocks
+     */
+    public static int[] scanSnapshot(@NotNull ChunkSnapshot snapshot, int minHeight, int maxHeight) {
+        IntArrayBuilder result = new IntArrayBuilder();
+        for(int y = minHeight; y < maxHeight; y++) {
+            for(int z = 0; z < 16; z++) {
+                for(int x = 0; x < 16; x++) {
+                    if(snapshot.getBlockType(x, y, z) == Material.OBSIDIAN) {
+                        result.add(packPosition(x, y, z));
+                    }
+                }
+            }
+        }
+
+        return result.toArray();
+    }
+
+    /**
+     * Finds every obsidian block in a chunk of a spawn area.
+     * @return The sorted, packed positions of the obsidian blocks
+     */
+    public static int[] scanArea(@NotNull ISpawnArea area, int chunkX, int chunkZ) {
+        IntArrayBuilder result = new IntArrayBuilder();
+        int minX = chunkX << 4;
+        int minZ = chunkZ << 4;
+        for(int y = area.getMinHeight(); y < area.getMaxHeight(); y++) {
+            for(int z = minZ; z < minZ + 16; z++) {
+                for(int x = minX; x < minX + 16; x++) {
+                    if(area.getType(x, y, z) == Material.OBSIDIAN) {
+                        result.add(packPosition(x, y, z));
+                    }
+                }
+            }
+        }
+
+        return result.toArray();
+    }
+
+    // Avoids boxing every position while scanning
+    private static class IntArrayBuilder {
+        private int[] values = new int[16];
+        private int size;
+
+        private void add(int value) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return size == 0 ? EMPTY_CHUNK : Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Finds the index of a world without loading it, so can be called from any thread.
+     * @return The index, or null if the world isn't indexed or hasn't finished loading
+     */
+    private @Nullable WorldIndex getWorldIndex(@NotNull World world) {
+        return worlds.get(world.getUID());
+    }
+
+    /**
+     * Finds the index of a world, and starts loading it on the worker threads if it hasn't been loaded yet.
+     * Only worlds that portals can be spawned in are indexed. Must be called on the main thread.
+     * @return The index, or null if the world isn't indexed or hasn't finished loading
+     */
+    private @Nullable WorldIndex getOrLoadWorldIndex(@NotNull World world) {
+        if(!spawnConfig.isSpawnDestination(world)) {return null;}
+
+        UUID worldId = world.getUID();
+        WorldIndex worldIndex = worlds.get(worldId);
+        if(worldIndex == null && loadingWorlds.add(worldId)) {
+            workerPool.execute(() -> loadedWorlds.add(new LoadedWorld(worldId, loadWorld(worldId))));
+        }
+        return worldIndex;
+    }
+
+    @Override
+    public @Nullable List<IntVector> findObsidian(@NotNull World world, int chunkX, int chunkZ, int minY, int maxY) {
+        WorldIndex worldIndex = getWorldIndex(world);
+        if(worldIndex == null) {return null;}
+
+        ObsidianRegion region = worldIndex.getRegion(chunkX, chunkZ);
+        int[] obsidian = region == null ? null : region.getObsidian(chunkX, chunkZ);
+        if(obsidian == null) {return null;}
+
+        return unpackRange(obsidian, chunkX, chunkZ, minY, maxY);
+    }
+
+    /**
+     * @param obsidian Sorted, packed positions of the obsidian blocks in a chunk
+     * @param minY Minimum Y coordinate, inclusive
+     * @param maxY Maximum Y coordinate, exclusive
+     * @return The positions between <code>minY</code> and <code>maxY</code>
+     */
+    public static List<IntVector> unpackRange(@NotNull int[] obsidian, int chunkX, int chunkZ, int minY, int maxY) {
+        // The positions are sorted by Y, so the ones within range are next to each other
+        int start = findFirstAtLeast(obsidian, minY << 8);
+        int end = findFirstAtLeast(obsidian, maxY << 8);
+
+        List<IntVector> result = new ArrayList<>(end - start);
+        for(int i = start; i < end; i++) {
+            int packed = obsidian[i];
+            result.add(new IntVector((chunkX << 4) | (packed & 15), packed >> 8, (chunkZ << 4) | ((packed >> 4) & 15)));
+        }
+        return result;
+    }
+
+    private static int findFirstAtLeast(int[] values, int value) {
+        int low = 0;
+        int high = values.length;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(values[middle] < value) {
+                low = middle + 1;
+            }   else    {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public boolean isIndexed(@NotNull World world, int chunkX, int chunkZ) {
+        WorldIndex worldIndex = getWorldIndex(world);
+        return worldIndex != null && worldIndex.isTrusted(chunkX, chunkZ);
+    }
+
+    @Override
+    public void onChunkCaptured(@NotNull Chunk chunk) {
+        WorldIndex worldIndex = getOrLoadWorldIndex(chunk.getWorld());
+        if(worldIndex == null || worldIndex.isTrusted(chunk.getX(), chunk.getZ())) {return;}
+
+        ChunkCapture capture = worldIndex.captures.computeIfAbsent(getChunkKey(chunk.getX(), chunk.getZ()), (k) -> new ChunkCapture());
+        capture.references++;
+        capture.inhabitedTime = getInhabitedTime(chunk);
+    }
+
+    private long getInhabitedTime(Chunk chunk) {
+        return canVerifyEntries ? chunk.getInhabitedTime() : -1;
+    }
+
+    @Override
+    public void onChunkScanned(@NotNull World world, int chunkX, int chunkZ, @NotNull int[] obsidian) {
+        scannedChunks.add(new ScannedChunk(world, chunkX, chunkZ, obsidian));
+    }
+
+    @Override
+    public void onCaptureDiscarded(@NotNull World world, int chunkX, int chunkZ) {
+        WorldIndex worldIndex = getOrLoadWorldIndex(world);
+        if(worldIndex == null) {return;}
+
+        // The chunk may have been scanned, but not added yet
+        addScannedChunks();
+
+        long key = getChunkKey(chunkX, chunkZ);
+        ChunkCapture capture = worldIndex.captures.get(key);
+        if(capture != null && --capture.references <= 0) {
+            worldIndex.captures.remove(key);
+        }
+    }
+
+    @Override
+    public void onBlockChanged(@NotNull Block block) {
+        WorldIndex worldIndex = getOrLoadWorldIndex(block.getWorld());
+        if(worldIndex == null) {return;}
+
+        int chunkX = block.getX() >> 4;
+        int chunkZ = block.getZ() >> 4;
+        if(worldIndex.isTrusted(chunkX, chunkZ)) {
+            changedBlocks.add(block);
+            return;
+        }
+
+        // The scan of this chunk may have missed the change, so it's checked once the scan is added
+        ChunkCapture capture = worldIndex.captures.get(getChunkKey(chunkX, chunkZ));
+        if(capture != null) {
+            capture.changedBlocks.add(block);
+        }
+    }
+
+    @Override
+    public void onChunkLoad(@NotNull Chunk chunk) {
+        WorldIndex worldIndex = getOrLoadWorldIndex(chunk.getWorld());
+        if(worldIndex == null) {return;}
+
+        int chunkX = chunk.getX();
+        int chunkZ = chunk.getZ();
+        ObsidianRegion region = worldIndex.getRegion(chunkX, chunkZ);
+        if(region != null) {
+            if(region.isTrusted(chunkX, chunkZ)) {return;}
+
+            // The chunk may have been changed while the index wasn't running, which would also have increased its inhabited time
+            if(region.isUnverified(chunkX, chunkZ)) {
+                if(canVerifyEntries && region.verify(chunkX, chunkZ, chunk.getInhabitedTime())) {return;}
+                logger.finer("Obsidian index entry for chunk (%d, %d) is out of date", chunkX, chunkZ);
+            }
+        }
+
+        if(queuedChunks.size() < MAX_QUEUED_CHUNKS) {
+            queuedChunks.add(chunk);
+        }
+    }
+
+    @Override
+    public void onChunkUnload(@NotNull Chunk chunk) {
+        if(!canVerifyEntries) {return;}
+        WorldIndex worldIndex = getWorldIndex(chunk.getWorld());
+        if(worldIndex == null) {return;}
+
+        // Changes in the chunk are only checked at the end of the tick, after which it isn't loaded
+        updateChangedBlocks();
+
+        ObsidianRegion region = worldIndex.getRegion(chunk.getX(), chunk.getZ());
+        if(region != null) {
+            region.updateInhabitedTime(chunk.getX(), chunk.getZ(), chunk.getInhabitedTime());
+        }
+    }
+
+    @Override
+    public void update() {
+        addLoadedWorlds();
+        addScannedChunks();
+        updateChangedBlocks();
+        indexQueuedChunks();
+
+        int saveInterval = miscConfig.getPortalSaveInterval();
+        if(saveInterval > 0 && ++ticksSinceSave >= saveInterval) {
+            ticksSinceSave = 0;
+            Bukkit.getScheduler().runTaskAsynchronously(pl, () -> {
+                try {
+                    saveChangedRegions();
+                }   catch(IOException ex) {
+                    logger.warning("Error occurred while saving the obsidian index. Check your file permissions!");
+                    ex.printStackTrace();
+                }
+            });
+        }
+    }
+
+    private void updateChangedBlocks() {
+        for(Block block : changedBlocks) {
+            updateBlock(block);
+        }
+        changedBlocks.clear();
+    }
+
+    private void addLoadedWorlds() {
+        LoadedWorld loaded;
+        while((loaded = loadedWorlds.poll()) != null) {
+            loadingWorlds.remove(loaded.worldId);
+            World world = Bukkit.getWorld(loaded.worldId);
+            if(world == null) {continue;}
+
+            worlds.put(loaded.worldId, new WorldIndex(new ConcurrentHashMap<>(loaded.regions)));
+            // Chunks loaded while the index was loading still need to be verified or indexed
+            for(Chunk chunk : world.getLoadedChunks()) {
+                onChunkLoad(chunk);
+            }
+        }
+    }
+
+    private void addScannedChunks() {
+        ScannedChunk scanned;
+        while((scanned = scannedChunks.poll()) != null) {
+            addScannedChunk(scanned);
+        }
+    }
+
+    private void addScannedChunk(ScannedChunk scanned) {
+        WorldIndex worldIndex = getWorldIndex(scanned.world);
+        if(worldIndex == null) {return;}
+
+        int chunkX = scanned.chunkX;
+        int chunkZ = scanned.chunkZ;
+        ChunkCapture capture = worldIndex.captures.remove(getChunkKey(chunkX, chunkZ));
+        // Either another scan of the chunk was added first, or the capture wasn't tracked, in which case changes since it was captured may be missing
+        if(capture == null || worldIndex.isTrusted(chunkX, chunkZ)) {return;}
+
+        // Checking the changed blocks would load the chunk again, so it's left to be indexed the next time that it's loaded
+        boolean isLoaded = scanned.world.isChunkLoaded(chunkX, chunkZ);
+        if(!capture.changedBlocks.isEmpty() && !isLoaded) {return;}
+
+        long inhabitedTime = isLoaded ? getInhabitedTime(scanned.world.getChunkAt(chunkX, chunkZ)) : capture.inhabitedTime;
+        worldIndex.regions.computeIfAbsent(getChunkKey(chunkX >> ObsidianRegion.SHIFT, chunkZ >> ObsidianRegion.SHIFT), (k) -> new ObsidianRegion())
+                .put(chunkX, chunkZ, scanned.obsidian, inhabitedTime);
+        for(Block block : capture.changedBlocks) {
+            updateBlock(block);
+        }
+    }
+
+    private void updateBlock(Block block) {
+        WorldIndex worldIndex = getWorldIndex(block.getWorld());
+        if(worldIndex == null) {return;}
+
+        int chunkX = block.getX() >> 4;
+        int chunkZ = block.getZ() >> 4;
+        if(!block.getWorld().isChunkLoaded(chunkX, chunkZ)) {return;}
+
+        ObsidianRegion region = worldIndex.getRegion(chunkX, chunkZ);
+        int[] current = region == null ? null : region.getObsidian(chunkX, chunkZ);
+        if(current == null) {return;}
+
+        int packed = packPosition(block.getX(), block.getY(), block.getZ());
+        int index = Arrays.binarySearch(current, packed);
+        boolean isObsidian = block.getType() == Material.OBSIDIAN;
+        if(isObsidian == (index >= 0)) {return;}
+
+        int[] updated;
+        if(isObsidian) {
+            int insertionPoint = -index - 1;
+            updated = new int[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, insertionPoint);
+            updated[insertionPoint] = packed;
+            System.arraycopy(current, insertionPoint, updated, insertionPoint + 1, current.length - insertionPoint);
+        }   else    {
+            updated = new int[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        }
+
+        region.setObsidian(chunkX, chunkZ, updated);
+    }
+
+    // Captures queued chunks within the time limit, then scans them on the worker threads
+    private void indexQueuedChunks() {
+        long startTime = System.nanoTime();
+        Iterator<Chunk> iterator = queuedChunks.iterator();
+        while(iterator.hasNext() && System.nanoTime() - startTime < INDEXING_TIME_PER_TICK_NANOS) {
+            Chunk chunk = iterator.next();
+            iterator.remove();
+
+            World world = chunk.getWorld();
+            if(!chunk.isLoaded()) {continue;}
+            WorldIndex worldIndex = getWorldIndex(world);
+            if(worldIndex == null || worldIndex.isTrusted(chunk.getX(), chunk.getZ())) {continue;}
+
+            int chunkX = chunk.getX();
+            int chunkZ = chunk.getZ();
+            ChunkSnapshot snapshot = chunk.getChunkSnapshot(false, false, false);
+            onChunkCaptured(chunk);
+
+            int minHeight = HeightUtil.getMinHeight(world);
+            int maxHeight = HeightUtil.getMaxHeight(world);
+            workerPool.execute(() -> onChunkScanned(world, chunkX, chunkZ, scanSnapshot(snapshot, minHeight, maxHeight)));
+        }
+    }
+
+    private Path getIndexFolder() {
+        return pl.getDataFolder().toPath().resolve("data").resolve("obsidian");
+    }
+
+    private Path getWorldFolder(UUID worldId) {
+        return getIndexFolder().resolve(worldId.toString());
+    }
+
+    // Called on the worker threads
+    private Map<Long, ObsidianRegion> loadWorld(UUID worldId) {
+        Map<Long, ObsidianRegion> regions = new HashMap<>();
+
+        Path folder = getWorldFolder(worldId);
+        if(!Files.isDirectory(folder)) {return regions;}
+
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*.dat")) {
+            for(Path file : files) {
+                // Files are named <region X>.<region Z>.dat
+                String[] parts = file.getFileName().toString().split("\\.");
+                long key;
+                try {
+                    key = getChunkKey(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                }   catch(NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    logger.warning("Ignoring unknown obsidian index file %s", file);
+                    continue;
+                }
+
+                try(DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+                    regions.put(key, ObsidianRegion.read(inputStream));
+                }   catch(IOException ex) {
+                    // The index only speeds up the search, so it's fine to index the region again
+                    logger.warning("Failed to load obsidian index file %s, it will be rebuilt", file);
+                    ex.printStackTrace();
+                }
+            }
+        }   catch(IOException ex) {
+            logger.warning("Failed to list the obsidian index files for world %s, it will be rebuilt", worldId);
+            ex.printStackTrace();
+        }
+
+        logger.fine("Loaded obsidian index of %d regions for world %s", regions.size(), worldId);
+        return regions;
+    }
+
+    @Override
+    public void save() throws IOException {
+        updateChangedBlocks();
+
+        // Entries of loaded chunks are up to date, so their inhabited time is saved for checking them next time
+        if(canVerifyEntries) {
+            for(Map.Entry<UUID, WorldIndex> entry : worlds.entrySet()) {
+                World world = Bukkit.getWorld(entry.getKey());
+                if(world == null) {continue;}
+
+                for(Chunk chunk : world.getLoadedChunks()) {
+                    ObsidianRegion region = entry.getValue().getRegion(chunk.getX(), chunk.getZ());
+                    if(region != null) {
+                        region.updateInhabitedTime(chunk.getX(), chunk.getZ(), chunk.getInhabitedTime());
+                    }
+                }
+            }
+        }
+
+        saveChangedRegions();
+    }
+
+    // Only the regions that changed since the last save are written
+    private synchronized void saveChangedRegions() throws IOException {
+        int savedCount = 0;
+        for(Map.Entry<UUID, WorldIndex> entry : worlds.entrySet()) {
+            Path folder = getWorldFolder(entry.getKey());
+
+            for(Map.Entry<Long, ObsidianRegion> regionEntry : entry.getValue().regions.entrySet()) {
+                ObsidianRegion region = regionEntry.getValue();
+                if(!region.takeDirty()) {continue;}
+
+                long key = regionEntry.getKey();
+                String fileName = (int) (key >> 32) + "." + (int) key + ".dat";
+                Path path = folder.resolve(fileName);
+                Path tempPath = folder.resolve(fileName + ".tmp");
+
+                try {
+                    Files.createDirectories(folder);
+                    try(DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempPath))))) {
+                        region.write(outputStream);
+                    }
+
+                    // Avoid leaving a half written file if the server stops while saving
+                    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }   catch(IOException ex) {
+                    region.markDirty();
+                    throw ex;
+                }
+                savedCount++;
+            }
+        }
+
+        if(savedCount > 0) {
+            logger.fine("Saved %d obsidian index regions", savedCount);
+        }
+    }
+}
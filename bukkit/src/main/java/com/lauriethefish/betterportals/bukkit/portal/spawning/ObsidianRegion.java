@@ -0,0 +1,204 @@
+package com.lauriethefish.betterportals.bukkit.portal.spawning;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Obsidian index entries for a 32x32 chunk region, the same size as a Minecraft region file.
+ * Whether each chunk has an entry is stored in bitsets, and only chunks with obsidian in them store their positions, so a region takes up around 8KB however many chunks are indexed.
+ * Entries loaded from a previous run are unverified until the chunk's inhabited time shows that it hasn't been changed since, since the blocks could've been changed while the index wasn't running.
+ * Must only be modified on the main thread, but the trusted entries can be read from any thread.
+ */
+public class ObsidianRegion {
+    public static final int SHIFT = 5;
+    private static final int MASK = (1 << SHIFT) - 1;
+    private static final int CHUNK_COUNT = 1 << (SHIFT * 2);
+    private static final int FILE_VERSION = 2;
+    private static final int[] EMPTY_CHUNK = new int[0];
+
+    // Entries that are up to date, which can be used by spawn searches
+    private final AtomicLongArray trusted = new AtomicLongArray(CHUNK_COUNT / 64);
+    // Entries loaded from the previous run
+    private final long[] unverified = new long[CHUNK_COUNT / 64];
+    // Inhabited time of each chunk when its entry was last known to be up to date
+    private final long[] inhabitedTimes = new long[CHUNK_COUNT];
+    private final Map<Integer, int[]> obsidian = new ConcurrentHashMap<>();
+
+    private volatile boolean dirty = false;
+
+    private static int getIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & MASK) << SHIFT) | (chunkX & MASK);
+    }
+
+    private static boolean getBit(long word, int index) {
+        return (word & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     * @return Whether the chunk has an entry that is up to date. Can be called from any thread
+     */
+    public boolean isTrusted(int chunkX, int chunkZ) {
+        int index = getIndex(chunkX, chunkZ);
+        return getBit(trusted.get(index >> 6), index);
+    }
+
+    /**
+     * @return Whether the chunk has an entry from a previous run that hasn't been checked yet
+     */
+    public boolean isUnverified(int chunkX, int chunkZ) {
+        int index = getIndex(chunkX, chunkZ);
+        return getBit(unverified[index >> 6], index);
+    }
+
+    /**
+     * Gets the obsidian in a chunk. Can be called from any thread.
+     * @return The sorted, packed positions of the obsidian blocks in the chunk, or null if it doesn't have a trusted entry
+     */
+    public @Nullable int[] getObsidian(int chunkX, int chunkZ) {
+        if(!isTrusted(chunkX, chunkZ)) {return null;}
+
+        return obsidian.getOrDefault(getIndex(chunkX, chunkZ), EMPTY_CHUNK);
+    }
+
+    /**
+     * Sets the entry of a chunk, which is then trusted.
+     * @param obsidian The sorted, packed positions of every obsidian block in the chunk
+     * @param inhabitedTime Inhabited time of the chunk when the entry was up to date
+     */
+    public void put(int chunkX, int chunkZ, @NotNull int[] obsidian, long inhabitedTime) {
+        int index = getIndex(chunkX, chunkZ);
+        setObsidian(index, obsidian);
+        inhabitedTimes[index] = inhabitedTime;
+
+        // The positions are set first, so that threads that see the entry as trusted also see its positions
+        unverified[index >> 6] &= ~(1L << (index & 63));
+        trusted.set(index >> 6, trusted.get(index >> 6) | (1L << (index & 63)));
+        dirty = true;
+    }
+
+    /**
+     * Replaces the positions of a trusted entry after a block in it changed.
+     */
+    public void setObsidian(int chunkX, int chunkZ, @NotNull int[] obsidian) {
+        setObsidian(getIndex(chunkX, chunkZ), obsidian);
+        dirty = true;
+    }
+
+    private void setObsidian(int index, int[] obsidian) {
+        if(obsidian.length == 0) {
+            this.obsidian.remove(index);
+        }   else    {
+            this.obsidian.put(index, obsidian);
+        }
+    }
+
+    /**
+     * Checks an unverified entry once its chunk is loaded.
+     * @param inhabitedTime Current inhabited time of the chunk
+     * @return Whether the entry is now trusted. If not, it is removed
+     */
+    public boolean verify(int chunkX, int chunkZ, long inhabitedTime) {
+        int index = getIndex(chunkX, chunkZ);
+        if(!getBit(unverified[index >> 6], index)) {return false;}
+
+        unverified[index >> 6] &= ~(1L << (index & 63));
+        if(inhabitedTimes[index] == inhabitedTime) {
+            trusted.set(index >> 6, trusted.get(index >> 6) | (1L << (index & 63)));
+            return true;
+        }   else    {
+            obsidian.remove(index);
+            dirty = true;
+            return false;
+        }
+    }
+
+    /**
+     * Updates the inhabited time saved for a trusted entry, which increases while players are nearby.
+     * Called when the chunk unloads, or before saving, while the entry is known to be up to date.
+     * @param inhabitedTime Current inhabited time of the chunk
+     */
+    public void updateInhabitedTime(int chunkX, int chunkZ, long inhabitedTime) {
+        int index = getIndex(chunkX, chunkZ);
+        if(!getBit(trusted.get(index >> 6), index) || inhabitedTimes[index] == inhabitedTime) {return;}
+
+        inhabitedTimes[index] = inhabitedTime;
+        dirty = true;
+    }
+
+    /**
+     * Clears the changed flag of the region.
+     * @return Whether the region has changed since this was last called
+     */
+    public boolean takeDirty() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Writes every entry in the region, trusted or not.
+     * Entries may be changed on the main thread while writing, in which case the region is marked as changed and saved again later.
+     */
+    public void write(@NotNull DataOutputStream outputStream) throws IOException {
+        long[] entries = new long[unverified.length];
+        for(int i = 0; i < entries.length; i++) {
+            entries[i] = trusted.get(i) | unverified[i];
+        }
+
+        outputStream.writeInt(FILE_VERSION);
+        for(long word : entries) {
+            outputStream.writeLong(word);
+        }
+
+        for(int index = 0; index < CHUNK_COUNT; index++) {
+            if(!getBit(entries[index >> 6], index)) {continue;}
+
+            outputStream.writeLong(inhabitedTimes[index]);
+            int[] chunkObsidian = obsidian.getOrDefault(index, EMPTY_CHUNK);
+            outputStream.writeInt(chunkObsidian.length);
+            for(int packed : chunkObsidian) {
+                outputStream.writeInt(packed);
+            }
+        }
+    }
+
+    /**
+     * Reads a region written with {@link ObsidianRegion#write(DataOutputStream)}. Every entry starts out unverified.
+     * @throws IOException If reading failed, or the region was written by an unknown version
+     */
+    public static @NotNull ObsidianRegion read(@NotNull DataInputStream inputStream) throws IOException {
+        int version = inputStream.readInt();
+        if(version != FILE_VERSION) {
+            throw new IOException("Unknown obsidian region version " + version);
+        }
+
+        ObsidianRegion region = new ObsidianRegion();
+        for(int i = 0; i < region.unverified.length; i++) {
+            region.unverified[i] = inputStream.readLong();
+        }
+
+        for(int index = 0; index < CHUNK_COUNT; index++) {
+            if(!getBit(region.unverified[index >> 6], index)) {continue;}
+
+            region.inhabitedTimes[index] = inputStream.readLong();
+            int[] chunkObsidian = new int[inputStream.readInt()];
+            for(int i = 0; i < chunkObsidian.length; i++) {
+                chunkObsidian[i] = inputStream.readInt();
+            }
+            region.setObsidian(index, chunkObsidian);
+        }
+
+        return region;
+    }
+}
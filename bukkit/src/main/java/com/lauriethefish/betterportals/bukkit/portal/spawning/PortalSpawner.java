@@ -3,9 +3,13 @@ package com.lauriethefish.betterportals.bukkit.portal.spawning;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.chunk.generation.IChunkGenerationChecker;
 import com.lauriethefish.betterportals.bukkit.config.PortalSpawnConfig;
 import com.lauriethefish.betterportals.bukkit.config.WorldLink;
+import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
 import com.lauriethefish.betterportals.bukkit.portal.blend.IDimensionBlendManager;
+import com.lauriethefish.betterportals.bukkit.tasks.WorkerPool;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.Location;
@@ -17,6 +21,8 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Objects;
 import java.util.function.Consumer;
 
@@ -32,15 +38,24 @@ public class PortalSpawner implements IPortalSpawner {
     private final ExistingPortalChecker existingPortalChecker;
     private final NewPortalChecker newPortalChecker;
     private final IDimensionBlendManager dimensionBlendManager;
+    private final IPortalManager portalManager;
+    private final IChunkGenerationChecker generationChecker;
+    private final IObsidianIndex obsidianIndex;
+    private final WorkerPool workerPool;
 
     @Inject
-    public PortalSpawner(JavaPlugin pl, PortalSpawnConfig config, Logger logger, ExistingPortalChecker existingPortalChecker, NewPortalChecker newPortalChecker, IDimensionBlendManager dimensionBlendManager) {
+    public PortalSpawner(JavaPlugin pl, PortalSpawnConfig config, Logger logger, ExistingPortalChecker existingPortalChecker, NewPortalChecker newPortalChecker,
+                         IDimensionBlendManager dimensionBlendManager, IPortalManager portalManager, IChunkGenerationChecker generationChecker, IObsidianIndex obsidianIndex, WorkerPool workerPool) {
         this.pl = pl;
         this.config = config;
         this.logger = logger;
         this.existingPortalChecker = existingPortalChecker;
         this.newPortalChecker = newPortalChecker;
         this.dimensionBlendManager = dimensionBlendManager;
+        this.portalManager = portalManager;
+        this.generationChecker = generationChecker;
+        this.obsidianIndex = obsidianIndex;
+        this.workerPool = workerPool;
     }
 
     @Override
@@ -59,35 +74,32 @@ public class PortalSpawner implements IPortalSpawner {
         logger.fine("Preferred destination position: %s", destinationPosition.toVector());
 
         PortalSpawningContext context = new PortalSpawningContext(link, destinationPosition, originSize);
-        logger.fine("Searching for existing position");
-        startAsyncCheck(context, existingPortalChecker, (existingPosition) -> {
-            if(existingPosition != null) {
-                logger.fine("Creating with existing position");
-                spawnPortal(existingPosition, originPosition);
-                onFinish.accept(existingPosition);
-            }   else    {
-                logger.fine("Searching for new position");
-                // Find a new spawn position if there aren't any valid existing ones
-                startAsyncCheck(context, newPortalChecker, (newSpawnPos) -> {
-                    // Give up and just use the preferred destination position, which is probably in a wall, but it's our only real option
-                    if(newSpawnPos == null) {
-                        logger.warning("Unable to find destination for a portal. This shouldn't happen really");
-                        newSpawnPos = new PortalSpawnPosition(destinationPosition, originSize, PortalDirection.EAST);
-                    }
-
-                    logger.fine("Creating with new position");
-                    spawnPortal(newSpawnPos, originPosition);
-                    onFinish.accept(newSpawnPos);
-                });
+        logger.fine("Searching for existing or new position");
+        findSpawnPosition(context, (spawnPos) -> {
+            // Give up and just use the preferred destination position, which is probably in a wall, but it's our only real option
+            if(spawnPos == null) {
+                logger.warning("Unable to find destination for a portal. This shouldn't happen really");
+                spawnPos = new PortalSpawnPosition(destinationPosition, originSize, PortalDirection.EAST);
             }
+
+            logger.fine("Creating portal at %s", spawnPos.getPosition().toVector());
+            spawnPortal(spawnPos, originPosition);
+            onFinish.accept(spawnPos);
         });
 
         return true;
     }
 
     // Portal spawn checks are done over a number of ticks to avoid slowing down the server
-    private void startAsyncCheck(PortalSpawningContext context, IChunkChecker chunkChecker, Consumer<PortalSpawnPosition> onFinish) {
-        new AsyncPortalChecker(context, chunkChecker, onFinish, pl, logger, config);
+    @Override
+    public @NotNull AsyncPortalChecker findSpawnPosition(@NotNull PortalSpawningContext context, @NotNull Consumer<PortalSpawnPosition> onFinish) {
+        // The portal map can't be read from the worker threads, so the positions are copied for the search
+        Collection<Location> portalOrigins = new ArrayList<>();
+        for(IPortal portal : portalManager.getAllPortals()) {
+            portalOrigins.add(portal.getOriginPos().getLocation());
+        }
+
+        return new AsyncPortalChecker(context, existingPortalChecker, newPortalChecker, portalOrigins, onFinish, pl, logger, config, generationChecker, obsidianIndex, workerPool);
     }
 
     /**
@@ -141,6 +153,8 @@ public class PortalSpawner implements IPortalSpawner {
                 }
 
                 state.update(true, false);
+                // Updating the state doesn't call any events, so the index needs to be told about the new frame
+                obsidianIndex.onBlockChanged(blockPos.getBlock());
             }
         }
     }
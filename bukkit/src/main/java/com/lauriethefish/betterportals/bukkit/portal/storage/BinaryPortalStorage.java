@@ -0,0 +1,368 @@
+package com.lauriethefish.betterportals.bukkit.portal.storage;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
+import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
+import com.lauriethefish.betterportals.bukkit.portal.PendingPortals;
+import com.lauriethefish.betterportals.bukkit.tasks.WorkerPool;
+import com.lauriethefish.betterportals.bukkit.util.RecordLog;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the portals in a {@link RecordLog} at <code>plugins/BetterPortals/data/portals.dat</code>.
+ * Only the portals changed since the last save are written, which is tracked by the {@link PortalChangeTracker}.
+ * The changed portals are encoded on the main thread, since that's where they're modified, then written to the file on a background thread.
+ * If there isn't a portal log yet, the portals are migrated from <code>portals.yml</code> the first time they are loaded.
+ * Portals are only registered while the world they're in is loaded, and are kept in memory as records otherwise.
+ * <p>
+ * At startup, the records are decoded on the {@link WorkerPool}, then registered on the main thread in batches over the following ticks, so that the server can finish enabling first.
+ * Until then they are kept in the {@link PendingPortals}, which the {@link IPortalManager} registers early if they are looked up by position or ID, or if every portal is read.
+ */
+@Singleton
+public class BinaryPortalStorage extends IPortalStorage {
+    // Number of records decoded by each worker task
+    private static final int DECODE_SLICE_SIZE = 1024;
+    // Number of portals registered between checking the time spent this tick
+    private static final int REGISTER_BATCH_SIZE = 64;
+    // Maximum time spent registering portals each tick
+    private static final long REGISTER_TIME_BUDGET = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long PROGRESS_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+    private final JavaPlugin pl;
+    private final IPortalManager portalManager;
+    private final PortalChangeTracker changeTracker;
+    private final IPortal.Factory portalFactory;
+    private final YamlPortalStorage yamlStorage;
+    private final WorkerPool workerPool;
+    private final PendingPortals pendingPortals;
+
+    // Only one write happens at a time, and the thread stops when there aren't any to do
+    private final ThreadPoolExecutor writeExecutor;
+    private RecordLog log;
+
+    // Portals in worlds that aren't currently loaded, only accessed on the main thread
+    private final Map<UUID, PortalRecord> unloadedPortals = new HashMap<>();
+
+    // State of the current startup load, apart from the queue and failure count only accessed on the main thread
+    private BukkitTask loadTask;
+    private ConcurrentLinkedQueue<List<PortalRecord>> decodedSlices;
+    private AtomicInteger failedCount;
+    private int remainingSlices;
+    private int totalCount;
+    private int decodedCount;
+    private long loadStartTime;
+    private long lastProgressLogTime;
+
+    @Inject
+    public BinaryPortalStorage(JavaPlugin pl, Logger logger, MiscConfig miscConfig, IPortalManager portalManager, PortalChangeTracker changeTracker,
+                               IPortal.Factory portalFactory, YamlPortalStorage yamlStorage, WorkerPool workerPool, PendingPortals pendingPortals) {
+        super(logger, pl, miscConfig);
+
+        this.pl = pl;
+        this.portalManager = portalManager;
+        this.changeTracker = changeTracker;
+        this.portalFactory = portalFactory;
+        this.yamlStorage = yamlStorage;
+        this.workerPool = workerPool;
+        this.pendingPortals = pendingPortals;
+
+        this.writeExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, "BetterPortals portal storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private Path getDataFolder() {
+        return pl.getDataFolder().toPath().resolve("data");
+    }
+
+    @Override
+    public void loadPortals() throws IOException {
+        // Wait for any writes from before a reload
+        waitForWrites(writeExecutor.submit(() -> null));
+
+        Path logPath = getDataFolder().resolve("portals.dat");
+        Path yamlPath = getDataFolder().resolve("portals.yml");
+        log = new RecordLog(logPath);
+
+        if(!Files.exists(logPath) && Files.exists(yamlPath)) {
+            migrateFromYaml(yamlPath);
+            return;
+        }
+
+        Map<UUID, byte[]> records = log.load();
+        if(log.getDiscardedBytes() > 0) {
+            logger.warning("Discarded %d bytes at the end of the portals file, which were likely from a save that didn't finish", log.getDiscardedBytes());
+        }
+
+        startLoading(new ArrayList<>(records.entrySet()));
+    }
+
+    /**
+     * Decodes the records on the worker threads, then registers them over the following ticks in {@link BinaryPortalStorage#updateLoading()}.
+     * @param records The ID and data of each portal
+     */
+    private void startLoading(List<Map.Entry<UUID, byte[]>> records) {
+        if(loadTask != null) {
+            loadTask.cancel();
+        }
+        pendingPortals.clear();
+        unloadedPortals.clear();
+
+        // A new queue is used for each load, so that slices still being decoded from before a reload are ignored
+        ConcurrentLinkedQueue<List<PortalRecord>> slices = new ConcurrentLinkedQueue<>();
+        AtomicInteger failed = new AtomicInteger();
+        decodedSlices = slices;
+        failedCount = failed;
+        remainingSlices = 0;
+        totalCount = records.size();
+        decodedCount = 0;
+        loadStartTime = System.nanoTime();
+        lastProgressLogTime = loadStartTime;
+
+        logger.fine("Loading %d portals from plugins/BetterPortals/data/portals.dat in the background . . .", totalCount);
+        for(int start = 0; start < records.size(); start += DECODE_SLICE_SIZE) {
+            List<Map.Entry<UUID, byte[]>> slice = records.subList(start, Math.min(start + DECODE_SLICE_SIZE, records.size()));
+            remainingSlices++;
+            workerPool.execute(() -> slices.add(decodeSlice(slice, failed)));
+        }
+
+        loadTask = Bukkit.getScheduler().runTaskTimer(pl, this::updateLoading, 1L, 1L);
+    }
+
+    // Called on the worker threads
+    private List<PortalRecord> decodeSlice(List<Map.Entry<UUID, byte[]>> slice, AtomicInteger failed) {
+        List<PortalRecord> result = new ArrayList<>(slice.size());
+        for(Map.Entry<UUID, byte[]> entry : slice) {
+            try {
+                result.add(decode(entry.getKey(), entry.getValue()));
+            }   catch(IOException | RuntimeException ex) { // Avoid failing all portals when one is invalid
+                logger.warning("Failed to load portal: %s", ex.getMessage());
+                failed.incrementAndGet();
+            }
+        }
+        return result;
+    }
+
+    // Moves the decoded portals into the pending portals, then registers as many as the time budget allows
+    private void updateLoading() {
+        long startTime = System.nanoTime();
+
+        // Look up each world once, rather than once for every portal
+        Map<UUID, World> worldsById = new HashMap<>();
+        Map<String, World> worldsByName = new HashMap<>();
+        for(World world : Bukkit.getWorlds()) {
+            worldsById.put(world.getUID(), world);
+            worldsByName.put(world.getName(), world);
+        }
+
+        List<PortalRecord> slice;
+        while((slice = decodedSlices.poll()) != null) {
+            remainingSlices--;
+            decodedCount += slice.size();
+            for(PortalRecord record : slice) {
+                World world = record.getOriginPos().getWorldId() == null ? null : worldsById.get(record.getOriginPos().getWorldId());
+                if(world == null && record.getOriginPos().getWorldName() != null) {
+                    world = worldsByName.get(record.getOriginPos().getWorldName());
+                }
+
+                if(world == null) {
+                    unloadedPortals.put(record.getId(), record);
+                }   else    {
+                    pendingPortals.add(world, record);
+                }
+            }
+        }
+
+        while(!pendingPortals.isEmpty() && System.nanoTime() - startTime < REGISTER_TIME_BUDGET) {
+            for(PortalRecord record : pendingPortals.takeBatch(REGISTER_BATCH_SIZE)) {
+                try {
+                    portalManager.loadPortal(record.createPortal(portalFactory));
+                }   catch(RuntimeException ex) {
+                    logger.warning("Failed to load portal: %s", ex.getMessage());
+                    failedCount.incrementAndGet();
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        if(remainingSlices == 0 && pendingPortals.isEmpty()) {
+            loadTask.cancel();
+            loadTask = null;
+            logger.info("Loaded %d portals in %dms, %d are in worlds that aren't loaded", totalCount - failedCount.get(), TimeUnit.NANOSECONDS.toMillis(now - loadStartTime), unloadedPortals.size());
+            if(failedCount.get() > 0) {
+                logger.warning("%d portals failed to load", failedCount.get());
+            }
+        }   else if(now - lastProgressLogTime >= PROGRESS_LOG_INTERVAL) {
+            lastProgressLogTime = now;
+            logger.info("Loading portals . . . %d/%d decoded, %d waiting to be registered", decodedCount, totalCount, pendingPortals.size());
+        }
+    }
+
+    /**
+     * Registers the unloaded portals with their origin in <code>world</code>.
+     * @param world The world to load the portals of, or null to load the portals of every loaded world
+     */
+    private void loadPortalsIn(@Nullable World world) {
+        Iterator<PortalRecord> iterator = unloadedPortals.values().iterator();
+        while(iterator.hasNext()) {
+            PortalRecord record = iterator.next();
+            World originWorld = record.getOriginPos().getWorld();
+            if(originWorld == null || (world != null && originWorld != world)) {continue;}
+
+            try {
+                portalManager.loadPortal(record.createPortal(portalFactory));
+            }   catch(RuntimeException ex) {
+                logger.warning("Failed to load portal: %s", ex.getMessage());
+                continue;
+            }
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public void onWorldLoad(World world) {
+        int unloadedCount = unloadedPortals.size();
+        loadPortalsIn(world);
+        logger.fine("Loaded %d portals in world %s", unloadedCount - unloadedPortals.size(), world.getName());
+    }
+
+    @Override
+    public void onWorldUnload(World world) {
+        for(PortalRecord record : pendingPortals.takeWorld(world)) {
+            unloadedPortals.put(record.getId(), record);
+        }
+        for(IPortal portal : portalManager.unloadPortalsIn(world)) {
+            unloadedPortals.put(portal.getId(), new PortalRecord(portal));
+        }
+    }
+
+    private void migrateFromYaml(Path yamlPath) throws IOException {
+        logger.info("Migrating portals from portals.yml to portals.dat");
+        yamlStorage.loadPortals();
+        changeTracker.drainChanges();
+
+        Map<UUID, byte[]> records = new HashMap<>();
+        for(IPortal portal : portalManager.getAllPortals()) {
+            records.put(portal.getId(), encode(new PortalRecord(portal)));
+        }
+        log.load();
+        log.write(records, new ArrayList<>());
+
+        // Keep the old file in case anything goes wrong, but make sure it isn't migrated again
+        Files.move(yamlPath, yamlPath.resolveSibling("portals.yml.old"), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Migrated %d portals", records.size());
+    }
+
+    /**
+     * Encodes the portals changed since the last save. Must be called on the main thread.
+     * @return Task that appends the changes to the log, which must be ran on the write thread
+     */
+    private Callable<Void> takeChanges() {
+        Set<UUID> changedIds = changeTracker.drainChanges();
+
+        Map<UUID, byte[]> changed = new HashMap<>();
+        List<UUID> removed = new ArrayList<>();
+        for(UUID id : changedIds) {
+            IPortal portal = portalManager.getPortalById(id);
+            // Portals that were changed, then unloaded with their world, still need to be saved
+            PortalRecord record = portal == null ? unloadedPortals.get(id) : new PortalRecord(portal);
+            if(record == null) {
+                removed.add(id);
+                continue;
+            }
+
+            try {
+                changed.put(id, encode(record));
+            }   catch(IOException | RuntimeException ex) { // Avoid failing all portals when one is invalid
+                logger.warning("Failed to save portal: %s", ex.getMessage());
+            }
+        }
+
+        RecordLog currentLog = log;
+        return () -> {
+            logger.finer("Saving %d changed and %d removed portals", changed.size(), removed.size());
+            currentLog.write(changed, removed);
+            return null;
+        };
+    }
+
+    @Override
+    protected void autosave() {
+        if(log == null) {return;}
+
+        Callable<Void> writeTask = takeChanges();
+        writeExecutor.execute(() -> {
+            try {
+                writeTask.call();
+            }   catch(Exception ex) {
+                logger.warning("Error occurred while saving the portals. Check your file permissions!");
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void savePortals() throws IOException {
+        if(log == null) {return;}
+
+        waitForWrites(writeExecutor.submit(takeChanges()));
+    }
+
+    private void waitForWrites(Future<?> future) throws IOException {
+        try {
+            future.get();
+        }   catch(ExecutionException ex) {
+            if(ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }   catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the portals to be saved", ex);
+        }
+    }
+
+    private static byte[] encode(PortalRecord record) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        record.write(new DataOutputStream(byteStream));
+        return byteStream.toByteArray();
+    }
+
+    private static PortalRecord decode(UUID id, byte[] data) throws IOException {
+        return PortalRecord.read(id, new DataInputStream(new ByteArrayInputStream(data)));
+    }
+}
@@ -4,6 +4,7 @@ import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.Bukkit;
+import org.bukkit.World;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.IOException;
@@ -25,7 +26,8 @@ public abstract class IPortalStorage implements Runnable    {
     }
 
     /**
-     * Loads all stored portals and registers them in the {@link IPortalManager}
+     * Loads all stored portals and registers them in the {@link IPortalManager}.
+     * Implementations may finish registering them over the following ticks, after this returns.
      * @throws IOException If reading the file failed
      */
     public abstract void loadPortals() throws IOException;
@@ -36,6 +38,19 @@ public abstract class IPortalStorage implements Runnable    {
      */
     public abstract void savePortals() throws IOException;
 
+    /**
+     * Called when a world is loaded, after the portals have been loaded.
+     * Does nothing by default, for storage that only loads the portals of worlds loaded at startup.
+     * @param world The world that was loaded
+     */
+    public void onWorldLoad(World world) {}
+
+    /**
+     * Called when a world is about to be unloaded. Does nothing by default.
+     * @param world The world being unloaded
+     */
+    public void onWorldUnload(World world) {}
+
     public void start() {
         int saveInterval = miscConfig.getPortalSaveInterval();
         if(miscConfig.getPortalSaveInterval() > 0) {
@@ -48,11 +63,19 @@ public abstract class IPortalStorage implements Runnable    {
 
     @Override
     public void run() {
+        logger.fine("Autosaving portals!");
+        autosave();
+    }
+
+    /**
+     * Called by the autosave task on the main thread. Saves the portals with {@link IPortalStorage#savePortals()} by default.
+     * Implementations that can save in the background should override this to avoid blocking the main thread.
+     */
+    protected void autosave() {
         try {
-            logger.fine("Autosaving portals!");
             savePortals();
         }   catch(IOException ex) {
-            logger.warning("Error occurred while saving the portals to portals.yml. Check your file permissions!");
+            logger.warning("Error occurred while saving the portals. Check your file permissions!");
             ex.printStackTrace();
         }
     }
@@ -0,0 +1,41 @@
+package com.lauriethefish.betterportals.bukkit.portal.storage;
+
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps track of which portals were registered, removed or changed since the portals were last saved, so that only those need to be written.
+ * Must only be used from the main thread.
+ */
+@Singleton
+public class PortalChangeTracker {
+    private Set<UUID> changedPortals = new HashSet<>();
+
+    /**
+     * Called when a portal is registered, or its saved data is changed.
+     */
+    public void onPortalChanged(@NotNull IPortal portal) {
+        changedPortals.add(portal.getId());
+    }
+
+    /**
+     * Called when a portal is unregistered.
+     */
+    public void onPortalRemoved(@NotNull IPortal portal) {
+        changedPortals.add(portal.getId());
+    }
+
+    /**
+     * @return The IDs of every portal changed since this was last called. Removed portals are the ones that are no longer registered
+     */
+    public @NotNull Set<UUID> drainChanges() {
+        Set<UUID> result = changedPortals;
+        changedPortals = new HashSet<>();
+        return result;
+    }
+}
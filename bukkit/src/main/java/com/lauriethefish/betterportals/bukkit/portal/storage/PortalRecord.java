@@ -0,0 +1,162 @@
+package com.lauriethefish.betterportals.bukkit.portal.storage;
+
+import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.util.RecordLog;
+import lombok.Getter;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The saved data of one portal, in the binary format used by {@link BinaryPortalStorage}.
+ */
+@Getter
+public class PortalRecord {
+    private static final int HAS_OWNER = 1;
+    private static final int HAS_NAME = 1 << 1;
+    private static final int IS_CUSTOM = 1 << 2;
+    private static final int ALLOWS_NON_PLAYER_TELEPORTATION = 1 << 3;
+
+    private static final int HAS_WORLD_ID = 1;
+    private static final int HAS_WORLD_NAME = 1 << 1;
+    private static final int HAS_SERVER_NAME = 1 << 2;
+
+    private final UUID id;
+    private final @Nullable UUID ownerId;
+    private final @Nullable String name;
+    private final PortalPosition originPos;
+    private final PortalPosition destPos;
+    private final Vector size;
+    private final boolean isCustom;
+    private final boolean allowsNonPlayerTeleportation;
+
+    public PortalRecord(@NotNull UUID id, @Nullable UUID ownerId, @Nullable String name, @NotNull PortalPosition originPos, @NotNull PortalPosition destPos,
+                        @NotNull Vector size, boolean isCustom, boolean allowsNonPlayerTeleportation) {
+        this.id = id;
+        this.ownerId = ownerId;
+        this.name = name;
+        this.originPos = originPos;
+        this.destPos = destPos;
+        this.size = size;
+        this.isCustom = isCustom;
+        this.allowsNonPlayerTeleportation = allowsNonPlayerTeleportation;
+    }
+
+    public PortalRecord(@NotNull IPortal portal) {
+        // The positions are copied so that the record doesn't keep the worlds loaded through their cached locations
+        this(portal.getId(), portal.getOwnerId(), portal.getName(), new PortalPosition(portal.getOriginPos().serialize()), new PortalPosition(portal.getDestPos().serialize()),
+                portal.getSize(), portal.isCustom(), portal.allowsNonPlayerTeleportation());
+    }
+
+    /**
+     * Creates a new portal with the data in this record. It isn't registered.
+     * @param factory Factory to create the portal with
+     * @return The created portal
+     */
+    public @NotNull IPortal createPortal(@NotNull IPortal.Factory factory) {
+        return factory.create(originPos, destPos, size, isCustom, id, ownerId, name, allowsNonPlayerTeleportation);
+    }
+
+    /**
+     * Writes the record, apart from the ID, which is stored separately by the {@link RecordLog}.
+     */
+    public void write(@NotNull DataOutput output) throws IOException {
+        int flags = (ownerId != null ? HAS_OWNER : 0)
+                | (name != null ? HAS_NAME : 0)
+                | (isCustom ? IS_CUSTOM : 0)
+                | (allowsNonPlayerTeleportation ? ALLOWS_NON_PLAYER_TELEPORTATION : 0);
+        output.writeByte(flags);
+
+        if(ownerId != null) {
+            output.writeLong(ownerId.getMostSignificantBits());
+            output.writeLong(ownerId.getLeastSignificantBits());
+        }
+        if(name != null) {
+            output.writeUTF(name);
+        }
+
+        writePosition(output, originPos);
+        writePosition(output, destPos);
+        output.writeDouble(size.getX());
+        output.writeDouble(size.getY());
+        output.writeDouble(size.getZ());
+    }
+
+    /**
+     * Reads a record written with {@link PortalRecord#write(DataOutput)}.
+     * @param id ID of the portal, stored separately by the {@link RecordLog}
+     */
+    public static @NotNull PortalRecord read(@NotNull UUID id, @NotNull DataInput input) throws IOException {
+        int flags = input.readByte();
+
+        UUID ownerId = null;
+        if((flags & HAS_OWNER) != 0) {
+            ownerId = new UUID(input.readLong(), input.readLong());
+        }
+        String name = (flags & HAS_NAME) != 0 ? input.readUTF() : null;
+
+        PortalPosition originPos = readPosition(input);
+        PortalPosition destPos = readPosition(input);
+        Vector size = new Vector(input.readDouble(), input.readDouble(), input.readDouble());
+
+        return new PortalRecord(id, ownerId, name, originPos, destPos, size, (flags & IS_CUSTOM) != 0, (flags & ALLOWS_NON_PLAYER_TELEPORTATION) != 0);
+    }
+
+    private static void writePosition(DataOutput output, PortalPosition position) throws IOException {
+        UUID worldId = position.getWorldId();
+        String worldName = position.getWorldName();
+        String serverName = position.getServerName();
+
+        int flags = (worldId != null ? HAS_WORLD_ID : 0)
+                | (worldName != null ? HAS_WORLD_NAME : 0)
+                | (serverName != null ? HAS_SERVER_NAME : 0);
+        output.writeByte(flags);
+
+        if(worldId != null) {
+            output.writeLong(worldId.getMostSignificantBits());
+            output.writeLong(worldId.getLeastSignificantBits());
+        }
+        if(worldName != null) {
+            output.writeUTF(worldName);
+        }
+        if(serverName != null) {
+            output.writeUTF(serverName);
+        }
+
+        Vector vector = position.getVector();
+        output.writeDouble(vector.getX());
+        output.writeDouble(vector.getY());
+        output.writeDouble(vector.getZ());
+        output.writeUTF(position.getDirection().name());
+    }
+
+    private static PortalPosition readPosition(DataInput input) throws IOException {
+        int flags = input.readByte();
+
+        // Uses the same constructor as YAML loading, since it's the only one that doesn't need the world to be loaded
+        Map<String, Object> map = new HashMap<>();
+        if((flags & HAS_WORLD_ID) != 0) {
+            map.put("worldId", new UUID(input.readLong(), input.readLong()).toString());
+        }
+        if((flags & HAS_WORLD_NAME) != 0) {
+            map.put("worldName", input.readUTF());
+        }
+        if((flags & HAS_SERVER_NAME) != 0) {
+            map.put("serverName", input.readUTF());
+        }
+
+        map.put("x", input.readDouble());
+        map.put("y", input.readDouble());
+        map.put("z", input.readDouble());
+        map.put("direction", input.readUTF());
+        return new PortalPosition(map);
+    }
+}
@@ -3,11 +3,16 @@ package com.lauriethefish.betterportals.bukkit.tasks;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.IChunkTicketManager;
+import com.lauriethefish.betterportals.bukkit.entity.IEntityFinder;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.net.ClientRequestHandler;
+import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerData;
 import com.lauriethefish.betterportals.bukkit.player.PlayerDataManager;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalActivityManager;
+import com.lauriethefish.betterportals.bukkit.portal.IPortalPrefetcher;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.IObsidianIndex;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.plugin.java.JavaPlugin;
 
@@ -22,24 +27,39 @@ public class MainUpdate implements Runnable {
     private final JavaPlugin pl;
     private final PlayerDataManager playerDataManager;
     private final IPortalActivityManager activityManager;
+    private final IPortalPrefetcher portalPrefetcher;
     private final EntityTrackingManager entityTrackingManager;
     private final ClientRequestHandler requestHandler;
     private final IExternalBlockWatcherManager blockWatcherManager;
+    private final IObsidianIndex obsidianIndex;
+    private final IChunkTicketManager chunkTicketManager;
+    private final IPortalClient portalClient;
+    private final IEntityFinder entityFinder;
     private final Logger logger;
 
     @Inject
     public MainUpdate(JavaPlugin pl,
                       PlayerDataManager playerDataManager,
                       IPortalActivityManager activityManager,
+                      IPortalPrefetcher portalPrefetcher,
                       EntityTrackingManager entityTrackingManager,
                       ClientRequestHandler requestHandler,
-                      IExternalBlockWatcherManager blockWatcherManager, Logger logger) {
+                      IExternalBlockWatcherManager blockWatcherManager,
+                      IObsidianIndex obsidianIndex,
+                      IChunkTicketManager chunkTicketManager,
+                      IPortalClient portalClient,
+                      IEntityFinder entityFinder, Logger logger) {
         this.pl = pl;
         this.playerDataManager = playerDataManager;
         this.activityManager = activityManager;
+        this.portalPrefetcher = portalPrefetcher;
         this.entityTrackingManager = entityTrackingManager;
         this.requestHandler = requestHandler;
         this.blockWatcherManager = blockWatcherManager;
+        this.obsidianIndex = obsidianIndex;
+        this.chunkTicketManager = chunkTicketManager;
+        this.portalClient = portalClient;
+        this.entityFinder = entityFinder;
         this.logger = logger;
     }
 
@@ -50,6 +70,9 @@ public class MainUpdate implements Runnable {
     @Override
     public void run() {
         try {
+            // Entity positions found last tick are now out of date
+            entityFinder.onTick();
+
             playerDataManager.getPlayers().forEach(IPlayerData::onUpdate);
 
             // Update replicated entities
@@ -58,10 +81,21 @@ public class MainUpdate implements Runnable {
             // Deactivates and view-deactivates any unused portals that were active last tick
             activityManager.postUpdate();
 
+            // Prefetches portals that players are moving towards, and finishes prefetches for portals that have now been activated
+            portalPrefetcher.update();
+
             requestHandler.handlePendingRequests();
 
             blockWatcherManager.update();
 
+            obsidianIndex.update();
+
+            // Portals deactivated this tick have already released their chunk tickets
+            chunkTicketManager.update();
+
+            // Send the requests to other servers made this tick, e.g. by cross-server portals, in one batch for each server
+            portalClient.flushQueuedRequests();
+
         }   catch(RuntimeException ex) {
             logger.severe("A critical error occurred during main update.");
             logger.severe("Please create an issue at %s to get this fixed.", ISSUES_URL);
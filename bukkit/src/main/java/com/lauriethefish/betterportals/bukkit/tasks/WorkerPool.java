@@ -0,0 +1,51 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.google.inject.Singleton;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for work that doesn't need the main thread, e.g. searching chunk snapshots for portal spawn positions, or handling requests that allow any thread.
+ * One thread is kept free for the server, and there are never more than {@link WorkerPool#MAX_THREADS}.
+ */
+@Singleton
+public class WorkerPool implements Executor {
+    private static final int MAX_THREADS = 4;
+
+    private final ExecutorService executor;
+    private final int threadCount;
+
+    public WorkerPool() {
+        this.threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_THREADS));
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threadCount, (runnable) -> {
+            Thread thread = new Thread(runnable, "BetterPortals worker " + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void execute(@NotNull Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * @return The number of tasks that can run at once
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Stops the threads once the tasks already submitted have finished. Tasks can't be submitted after this.
+     */
+    public void shutDown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,107 @@
+package com.lauriethefish.betterportals.bukkit.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive <code>long</code> keys to values, using open addressing with linear probing.
+ * Unlike a {@link java.util.HashMap} with {@link Long} keys, looking up a key doesn't box it or follow a pointer to an entry.
+ * Values can't be null, and entries can only be removed all at once with {@link LongObjectMap#clear()}.
+ * @param <V> Type of the values
+ */
+public class LongObjectMap<V> {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    // A null value marks an empty slot
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // Spreads the bits of the key, since packed coordinates often only differ in a few bits
+    private static int getSlot(long key, int capacity) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+    }
+
+    /**
+     * Gets the value for <code>key</code>.
+     * @param key The key to look up
+     * @return The value, or null if there isn't one for this key
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(long key) {
+        int mask = keys.length - 1;
+        for(int slot = getSlot(key, keys.length); values[slot] != null; slot = (slot + 1) & mask) {
+            if(keys[slot] == key) {
+                return (V) values[slot];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Sets the value for <code>key</code>, replacing any existing value.
+     * @param key The key to set the value of
+     * @param value The new value
+     */
+    public void put(long key, @NotNull V value) {
+        if(size + 1 > keys.length * LOAD_FACTOR) {
+            resize(keys.length * 2);
+        }
+
+        int mask = keys.length - 1;
+        int slot = getSlot(key, keys.length);
+        while(values[slot] != null) {
+            if(keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    private void resize(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[newCapacity];
+        values = new Object[newCapacity];
+
+        int mask = newCapacity - 1;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldValues[i] == null) {continue;}
+
+            int slot = getSlot(oldKeys[i], newCapacity);
+            while(values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * Removes every entry, keeping the current capacity.
+     */
+    public void clear() {
+        if(size == 0) {return;}
+
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
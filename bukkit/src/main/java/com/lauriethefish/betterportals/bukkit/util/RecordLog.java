@@ -0,0 +1,252 @@
+package com.lauriethefish.betterportals.bukkit.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of records, keyed by ID. Used to store the portals and player data.
+ * Each save only appends the records that changed, and removals are appended as entries without any data.
+ * Once most of the file is made up of replaced or removed records, it is compacted by rewriting only the current records.
+ * <br>The file starts with a magic number and version, followed by entries of:
+ * <ul>
+ * <li>The length of the record's data as an int, or -1 if the record was removed</li>
+ * <li>The record's ID, as two longs</li>
+ * <li>The record's data</li>
+ * <li>A CRC32 of all of the above, so that an entry cut off by a crash is detected and dropped</li>
+ * </ul>
+ * Not thread safe, the log must only be used by one thread at a time.
+ */
+public class RecordLog {
+    private static final int MAGIC = 0x4250504C;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // Length, ID and checksum
+    private static final int ENTRY_OVERHEAD = 4 + 16 + 4;
+    private static final int REMOVED = -1;
+
+    /**
+     * Files smaller than this are never compacted, since there's nothing to gain.
+     */
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final Map<UUID, byte[]> records = new LinkedHashMap<>();
+
+    private long fileSize;
+    // Size that the file would be if it only contained the current records
+    private long liveSize = HEADER_SIZE;
+    private long discardedBytes;
+    // Set if an append failed part way through, in which case the file can't be appended to until it is rewritten
+    private boolean needsRewrite;
+
+    public RecordLog(@NotNull Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads every entry in the file, if it exists. Any entries after the first invalid one are discarded, and cut from the file.
+     * @return The current data of each record, in the order that they were first saved
+     * @throws IOException If reading the file failed, or it isn't a record log
+     */
+    public @NotNull Map<UUID, byte[]> load() throws IOException {
+        records.clear();
+        liveSize = HEADER_SIZE;
+        fileSize = 0;
+        discardedBytes = 0;
+        needsRewrite = false;
+        if(!Files.exists(path)) {return getRecords();}
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if(buffer.remaining() < HEADER_SIZE) {
+            // The header was never finished, so there's nothing to keep
+            discardedBytes = buffer.remaining();
+            needsRewrite = true;
+            return getRecords();
+        }
+
+        if(buffer.getInt() != MAGIC) {
+            throw new IOException("File is not a record log");
+        }
+        int version = buffer.getInt();
+        if(version != VERSION) {
+            throw new IOException(String.format("Unsupported record log version %d", version));
+        }
+
+        CRC32 crc = new CRC32();
+        while(buffer.remaining() >= ENTRY_OVERHEAD) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if(length < REMOVED || buffer.remaining() < 16 + Math.max(length, 0) + 4) {break;}
+
+            UUID id = new UUID(buffer.getLong(), buffer.getLong());
+            byte[] data = null;
+            if(length != REMOVED) {
+                data = new byte[length];
+                buffer.get(data);
+            }
+
+            crc.reset();
+            crc.update(buffer.array(), start, buffer.position() - start);
+            if((int) crc.getValue() != buffer.getInt()) {
+                buffer.position(start);
+                break;
+            }
+
+            applyEntry(id, data);
+        }
+
+        fileSize = buffer.position();
+        discardedBytes = buffer.limit() - fileSize;
+        if(discardedBytes > 0) {
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(fileSize);
+            }
+        }
+
+        return getRecords();
+    }
+
+    private void applyEntry(UUID id, byte[] data) {
+        byte[] previous = data == null ? records.remove(id) : records.put(id, data);
+        if(previous != null) {
+            liveSize -= ENTRY_OVERHEAD + previous.length;
+        }
+        if(data != null) {
+            liveSize += ENTRY_OVERHEAD + data.length;
+        }
+    }
+
+    /**
+     * Appends the changed and removed records to the file, then compacts it if most of it is no longer needed.
+     * If writing fails, the changes are still kept, and the whole file is rewritten on the next write.
+     * @param changed New data of each changed record
+     * @param removed IDs of removed records
+     * @throws IOException If writing the file failed
+     */
+    public void write(@NotNull Map<UUID, byte[]> changed, @NotNull Collection<UUID> removed) throws IOException {
+        if(changed.isEmpty() && removed.isEmpty() && !needsRewrite) {return;}
+
+        if(needsRewrite || fileSize == 0) {
+            applyEntries(changed, removed);
+            compact();
+            return;
+        }
+
+        int entriesSize = 0;
+        for(byte[] data : changed.values()) {
+            entriesSize += ENTRY_OVERHEAD + data.length;
+        }
+        entriesSize += removed.size() * ENTRY_OVERHEAD;
+
+        ByteBuffer buffer = ByteBuffer.allocate(entriesSize);
+        CRC32 crc = new CRC32();
+        for(Map.Entry<UUID, byte[]> entry : changed.entrySet()) {
+            writeEntry(buffer, crc, entry.getKey(), entry.getValue());
+        }
+        for(UUID id : removed) {
+            writeEntry(buffer, crc, id, null);
+        }
+        buffer.flip();
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }   catch(IOException ex) {
+            // Part of the entries may have been written, so appending after them would make the rest of the file unreadable
+            applyEntries(changed, removed);
+            needsRewrite = true;
+            throw ex;
+        }
+
+        fileSize += entriesSize;
+        applyEntries(changed, removed);
+
+        if(fileSize > MIN_COMPACTION_SIZE && fileSize > liveSize * 2) {
+            compact();
+        }
+    }
+
+    private void applyEntries(Map<UUID, byte[]> changed, Collection<UUID> removed) {
+        changed.forEach(this::applyEntry);
+        removed.forEach(id -> applyEntry(id, null));
+    }
+
+    private static void writeEntry(ByteBuffer buffer, CRC32 crc, UUID id, byte[] data) {
+        int start = buffer.position();
+        buffer.putInt(data == null ? REMOVED : data.length);
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        if(data != null) {
+            buffer.put(data);
+        }
+
+        crc.reset();
+        crc.update(buffer.array(), start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Rewrites the file with only the current records. The new file replaces the old one once it's fully written, so the old one is kept if this fails.
+     * @throws IOException If writing the file failed
+     */
+    public void compact() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) liveSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+
+        CRC32 crc = new CRC32();
+        for(Map.Entry<UUID, byte[]> entry : records.entrySet()) {
+            writeEntry(buffer, crc, entry.getKey(), entry.getValue());
+        }
+        buffer.flip();
+
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        fileSize = liveSize;
+        needsRewrite = false;
+    }
+
+    /**
+     * @return The current data of each record
+     */
+    public @NotNull Map<UUID, byte[]> getRecords() {
+        return Collections.unmodifiableMap(records);
+    }
+
+    /**
+     * @return The size of the file in bytes, including replaced and removed records
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return The number of bytes cut from the end of the file by the last {@link RecordLog#load()}, because they weren't a valid entry
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }
+}
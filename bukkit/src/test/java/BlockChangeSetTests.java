@@ -0,0 +1,148 @@
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeSet;
+import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeUpdate;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.bukkit.net.BukkitMessageRegistry;
+import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.protocol.JavaObjectSerializer;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockChangeSetTests {
+    private static final int XZ_RADIUS = 13;
+    private static final int Y_RADIUS = 7;
+
+    private final BukkitMessageRegistry registry = new BukkitMessageRegistry();
+
+    // Roughly what the first response for a portal looks like: stone below, air above, with some ores
+    private int getTestCombinedId(int x, int y, int z) {
+        if(y > 0) {return 0;}
+        return (x * 31 + z * 17 + y) % 23 == 0 ? 3456 : 1;
+    }
+
+    private BlockChangeSet makeFullArea(IntVector center, Map<IntVector, Integer> asMap) {
+        BlockChangeSet changes = new BlockChangeSet();
+        for(int x = -XZ_RADIUS; x <= XZ_RADIUS; x++) {
+            for(int z = -XZ_RADIUS; z <= XZ_RADIUS; z++) {
+                for(int y = -Y_RADIUS; y <= Y_RADIUS; y++) {
+                    IntVector position = new IntVector(x, y, z).add(center);
+                    int combinedId = getTestCombinedId(x, y, z);
+                    changes.add(position, combinedId);
+                    asMap.put(position, combinedId);
+                }
+            }
+        }
+        return changes;
+    }
+
+    private Response wrap(Object result) {
+        Response response = new Response();
+        response.setResult(result);
+        return response;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<IntVector, Integer> expected = new HashMap<>();
+        BlockChangeSet changes = makeFullArea(new IntVector(-1000, 64, 250), expected);
+
+        Response response = (Response) registry.deserialize(registry.serialize(wrap(changes)));
+        BlockChangeSet result = (BlockChangeSet) response.getResult();
+
+        assertEquals(expected.size(), result.size());
+        for(int i = 0; i < result.size(); i++) {
+            assertEquals((int) expected.get(result.getPosition(i)), result.getCombinedId(i));
+        }
+    }
+
+    @Test
+    public void testSparseRoundTrip() throws Exception {
+        BlockChangeSet changes = new BlockChangeSet();
+        changes.add(new IntVector(Integer.MAX_VALUE, -64, Integer.MIN_VALUE), 5);
+        changes.add(new IntVector(-3, 320, 7), 0);
+
+        BlockChangeSet result = (BlockChangeSet) ((Response) registry.deserialize(registry.serialize(wrap(changes)))).getResult();
+        assertEquals(2, result.size());
+        assertEquals(new IntVector(Integer.MAX_VALUE, -64, Integer.MIN_VALUE), result.getPosition(0));
+        assertEquals(new IntVector(-3, 320, 7), result.getPosition(1));
+        assertEquals(0, result.getCombinedId(1));
+    }
+
+    @Test
+    public void testRequestRoundTrip() throws Exception {
+        GetBlockDataChangesRequest request = new GetBlockDataChangesRequest();
+        request.setId(12);
+        request.setChangeSetId(UUID.randomUUID());
+        request.setPosition(new IntVector(10, 70, -20));
+        request.setRotateOriginToDest(Matrix.makeIdentity());
+        request.setWorldName("world");
+        request.setXAndZRadius(XZ_RADIUS);
+        request.setYRadius(Y_RADIUS);
+        request.setAcknowledgedSequence(1234567890123L);
+
+        GetBlockDataChangesRequest result = (GetBlockDataChangesRequest) registry.deserialize(registry.serialize(request));
+        assertEquals(12, result.getId());
+        assertEquals(request.getChangeSetId(), result.getChangeSetId());
+        assertEquals(request.getPosition(), result.getPosition());
+        assertArrayEquals(request.getRotateOriginToDest().m[2], result.getRotateOriginToDest().m[2]);
+        assertNull(result.getWorldId());
+        assertEquals(XZ_RADIUS, result.getXAndZRadius());
+        assertEquals(Y_RADIUS, result.getYRadius());
+        assertEquals(1234567890123L, result.getAcknowledgedSequence());
+    }
+
+    @Test
+    public void testRequestArea() {
+        GetBlockDataChangesRequest request = new GetBlockDataChangesRequest();
+        request.setPosition(new IntVector(10, 70, -20));
+        request.setXAndZRadius(XZ_RADIUS);
+        request.setYRadius(Y_RADIUS);
+
+        request.setRotateOriginToDest(Matrix.makeIdentity());
+        assertEquals(new IntVector(10 - XZ_RADIUS, 70 - Y_RADIUS, -20 - XZ_RADIUS), request.getAreaMin());
+        assertEquals(new IntVector(10 + XZ_RADIUS, 70 + Y_RADIUS, -20 + XZ_RADIUS), request.getAreaMax());
+
+        // Horizontal portals swap the Y and Z axes, so the area must still be ordered correctly
+        request.setRotateOriginToDest(Matrix.makeRotation(new Vector(1, 0, 0), Math.PI / 2));
+        IntVector min = request.getAreaMin();
+        IntVector max = request.getAreaMax();
+        assertEquals(new IntVector(10 - XZ_RADIUS, 70 - XZ_RADIUS, -20 - Y_RADIUS), min);
+        assertEquals(new IntVector(10 + XZ_RADIUS, 70 + XZ_RADIUS, -20 + Y_RADIUS), max);
+    }
+
+    @Test
+    public void testUpdateRoundTrip() throws Exception {
+        BlockChangeUpdate update = new BlockChangeUpdate(42, true, makeFullArea(new IntVector(0, 64, 0), new HashMap<>()));
+
+        BlockChangeUpdate result = (BlockChangeUpdate) ((Response) registry.deserialize(registry.serialize(wrap(update)))).getResult();
+        assertEquals(42, result.getSequence());
+        assertTrue(result.isFullSnapshot());
+        assertEquals(update.getChanges().size(), result.getChanges().size());
+
+        BlockChangeUpdate empty = new BlockChangeUpdate(BlockChangeUpdate.NO_SEQUENCE, false, new BlockChangeSet(0));
+        BlockChangeUpdate emptyResult = (BlockChangeUpdate) ((Response) registry.deserialize(registry.serialize(wrap(empty)))).getResult();
+        assertEquals(BlockChangeUpdate.NO_SEQUENCE, emptyResult.getSequence());
+        assertFalse(emptyResult.isFullSnapshot());
+        assertEquals(0, emptyResult.getChanges().size());
+    }
+
+    /**
+     * The columnar encoding should be much smaller than a Java serialized map, which is what was sent before the binary protocol.
+     */
+    @Test
+    public void testSmallerThanSerializedMap() throws Exception {
+        Map<IntVector, Integer> asMap = new HashMap<>();
+        BlockChangeSet changes = makeFullArea(new IntVector(500, 64, -500), asMap);
+
+        int mapSize = JavaObjectSerializer.INSTANCE.serialize(wrap(asMap)).length;
+        int binarySize = registry.serialize(wrap(changes)).length;
+        assertTrue(binarySize * 10 < mapSize);
+    }
+}
@@ -0,0 +1,118 @@
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.ChunkTicketManager;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.logging.OverrideLogger;
+import implementations.TestChunkLoadingWorld;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkTicketManagerTests {
+    private static final int LINGER_TIME = 5;
+
+    private ServerMock server;
+    private TestChunkLoadingWorld world;
+    private ChunkTicketManager ticketManager;
+
+    @BeforeEach
+    public void setup() {
+        server = MockBukkit.mock();
+        world = new TestChunkLoadingWorld();
+        server.addWorld(world);
+
+        Logger logger = new OverrideLogger(Logger.getAnonymousLogger());
+        MiscConfig miscConfig = new MiscConfig(logger);
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("logLevel", "INFO");
+        config.set("chunkLingerTime", LINGER_TIME);
+        miscConfig.load(config);
+
+        ticketManager = new ChunkTicketManager(miscConfig, logger);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        MockBukkit.unmock();
+    }
+
+    @Test
+    public void testSharedChunksStayLoaded() {
+        ChunkPosition chunk = new ChunkPosition(world, 3, -4);
+        ticketManager.addTicket(chunk);
+        ticketManager.addTicket(new ChunkPosition(world, 3, -4));
+        assertEquals(2, ticketManager.getTicketCount(chunk));
+        assertEquals(1, world.getForceLoadCalls());
+
+        ticketManager.removeTicket(chunk);
+        for(int i = 0; i < LINGER_TIME * 2; i++) {
+            ticketManager.update();
+        }
+        assertTrue(world.isChunkForceLoaded(3, -4));
+        assertEquals(1, ticketManager.getTicketedChunkCount());
+    }
+
+    @Test
+    public void testReleasedAfterLinger() {
+        ChunkPosition chunk = new ChunkPosition(world, 0, 0);
+        ticketManager.addTicket(chunk);
+        ticketManager.removeTicket(chunk);
+        assertEquals(0, ticketManager.getTicketedChunkCount());
+        assertEquals(1, ticketManager.getLingeringChunkCount());
+
+        for(int i = 0; i < LINGER_TIME - 1; i++) {
+            ticketManager.update();
+            assertTrue(ticketManager.isForceLoaded(chunk));
+        }
+
+        ticketManager.update();
+        assertFalse(ticketManager.isForceLoaded(chunk));
+        assertFalse(world.isChunkForceLoaded(0, 0));
+        assertEquals(0, ticketManager.getLingeringChunkCount());
+    }
+
+    @Test
+    public void testReactivatedWhileLingering() {
+        ChunkPosition chunk = new ChunkPosition(world, 0, 0);
+        ticketManager.addTicket(chunk);
+        ticketManager.removeTicket(chunk);
+        ticketManager.update();
+        ticketManager.addTicket(chunk);
+
+        for(int i = 0; i < LINGER_TIME * 2; i++) {
+            ticketManager.update();
+        }
+        // The chunk should have been force loaded once, and never unforceloaded
+        assertEquals(1, world.getForceLoadCalls());
+        assertEquals(1, ticketManager.getTicketCount(chunk));
+        assertEquals(0, ticketManager.getLingeringChunkCount());
+    }
+
+    @Test
+    public void testExternallyForcedChunksAreKept() {
+        world.setChunkForceLoaded(1, 1, true);
+        ChunkPosition chunk = new ChunkPosition(world, 1, 1);
+        ticketManager.addTicket(chunk);
+        ticketManager.releaseAll();
+
+        // Only the call above should have been made
+        assertEquals(1, world.getForceLoadCalls());
+        assertTrue(world.isChunkForceLoaded(1, 1));
+    }
+
+    @Test
+    public void testPendingLoads() {
+        ChunkPosition chunk = new ChunkPosition(world, 2, 2);
+        ticketManager.addTicket(chunk);
+        assertEquals(1, ticketManager.getPendingLoadCount());
+
+        world.setLoaded(2, 2);
+        ticketManager.update();
+        assertEquals(0, ticketManager.getPendingLoadCount());
+    }
+}
@@ -0,0 +1,149 @@
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import be.seeseemelk.mockbukkit.WorldMock;
+import be.seeseemelk.mockbukkit.entity.PlayerMock;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTracker;
+import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
+import com.lauriethefish.betterportals.bukkit.math.PortalTransformations;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import implementations.TestConfigHandler;
+import implementations.TestEntityPacketManipulator;
+import implementations.TestLoggerModule;
+import implementations.TestPortal;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EntityTrackerTests {
+    private static final int ITERATIONS = 1_000_000;
+
+    /**
+     * Tolerance for the allocation of the measurement itself, which is far less than a single byte per iteration.
+     */
+    private static final long ALLOCATION_TOLERANCE = 16_384;
+
+    /**
+     * An entity that stays still.
+     * Bukkit's {@link Location} allocates a reference to the world whenever it is set, so this only copies the position to keep that out of the measurement.
+     */
+    private static class IdleEntity extends PlayerMock {
+        public IdleEntity(ServerMock server) {
+            super(server, "idle");
+        }
+
+        @Override
+        public Location getLocation(Location loc) {
+            if(loc != null) {
+                loc.setX(0.5);
+                loc.setY(64.0);
+                loc.setZ(0.5);
+                loc.setYaw(0.0f);
+                loc.setPitch(0.0f);
+            }
+            return loc;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return true;
+        }
+    }
+
+    private ServerMock server;
+    private IdleEntity entity;
+    private TestEntityPacketManipulator packetManipulator;
+    private EntityTracker tracker;
+
+    @BeforeEach
+    public void setup() {
+        server = MockBukkit.mock();
+        WorldMock overworld = server.addSimpleWorld("world");
+        WorldMock nether = server.addSimpleWorld("world_nether");
+
+        Injector injector = Guice.createInjector(new TestLoggerModule());
+        // Only check equipment without an event once the metadata is sent, which never happens during the test
+        TestConfigHandler.prepareConfig("defaultConfig.yml", injector, config -> config.set("entityMetadataUpdateInterval", Integer.MAX_VALUE));
+        RenderConfig renderConfig = injector.getInstance(RenderConfig.class);
+
+        PortalPosition originPos = new PortalPosition(new Location(overworld, 0, 64, 0), PortalDirection.EAST);
+        PortalPosition destPos = new PortalPosition(new Location(nether, 0, 64, 0), PortalDirection.EAST);
+        TestPortal portal = new TestPortal(originPos, destPos, new Vector(2.0, 3.0, 0.0), true, UUID.randomUUID(), null, null, true) {
+            private final PortalTransformations transformations = new PortalTransformations(this, renderConfig);
+
+            @Override
+            public @NotNull PortalTransformations getTransformations() {
+                return transformations;
+            }
+        };
+
+        entity = new IdleEntity(server);
+        packetManipulator = new TestEntityPacketManipulator();
+        EntityTrackingManager trackingManager = new EntityTrackingManager(injector.getInstance(Logger.class), null) {};
+        tracker = new EntityTracker(entity, portal, packetManipulator, trackingManager, renderConfig, null);
+    }
+
+    @AfterEach
+    public void cleanUp() {
+        MockBukkit.unmock();
+    }
+
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testEquipmentOnlyCheckedAfterEvent() {
+        // Every slot is sent on the first update
+        tracker.update();
+        assertEquals(1, packetManipulator.getEquipmentPacketCount());
+
+        entity.getEquipment().setHelmet(new ItemStack(Material.DIAMOND_HELMET));
+        tracker.update();
+        assertEquals(1, packetManipulator.getEquipmentPacketCount());
+
+        tracker.onEquipmentMayHaveChanged();
+        tracker.update();
+        assertEquals(2, packetManipulator.getEquipmentPacketCount());
+
+        // Nothing changed since the last check, so no packet is sent
+        tracker.onEquipmentMayHaveChanged();
+        tracker.update();
+        assertEquals(2, packetManipulator.getEquipmentPacketCount());
+    }
+
+    /**
+     * Updating a tracker for an entity that isn't moving and hasn't changed its equipment happens every tick for most entities, so shouldn't allocate at all.
+     */
+    @Test
+    public void testIdleUpdateDoesNotAllocate() {
+        // Warm up so that the measured loop is compiled
+        for(int i = 0; i < ITERATIONS; i++) {
+            tracker.update();
+        }
+
+        long allocatedBefore = getAllocatedBytes();
+        for(int i = 0; i < ITERATIONS; i++) {
+            tracker.update();
+        }
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        assertTrue(allocated < ALLOCATION_TOLERANCE, String.format("Idle entity updates allocated %d bytes", allocated));
+        assertEquals(1, packetManipulator.getEquipmentPacketCount());
+    }
+}
@@ -0,0 +1,61 @@
+import com.lauriethefish.betterportals.bukkit.util.LongObjectMap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongObjectMapTests {
+    @Test
+    public void testPutAndGet() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        map.put(0L, "zero");
+        map.put(-1L, "negative");
+        map.put(Long.MAX_VALUE, "max");
+
+        assertEquals("zero", map.get(0L));
+        assertEquals("negative", map.get(-1L));
+        assertEquals("max", map.get(Long.MAX_VALUE));
+        assertNull(map.get(1L));
+        assertEquals(3, map.size());
+
+        map.put(0L, "replaced");
+        assertEquals("replaced", map.get(0L));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void testManyKeys() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        // Keys packed from coordinates only differ in a few bits, so make sure that they don't all collide
+        for(long x = -50; x < 50; x++) {
+            for(long z = -50; z < 50; z++) {
+                long key = (x << 32) | (z & 0xFFFFFFFFL);
+                map.put(key, key);
+            }
+        }
+
+        assertEquals(10000, map.size());
+        for(long x = -50; x < 50; x++) {
+            for(long z = -50; z < 50; z++) {
+                long key = (x << 32) | (z & 0xFFFFFFFFL);
+                assertEquals(key, map.get(key));
+            }
+        }
+        assertNull(map.get(50L << 32));
+    }
+
+    @Test
+    public void testClear() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        for(long i = 0; i < 100; i++) {
+            map.put(i, "value");
+        }
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(5L));
+
+        map.put(5L, "again");
+        assertEquals("again", map.get(5L));
+        assertEquals(1, map.size());
+    }
+}
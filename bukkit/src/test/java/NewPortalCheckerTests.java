@@ -0,0 +1,198 @@
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import be.seeseemelk.mockbukkit.WorldMock;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
+import com.lauriethefish.betterportals.bukkit.config.PortalSpawnConfig;
+import com.lauriethefish.betterportals.bukkit.config.WorldLink;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.ISpawnArea;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.NewPortalChecker;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.PortalSpawnPosition;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.PortalSpawningContext;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.logging.OverrideLogger;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NewPortalCheckerTests {
+    // Random blocks, mostly solid at the bottom and air at the top so that there are plenty of valid positions
+    private static class RandomSpawnArea implements ISpawnArea {
+        private final int minHeight;
+        private final int maxHeight;
+        private final int borderX;
+        private final Material[] blocks;
+
+        // Covers chunks -2 to 1 on both axes, apart from chunk (1, 1), which is left out
+        private RandomSpawnArea(long seed, int minHeight, int maxHeight, int borderX) {
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.borderX = borderX;
+            this.blocks = new Material[64 * 64 * (maxHeight - minHeight)];
+
+            Random random = new Random(seed);
+            int groundLevel = (minHeight + maxHeight) / 2;
+            for(int i = 0; i < blocks.length; i++) {
+                int y = i / (64 * 64) + minHeight;
+                double airChance = y < groundLevel ? 0.1 : 0.9;
+                double value = random.nextDouble();
+                if(value < airChance) {
+                    blocks[i] = Material.AIR;
+                }   else if(value < airChance + 0.05)    {
+                    blocks[i] = Material.WATER;
+                }   else    {
+                    blocks[i] = Material.STONE;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasChunk(int chunkX, int chunkZ) {
+            return chunkX >= -2 && chunkZ >= -2 && chunkX <= 1 && chunkZ <= 1 && !(chunkX == 1 && chunkZ == 1);
+        }
+
+        @Override
+        public Material getType(int x, int y, int z) {
+            if(!hasChunk(x >> 4, z >> 4)) {return null;}
+            if(y < minHeight || y >= maxHeight) {return Material.VOID_AIR;}
+
+            return blocks[((y - minHeight) * 64 + (z + 32)) * 64 + (x + 32)];
+        }
+
+        @Override
+        public int getMinHeight() {
+            return minHeight;
+        }
+
+        @Override
+        public int getMaxHeight() {
+            return maxHeight;
+        }
+
+        @Override
+        public boolean isInsideWorldBorder(int x, int z) {
+            return x < borderX;
+        }
+
+        @Override
+        public boolean isPortalWithin(int x, int y, int z, double distance) {
+            // Rule out some positions, so that the closest valid position isn't always the closest possible position
+            return Math.floorMod(x * 31 + y * 17 + z * 7, 5) == 0;
+        }
+    }
+
+    private ServerMock server;
+    private WorldMock world;
+    private NewPortalChecker checker;
+
+    @BeforeEach
+    public void setup() {
+        server = MockBukkit.mock();
+        world = server.addSimpleWorld("world");
+        checker = new NewPortalChecker(new PortalSpawnConfig(new OverrideLogger(Logger.getAnonymousLogger())));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        MockBukkit.unmock();
+    }
+
+    // The previous implementation of NewPortalChecker#findClosestInChunk, which reads every block around every position
+    private PortalSpawnPosition findClosestBruteForce(ChunkPosition chunk, PortalSpawningContext context, ISpawnArea area) {
+        PortalSpawnPosition currentClosest = null;
+        double closestDistance = Double.POSITIVE_INFINITY;
+
+        Location preferred = context.getPreferredLocation();
+        int minX = chunk.x << 4;
+        int minZ = chunk.z << 4;
+
+        WorldLink link = context.getWorldLink();
+        for(int y = link.getMinSpawnY(); y < link.getMaxSpawnY(); y++) {
+            for(int x = minX; x < minX + 16; x++) {
+                for(int z = minZ; z < minZ + 16; z++) {
+                    double distance = new Location(preferred.getWorld(), x, y, z).distance(preferred);
+                    if(distance >= closestDistance) {continue;}
+
+                    for(PortalDirection direction : new PortalDirection[]{PortalDirection.NORTH, PortalDirection.EAST}) {
+                        if(checker.isValidPortalSpawnPosition(area, x, y, z, direction, context.getSize())) {
+                            closestDistance = distance;
+                            currentClosest = new PortalSpawnPosition(new Location(preferred.getWorld(), x, y, z), context.getSize(), direction);
+                        }
+                    }
+                }
+            }
+        }
+
+        return currentClosest;
+    }
+
+    private void checkMatchesBruteForce(ISpawnArea area, Vector size, int minSpawnY, int maxSpawnY, Location preferred) {
+        WorldLink link = new WorldLink(world, world, 1.0, minSpawnY, maxSpawnY);
+        PortalSpawningContext context = new PortalSpawningContext(link, preferred, size);
+
+        for(int chunkX = -2; chunkX <= 1; chunkX++) {
+            for(int chunkZ = -2; chunkZ <= 1; chunkZ++) {
+                ChunkPosition chunk = new ChunkPosition(world, chunkX, chunkZ);
+                PortalSpawnPosition expected = findClosestBruteForce(chunk, context, area);
+                PortalSpawnPosition actual = checker.findClosestInChunk(chunk, context, area);
+
+                if(expected == null) {
+                    assertNull(actual, "Unexpected position in chunk " + chunk);
+                    continue;
+                }
+                assertNotNull(actual, "Missing position in chunk " + chunk);
+                assertEquals(expected.getPosition(), actual.getPosition());
+                assertEquals(expected.getDirection(), actual.getDirection());
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Location preferred = new Location(world, -5.0, 20.0, 3.0);
+        for(long seed = 0; seed < 4; seed++) {
+            RandomSpawnArea area = new RandomSpawnArea(seed, -16, 48, 20);
+            checkMatchesBruteForce(area, new Vector(2.0, 3.0, 0.0), -16, 48, preferred);
+            checkMatchesBruteForce(area, new Vector(4.0, 5.0, 0.0), 0, 40, preferred);
+        }
+    }
+
+    @Test
+    public void testSpawnRangeOutsideWorld() {
+        // Floors below the world aren't solid, and the blocks above the world count as air
+        RandomSpawnArea area = new RandomSpawnArea(10, 0, 24, 64);
+        checkMatchesBruteForce(area, new Vector(2.0, 3.0, 0.0), -8, 32, new Location(world, 0.0, 22.0, 0.0));
+    }
+
+    // Compares the speed of the column masks against reading each block around each position
+    @Test
+    @Tag("benchmark")
+    public void benchmarkAgainstBruteForce() {
+        RandomSpawnArea area = new RandomSpawnArea(0, -64, 320, 64);
+        WorldLink link = new WorldLink(world, world, 1.0, -64, 320);
+        PortalSpawningContext context = new PortalSpawningContext(link, new Location(world, 0.0, 64.0, 0.0), new Vector(2.0, 3.0, 0.0));
+        ChunkPosition chunk = new ChunkPosition(world, -1, -1);
+
+        long bruteForceStart = System.nanoTime();
+        for(int i = 0; i < 5; i++) {
+            findClosestBruteForce(chunk, context, area);
+        }
+        long bruteForceTime = System.nanoTime() - bruteForceStart;
+
+        long masksStart = System.nanoTime();
+        for(int i = 0; i < 5; i++) {
+            checker.findClosestInChunk(chunk, context, area);
+        }
+        long masksTime = System.nanoTime() - masksStart;
+
+        System.out.printf("Brute force: %.2fms per chunk, column masks: %.2fms per chunk%n", bruteForceTime / 5_000_000.0, masksTime / 5_000_000.0);
+    }
+}
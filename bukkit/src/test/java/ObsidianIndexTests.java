@@ -0,0 +1,131 @@
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.ISpawnArea;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.ObsidianIndex;
+import com.lauriethefish.betterportals.bukkit.portal.spawning.ObsidianRegion;
+import org.bukkit.Material;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObsidianIndexTests {
+    // Area of one chunk with obsidian at the given positions, and stone everywhere else
+    private static class TestSpawnArea implements ISpawnArea {
+        private final Set<IntVector> obsidian = new HashSet<>();
+
+        @Override
+        public boolean hasChunk(int chunkX, int chunkZ) {
+            return true;
+        }
+
+        @Override
+        public Material getType(int x, int y, int z) {
+            return obsidian.contains(new IntVector(x, y, z)) ? Material.OBSIDIAN : Material.STONE;
+        }
+
+        @Override
+        public int getMinHeight() {
+            return -64;
+        }
+
+        @Override
+        public int getMaxHeight() {
+            return 320;
+        }
+
+        @Override
+        public boolean isInsideWorldBorder(int x, int z) {
+            return true;
+        }
+
+        @Override
+        public boolean isPortalWithin(int x, int y, int z, double distance) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testScanAndRangeQuery() {
+        TestSpawnArea area = new TestSpawnArea();
+        // Negative chunk coordinates and Y levels should both be kept
+        area.obsidian.add(new IntVector(-32, -60, -17));
+        area.obsidian.add(new IntVector(-20, 10, -32));
+        area.obsidian.add(new IntVector(-17, 10, -25));
+        area.obsidian.add(new IntVector(-25, 200, -20));
+
+        int[] scanned = ObsidianIndex.scanArea(area, -2, -2);
+        assertEquals(4, scanned.length);
+
+        List<IntVector> all = ObsidianIndex.unpackRange(scanned, -2, -2, -64, 320);
+        assertEquals(area.obsidian, new HashSet<>(all));
+
+        List<IntVector> middle = ObsidianIndex.unpackRange(scanned, -2, -2, 10, 200);
+        assertEquals(Set.of(new IntVector(-20, 10, -32), new IntVector(-17, 10, -25)), new HashSet<>(middle));
+
+        assertEquals(0, ObsidianIndex.unpackRange(scanned, -2, -2, 11, 200).size());
+    }
+
+    @Test
+    public void testPackedPositionsSortByY() {
+        assertEquals(-1, Integer.signum(ObsidianIndex.packPosition(15, -1, 15) - ObsidianIndex.packPosition(0, 0, 0)));
+        assertEquals(-1, Integer.signum(ObsidianIndex.packPosition(15, 4, 15) - ObsidianIndex.packPosition(0, 5, 0)));
+    }
+
+    private static ObsidianRegion reload(ObsidianRegion region) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        region.write(new DataOutputStream(byteStream));
+        return ObsidianRegion.read(new DataInputStream(new ByteArrayInputStream(byteStream.toByteArray())));
+    }
+
+    @Test
+    public void testRegionEntries() {
+        ObsidianRegion region = new ObsidianRegion();
+        assertNull(region.getObsidian(-33, 5));
+
+        int[] obsidian = {ObsidianIndex.packPosition(1, 64, 2)};
+        region.put(-33, 5, obsidian, 100);
+        region.put(-32, 5, new int[0], 100);
+        assertArrayEquals(obsidian, region.getObsidian(-33, 5));
+        assertEquals(0, region.getObsidian(-32, 5).length);
+        assertNull(region.getObsidian(-34, 5));
+        assertTrue(region.takeDirty());
+        assertFalse(region.takeDirty());
+    }
+
+    // Entries from a previous run should only be used once the chunk's inhabited time shows that it hasn't changed
+    @Test
+    public void testReloadedEntriesAreVerified() throws IOException {
+        ObsidianRegion region = new ObsidianRegion();
+        int[] obsidian = {ObsidianIndex.packPosition(1, 64, 2), ObsidianIndex.packPosition(3, 70, 4)};
+        region.put(0, 0, obsidian, 100);
+        region.put(1, 0, new int[0], 100);
+        region.put(2, 0, new int[0], 100);
+        // Players stayed near this chunk after it was indexed
+        region.updateInhabitedTime(2, 0, 150);
+
+        ObsidianRegion reloaded = reload(region);
+        for(int chunkX = 0; chunkX < 3; chunkX++) {
+            assertFalse(reloaded.isTrusted(chunkX, 0));
+            assertTrue(reloaded.isUnverified(chunkX, 0));
+            assertNull(reloaded.getObsidian(chunkX, 0));
+        }
+
+        assertTrue(reloaded.verify(0, 0, 100));
+        assertArrayEquals(obsidian, reloaded.getObsidian(0, 0));
+
+        // The chunk was changed while the index wasn't running
+        assertFalse(reloaded.verify(1, 0, 120));
+        assertFalse(reloaded.isUnverified(1, 0));
+        assertNull(reloaded.getObsidian(1, 0));
+
+        assertTrue(reloaded.verify(2, 0, 150));
+        assertEquals(0, reloaded.getObsidian(2, 0).length);
+
+        // Entries that haven't been verified yet are saved again as they were
+        assertTrue(reload(reload(region)).isUnverified(0, 0));
+    }
+}
@@ -0,0 +1,116 @@
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.external.PalettedBlockArea;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PalettedBlockAreaTests {
+    // Crosses section boundaries on every axis, including negative coordinates
+    private final IntVector min = new IntVector(-20, 60, 5);
+    private final IntVector max = new IntVector(6, 74, 31);
+
+    private PalettedBlockArea<String> makeArea() {
+        return new PalettedBlockArea<>(min, max);
+    }
+
+    private List<IntVector> collectDirty(PalettedBlockArea<String> area) {
+        List<IntVector> result = new ArrayList<>();
+        area.scanDirtySections((x, y, z) -> result.add(new IntVector(x, y, z)));
+        return result;
+    }
+
+    @Test
+    public void testGetAndSet() {
+        PalettedBlockArea<String> area = makeArea();
+        assertEquals(27 * 15 * 27, area.getVolume());
+        assertNull(area.get(0, 65, 10));
+        assertNull(area.get(7, 65, 10));
+
+        assertTrue(area.set(0, 65, 10, "stone"));
+        assertFalse(area.set(0, 65, 10, "stone"));
+        assertTrue(area.set(-20, 60, 5, "stone"));
+        assertTrue(area.set(6, 74, 31, "air"));
+
+        assertEquals("stone", area.get(0, 65, 10));
+        assertEquals("stone", area.get(-20, 60, 5));
+        assertEquals("air", area.get(6, 74, 31));
+        assertNull(area.get(0, 66, 10));
+        assertEquals(2, area.getPaletteSize());
+    }
+
+    @Test
+    public void testForEachVisitsWholeArea() {
+        PalettedBlockArea<String> area = makeArea();
+        Set<IntVector> visited = new HashSet<>();
+        area.forEachPosition((x, y, z) -> {
+            assertTrue(area.contains(x, y, z));
+            assertTrue(visited.add(new IntVector(x, y, z)));
+        });
+        assertEquals(area.getVolume(), visited.size());
+    }
+
+    @Test
+    public void testOnlyDirtySectionsAreScanned() {
+        PalettedBlockArea<String> area = makeArea();
+        assertFalse(area.hasDirtySections());
+        assertTrue(collectDirty(area).isEmpty());
+
+        // Positions outside the area are ignored
+        area.markDirty(100, 65, 10, 1);
+        assertFalse(area.hasDirtySections());
+
+        // Section from (-16, 48, 16) to (-1, 63, 31), cut off by the bottom of the area
+        area.markDirty(-5, 61, 20, 1);
+        assertTrue(area.hasDirtySections());
+        List<IntVector> scanned = collectDirty(area);
+        assertEquals(16 * 4 * 16, scanned.size());
+        assertTrue(scanned.contains(new IntVector(-16, 60, 16)));
+        assertTrue(scanned.contains(new IntVector(-1, 63, 31)));
+        for(IntVector position : scanned) {
+            assertTrue(area.contains(position.getX(), position.getY(), position.getZ()));
+        }
+
+        assertFalse(area.hasDirtySections());
+        assertTrue(collectDirty(area).isEmpty());
+    }
+
+    @Test
+    public void testSectionsAreScannedRepeatedly() {
+        PalettedBlockArea<String> area = makeArea();
+        area.markDirty(0, 70, 10, 3);
+        area.markDirty(0, 70, 10, 1); // Shouldn't reduce the scans remaining
+
+        for(int i = 0; i < 3; i++) {
+            assertTrue(area.hasDirtySections());
+            assertFalse(collectDirty(area).isEmpty());
+        }
+        assertFalse(area.hasDirtySections());
+
+        area.markAllDirty(1);
+        assertEquals(area.getVolume(), collectDirty(area).size());
+        assertFalse(area.hasDirtySections());
+    }
+
+    @Test
+    public void testPaletteIsCompactedWhenFull() {
+        PalettedBlockArea<String> area = new PalettedBlockArea<>(new IntVector(0, 0, 0), new IntVector(1, 1, 1));
+        area.set(0, 0, 0, "kept");
+
+        // Values that are replaced stay in the palette until it runs out of space
+        for(int i = 0; i < 70_000; i++) {
+            area.set(1, 1, 1, "value" + i);
+        }
+
+        assertTrue(area.getPaletteSize() < 70_000);
+        assertEquals("kept", area.get(0, 0, 0));
+        assertEquals("value69999", area.get(1, 1, 1));
+        assertNull(area.get(1, 0, 1));
+        assertTrue(area.set(1, 0, 1, "kept"));
+        assertEquals("kept", area.get(1, 0, 1));
+    }
+}
@@ -0,0 +1,134 @@
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import be.seeseemelk.mockbukkit.WorldMock;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.portal.PendingPortals;
+import com.lauriethefish.betterportals.bukkit.portal.storage.PortalRecord;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PendingPortalsTests {
+    private PendingPortals pendingPortals;
+    private ServerMock server;
+    private WorldMock overworld;
+    private WorldMock nether;
+
+    @BeforeEach
+    public void setup() {
+        pendingPortals = new PendingPortals();
+        server = MockBukkit.mock();
+        overworld = server.addSimpleWorld("world");
+        nether = server.addSimpleWorld("world_nether");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        MockBukkit.unmock();
+    }
+
+    private PortalRecord createRecord(double x, double z) {
+        PortalPosition originPos = new PortalPosition(new Vector(x, 64.0, z), PortalDirection.EAST, null, "world");
+        PortalPosition destPos = new PortalPosition(new Vector(x / 8.0, 64.0, z / 8.0), PortalDirection.EAST, null, "world_nether");
+        return new PortalRecord(UUID.randomUUID(), null, null, originPos, destPos, new Vector(2.0, 3.0, 0.0), false, true);
+    }
+
+    @Test
+    public void testTakeWithin() {
+        PortalRecord near = createRecord(10.0, 10.0);
+        PortalRecord far = createRecord(5000.0, -5000.0);
+        pendingPortals.add(overworld, near);
+        pendingPortals.add(overworld, far);
+
+        List<PortalRecord> taken = pendingPortals.takeWithin(overworld, 0.0, 0.0, 100.0);
+        assertEquals(1, taken.size());
+        assertSame(near, taken.get(0));
+        assertEquals(1, pendingPortals.size());
+
+        // Portals in other worlds shouldn't be taken
+        assertTrue(pendingPortals.takeWithin(nether, 5000.0, -5000.0, 100.0).isEmpty());
+
+        taken = pendingPortals.takeWithin(overworld, 4900.0, -4900.0, 200.0);
+        assertEquals(1, taken.size());
+        assertSame(far, taken.get(0));
+        assertTrue(pendingPortals.isEmpty());
+    }
+
+    @Test
+    public void testTakeWithinLargeRadius() {
+        for(int i = 0; i < 10; i++) {
+            pendingPortals.add(overworld, createRecord(i * 1000.0, -i * 1000.0));
+        }
+        pendingPortals.add(nether, createRecord(0.0, 0.0));
+
+        assertEquals(10, pendingPortals.takeWithin(overworld, 0.0, 0.0, 1_000_000_000.0).size());
+        assertEquals(1, pendingPortals.takeWithin(nether, 0.0, 0.0, Double.POSITIVE_INFINITY).size());
+        assertTrue(pendingPortals.isEmpty());
+    }
+
+    @Test
+    public void testTakeWorld() {
+        pendingPortals.add(overworld, createRecord(0.0, 0.0));
+        pendingPortals.add(overworld, createRecord(-3000.0, 700.0));
+        pendingPortals.add(nether, createRecord(0.0, 0.0));
+
+        assertEquals(2, pendingPortals.takeWorld(overworld).size());
+        assertEquals(1, pendingPortals.size());
+        assertTrue(pendingPortals.takeWorld(overworld).isEmpty());
+    }
+
+    @Test
+    public void testTakeBatch() {
+        for(int i = 0; i < 25; i++) {
+            pendingPortals.add(i % 2 == 0 ? overworld : nether, createRecord(i * 300.0, 0.0));
+        }
+
+        int takenCount = 0;
+        while(!pendingPortals.isEmpty()) {
+            List<PortalRecord> batch = pendingPortals.takeBatch(10);
+            assertTrue(batch.size() <= 10);
+            takenCount += batch.size();
+            assertEquals(25 - takenCount, pendingPortals.size());
+        }
+        assertEquals(25, takenCount);
+    }
+
+    @Test
+    public void testTakeAtPosition() {
+        // Removing the portals at a position takes the pending ones there with a radius of zero, e.g. the reverse portal of a removed portal
+        PortalRecord atPosition = createRecord(-600.5, 1023.5);
+        PortalRecord elsewhere = createRecord(600.5, 1023.5);
+        pendingPortals.add(overworld, atPosition);
+        pendingPortals.add(overworld, elsewhere);
+
+        List<PortalRecord> taken = pendingPortals.takeWithin(overworld, -600.5, 1023.5, 0.0);
+        assertEquals(1, taken.size());
+        assertSame(atPosition, taken.get(0));
+        assertNull(pendingPortals.take(atPosition.getId()));
+        assertEquals(1, pendingPortals.size());
+    }
+
+    @Test
+    public void testTakeById() {
+        PortalRecord first = createRecord(0.0, 0.0);
+        PortalRecord second = createRecord(10.0, 0.0);
+        pendingPortals.add(overworld, first);
+        pendingPortals.add(overworld, second);
+
+        assertSame(first, pendingPortals.take(first.getId()));
+        assertNull(pendingPortals.take(first.getId()));
+        assertEquals(1, pendingPortals.size());
+
+        // Portals taken some other way can't be taken by ID afterwards
+        assertEquals(1, pendingPortals.takeWithin(overworld, 0.0, 0.0, 50.0).size());
+        assertNull(pendingPortals.take(second.getId()));
+        assertTrue(pendingPortals.isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import com.lauriethefish.betterportals.bukkit.player.PlayerDataStore;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.logging.OverrideLogger;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlayerDataStoreTests {
+    private ServerMock server;
+    private JavaPlugin plugin;
+    private Logger logger;
+
+    @BeforeEach
+    public void setup() {
+        server = MockBukkit.mock();
+        plugin = MockBukkit.createMockPlugin();
+        logger = new OverrideLogger(Logger.getAnonymousLogger());
+    }
+
+    @AfterEach
+    public void cleanup() {
+        MockBukkit.unmock();
+    }
+
+    // Loads the data of a player with a new store, so that it has to be read from the file
+    private AtomicReference<YamlConfiguration> loadFromFile(UUID playerId) {
+        PlayerDataStore store = new PlayerDataStore(plugin, logger);
+        AtomicReference<YamlConfiguration> result = new AtomicReference<>();
+        store.load(playerId, result::set);
+
+        // Wait for the load to finish, then run the callback on the main thread
+        store.close();
+        server.getScheduler().performOneTick();
+        return result;
+    }
+
+    @Test
+    public void testSavedDataIsLoaded() {
+        UUID playerId = UUID.randomUUID();
+        PlayerDataStore store = new PlayerDataStore(plugin, logger);
+        YamlConfiguration data = new YamlConfiguration();
+        data.set("seeThroughPortal", false);
+        store.save(playerId, data);
+        assertEquals(1, store.getPendingCount());
+
+        store.close();
+        assertEquals(0, store.getPendingCount());
+
+        YamlConfiguration loaded = loadFromFile(playerId).get();
+        assertNotNull(loaded);
+        assertFalse(loaded.getBoolean("seeThroughPortal", true));
+    }
+
+    @Test
+    public void testPendingDataIsLoadedImmediately() {
+        UUID playerId = UUID.randomUUID();
+        PlayerDataStore store = new PlayerDataStore(plugin, logger);
+        YamlConfiguration data = new YamlConfiguration();
+        data.set("seeThroughPortal", false);
+        store.save(playerId, data);
+
+        // Changing the data after saving it shouldn't change what was saved
+        data.set("seeThroughPortal", true);
+
+        AtomicReference<YamlConfiguration> result = new AtomicReference<>();
+        store.load(playerId, result::set);
+        assertNotNull(result.get());
+        assertFalse(result.get().getBoolean("seeThroughPortal", true));
+    }
+
+    @Test
+    public void testMissingPlayerHasNoData() {
+        AtomicReference<YamlConfiguration> result = loadFromFile(UUID.randomUUID());
+        assertNull(result.get());
+    }
+
+    @Test
+    public void testLegacyFileIsMigrated() throws IOException {
+        UUID playerId = UUID.randomUUID();
+        Path legacyPath = plugin.getDataFolder().toPath().resolve("playerData").resolve(playerId + ".yml");
+        Files.createDirectories(legacyPath.getParent());
+        Files.write(legacyPath, "seeThroughPortal: false\n".getBytes());
+
+        YamlConfiguration loaded = loadFromFile(playerId).get();
+        assertNotNull(loaded);
+        assertFalse(loaded.getBoolean("seeThroughPortal", true));
+
+        // The data should now be stored without the old file
+        Files.delete(legacyPath);
+        loaded = loadFromFile(playerId).get();
+        assertNotNull(loaded);
+        assertFalse(loaded.getBoolean("seeThroughPortal", true));
+    }
+}
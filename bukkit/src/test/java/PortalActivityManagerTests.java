@@ -3,11 +3,13 @@ import com.google.inject.Injector;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 import com.lauriethefish.betterportals.api.PortalDirection;
 import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.bukkit.portal.PortalActivityManager;
 import implementations.TestLoggerModule;
 import implementations.TestPortal;
 import org.bukkit.Location;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.util.Vector;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -17,6 +19,8 @@ import java.util.UUID;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class PortalActivityManagerTests {
+    private static final int IDLE_TIME = 5;
+
     private PortalActivityManager portalActivityManager;
     private IPortal.Factory portalFactory;
 
@@ -27,6 +31,11 @@ public class PortalActivityManagerTests {
                 new TestLoggerModule()
         );
 
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("logLevel", "INFO");
+        config.set("portalIdleTime", IDLE_TIME);
+        injector.getInstance(MiscConfig.class).load(config);
+
         portalFactory = injector.getInstance(IPortal.Factory.class);
         portalActivityManager = injector.getInstance(PortalActivityManager.class);
     }
@@ -90,4 +99,34 @@ public class PortalActivityManagerTests {
         portalActivityManager.postUpdate();
         assertEquals(1, portal.getViewDeactivateCallCount());
     }
+
+    // Tests that portals are released once they've been deactivated for the idle time, unless they're activated again
+    @Test
+    public void testIdlePortalsAreReleased() {
+        TestPortal portal = createTestPortal();
+        portalActivityManager.onPortalActivatedThisTick(portal);
+        portalActivityManager.postUpdate();
+
+        // Deactivated on this tick
+        portalActivityManager.postUpdate();
+        for(int i = 0; i < IDLE_TIME - 1; i++) {
+            portalActivityManager.postUpdate();
+        }
+        assertEquals(0, portal.getReleaseCallCount());
+
+        // Activating the portal again should reset the idle time
+        portalActivityManager.onPortalActivatedThisTick(portal);
+        portalActivityManager.postUpdate();
+        for(int i = 0; i < IDLE_TIME; i++) {
+            portalActivityManager.postUpdate();
+        }
+        assertEquals(0, portal.getReleaseCallCount());
+
+        portalActivityManager.postUpdate();
+        assertEquals(1, portal.getReleaseCallCount());
+        for(int i = 0; i < IDLE_TIME * 2; i++) {
+            portalActivityManager.postUpdate();
+        }
+        assertEquals(1, portal.getReleaseCallCount());
+    }
 }
@@ -0,0 +1,277 @@
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.util.RecordLog;
+import com.lauriethefish.betterportals.bukkit.portal.storage.PortalRecord;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordLogTests {
+    @TempDir
+    Path tempDir;
+
+    private static PortalRecord createRecord(UUID id, int index) {
+        PortalPosition originPos = new PortalPosition(new Vector(index, 64.5, -index), PortalDirection.NORTH, null, "world");
+        PortalPosition destPos = new PortalPosition(new Vector(index / 8.0, 70.5, -index / 8.0), PortalDirection.EAST, "lobby", "world_nether");
+        return new PortalRecord(id, index % 2 == 0 ? UUID.randomUUID() : null, index % 3 == 0 ? "Portal " + index : null,
+                originPos, destPos, new Vector(2.0, 3.0, 0.0), index % 2 == 0, true);
+    }
+
+    private static byte[] encode(PortalRecord record) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        record.write(new DataOutputStream(byteStream));
+        return byteStream.toByteArray();
+    }
+
+    private static PortalRecord decode(UUID id, byte[] data) throws IOException {
+        return PortalRecord.read(id, new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static Map<UUID, byte[]> createRecords(int count) throws IOException {
+        Map<UUID, byte[]> result = new LinkedHashMap<>();
+        for(int i = 0; i < count; i++) {
+            UUID id = UUID.randomUUID();
+            result.put(id, encode(createRecord(id, i)));
+        }
+        return result;
+    }
+
+    private static void assertSameRecords(Map<UUID, byte[]> expected, Map<UUID, byte[]> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for(Map.Entry<UUID, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws IOException {
+        for(int i = 0; i < 6; i++) {
+            UUID id = UUID.randomUUID();
+            PortalRecord record = createRecord(id, i);
+            PortalRecord read = decode(id, encode(record));
+
+            assertEquals(id, read.getId());
+            assertEquals(record.getOwnerId(), read.getOwnerId());
+            assertEquals(record.getName(), read.getName());
+            assertEquals(record.getOriginPos(), read.getOriginPos());
+            assertEquals(record.getDestPos(), read.getDestPos());
+            assertEquals(record.getSize(), read.getSize());
+            assertEquals(record.isCustom(), read.isCustom());
+            assertEquals(record.isAllowsNonPlayerTeleportation(), read.isAllowsNonPlayerTeleportation());
+        }
+    }
+
+    @Test
+    public void testChangesAreReloaded() throws IOException {
+        Path path = tempDir.resolve("portals.dat");
+        RecordLog log = new RecordLog(path);
+        log.load();
+
+        Map<UUID, byte[]> expected = createRecords(20);
+        log.write(expected, Collections.emptyList());
+
+        // Replace one record and remove another
+        Iterator<UUID> ids = expected.keySet().iterator();
+        UUID changedId = ids.next();
+        UUID removedId = ids.next();
+        expected.put(changedId, new byte[]{1, 2, 3});
+        expected.remove(removedId);
+        log.write(Collections.singletonMap(changedId, new byte[]{1, 2, 3}), Collections.singletonList(removedId));
+        assertSameRecords(expected, log.getRecords());
+
+        RecordLog reloaded = new RecordLog(path);
+        assertSameRecords(expected, reloaded.load());
+        assertEquals(0, reloaded.getDiscardedBytes());
+        assertEquals(Files.size(path), reloaded.getFileSize());
+    }
+
+    @Test
+    public void testCutOffEntryIsDiscarded() throws IOException {
+        Path path = tempDir.resolve("portals.dat");
+        RecordLog log = new RecordLog(path);
+        log.load();
+
+        Map<UUID, byte[]> expected = createRecords(5);
+        log.write(expected, Collections.emptyList());
+        long validSize = Files.size(path);
+        log.write(createRecords(1), Collections.emptyList());
+
+        // Simulate a crash part way through the last append
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(validSize + 10);
+        }
+
+        RecordLog reloaded = new RecordLog(path);
+        assertSameRecords(expected, reloaded.load());
+        assertEquals(10, reloaded.getDiscardedBytes());
+        assertEquals(validSize, Files.size(path));
+
+        // Appending after the discarded entry should still give a readable file
+        Map<UUID, byte[]> added = createRecords(1);
+        reloaded.write(added, Collections.emptyList());
+        expected.putAll(added);
+        assertSameRecords(expected, new RecordLog(path).load());
+    }
+
+    @Test
+    public void testCorruptEntryIsDiscarded() throws IOException {
+        Path path = tempDir.resolve("portals.dat");
+        RecordLog log = new RecordLog(path);
+        log.load();
+
+        Map<UUID, byte[]> expected = createRecords(3);
+        log.write(expected, Collections.emptyList());
+        long validSize = Files.size(path);
+        log.write(createRecords(1), Collections.emptyList());
+
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length - 8] ^= 0x55;
+        Files.write(path, bytes);
+
+        RecordLog reloaded = new RecordLog(path);
+        assertSameRecords(expected, reloaded.load());
+        assertEquals(validSize, Files.size(path));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path path = tempDir.resolve("portals.dat");
+        RecordLog log = new RecordLog(path);
+        log.load();
+
+        Map<UUID, byte[]> records = createRecords(100);
+        log.write(records, Collections.emptyList());
+        long initialSize = log.getFileSize();
+
+        // Rewrite every portal many times, which should cause the file to be compacted rather than growing forever
+        for(int i = 0; i < 50; i++) {
+            log.write(records, Collections.emptyList());
+            assertTrue(log.getFileSize() <= Math.max(initialSize * 2, 64 * 1024 + initialSize));
+        }
+        assertEquals(Files.size(path), log.getFileSize());
+        assertSameRecords(records, new RecordLog(path).load());
+    }
+
+    // The binary log should be smaller than the previous YAML format, and saving one changed portal should only append that portal
+    @Test
+    public void testSmallerThanYaml() throws Exception {
+        List<PortalRecord> portals = new ArrayList<>();
+        Map<UUID, byte[]> records = new LinkedHashMap<>();
+        for(int i = 0; i < 1_000; i++) {
+            PortalRecord record = createRecord(UUID.randomUUID(), i);
+            portals.add(record);
+            records.put(record.getId(), encode(record));
+        }
+
+        Path path = tempDir.resolve("portals.dat");
+        RecordLog log = new RecordLog(path);
+        log.load();
+        log.write(records, Collections.emptyList());
+        long binarySize = Files.size(path);
+
+        PortalRecord changed = portals.get(0);
+        byte[] changedData = encode(changed);
+        log.write(Collections.singletonMap(changed.getId(), changedData), Collections.emptyList());
+        assertTrue(Files.size(path) - binarySize < changedData.length + 64);
+
+        Path yamlPath = tempDir.resolve("portals.yml");
+        YamlConfiguration config = new YamlConfiguration();
+        for(int i = 0; i < portals.size(); i++) {
+            PortalRecord record = portals.get(i);
+            ConfigurationSection section = config.createSection("portals." + i);
+            section.set("id", record.getId().toString());
+            section.set("originPos", record.getOriginPos().serialize());
+            section.set("destPos", record.getDestPos().serialize());
+            section.set("size", record.getSize());
+            section.set("isCustom", record.isCustom());
+        }
+        config.save(yamlPath.toFile());
+
+        assertTrue(binarySize * 2 < Files.size(yamlPath), String.format("Binary log was %d bytes, YAML was %d bytes", binarySize, Files.size(yamlPath)));
+    }
+
+    // Compares saving and loading every portal with the binary log against the previous YAML format
+    @Test
+    @Tag("benchmark")
+    public void benchmarkAgainstYaml() throws Exception {
+        for(int count : new int[]{1_000, 10_000, 100_000}) {
+            Path path = tempDir.resolve("benchmark" + count + ".dat");
+            Map<UUID, byte[]> records = new LinkedHashMap<>();
+            List<PortalRecord> portals = new ArrayList<>();
+            for(int i = 0; i < count; i++) {
+                portals.add(createRecord(UUID.randomUUID(), i));
+            }
+
+            long binarySaveStart = System.nanoTime();
+            for(PortalRecord record : portals) {
+                records.put(record.getId(), encode(record));
+            }
+            RecordLog log = new RecordLog(path);
+            log.load();
+            log.write(records, Collections.emptyList());
+            long binarySaveTime = System.nanoTime() - binarySaveStart;
+
+            long binaryLoadStart = System.nanoTime();
+            for(Map.Entry<UUID, byte[]> entry : new RecordLog(path).load().entrySet()) {
+                decode(entry.getKey(), entry.getValue());
+            }
+            long binaryLoadTime = System.nanoTime() - binaryLoadStart;
+
+            // Saving a single changed portal only appends its record
+            PortalRecord changed = portals.get(0);
+            long incrementalStart = System.nanoTime();
+            log.write(Collections.singletonMap(changed.getId(), encode(changed)), Collections.emptyList());
+            long incrementalTime = System.nanoTime() - incrementalStart;
+
+            System.out.printf("%d portals - binary save: %.2fms, binary load: %.2fms, single change: %.3fms, file size: %dKB%n", count,
+                    binarySaveTime / 1_000_000.0, binaryLoadTime / 1_000_000.0, incrementalTime / 1_000_000.0, Files.size(path) / 1024);
+
+            // YAML is too slow to be worth benchmarking with the largest count
+            if(count > 10_000) {continue;}
+
+            Path yamlPath = tempDir.resolve("benchmark" + count + ".yml");
+            long yamlSaveStart = System.nanoTime();
+            YamlConfiguration config = new YamlConfiguration();
+            for(int i = 0; i < portals.size(); i++) {
+                PortalRecord record = portals.get(i);
+                ConfigurationSection section = config.createSection("portals." + i);
+                section.set("id", record.getId().toString());
+                section.set("originPos", record.getOriginPos().serialize());
+                section.set("destPos", record.getDestPos().serialize());
+                section.set("size", record.getSize());
+                section.set("isCustom", record.isCustom());
+            }
+            config.save(yamlPath.toFile());
+            long yamlSaveTime = System.nanoTime() - yamlSaveStart;
+
+            long yamlLoadStart = System.nanoTime();
+            YamlConfiguration loaded = YamlConfiguration.loadConfiguration(yamlPath.toFile());
+            ConfigurationSection portalsSection = Objects.requireNonNull(loaded.getConfigurationSection("portals"));
+            for(String key : portalsSection.getKeys(false)) {
+                ConfigurationSection section = Objects.requireNonNull(portalsSection.getConfigurationSection(key));
+                new PortalPosition(Objects.requireNonNull(section.getConfigurationSection("originPos")).getValues(false));
+                new PortalPosition(Objects.requireNonNull(section.getConfigurationSection("destPos")).getValues(false));
+            }
+            long yamlLoadTime = System.nanoTime() - yamlLoadStart;
+
+            System.out.printf("%d portals - YAML save: %.2fms, YAML load: %.2fms, file size: %dKB%n", count,
+                    yamlSaveTime / 1_000_000.0, yamlLoadTime / 1_000_000.0, Files.size(yamlPath) / 1024);
+        }
+    }
+}
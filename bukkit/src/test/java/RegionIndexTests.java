@@ -0,0 +1,63 @@
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import be.seeseemelk.mockbukkit.WorldMock;
+import com.lauriethefish.betterportals.bukkit.portal.RegionIndex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RegionIndexTests {
+    private RegionIndex<String> index;
+    private ServerMock server;
+    private WorldMock overworld;
+    private WorldMock nether;
+
+    @BeforeEach
+    public void setup() {
+        index = new RegionIndex<>();
+        server = MockBukkit.mock();
+        overworld = server.addSimpleWorld("world");
+        nether = server.addSimpleWorld("world_nether");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        MockBukkit.unmock();
+    }
+
+    @Test
+    public void testGetWithin() {
+        index.add(overworld, 10, 10, "near");
+        index.add(overworld, -10, -10, "nearNegative");
+        index.add(overworld, 5000, -5000, "far");
+        index.add(nether, 10, 10, "otherWorld");
+
+        assertEquals(new HashSet<>(Arrays.asList("near", "nearNegative")), new HashSet<>(index.getWithin(overworld, 0.0, 0.0, 100.0)));
+        assertEquals(List.of("far"), index.getWithin(overworld, 4900.0, -4900.0, 200.0));
+        assertEquals(List.of("otherWorld"), index.getWithin(nether, 0.0, 0.0, 100.0));
+        assertEquals(4, index.getWithin(overworld, 0.0, 0.0, 1_000_000_000.0).size() + index.getWithin(nether, 0.0, 0.0, Double.POSITIVE_INFINITY).size());
+    }
+
+    @Test
+    public void testRemove() {
+        index.add(overworld, 10, 10, "first");
+        index.add(overworld, 20, 20, "second");
+
+        index.remove(overworld, 10, 10, "first");
+        assertEquals(List.of("second"), index.getWithin(overworld, 0.0, 0.0, 100.0));
+
+        // Removing with the wrong world or position does nothing
+        index.remove(nether, 20, 20, "second");
+        index.remove(overworld, 5000, 5000, "second");
+        assertEquals(List.of("second"), index.getWithin(overworld, 0.0, 0.0, 100.0));
+
+        index.remove(overworld, 20, 20, "second");
+        assertTrue(index.getWithin(overworld, 0.0, 0.0, Double.POSITIVE_INFINITY).isEmpty());
+    }
+}
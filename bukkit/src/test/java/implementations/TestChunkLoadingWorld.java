@@ -0,0 +1,51 @@
+package implementations;
+
+import be.seeseemelk.mockbukkit.WorldMock;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * MockBukkit doesn't implement force loading, so this tracks the force loaded chunks itself.
+ * Force loading a chunk doesn't load it straight away, tests mark chunks as loaded themselves with {@link TestChunkLoadingWorld#setLoaded(int, int)}.
+ */
+public class TestChunkLoadingWorld extends WorldMock {
+    private final Set<Long> forcedChunks = new HashSet<>();
+    private final Set<Long> loadedChunks = new HashSet<>();
+    private int forceLoadCalls = 0;
+
+    private static long getKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public boolean isChunkForceLoaded(int x, int z) {
+        return forcedChunks.contains(getKey(x, z));
+    }
+
+    @Override
+    public void setChunkForceLoaded(int x, int z, boolean forced) {
+        forceLoadCalls++;
+        if(forced) {
+            forcedChunks.add(getKey(x, z));
+        }   else    {
+            forcedChunks.remove(getKey(x, z));
+        }
+    }
+
+    @Override
+    public boolean isChunkLoaded(int x, int z) {
+        return loadedChunks.contains(getKey(x, z));
+    }
+
+    public void setLoaded(int x, int z) {
+        loadedChunks.add(getKey(x, z));
+    }
+
+    /**
+     * @return The number of times that any chunk was force loaded or unforceloaded
+     */
+    public int getForceLoadCalls() {
+        return forceLoadCalls;
+    }
+}
@@ -6,6 +6,7 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 
 import java.io.File;
+import java.util.function.Consumer;
 
 public class TestConfigHandler {
     public static void prepareConfig(Injector injector) {
@@ -13,7 +14,15 @@ public class TestConfigHandler {
     }
 
     public static void prepareConfig(String testConfigName, Injector injector) {
+        prepareConfig(testConfigName, injector, config -> {});
+    }
+
+    /**
+     * Loads the test config, with the values set by <code>modifier</code> replacing those in the file.
+     */
+    public static void prepareConfig(String testConfigName, Injector injector, Consumer<FileConfiguration> modifier) {
         FileConfiguration config = loadConfigFileFromResource(testConfigName);
+        modifier.accept(config);
 
         injector.getInstance(ConfigManager.class).loadValues(config, null);
     }
@@ -0,0 +1,64 @@
+package implementations;
+
+import com.comphenix.protocol.wrappers.EnumWrappers;
+import com.lauriethefish.betterportals.bukkit.entity.faking.EntityInfo;
+import com.lauriethefish.betterportals.bukkit.entity.faking.IEntityPacketManipulator;
+import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
+import lombok.Getter;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.Vector;
+
+import java.util.Collection;
+import java.util.Map;
+
+public class TestEntityPacketManipulator implements IEntityPacketManipulator {
+    @Getter private int equipmentPacketCount = 0;
+
+    @Override
+    public void showEntity(EntityInfo tracker, Collection<Player> players) { }
+
+    @Override
+    public void hideEntity(EntityInfo tracker, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityMove(EntityInfo tracker, Vector offset, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityMoveLook(EntityInfo tracker, Vector movementOffset, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityLook(EntityInfo tracker, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityTeleport(EntityInfo tracker, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityHeadRotation(EntityInfo tracker, Collection<Player> players) { }
+
+    @Override
+    public void sendMount(EntityInfo tracker, Collection<EntityInfo> riding, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityEquipment(EntityInfo tracker, Map<EnumWrappers.ItemSlot, ItemStack> changes, Collection<Player> players) {
+        equipmentPacketCount += 1;
+    }
+
+    @Override
+    public void sendMetadata(EntityInfo tracker, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityVelocity(EntityInfo tracker, Vector newVelocity, Collection<Player> players) { }
+
+    @Override
+    public void sendEntityAnimation(EntityInfo tracker, Collection<Player> players, AnimationType animationType) { }
+
+    @Override
+    public void sendEntityPickupItem(EntityInfo tracker, EntityInfo pickedUp, Collection<Player> players) { }
+
+    @Override
+    public void sendAddPlayerProfile(EntityInfo tracker, Collection<Player> players) { }
+
+    @Override
+    public void sendRemovePlayerProfile(EntityInfo tracker, Collection<Player> players) { }
+}
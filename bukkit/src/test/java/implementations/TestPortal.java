@@ -27,6 +27,7 @@ public class TestPortal implements IPortal {
     @Getter private int viewActivateCallCount;
     @Getter private int viewDeactivateCallCount;
     @Getter private int viewUpdateCallCount;
+    @Getter private int releaseCallCount;
 
     @Inject
     public TestPortal(@Assisted("originPos") @NotNull PortalPosition originPos,
@@ -111,6 +112,21 @@ public class TestPortal implements IPortal {
         return null;
     }
 
+    @Override
+    public void releaseResources() {
+        releaseCallCount += 1;
+    }
+
+    @Override
+    public boolean hasResources() {
+        return false;
+    }
+
+    @Override
+    public long estimateResourceMemoryUsage() {
+        return 0;
+    }
+
     @Override
     public void remove(boolean removeOtherDirection) {
         removeCallCount += 1;
@@ -19,6 +19,11 @@ public class TestPortalActivityManager implements IPortalActivityManager {
 
     }
 
+    @Override
+    public boolean isActive(IPortal portal) {
+        return false;
+    }
+
     @Override
     public void resetActivity() {
 
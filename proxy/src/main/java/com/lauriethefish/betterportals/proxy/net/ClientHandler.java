@@ -5,73 +5,121 @@ import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.proxy.IProxy;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.*;
-import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStreamFactory;
-import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectCodec;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.rpc.PendingRequests;
+import com.lauriethefish.betterportals.shared.net.rpc.TimerWheel;
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
+import com.lauriethefish.betterportals.shared.net.stream.PrioritizedMessageQueue;
+import com.lauriethefish.betterportals.shared.net.stream.StreamAssembler;
+import com.lauriethefish.betterportals.shared.net.stream.StreamChunk;
 import lombok.Getter;
 import org.jetbrains.annotations.NotNull;
 
 import javax.crypto.AEADBadTagException;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
-public class ClientHandler implements IClientHandler {
+/**
+ * Handles the connection to a server using a non-blocking channel registered with the {@link SelectorLoop}.
+ * Frames are read into a buffer as they arrive and decoded without copying them out of it.
+ * Outgoing messages are serialized and queued in a {@link PrioritizedMessageQueue}, then each frame is encoded into a pooled buffer when the channel is writable, and released once written.
+ */
+public class ClientHandler implements IClientHandler, ISelectionHandler {
+    private static final int READ_BUFFER_SIZE = 65_536;
+
+    /**
+     * If more than this many bytes are queued to be sent to the server, we stop reading from it until the queue drains below {@link ClientHandler#WRITE_QUEUE_LOW_WATERMARK}.
+     * The server is sending us requests faster than it is reading the responses.
+     */
+    private static final long WRITE_QUEUE_HIGH_WATERMARK = 4_194_304;
+    private static final long WRITE_QUEUE_LOW_WATERMARK = 1_048_576;
+
+    /**
+     * New requests to this server fail immediately if this many bytes are queued, so that one slow server can't use up the proxy's memory.
+     */
+    private static final long MAX_QUEUED_BYTES = 33_554_432;
+
+    /**
+     * Maximum number of requests to this server that can be waiting for a response.
+     */
+    private static final int MAX_IN_FLIGHT = 4096;
+
     private final IPortalServer portalServer;
     private final Logger logger;
-    private final EncryptedObjectStreamFactory encryptedObjectStreamFactory;
+    private final EncryptedObjectCodec codec;
+    private final MessageRegistry messageRegistry;
     private final IRequestHandler requestHandler;
+    private final SelectorLoop selectorLoop;
 
     private final Socket socket;
-    private IEncryptedObjectStream objectStream;
+    private final SocketChannel channel;
+    private volatile SelectionKey selectionKey;
+
+    @Getter private volatile String serverName = null;
+    @Getter private volatile String gameVersion;
+    @Getter private volatile InetSocketAddress directConnectionAddress = null;
 
-    @Getter private String serverName = null;
-    @Getter private String gameVersion;
+    // The legacy format is used until the handshake has negotiated a protocol version
+    private volatile WireFormat wireFormat = WireFormat.LEGACY;
 
     private final IProxy proxy;
 
-    private volatile boolean isRunning = true;
+    private final AtomicBoolean isRunning = new AtomicBoolean(true);
+
+    private final PendingRequests pendingRequests;
+
+    // Only used on the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer largeFrame = null; // Used for frames that don't fit in the read buffer
+    private int largeFrameDataLength;
+    private final StreamAssembler streamAssembler = new StreamAssembler();
+
+    private final PrioritizedMessageQueue messageQueue = new PrioritizedMessageQueue();
 
-    private final AtomicInteger currentRequestId = new AtomicInteger();
-    private final ConcurrentMap<Integer, Consumer<Response>> waitingRequests = new ConcurrentHashMap<>();
+    // Guarded by writeLock
+    private final Object writeLock = new Object();
+    private ByteBuffer currentFrame = null; // Frame that has been partially written
+    private boolean isReadPaused = false;
+    private volatile boolean closeAfterFlush = false;
 
     @Inject
-    public ClientHandler(@Assisted Socket socket, IPortalServer portalServer, Logger logger, EncryptedObjectStreamFactory encryptedObjectStreamFactory, IRequestHandler requestHandler, IProxy proxy) {
+    public ClientHandler(@Assisted Socket socket, IPortalServer portalServer, Logger logger, EncryptedObjectCodec codec, MessageRegistry messageRegistry, IRequestHandler requestHandler, IProxy proxy, SelectorLoop selectorLoop, TimerWheel timerWheel) {
+        this.channel = socket.getChannel();
+        if(channel == null) {
+            throw new IllegalArgumentException("Client handlers must be created with the socket of a socket channel");
+        }
+
         this.socket = socket;
         this.portalServer = portalServer;
         this.logger = logger;
-        this.encryptedObjectStreamFactory = encryptedObjectStreamFactory;
+        this.codec = codec;
+        this.messageRegistry = messageRegistry;
         this.requestHandler = requestHandler;
         this.proxy = proxy;
+        this.selectorLoop = selectorLoop;
+        this.pendingRequests = new PendingRequests(timerWheel, MAX_IN_FLIGHT, String.valueOf(socket.getRemoteSocketAddress()));
 
-        new Thread(() -> {
+        selectorLoop.execute(() -> {
             try {
-                run();
+                selectionKey = selectorLoop.register(channel, SelectionKey.OP_READ, this);
             }   catch(IOException ex) {
-                if (!isRunning) {
-                    return;
-                } // An IOException gets thrown if another thread shuts down this connection
-
-                if(ex.getCause() instanceof AEADBadTagException) {
-                    printEncryptionFailure();
-                }   else    {
-                    logger.warning("An IO error occurred while connected to %s", socket.getRemoteSocketAddress());
-                    ex.printStackTrace();
-                }
-            }   catch(AEADBadTagException ex) {
-                printEncryptionFailure();
-            }   catch(Exception ex) {
-                logger.warning("An error occurred while connected to %s", socket.getRemoteSocketAddress());
+                logger.warning("An IO error occurred while connecting to %s", socket.getRemoteSocketAddress());
                 ex.printStackTrace();
-            }   finally     {
                 disconnect();
             }
-        }).start();
+        });
     }
 
     private void printEncryptionFailure() {
@@ -80,12 +128,11 @@ public class ClientHandler implements IClientHandler {
     }
 
     /**
-     * Reads a {@link Handshake} to get info about the server that is connecting, then sends a {@link HandshakeResponse} to tell the connecting server if the connection was successful.
+     * Gets info about the server that is connecting from its {@link Handshake}, then sends a {@link HandshakeResponse} to tell the connecting server if the connection was successful.
+     * @param handshake The handshake sent by the server
      * @return If the handshake was successful
      */
-    private boolean performHandshake() throws IOException, ClassNotFoundException, GeneralSecurityException {
-        logger.fine("Reading handshake . . .");
-        Handshake handshake = (Handshake) objectStream.readObject();
+    private boolean performHandshake(Handshake handshake) throws IOException, GeneralSecurityException {
         logger.fine("Handshake plugin version: %s. Handshake game version: %s", handshake.getPluginVersion(), handshake.getGameVersion());
 
         // The plugin version needs to be the same, since the protocol may have changed
@@ -118,39 +165,144 @@ public class ClientHandler implements IClientHandler {
             result = HandshakeResponse.Result.SERVER_NOT_REGISTERED;
         }
 
+        // Servers from before the binary protocol send version 0, and keep using Java serialization
+        int protocolVersion = messageRegistry.negotiateVersion(handshake.getProtocolVersion());
+        CompressionType compression = CompressionType.fromConfigName(handshake.getCompression());
+
         HandshakeResponse response = new HandshakeResponse();
         response.setStatus(result);
+        response.setProtocolVersion(protocolVersion);
+        response.setCompression(compression.getConfigName());
         send(response);
 
         if(result == HandshakeResponse.Result.SUCCESS) {
             logger.fine("Successfully registered with server %s", serverName);
-            logger.fine("Plugin version: %s. Game version: %s.", handshake.getPluginVersion(), handshake.getGameVersion());
-            portalServer.registerServer(this, serverName);
+            logger.fine("Plugin version: %s. Game version: %s. Protocol version: %d. Compression: %s.", handshake.getPluginVersion(), handshake.getGameVersion(), protocolVersion, compression.getConfigName());
+            // The handshake response is already encoded, so it is still sent in the legacy format
+            wireFormat = WireFormat.create(messageRegistry, protocolVersion, compression, handshake.getCompressionLevel(), handshake.getCompressionThreshold());
             this.serverName = serverName;
             this.gameVersion = handshake.getGameVersion();
+            if(handshake.getDirectConnectionPort() > 0) {
+                String host = handshake.getDirectConnectionAddress() == null ? socket.getInetAddress().getHostAddress() : handshake.getDirectConnectionAddress();
+                directConnectionAddress = InetSocketAddress.createUnresolved(host, handshake.getDirectConnectionPort());
+                logger.fine("Server %s accepts direct connections at %s", serverName, directConnectionAddress);
+            }
+            portalServer.registerServer(this, serverName);
             return true;
         }   else    {
             return false;
         }
     }
 
-    private void run() throws IOException, ClassNotFoundException, GeneralSecurityException    {
-        objectStream = encryptedObjectStreamFactory.create(socket.getInputStream(), socket.getOutputStream());
+    @Override
+    public void onSelected(@NotNull SelectionKey key) throws IOException, GeneralSecurityException, ClassNotFoundException {
+        if(key.isWritable()) {
+            flushWriteQueue();
+        }
+        if(key.isValid() && key.isReadable()) {
+            readFrames();
+        }
+    }
+
+    @Override
+    public void onError(@NotNull Exception ex) {
+        if(!isRunning.get()) {return;} // An exception gets thrown if another thread shuts down this connection
+
+        if(ex instanceof AEADBadTagException || ex.getCause() instanceof AEADBadTagException) {
+            printEncryptionFailure();
+        }   else if(ex instanceof EOFException) {
+            logger.fine("Connection to %s was closed by the server", socket.getRemoteSocketAddress());
+        }   else if(ex instanceof IOException) {
+            logger.warning("An IO error occurred while connected to %s", socket.getRemoteSocketAddress());
+            ex.printStackTrace();
+        }   else    {
+            logger.warning("An error occurred while connected to %s", socket.getRemoteSocketAddress());
+            ex.printStackTrace();
+        }
+        disconnect();
+    }
+
+    @Override
+    public void onLoopStopped() {
+        disconnect();
+    }
+
+    /**
+     * Reads whatever is available from the channel, then handles each complete frame.
+     */
+    private void readFrames() throws IOException, GeneralSecurityException, ClassNotFoundException {
+        int read = channel.read(readBuffer);
+        if(read == -1) {
+            throw new EOFException();
+        }
+
+        readBuffer.flip();
+        try {
+            // Anything sent after we've decided to disconnect is ignored
+            while(isRunning.get() && !closeAfterFlush) {
+                if(largeFrame != null) {
+                    // Copy as much of the large frame as we have
+                    int count = Math.min(largeFrame.remaining(), readBuffer.remaining());
+                    readBuffer.get(largeFrame.array(), largeFrame.position(), count);
+                    largeFrame.position(largeFrame.position() + count);
+                    if(largeFrame.hasRemaining()) {break;}
+
+                    ByteBuffer frame = largeFrame;
+                    largeFrame = null;
+                    frame.flip();
+                    handleObject(codec.decodeBody(frame, largeFrameDataLength, wireFormat));
+                    continue;
+                }
+
+                if(readBuffer.remaining() < EncryptedObjectCodec.HEADER_LENGTH) {break;}
+
+                int dataLength = readBuffer.getInt(readBuffer.position());
+                int bodyLength = codec.getBodyLength(dataLength);
+
+                if(EncryptedObjectCodec.HEADER_LENGTH + bodyLength > readBuffer.capacity()) {
+                    // Too big to fit in the read buffer, so it is copied to its own buffer as it arrives
+                    readBuffer.position(readBuffer.position() + EncryptedObjectCodec.HEADER_LENGTH);
+                    largeFrame = ByteBuffer.allocate(bodyLength);
+                    largeFrameDataLength = dataLength;
+                    continue;
+                }
+
+                if(readBuffer.remaining() < EncryptedObjectCodec.HEADER_LENGTH + bodyLength) {break;}
+
+                // Decoding moves the position to the end of the frame
+                readBuffer.position(readBuffer.position() + EncryptedObjectCodec.HEADER_LENGTH);
+                handleObject(codec.decodeBody(readBuffer, dataLength, wireFormat));
+            }
+        }   finally     {
+            readBuffer.compact();
+        }
+    }
 
-        if(!performHandshake()) {
+    private void handleObject(Object next) throws IOException, GeneralSecurityException, ClassNotFoundException {
+        if(next instanceof StreamChunk) {
+            byte[] message = streamAssembler.accept((StreamChunk) next);
+            if(message != null) {
+                handleObject(wireFormat.getSerializer().deserialize(message));
+            }
             return;
         }
 
-        while(true) {
-            Object next = objectStream.readObject();
-            if (next instanceof DisconnectNotice) {
-                logger.fine("Received disconnection notice, shutting down!");
-                return;
-            } else if (next instanceof Response) {
-                processResponse((Response) next);
-            } else if (next instanceof Request) {
-                processRequest((Request) next);
+        if(serverName == null) {
+            logger.fine("Reading handshake . . .");
+            if(!performHandshake((Handshake) next)) {
+                // Send the handshake response before disconnecting
+                closeAfterFlush();
             }
+            return;
+        }
+
+        if (next instanceof DisconnectNotice) {
+            logger.fine("Received disconnection notice, shutting down!");
+            disconnect();
+        } else if (next instanceof Response) {
+            processResponse((Response) next);
+        } else if (next instanceof Request) {
+            processRequest((Request) next);
         }
     }
 
@@ -161,11 +313,12 @@ public class ClientHandler implements IClientHandler {
     private void processRequest(Request request) {
         // We don't just send the response directly, since it may take some time to process the request, and we need to be ready for more requests.
         int requestId = request.getId();
+        MessagePriority priority = request.getPriority();
         requestHandler.handleRequest(request, (response) -> {
             response.setId(requestId); // Assign the correct request ID so that the client knows which request this response is for
             try {
-                send(response);
-            } catch (IOException | GeneralSecurityException ex) {
+                send(response, priority);
+            } catch (IOException ex) {
                 logger.warning("IO Error occurred while sending a response to a request");
                 ex.printStackTrace();
                 disconnect();
@@ -178,24 +331,22 @@ public class ClientHandler implements IClientHandler {
      * @param response The response to consume
      */
     private void processResponse(Response response) {
-        Consumer<Response> waiter = waitingRequests.remove(response.getId());
-        if(waiter == null) {
-            throw new IllegalStateException("Received response for request that didn't exist");
+        if(!pendingRequests.complete(response)) {
+            logger.fine("Received response to request %d from %s after it timed out", response.getId(), serverName);
         }
-
-        waiter.accept(response);
     }
 
     @Override
     public void shutDown() {
-        if(!isRunning) {return;}
+        if(!isRunning.get()) {return;}
 
         try {
             send(new DisconnectNotice());
-        }   catch(IOException | GeneralSecurityException ex)   {
+            closeAfterFlush();
+        }   catch(IOException ex)   {
             logger.warning("Error occurred while sending disconnection notice to %s", socket.getRemoteSocketAddress());
+            disconnect();
         }
-        disconnect();
     }
 
     /**
@@ -203,27 +354,127 @@ public class ClientHandler implements IClientHandler {
      * Any waiting requests will receive a response with an error.
      */
     private void disconnect() {
-        if(!isRunning) {return;}
-        isRunning = false;
+        if(!isRunning.compareAndSet(true, false)) {return;}
 
         portalServer.onServerDisconnect(this);
         try {
-            socket.close();
+            channel.close();
         }   catch (IOException ex) {
             logger.warning("Error occurred while disconnecting from %s", socket.getRemoteSocketAddress());
             ex.printStackTrace();
         }
 
+        synchronized(writeLock) {
+            messageQueue.close();
+            if(currentFrame != null) {
+                codec.releaseFrame(currentFrame);
+                currentFrame = null;
+            }
+        }
+
         // Send an error to all waiting requests
-        Response disconnectResponse = new Response();
-        disconnectResponse.setError(new RequestException("Client server connection disconnected while sending the request"));
-        for(Consumer<Response> responseConsumer : waitingRequests.values()) {
-            responseConsumer.accept(disconnectResponse);
+        pendingRequests.failAll(new RequestException("Client server connection disconnected while sending the request"));
+    }
+
+    /**
+     * Disconnects once everything queued has been sent.
+     */
+    private void closeAfterFlush() {
+        boolean isFlushed;
+        synchronized(writeLock) {
+            closeAfterFlush = true;
+            isFlushed = currentFrame == null && messageQueue.isEmpty();
+        }
+
+        if(isFlushed) {
+            disconnect();
+        }
+    }
+
+    private void send(Object obj) throws IOException {
+        send(obj, obj instanceof Request ? ((Request) obj).getPriority() : MessagePriority.NORMAL);
+    }
+
+    /**
+     * Serializes <code>obj</code> and queues it to be sent.
+     * This never blocks, so it can be called from the selector thread.
+     * @param obj The object to send
+     * @param priority Priority of the object in the queue
+     */
+    private void send(Object obj, MessagePriority priority) throws IOException {
+        // The format is saved with the message, since the handshake response must be sent in the legacy format even if the format changes before it is written
+        WireFormat format = wireFormat;
+        byte[] serialized = format.getSerializer().serialize(obj);
+
+        synchronized(writeLock) {
+            // The queue is closed on disconnect, so nothing can be added after that
+            if(!messageQueue.add(serialized, format, priority)) {return;}
+
+            // Stop reading new requests until the server catches up with reading their responses
+            if(!isReadPaused && messageQueue.getQueuedBytes() > WRITE_QUEUE_HIGH_WATERMARK) {
+                logger.fine("Write queue to %s is full, pausing reads", serverName);
+                isReadPaused = true;
+                setInterested(SelectionKey.OP_READ, false);
+            }
+            setInterested(SelectionKey.OP_WRITE, true);
         }
+        selectorLoop.wakeup();
     }
 
-    private synchronized void send(Object obj) throws IOException, GeneralSecurityException {
-        objectStream.writeObject(obj);
+    /**
+     * Writes as much of the message queue as the channel will currently accept.
+     * Frames are only encoded once the last one has been written, so a higher priority message queued in the meantime goes next.
+     */
+    private void flushWriteQueue() throws IOException, GeneralSecurityException {
+        boolean shouldClose;
+        synchronized(writeLock) {
+            while(true) {
+                if(currentFrame == null) {
+                    PrioritizedMessageQueue.Frame next = messageQueue.poll();
+                    if(next == null) {break;}
+
+                    currentFrame = codec.encodeFrame(next.getData(), next.getOffset(), next.getLength(), next.getFormat());
+                }
+
+                channel.write(currentFrame);
+                if(currentFrame.hasRemaining()) {break;} // The socket's send buffer is full
+
+                codec.releaseFrame(currentFrame);
+                currentFrame = null;
+            }
+
+            boolean isEmpty = currentFrame == null && messageQueue.isEmpty();
+            if(isEmpty) {
+                setInterested(SelectionKey.OP_WRITE, false);
+            }
+
+            if(isReadPaused && messageQueue.getQueuedBytes() < WRITE_QUEUE_LOW_WATERMARK) {
+                logger.fine("Write queue to %s has drained, resuming reads", serverName);
+                isReadPaused = false;
+                setInterested(SelectionKey.OP_READ, true);
+            }
+
+            shouldClose = closeAfterFlush && isEmpty;
+        }
+
+        if(shouldClose) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Adds or removes an interest operation, if the channel is registered.
+     * Must be called while holding the write lock.
+     */
+    private void setInterested(int operation, boolean interested) {
+        SelectionKey key = selectionKey;
+        if(key == null || !key.isValid()) {return;}
+
+        if(interested) {
+            key.interestOpsOr(operation);
+        }   else    {
+            key.interestOpsAnd(~operation);
+        }
     }
 
     private void verifyCanSendRequests() {
@@ -235,14 +486,25 @@ public class ClientHandler implements IClientHandler {
     @Override
     public void sendRequest(@NotNull Request request, @NotNull Consumer<Response> onFinish) {
         verifyCanSendRequests();
+        if(!isRunning.get()) {
+            Response response = new Response();
+            response.setError(new RequestException("Client server connection disconnected while sending the request"));
+            onFinish.accept(response);
+            return;
+        }
+
+        if(messageQueue.getQueuedBytes() >= MAX_QUEUED_BYTES) {
+            Response response = new Response();
+            response.setError(new RequestException(String.format("Too many requests are waiting to be sent to server %s", serverName)));
+            onFinish.accept(response);
+            return;
+        }
 
-        int requestId = currentRequestId.getAndIncrement();
-        request.setId(requestId);
-        waitingRequests.put(requestId, onFinish);
+        if(!pendingRequests.add(request, onFinish)) {return;}
 
         try {
             send(request);
-        }   catch(IOException | GeneralSecurityException ex)     {
+        }   catch(IOException ex)     {
             logger.warning("Client server connection disconnected while sending the request");
 
             disconnect();
@@ -5,6 +5,7 @@ import com.lauriethefish.betterportals.shared.net.requests.Request;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.function.Consumer;
 
@@ -22,6 +23,11 @@ public interface IClientHandler {
      */
     @Nullable String getServerName();
 
+    /**
+     * @return The address that other servers can connect to this server directly at, or null if it doesn't accept direct connections.
+     */
+    @Nullable InetSocketAddress getDirectConnectionAddress();
+
     /**
      * Safely shuts down the connection to the server by sending a disconnection notice. Called on portal server shutdown.
      * Does nothing if already disconnected
@@ -0,0 +1,29 @@
+package com.lauriethefish.betterportals.proxy.net;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handles the events of a channel registered with the {@link SelectorLoop}.
+ * All of these methods are called on the selector thread.
+ */
+public interface ISelectionHandler {
+    /**
+     * Called when the channel is ready for at least one of its interest operations.
+     * @param key The key of the channel
+     * @throws Exception Any exception thrown is given to {@link ISelectionHandler#onError(Exception)}
+     */
+    void onSelected(@NotNull SelectionKey key) throws Exception;
+
+    /**
+     * Called if {@link ISelectionHandler#onSelected(SelectionKey)} throws an exception.
+     * @param ex The exception thrown
+     */
+    void onError(@NotNull Exception ex);
+
+    /**
+     * Called if the selector loop stops while the channel is still registered. The channel is closed afterwards.
+     */
+    void onLoopStopped();
+}
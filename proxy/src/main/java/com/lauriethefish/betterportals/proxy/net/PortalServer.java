@@ -9,30 +9,33 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashSet;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Singleton
-public class PortalServer implements IPortalServer {
+public class PortalServer implements IPortalServer, ISelectionHandler {
     private final Logger logger;
     private final IProxyConfig config;
     private final IClientHandler.Factory serverHandlerFactory;
+    private final SelectorLoop selectorLoop;
 
-    private final Set<IClientHandler> connectedServers = new HashSet<>();
+    private final Set<IClientHandler> connectedServers = ConcurrentHashMap.newKeySet();
     private final Map<String, IClientHandler> registeredServers = new ConcurrentHashMap<>();
 
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
     private volatile boolean isRunning = false;
 
     @Inject
-    public PortalServer(Logger logger, CipherManager cipherManager, IProxyConfig config, IClientHandler.Factory serverHandlerFactory) throws Exception    {
+    public PortalServer(Logger logger, CipherManager cipherManager, IProxyConfig config, IClientHandler.Factory serverHandlerFactory, SelectorLoop selectorLoop) throws Exception    {
         this.logger = logger;
         this.config = config;
         this.serverHandlerFactory = serverHandlerFactory;
+        this.selectorLoop = selectorLoop;
         cipherManager.init(config.getKey());
     }
 
@@ -44,40 +47,66 @@ public class PortalServer implements IPortalServer {
         isRunning = true;
 
         logger.info("Starting up portal server");
-        new Thread(() -> {
-            logger.fine("Hello from server thread");
-            try {
-                runServer();
-            }   catch(IOException ex)   {
-                logger.fine("Caught IO Error on server thread");
-                // An IOException is thrown if another thread shuts down the connection, e.g. on plugin unload
-                if(!isRunning) {return;}
+        try {
+            selectorLoop.start();
+        }   catch(IOException ex) {
+            logger.warning("An IO error occurred while starting the portal server");
+            ex.printStackTrace();
+            isRunning = false;
+            return;
+        }
 
-                logger.warning("An IO error occurred while running the portal server");
-                ex.printStackTrace();
-            }   catch(Exception ex) {
-                logger.warning("An error occurred while running the portal server");
+        selectorLoop.execute(() -> {
+            try {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(config.getBindAddress());
+                selectorLoop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+                logger.fine("Awaiting new connections");
+            }   catch(IOException ex) {
+                logger.warning("An IO error occurred while binding the portal server");
                 ex.printStackTrace();
-            }   finally     {
                 shutDown();
             }
-        }).start();
+        });
     }
 
-    private void runServer() throws IOException {
-        serverSocket = new ServerSocket();
-        serverSocket.bind(config.getBindAddress());
+    /**
+     * @return The address that the server is listening on, or null if it isn't bound yet.
+     * This is useful if the configured port is 0.
+     */
+    public @Nullable InetSocketAddress getBoundAddress() {
+        try {
+            ServerSocketChannel channel = serverChannel;
+            return channel == null ? null : (InetSocketAddress) channel.getLocalAddress();
+        }   catch(IOException ex) {
+            return null;
+        }
+    }
 
-        while(isRunning) {
-            logger.fine("Awaiting new connections");
-            Socket next = serverSocket.accept();
-            logger.fine("Received connection from %s", next.getRemoteSocketAddress());
+    @Override
+    public void onSelected(@NotNull SelectionKey key) throws IOException {
+        SocketChannel next;
+        while((next = serverChannel.accept()) != null) {
+            logger.fine("Received connection from %s", next.getRemoteAddress());
 
-            IClientHandler handler = serverHandlerFactory.create(next);
+            // The handler registers itself with the selector loop
+            IClientHandler handler = serverHandlerFactory.create(next.socket());
             connectedServers.add(handler);
         }
     }
 
+    @Override
+    public void onError(@NotNull Exception ex) {
+        // An IOException is thrown if another thread shuts down the connection, e.g. on plugin unload
+        if(!isRunning) {return;}
+
+        logger.warning("An error occurred while accepting connections to the portal server");
+        ex.printStackTrace();
+    }
+
+    @Override
+    public void onLoopStopped() { }
+
     @Override
     public void shutDown() {
         if(!isRunning) {return;}
@@ -85,15 +114,19 @@ public class PortalServer implements IPortalServer {
         logger.info("Shutting down portal server");
         isRunning = false;
         try {
-            // The socket close error will be caught since we set isRunning to false.
-            serverSocket.close();
-            for(IClientHandler serverHandler : registeredServers.values()) {
-                serverHandler.shutDown();
+            if(serverChannel != null) {
+                serverChannel.close();
             }
         }   catch(IOException ex) {
             logger.warning("An IO error occurred while shutting down the portal server");
             ex.printStackTrace();
         }
+
+        for(IClientHandler serverHandler : registeredServers.values()) {
+            serverHandler.shutDown();
+        }
+        // Waits for the disconnection notices to be sent, then closes any remaining connections
+        selectorLoop.stop();
     }
 
     @Override
@@ -111,7 +144,7 @@ public class PortalServer implements IPortalServer {
         String serverName = handler.getServerName();
         if(serverName != null) {
             logger.finer("Server %s disconnected from the portal server", serverName);
-            registeredServers.remove(serverName);
+            registeredServers.remove(serverName, handler);
         }   else    {
             logger.finer("Unregistered server disconnected from the portal server");
         }
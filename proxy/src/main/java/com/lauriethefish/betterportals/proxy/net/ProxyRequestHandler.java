@@ -4,15 +4,19 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.proxy.IProxy;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.net.DirectConnectionInfo;
 import com.lauriethefish.betterportals.shared.net.IRequestHandler;
 import com.lauriethefish.betterportals.shared.net.RequestException;
 import com.lauriethefish.betterportals.shared.net.Response;
 import com.lauriethefish.betterportals.shared.net.ServerNotFoundException;
+import com.lauriethefish.betterportals.shared.net.requests.DirectConnectionRequest;
+import com.lauriethefish.betterportals.shared.net.requests.DirectSessionRequest;
 import com.lauriethefish.betterportals.shared.net.requests.RelayRequest;
 import com.lauriethefish.betterportals.shared.net.requests.Request;
 import com.lauriethefish.betterportals.shared.net.requests.TeleportRequest;
 import org.jetbrains.annotations.NotNull;
 
+import java.net.InetSocketAddress;
 import java.util.UUID;
 import java.util.function.Consumer;
 
@@ -38,6 +42,8 @@ public class ProxyRequestHandler implements IRequestHandler {
                 handleRelayRequest((RelayRequest) request, onFinish);
             }   else if(request instanceof TeleportRequest) {
                 handleTeleportRequest((TeleportRequest) request, onFinish);
+            }   else if(request instanceof DirectConnectionRequest) {
+                handleDirectConnectionRequest((DirectConnectionRequest) request, onFinish);
             }   else    {
                 throw new IllegalStateException("Unknown request type " + request.getClass().getName());
             }
@@ -71,6 +77,32 @@ public class ProxyRequestHandler implements IRequestHandler {
         clientHandler.sendRequest(request, onFinish);
     }
 
+    private void handleDirectConnectionRequest(DirectConnectionRequest request, Consumer<Response> onFinish) throws RequestException {
+        IClientHandler clientHandler = checkExists(request.getDestination());
+        InetSocketAddress address = clientHandler.getDirectConnectionAddress();
+        if(address == null) {
+            throw new RequestException(String.format("Server %s does not accept direct connections", request.getDestination()));
+        }
+
+        // The key is only sent over the encrypted proxy connections, so other servers can't connect without asking the proxy
+        DirectSessionRequest sessionRequest = new DirectSessionRequest();
+        sessionRequest.setSessionId(UUID.randomUUID());
+        sessionRequest.setSessionKey(UUID.randomUUID());
+
+        logger.fine("Creating direct connection session with %s", request.getDestination());
+        clientHandler.sendRequest(sessionRequest, (response) -> {
+            try {
+                response.checkForErrors();
+
+                Response infoResponse = new Response();
+                infoResponse.setResult(new DirectConnectionInfo(address.getHostString(), address.getPort(), sessionRequest.getSessionId(), sessionRequest.getSessionKey()));
+                onFinish.accept(infoResponse);
+            }   catch(RequestException ex) {
+                onFinish.accept(response);
+            }
+        });
+    }
+
     private void handleTeleportRequest(TeleportRequest request, Consumer<Response> onFinish) throws RequestException {
         IClientHandler clientHandler = checkExists(request.getDestServer());
 
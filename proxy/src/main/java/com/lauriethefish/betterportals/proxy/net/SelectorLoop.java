@@ -0,0 +1,201 @@
+package com.lauriethefish.betterportals.proxy.net;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs a single thread that does the IO for the portal server and every connected client with non-blocking channels.
+ * This avoids needing a thread for each connection, and means that a slow server can't stall sending to the others.
+ */
+@Singleton
+public class SelectorLoop {
+    /**
+     * Maximum time to wait for pending writes, e.g. disconnection notices, to be sent when stopping.
+     */
+    private static final long SHUTDOWN_FLUSH_TIMEOUT = 1000;
+
+    private final Logger logger;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    private volatile Selector selector;
+    private volatile Thread thread;
+    private volatile boolean isRunning = false;
+
+    @Inject
+    public SelectorLoop(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Opens the selector and starts the selector thread.
+     * @throws IOException If opening the selector fails
+     * @throws IllegalStateException If the loop is already running
+     */
+    public void start() throws IOException {
+        if(isRunning) {
+            throw new IllegalStateException("Attempted to start selector loop when it was already running");
+        }
+
+        selector = Selector.open();
+        isRunning = true;
+        thread = new Thread(this::run, "BetterPortals Portal Server");
+        thread.start();
+    }
+
+    /**
+     * Stops the loop, giving the handlers a short time to flush their pending writes.
+     * Any channels still registered are then closed.
+     * If called from another thread, this waits for the loop to finish.
+     */
+    public void stop() {
+        if(!isRunning) {return;}
+
+        isRunning = false;
+        selector.wakeup();
+        if(isOnLoopThread()) {return;}
+
+        try {
+            thread.join(SHUTDOWN_FLUSH_TIMEOUT * 2);
+        }   catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Whether the calling thread is the selector thread
+     */
+    public boolean isOnLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs <code>task</code> on the selector thread, or immediately if called from the selector thread.
+     * @param task The task to run
+     */
+    public void execute(@NotNull Runnable task) {
+        if(isOnLoopThread()) {
+            task.run();
+        }   else    {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Wakes up the selector so that changes to interest operations from other threads take effect.
+     * Does nothing if called from the selector thread, since the changes will be picked up on the next select.
+     */
+    public void wakeup() {
+        if(!isOnLoopThread()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers <code>channel</code> with the selector, after switching it to non-blocking mode.
+     * @param channel The channel to register
+     * @param interestOps The initial interest operations
+     * @param handler Handler for events on the channel
+     * @return The key of the registered channel
+     * @throws IOException If configuring the channel fails
+     * @throws IllegalStateException If not called on the selector thread
+     */
+    public SelectionKey register(@NotNull SelectableChannel channel, int interestOps, @NotNull ISelectionHandler handler) throws IOException {
+        if(!isOnLoopThread()) {
+            throw new IllegalStateException("Channels must be registered on the selector thread");
+        }
+
+        channel.configureBlocking(false);
+        return channel.register(selector, interestOps, handler);
+    }
+
+    private void run() {
+        logger.fine("Hello from selector thread");
+        try {
+            while(isRunning) {
+                runIteration(0);
+            }
+
+            // Give the handlers some time to send anything remaining, e.g. disconnection notices
+            long deadline = System.currentTimeMillis() + SHUTDOWN_FLUSH_TIMEOUT;
+            while(hasPendingWrites()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    logger.warning("Timed out while sending remaining data to connected servers");
+                    break;
+                }
+                runIteration(remaining);
+            }
+        }   catch(IOException ex) {
+            logger.warning("An IO error occurred while running the portal server");
+            ex.printStackTrace();
+        }   catch(Exception ex) {
+            logger.warning("An error occurred while running the portal server");
+            ex.printStackTrace();
+        }   finally     {
+            isRunning = false;
+            closeAll();
+        }
+    }
+
+    private void runIteration(long timeout) throws IOException {
+        Runnable task;
+        while((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+
+        selector.select(this::handleSelected, timeout);
+    }
+
+    private void handleSelected(SelectionKey key) {
+        // The key may have been cancelled by a handler selected earlier in this iteration
+        if(!key.isValid()) {return;}
+
+        ISelectionHandler handler = (ISelectionHandler) key.attachment();
+        try {
+            handler.onSelected(key);
+        }   catch(Exception ex) {
+            handler.onError(ex);
+        }
+    }
+
+    private boolean hasPendingWrites() {
+        for(SelectionKey key : selector.keys()) {
+            if(key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeAll() {
+        // Copied since the handlers may close their channels
+        for(SelectionKey key : new ArrayList<>(selector.keys())) {
+            ((ISelectionHandler) key.attachment()).onLoopStopped();
+            try {
+                key.channel().close();
+            }   catch(IOException ex) {
+                logger.warning("Error occurred while closing channel");
+                ex.printStackTrace();
+            }
+        }
+
+        try {
+            selector.close();
+        }   catch(IOException ex) {
+            logger.warning("Error occurred while closing selector");
+            ex.printStackTrace();
+        }
+        pendingTasks.clear();
+    }
+}
@@ -0,0 +1,309 @@
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.lauriethefish.betterportals.proxy.IProxy;
+import com.lauriethefish.betterportals.proxy.IProxyConfig;
+import com.lauriethefish.betterportals.proxy.net.IPortalServer;
+import com.lauriethefish.betterportals.proxy.net.PortalServer;
+import com.lauriethefish.betterportals.proxy.net.ProxyModule;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.logging.OverrideLogger;
+import com.lauriethefish.betterportals.shared.net.Handshake;
+import com.lauriethefish.betterportals.shared.net.HandshakeResponse;
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.encryption.CipherManager;
+import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import com.lauriethefish.betterportals.shared.net.requests.RelayRequest;
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives the portal server over loopback with simulated backend servers that relay requests to each other.
+ */
+public class PortalServerLoadTests {
+    private static final String PLUGIN_VERSION = "test";
+    private static final int BACKEND_COUNT = 20;
+    private static final int REQUESTS_PER_BACKEND = 1000;
+    private static final int MAX_IN_FLIGHT_PER_BACKEND = 64;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    /**
+     * Simulates a server connecting to the proxy, which responds to all relayed requests that it receives.
+     * Backends can use either protocol version, since servers from before the binary protocol must still be able to connect.
+     */
+    private class TestBackend {
+        private final String name;
+        private final Socket socket;
+        private final EncryptedObjectStream stream;
+        private final AtomicInteger currentRequestId = new AtomicInteger();
+        private final Map<Integer, Consumer<Response>> waitingRequests = new ConcurrentHashMap<>();
+        private final AtomicInteger handledRequests = new AtomicInteger();
+
+        private TestBackend(String name, boolean respondToRequests, int protocolVersion, CompressionType compression) throws Exception {
+            this.name = name;
+            this.socket = new Socket();
+            socket.connect(serverAddress);
+            this.stream = new EncryptedObjectStream(socket.getInputStream(), socket.getOutputStream(), cipherManager);
+
+            Handshake handshake = new Handshake();
+            handshake.setPluginVersion(PLUGIN_VERSION);
+            handshake.setGameVersion("1.17");
+            handshake.setOverrideServerName(name);
+            handshake.setProtocolVersion(protocolVersion);
+            handshake.setCompression(compression.getConfigName());
+            handshake.setCompressionLevel(CompressionType.DEFAULT_LEVEL);
+            handshake.setCompressionThreshold(128);
+            stream.writeObject(handshake);
+
+            HandshakeResponse response = (HandshakeResponse) stream.readObject();
+            assertEquals(HandshakeResponse.Result.SUCCESS, response.getStatus());
+            assertEquals(protocolVersion, response.getProtocolVersion());
+            assertEquals(compression.getConfigName(), response.getCompression());
+            stream.setWireFormat(WireFormat.create(messageRegistry, response.getProtocolVersion(), compression, CompressionType.DEFAULT_LEVEL, 128));
+
+            if(respondToRequests) {
+                Thread readThread = new Thread(this::readLoop, "Test backend " + name);
+                readThread.setDaemon(true);
+                readThread.start();
+            }
+        }
+
+        private void readLoop() {
+            try {
+                while(true) {
+                    Object next = stream.readObject();
+                    if(next instanceof Response response) {
+                        waitingRequests.remove(response.getId()).accept(response);
+                    }   else if(next instanceof Request request) {
+                        handledRequests.incrementAndGet();
+
+                        Response response = new Response();
+                        response.setId(request.getId());
+                        response.setResult(name);
+                        send(response);
+                    }
+                }
+            }   catch(Exception ex) {
+                // The socket is closed at the end of the test
+            }
+        }
+
+        private void send(Object obj) throws Exception {
+            synchronized(stream) {
+                stream.writeObject(obj);
+            }
+        }
+
+        private void relay(String destination, int payloadSize, Consumer<Response> onFinish) throws Exception {
+            RelayRequest request = new RelayRequest();
+            request.setDestination(destination);
+            // Opaque to the proxy, so this doesn't need to be a valid request. Random data is used so that compression doesn't shrink it
+            byte[] payload = new byte[payloadSize];
+            ThreadLocalRandom.current().nextBytes(payload);
+            request.setInnerRequest(payload);
+
+            int id = currentRequestId.getAndIncrement();
+            request.setId(id);
+            waitingRequests.put(id, onFinish);
+            send(request);
+        }
+
+        private void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private final UUID key = UUID.randomUUID();
+    private final Map<String, Boolean> knownServers = new ConcurrentHashMap<>();
+    private final List<TestBackend> backends = new ArrayList<>();
+    private final MessageRegistry messageRegistry = new MessageRegistry();
+
+    private CipherManager cipherManager;
+    private PortalServer portalServer;
+    private InetSocketAddress serverAddress;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        cipherManager = new CipherManager();
+        cipherManager.init(key);
+
+        IProxy proxy = new IProxy() {
+            @Override
+            public String getPluginVersion() {
+                return PLUGIN_VERSION;
+            }
+
+            @Override
+            public String findServer(InetSocketAddress clientAddress) {
+                return null;
+            }
+
+            @Override
+            public boolean serverExists(String serverName) {
+                return knownServers.containsKey(serverName);
+            }
+
+            @Override
+            public boolean playerExists(UUID uid) {
+                return false;
+            }
+
+            @Override
+            public void changePlayerServer(UUID uid, String destinationServer) { }
+        };
+
+        IProxyConfig config = new IProxyConfig() {
+            @Override
+            public InetSocketAddress getBindAddress() {
+                return new InetSocketAddress("127.0.0.1", 0);
+            }
+
+            @Override
+            public UUID getKey() {
+                return key;
+            }
+        };
+
+        Logger logger = new OverrideLogger(java.util.logging.Logger.getAnonymousLogger());
+        logger.setLevel(Level.WARNING);
+
+        Injector injector = Guice.createInjector(new ProxyModule(), new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Logger.class).toInstance(logger);
+                bind(IProxy.class).toInstance(proxy);
+                bind(IProxyConfig.class).toInstance(config);
+            }
+        });
+
+        portalServer = (PortalServer) injector.getInstance(IPortalServer.class);
+        portalServer.startUp();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while((serverAddress = portalServer.getBoundAddress()) == null) {
+            assertTrue(System.currentTimeMillis() < deadline, "Portal server did not bind in time");
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        portalServer.shutDown();
+        for(TestBackend backend : backends) {
+            backend.close();
+        }
+    }
+
+    private TestBackend connectBackend(String name, boolean respondToRequests) throws Exception {
+        return connectBackend(name, respondToRequests, MessageRegistry.PROTOCOL_VERSION, CompressionType.LZ4);
+    }
+
+    private TestBackend connectBackend(String name, boolean respondToRequests, int protocolVersion, CompressionType compression) throws Exception {
+        knownServers.put(name, true);
+        TestBackend backend = new TestBackend(name, respondToRequests, protocolVersion, compression);
+        backends.add(backend);
+        return backend;
+    }
+
+    @Test
+    public void testManyConcurrentRelays() throws Exception {
+        // Relays between backends on different protocol versions and codecs work, since the proxy encodes each connection separately
+        int[] protocolVersions = {MessageRegistry.LEGACY_PROTOCOL_VERSION, MessageRegistry.COMPRESS_BEFORE_ENCRYPT_VERSION - 1, MessageRegistry.PROTOCOL_VERSION, MessageRegistry.PROTOCOL_VERSION};
+        CompressionType[] compressionTypes = CompressionType.values();
+        for(int i = 0; i < BACKEND_COUNT; i++) {
+            connectBackend("backend-" + i, true, protocolVersions[i % protocolVersions.length], compressionTypes[i % compressionTypes.length]);
+        }
+
+        int totalRequests = BACKEND_COUNT * REQUESTS_PER_BACKEND;
+        CountDownLatch finished = new CountDownLatch(totalRequests);
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService senders = Executors.newFixedThreadPool(BACKEND_COUNT);
+        for(int i = 0; i < BACKEND_COUNT; i++) {
+            TestBackend backend = backends.get(i);
+            int backendIndex = i;
+            senders.submit(() -> {
+                Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT_PER_BACKEND);
+                for(int r = 0; r < REQUESTS_PER_BACKEND; r++) {
+                    String destination = "backend-" + ((backendIndex + 1 + r % (BACKEND_COUNT - 1)) % BACKEND_COUNT);
+                    inFlight.acquire();
+                    backend.relay(destination, 256, response -> {
+                        try {
+                            assertEquals(destination, response.getResult());
+                        }   catch(RequestException | AssertionError ex) {
+                            failures.incrementAndGet();
+                        }
+                        inFlight.release();
+                        finished.countDown();
+                    });
+                }
+                return null;
+            });
+        }
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "Relayed requests did not finish in time");
+        senders.shutdown();
+
+        assertEquals(0, failures.get());
+
+        int handled = 0;
+        for(TestBackend backend : backends) {
+            handled += backend.handledRequests.get();
+        }
+        assertEquals(totalRequests, handled);
+    }
+
+    @Test
+    public void testSlowBackendDoesNotStallOthers() throws Exception {
+        TestBackend sender = connectBackend("sender", true);
+        TestBackend healthy = connectBackend("healthy", true);
+        connectBackend("slow", false); // Never reads anything after the handshake
+
+        // Flood the slow backend until the proxy starts rejecting requests to it
+        CompletableFuture<RequestException> rejected = new CompletableFuture<>();
+        for(int i = 0; i < 1000 && !rejected.isDone(); i++) {
+            sender.relay("slow", 262_144, response -> {
+                try {
+                    response.checkForErrors();
+                }   catch(RequestException ex) {
+                    rejected.complete(ex);
+                }
+            });
+            // Give the proxy time to queue the request, so that we don't fill our own socket buffer instead
+            Thread.sleep(1);
+        }
+        assertNotNull(rejected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Relays to other servers should still be processed
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        sender.relay("healthy", 256, response -> {
+            try {
+                result.complete(response.getResult());
+            }   catch(RequestException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        assertEquals("healthy", result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, healthy.handledRequests.get());
+    }
+}
@@ -1,36 +1,127 @@
 package com.lauriethefish.betterportals.shared.logging;
 
+import java.util.logging.Level;
+
 /**
  * Used to allow guice to inject our own custom logger, since there's no feature to override its default logger
  * This also has some convenient methods for formatting using String.format
+ * <br>
+ * Formatting is only done if the level is loggable, so debug logging in hot code costs a level check when disabled.
+ * The single/double argument and primitive overloads avoid the varargs array and boxing at the call site as well.
+ * For arguments that are expensive to compute, use the {@link java.util.function.Supplier} overloads inherited from {@link java.util.logging.Logger}.
  */
 public abstract class Logger extends java.util.logging.Logger {
     protected Logger(String name, String resourceBundleName) {
         super(name, resourceBundleName);
     }
 
+    /**
+     * Formats the message and logs it, if <code>level</code> is loggable.
+     * @param level The level to log at
+     * @param format Format string passed to {@link String#format(String, Object...)}
+     * @param args Format arguments
+     */
+    private void logFormatted(Level level, String format, Object... args) {
+        if(!isLoggable(level)) {return;}
+
+        log(level, String.format(format, args));
+    }
+
     // Convenience methods for logging with formatting
     public void severe(String format, Object... args) {
-        super.severe(String.format(format, args));
+        logFormatted(Level.SEVERE, format, args);
     }
 
     public void warning(String format, Object... args) {
-        super.warning(String.format(format, args));
+        logFormatted(Level.WARNING, format, args);
     }
 
     public void info(String format, Object... args) {
-        super.info(String.format(format, args));
+        logFormatted(Level.INFO, format, args);
     }
 
     public void fine(String format, Object... args) {
-        super.fine(String.format(format, args));
+        logFormatted(Level.FINE, format, args);
     }
 
     public void finer(String format, Object... args) {
-        super.finer(String.format(format, args));
+        logFormatted(Level.FINER, format, args);
     }
 
     public void finest(String format, Object... args) {
-        super.finest(String.format(format, args));
+        logFormatted(Level.FINEST, format, args);
+    }
+
+    // Fixed arity overloads for debug logging, since these are commonly used in code that runs every tick
+    public void fine(String format, Object arg) {
+        if(isLoggable(Level.FINE)) {log(Level.FINE, String.format(format, arg));}
+    }
+
+    public void fine(String format, Object argA, Object argB) {
+        if(isLoggable(Level.FINE)) {log(Level.FINE, String.format(format, argA, argB));}
+    }
+
+    public void fine(String format, int arg) {
+        if(isLoggable(Level.FINE)) {log(Level.FINE, String.format(format, arg));}
+    }
+
+    public void fine(String format, long arg) {
+        if(isLoggable(Level.FINE)) {log(Level.FINE, String.format(format, arg));}
+    }
+
+    public void fine(String format, double arg) {
+        if(isLoggable(Level.FINE)) {log(Level.FINE, String.format(format, arg));}
+    }
+
+    public void fine(String format, boolean arg) {
+        if(isLoggable(Level.FINE)) {log(Level.FINE, String.format(format, arg));}
+    }
+
+    public void finer(String format, Object arg) {
+        if(isLoggable(Level.FINER)) {log(Level.FINER, String.format(format, arg));}
+    }
+
+    public void finer(String format, Object argA, Object argB) {
+        if(isLoggable(Level.FINER)) {log(Level.FINER, String.format(format, argA, argB));}
+    }
+
+    public void finer(String format, int arg) {
+        if(isLoggable(Level.FINER)) {log(Level.FINER, String.format(format, arg));}
+    }
+
+    public void finer(String format, long arg) {
+        if(isLoggable(Level.FINER)) {log(Level.FINER, String.format(format, arg));}
+    }
+
+    public void finer(String format, double arg) {
+        if(isLoggable(Level.FINER)) {log(Level.FINER, String.format(format, arg));}
+    }
+
+    public void finer(String format, boolean arg) {
+        if(isLoggable(Level.FINER)) {log(Level.FINER, String.format(format, arg));}
+    }
+
+    public void finest(String format, Object arg) {
+        if(isLoggable(Level.FINEST)) {log(Level.FINEST, String.format(format, arg));}
+    }
+
+    public void finest(String format, Object argA, Object argB) {
+        if(isLoggable(Level.FINEST)) {log(Level.FINEST, String.format(format, argA, argB));}
+    }
+
+    public void finest(String format, int arg) {
+        if(isLoggable(Level.FINEST)) {log(Level.FINEST, String.format(format, arg));}
+    }
+
+    public void finest(String format, long arg) {
+        if(isLoggable(Level.FINEST)) {log(Level.FINEST, String.format(format, arg));}
+    }
+
+    public void finest(String format, double arg) {
+        if(isLoggable(Level.FINEST)) {log(Level.FINEST, String.format(format, arg));}
+    }
+
+    public void finest(String format, boolean arg) {
+        if(isLoggable(Level.FINEST)) {log(Level.FINEST, String.format(format, arg));}
     }
 }
@@ -0,0 +1,19 @@
+package com.lauriethefish.betterportals.shared.net;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Result of a {@link com.lauriethefish.betterportals.shared.net.requests.BatchRequest}, with a response for each request in the same order.
+ */
+@Getter
+@AllArgsConstructor
+public class BatchResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final @NotNull List<Response> responses;
+}
@@ -0,0 +1,23 @@
+package com.lauriethefish.betterportals.shared.net;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * Result of a {@link com.lauriethefish.betterportals.shared.net.requests.DirectConnectionRequest}, which tells a server how to connect directly to another.
+ * The session is only accepted once, and only for a short time after it is created.
+ */
+@Getter
+@AllArgsConstructor
+public class DirectConnectionInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final @NotNull String host;
+    private final int port;
+    private final @NotNull UUID sessionId;
+    private final @NotNull UUID sessionKey;
+}
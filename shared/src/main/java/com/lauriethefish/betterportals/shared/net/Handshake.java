@@ -18,4 +18,28 @@ public class Handshake implements Serializable {
     private String gameVersion;
     private int serverPort;
     private String overrideServerName;
+
+    /**
+     * Highest binary protocol version supported by the sender.
+     * Older versions don't send this field, so it is zero for them, which means only Java serialization is supported.
+     */
+    private int protocolVersion;
+
+    /**
+     * Name of the compression codec that the sender would like to use, which is used in both directions if the receiver supports it.
+     * The proxy also uses the same level and threshold for what it sends, so that these are configured in one place.
+     */
+    private String compression;
+    private int compressionLevel;
+    private int compressionThreshold;
+
+    /**
+     * Port that the sender accepts direct connections from other servers on, or zero if it doesn't.
+     */
+    private int directConnectionPort;
+
+    /**
+     * Address that other servers should use for direct connections, or null to use the address that the sender connected to the proxy from.
+     */
+    private String directConnectionAddress;
 }
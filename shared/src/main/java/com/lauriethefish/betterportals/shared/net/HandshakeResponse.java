@@ -26,4 +26,14 @@ public class HandshakeResponse implements Serializable {
     }
 
     private Result status;
+
+    /**
+     * Binary protocol version to use for everything after the handshake, or zero to keep using Java serialization.
+     */
+    private int protocolVersion;
+
+    /**
+     * Name of the compression codec to use, which is "none" if the requested codec isn't supported.
+     */
+    private String compression;
 }
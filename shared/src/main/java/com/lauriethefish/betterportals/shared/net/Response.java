@@ -18,7 +18,7 @@ public class Response implements Serializable {
     @Getter private int id;
 
     private Object result;
-    private RequestException error;
+    @Getter private RequestException error;
 
     /**
      * Checks for errors, then returns the result of the request, if there is one.
@@ -31,6 +31,14 @@ public class Response implements Serializable {
         return result;
     }
 
+    /**
+     * Returns the result without checking for errors, used when encoding the response.
+     * @return The result of the request, which is null if there was an error
+     */
+    public Object getResultUnchecked() {
+        return result;
+    }
+
     /**
      * Throws an error that occurred while processing the request, if there was one.
      * @throws RequestException If there was an error while processing the request
@@ -0,0 +1,67 @@
+package com.lauriethefish.betterportals.shared.net.compression;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.IntFunction;
+
+/**
+ * The compression codecs that can be negotiated in the handshake.
+ * The ID is sent at the start of each frame, so that small frames can be sent uncompressed.
+ */
+public enum CompressionType {
+    NONE(0, "none", level -> new NoCompressionCodec()),
+    DEFLATE(1, "deflate", DeflateCompressionCodec::new),
+    LZ4(2, "lz4", level -> new Lz4CompressionCodec());
+
+    public static final int DEFAULT_LEVEL = 6;
+    public static final int MIN_LEVEL = 1;
+    public static final int MAX_LEVEL = 9;
+
+    @Getter private final int id;
+    @Getter private final String configName;
+    private final IntFunction<ICompressionCodec> factory;
+
+    /**
+     * Codecs are stateless, so this is shared for decompressing frames. The level only affects compression.
+     */
+    @Getter private final ICompressionCodec decoder;
+
+    CompressionType(int id, String configName, IntFunction<ICompressionCodec> factory) {
+        this.id = id;
+        this.configName = configName;
+        this.factory = factory;
+        this.decoder = factory.apply(DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param level Compression level, which is ignored by codecs that don't support it. {@link CompressionType#DEFAULT_LEVEL} is used if this is out of range
+     * @return A new codec of this type
+     */
+    public @NotNull ICompressionCodec createCodec(int level) {
+        return factory.apply(level < MIN_LEVEL || level > MAX_LEVEL ? DEFAULT_LEVEL : level);
+    }
+
+    public static @Nullable CompressionType fromId(int id) {
+        for(CompressionType type : values()) {
+            if(type.id == id) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param configName Name of the codec, from the config or handshake
+     * @return The codec with this name, or {@link CompressionType#NONE} if there isn't one, e.g. if the other side is on an older version
+     */
+    public static @NotNull CompressionType fromConfigName(@Nullable String configName) {
+        for(CompressionType type : values()) {
+            if(type.configName.equalsIgnoreCase(configName)) {
+                return type;
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,83 @@
+package com.lauriethefish.betterportals.shared.net.compression;
+
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate, without the GZIP header and checksum since AES-GCM already detects corruption.
+ * Compresses better than {@link Lz4CompressionCodec}, but is several times slower, especially at higher levels.
+ */
+public class DeflateCompressionCodec implements ICompressionCodec {
+    private final int level;
+
+    public DeflateCompressionCodec(int level) {
+        if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Deflate level must be between 1 and 9");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public @NotNull CompressionType getType() {
+        return CompressionType.DEFLATE;
+    }
+
+    @Override
+    public byte @NotNull [] compress(byte @NotNull [] data, int offset, int length) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            // Incompressible data grows by a few bytes per 16 KiB block
+            byte[] output = new byte[length + (length >> 12) + 64];
+            int outputLength = 0;
+            while(!deflater.finished()) {
+                if(outputLength == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+            }
+            return Arrays.copyOf(output, outputLength);
+        }   finally     {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte @NotNull [] decompress(byte @NotNull [] data, int offset, int length, int decompressedLength) throws ProtocolException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset, length);
+
+            byte[] output = new byte[decompressedLength];
+            int outputLength = 0;
+            while(outputLength < decompressedLength) {
+                int inflated = inflater.inflate(output, outputLength, decompressedLength - outputLength);
+                if(inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                outputLength += inflated;
+            }
+
+            if(outputLength != decompressedLength) {
+                throw new ProtocolException("Compressed data was shorter than the stated length");
+            }
+
+            // The end of the stream may not have been read yet, so check that there is nothing after it
+            if(!inflater.finished() && (inflater.inflate(new byte[1]) != 0 || !inflater.finished())) {
+                throw new ProtocolException("Compressed data was longer than the stated length");
+            }
+            return output;
+        }   catch(DataFormatException ex) {
+            throw new ProtocolException("Compressed data was corrupt: " + ex.getMessage());
+        }   finally     {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.lauriethefish.betterportals.shared.net.compression;
+
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compresses frames before they are encrypted.
+ * Implementations must be thread safe, since one instance is shared by everything sending on a connection.
+ */
+public interface ICompressionCodec {
+    @NotNull CompressionType getType();
+
+    /**
+     * @param data Array containing the data to compress
+     * @param offset Index of the start of the data
+     * @param length Length of the data
+     * @return The compressed data, which may be larger than the input if it is incompressible
+     */
+    byte @NotNull [] compress(byte @NotNull [] data, int offset, int length);
+
+    /**
+     * @param data Array containing the compressed data
+     * @param offset Index of the start of the compressed data
+     * @param length Length of the compressed data
+     * @param decompressedLength Length of the data before it was compressed, which is sent in the frame
+     * @return The decompressed data
+     * @throws ProtocolException If the data is corrupt, or doesn't decompress to exactly <code>decompressedLength</code> bytes
+     */
+    byte @NotNull [] decompress(byte @NotNull [] data, int offset, int length, int decompressedLength) throws ProtocolException;
+}
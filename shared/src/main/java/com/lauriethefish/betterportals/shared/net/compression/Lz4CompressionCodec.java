@@ -0,0 +1,182 @@
+package com.lauriethefish.betterportals.shared.net.compression;
+
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the LZ4 block format, which trades some compression ratio for being much faster than deflate.
+ * Each sequence is a token holding the literal and match lengths, the literals, then a two byte offset back to the match.
+ * Matches are found with a single hash table of the last position of each 4 byte sequence, so there is no match searching.
+ */
+public class Lz4CompressionCodec implements ICompressionCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 65_535;
+
+    // The format requires the end of the data to be literals
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    /**
+     * Incompressible data is skipped over faster, by increasing the step every 2^SKIP_TRIGGER bytes without a match.
+     */
+    private static final int SKIP_TRIGGER = 6;
+
+    @Override
+    public @NotNull CompressionType getType() {
+        return CompressionType.LZ4;
+    }
+
+    private static int readInt(byte[] data, int index) {
+        return (data[index] & 0xFF)
+                | (data[index + 1] & 0xFF) << 8
+                | (data[index + 2] & 0xFF) << 16
+                | (data[index + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(byte[] output, int outputIndex, int length) {
+        while(length >= 255) {
+            output[outputIndex++] = (byte) 255;
+            length -= 255;
+        }
+        output[outputIndex++] = (byte) length;
+        return outputIndex;
+    }
+
+    private static int writeLiterals(byte[] output, int outputIndex, int token, byte[] data, int literalStart, int literalLength) {
+        output[outputIndex++] = (byte) ((Math.min(literalLength, 15) << 4) | token);
+        if(literalLength >= 15) {
+            outputIndex = writeLength(output, outputIndex, literalLength - 15);
+        }
+
+        System.arraycopy(data, literalStart, output, outputIndex, literalLength);
+        return outputIndex + literalLength;
+    }
+
+    @Override
+    public byte @NotNull [] compress(byte @NotNull [] data, int offset, int length) {
+        byte[] output = new byte[length + length / 255 + 16];
+        int outputIndex = 0;
+
+        int end = offset + length;
+        int anchor = offset;
+        if(length >= MATCH_FIND_LIMIT + 1) {
+            int matchLimit = end - LAST_LITERALS;
+            int findLimit = end - MATCH_FIND_LIMIT;
+
+            // Positions are stored plus one, so that zero means empty
+            int[] hashTable = new int[1 << HASH_LOG];
+            int index = offset;
+            while(index < findLimit) {
+                int sequence = readInt(data, index);
+                int hash = hash(sequence);
+                int reference = hashTable[hash] - 1;
+                hashTable[hash] = index + 1;
+
+                if(reference < offset || index - reference > MAX_OFFSET || readInt(data, reference) != sequence) {
+                    index += 1 + ((index - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+
+                int matchLength = MIN_MATCH;
+                while(index + matchLength < matchLimit && data[reference + matchLength] == data[index + matchLength]) {
+                    matchLength++;
+                }
+
+                int matchToken = Math.min(matchLength - MIN_MATCH, 15);
+                outputIndex = writeLiterals(output, outputIndex, matchToken, data, anchor, index - anchor);
+
+                int matchOffset = index - reference;
+                output[outputIndex++] = (byte) matchOffset;
+                output[outputIndex++] = (byte) (matchOffset >>> 8);
+                if(matchToken == 15) {
+                    outputIndex = writeLength(output, outputIndex, matchLength - MIN_MATCH - 15);
+                }
+
+                index += matchLength;
+                anchor = index;
+            }
+        }
+
+        // The last sequence is only literals, and has no offset
+        outputIndex = writeLiterals(output, outputIndex, 0, data, anchor, end - anchor);
+        return Arrays.copyOf(output, outputIndex);
+    }
+
+    @Override
+    public byte @NotNull [] decompress(byte @NotNull [] data, int offset, int length, int decompressedLength) throws ProtocolException {
+        byte[] output = new byte[decompressedLength];
+        int outputIndex = 0;
+        int index = offset;
+        int end = offset + length;
+
+        while(true) {
+            if(index >= end) {
+                throw new ProtocolException("Compressed data ended before the last sequence");
+            }
+            int token = data[index++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if(literalLength == 15) {
+                int next;
+                do {
+                    if(index >= end) {throw new ProtocolException("Compressed data ended in a literal length");}
+                    next = data[index++] & 0xFF;
+                    literalLength += next;
+                } while(next == 255 && literalLength <= decompressedLength);
+            }
+            if(literalLength > end - index || literalLength > decompressedLength - outputIndex) {
+                throw new ProtocolException("Literal length was out of bounds");
+            }
+            System.arraycopy(data, index, output, outputIndex, literalLength);
+            index += literalLength;
+            outputIndex += literalLength;
+
+            if(index == end) {break;} // The last sequence has no match
+
+            if(end - index < 2) {
+                throw new ProtocolException("Compressed data ended in a match offset");
+            }
+            int matchOffset = (data[index] & 0xFF) | (data[index + 1] & 0xFF) << 8;
+            index += 2;
+            if(matchOffset == 0 || matchOffset > outputIndex) {
+                throw new ProtocolException("Match offset was out of bounds");
+            }
+
+            int matchLength = (token & 15) + MIN_MATCH;
+            if((token & 15) == 15) {
+                int next;
+                do {
+                    if(index >= end) {throw new ProtocolException("Compressed data ended in a match length");}
+                    next = data[index++] & 0xFF;
+                    matchLength += next;
+                } while(next == 255 && matchLength <= decompressedLength);
+            }
+            if(matchLength > decompressedLength - outputIndex) {
+                throw new ProtocolException("Match length was out of bounds");
+            }
+
+            int matchStart = outputIndex - matchOffset;
+            if(matchOffset >= matchLength) {
+                System.arraycopy(output, matchStart, output, outputIndex, matchLength);
+            }   else    {
+                // Overlapping matches repeat the bytes being copied, so they must be copied one at a time
+                for(int i = 0; i < matchLength; i++) {
+                    output[outputIndex + i] = output[matchStart + i];
+                }
+            }
+            outputIndex += matchLength;
+        }
+
+        if(outputIndex != decompressedLength) {
+            throw new ProtocolException("Compressed data was shorter than the stated length");
+        }
+        return output;
+    }
+}
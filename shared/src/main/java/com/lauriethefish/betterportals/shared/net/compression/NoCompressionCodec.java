@@ -0,0 +1,26 @@
+package com.lauriethefish.betterportals.shared.net.compression;
+
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+public class NoCompressionCodec implements ICompressionCodec {
+    @Override
+    public @NotNull CompressionType getType() {
+        return CompressionType.NONE;
+    }
+
+    @Override
+    public byte @NotNull [] compress(byte @NotNull [] data, int offset, int length) {
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    @Override
+    public byte @NotNull [] decompress(byte @NotNull [] data, int offset, int length, int decompressedLength) throws ProtocolException {
+        if(length != decompressedLength) {
+            throw new ProtocolException("Uncompressed data had the wrong length");
+        }
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+}
@@ -0,0 +1,81 @@
+package com.lauriethefish.betterportals.shared.net.encryption;
+
+import com.google.inject.Singleton;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of buffers used for encoded frames, so that sending a message doesn't need a new buffer each time.
+ * Buffers are grouped into power of two size classes. Frames bigger than {@link BufferPool#MAX_POOLED_SIZE} are rare, so they aren't pooled.
+ *
+ * These are heap buffers, since AES-GCM copies direct buffers through temporary arrays, which made encryption slower and allocate more than the copy that channels make when writing heap buffers.
+ */
+@Singleton
+public class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 9; // 512 bytes
+    private static final int MAX_SIZE_SHIFT = 20; // 1 MiB
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SIZE_SHIFT;
+
+    /**
+     * Maximum number of free buffers kept in each size class. Anything released after this is left for the GC.
+     */
+    private static final int MAX_FREE_PER_CLASS = 64;
+
+    // ArrayDeque is used instead of a concurrent queue since it doesn't allocate a node for each buffer added
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] freeBuffers = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+
+    public BufferPool() {
+        for(int i = 0; i < freeBuffers.length; i++) {
+            freeBuffers[i] = new ArrayDeque<>(MAX_FREE_PER_CLASS);
+        }
+    }
+
+    private static int getSizeClass(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+
+    /**
+     * Gets a cleared buffer, which should be given back with {@link BufferPool#release(ByteBuffer)} once it is no longer used.
+     * @param minCapacity Minimum capacity of the buffer
+     * @return A buffer with at least <code>minCapacity</code> bytes
+     */
+    public @NotNull ByteBuffer acquire(int minCapacity) {
+        if(minCapacity > MAX_POOLED_SIZE) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        int sizeClass = getSizeClass(minCapacity);
+        ArrayDeque<ByteBuffer> free = freeBuffers[sizeClass];
+        ByteBuffer buffer;
+        synchronized(free) {
+            buffer = free.poll();
+        }
+
+        if(buffer == null) {
+            return ByteBuffer.allocate(1 << (sizeClass + MIN_SIZE_SHIFT));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after this.
+     * Buffers that aren't the size of a size class are ignored.
+     * @param buffer The buffer to release
+     */
+    public void release(@NotNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if(!buffer.hasArray() || buffer.isReadOnly() || capacity > MAX_POOLED_SIZE || capacity < 1 << MIN_SIZE_SHIFT || Integer.bitCount(capacity) != 1) {return;}
+
+        ArrayDeque<ByteBuffer> free = freeBuffers[getSizeClass(capacity)];
+        synchronized(free) {
+            if(free.size() < MAX_FREE_PER_CLASS) {
+                free.push(buffer);
+            }
+        }
+    }
+}
@@ -20,7 +20,7 @@ import java.util.UUID;
 public class CipherManager {
     private static final int AES_KEY_SIZE = 256; // Bits
     public static final int GCM_NONCE_LENGTH = 12; // Bytes
-    private static final int GCM_TAG_LENGTH = 16; // Bytes
+    public static final int GCM_TAG_LENGTH = 16; // Bytes
 
     private SecretKey secretKey;
     private SecureRandom random;
@@ -63,15 +63,44 @@ public class CipherManager {
     }
 
     public Cipher createEncrypt() throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = createCipher();
         cipher.init(Cipher.ENCRYPT_MODE, secretKey, getGcmParameterSpec(generateRandomNonce()));
         return cipher;
     }
 
     public Cipher createDecrypt(byte[] nonce) throws GeneralSecurityException  {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = createCipher();
         cipher.init(Cipher.DECRYPT_MODE, secretKey, getGcmParameterSpec(nonce));
 
         return cipher;
     }
+
+    /**
+     * Creates an uninitialised cipher, which can be reused for many messages with {@link CipherManager#initEncrypt(Cipher, byte[])} and {@link CipherManager#initDecrypt(Cipher, byte[])}.
+     * Creating a cipher is much slower than initialising one, so connections keep their own.
+     * @return The new cipher
+     */
+    public Cipher createCipher() throws GeneralSecurityException {
+        return Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * Fills <code>nonce</code> with random bytes, then initialises <code>cipher</code> to encrypt with it.
+     * A new nonce is required for every message, since GCM is insecure if a nonce is reused.
+     * @param cipher Cipher from {@link CipherManager#createCipher()}
+     * @param nonce Array of length {@link CipherManager#GCM_NONCE_LENGTH} to write the nonce to
+     */
+    public void initEncrypt(Cipher cipher, byte[] nonce) throws GeneralSecurityException {
+        random.nextBytes(nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, getGcmParameterSpec(nonce));
+    }
+
+    /**
+     * Initialises <code>cipher</code> to decrypt a message sent with <code>nonce</code>.
+     * @param cipher Cipher from {@link CipherManager#createCipher()}
+     * @param nonce The nonce sent with the message
+     */
+    public void initDecrypt(Cipher cipher, byte[] nonce) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, getGcmParameterSpec(nonce));
+    }
 }
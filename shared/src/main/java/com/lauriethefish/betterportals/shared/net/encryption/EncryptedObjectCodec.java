@@ -0,0 +1,342 @@
+package com.lauriethefish.betterportals.shared.net.encryption;
+
+import com.google.inject.Inject;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.compression.ICompressionCodec;
+import com.lauriethefish.betterportals.shared.net.protocol.BinaryReader;
+import com.lauriethefish.betterportals.shared.net.protocol.BinaryWriter;
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts objects to and from the encrypted frames sent between the proxy and servers.
+ * Each frame is a 4 byte length prefix, the encrypted data, then the nonce used for encryption.
+ * This is separate from {@link EncryptedObjectStream} so that frames can also be read from non-blocking channels.
+ *
+ * With the legacy framing, the encrypted data is then compressed with GZIP, which achieves nothing since ciphertext is incompressible.
+ * Otherwise, the data is compressed before encryption, and starts with the ID of the codec used, then the uncompressed length if compressed.
+ *
+ * Each connection has its own codec, since the ciphers and buffers are reused between messages to avoid allocating for each one.
+ * Frames are encoded into buffers from the {@link BufferPool}, and decoded directly from the buffer they were read into.
+ */
+public class EncryptedObjectCodec {
+    /**
+     * Size of the length prefix at the start of each frame.
+     */
+    public static final int HEADER_LENGTH = 4;
+
+    /**
+     * The reused buffers are replaced after a message bigger than this, so that one big message doesn't use up memory for the rest of the connection.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1_048_576;
+
+    // Codec ID, then the uncompressed length as a varint
+    private static final int MAX_PLAINTEXT_HEADER_LENGTH = 6;
+
+    private final CipherManager cipherManager;
+    private final BufferPool bufferPool;
+
+    // Guarded by encodeLock
+    private final Object encodeLock = new Object();
+    private Cipher encryptCipher;
+    private final byte[] encryptNonce = new byte[CipherManager.GCM_NONCE_LENGTH];
+    private BinaryWriter serializeBuffer = new BinaryWriter(1024);
+    private ByteBuffer serializeView;
+    private final BinaryWriter headerBuffer = new BinaryWriter(MAX_PLAINTEXT_HEADER_LENGTH);
+
+    // Guarded by decodeLock
+    private final Object decodeLock = new Object();
+    private Cipher decryptCipher;
+    private final byte[] decryptNonce = new byte[CipherManager.GCM_NONCE_LENGTH];
+    private ByteBuffer plaintextBuffer = ByteBuffer.allocate(1024);
+
+    @Inject
+    public EncryptedObjectCodec(CipherManager cipherManager, BufferPool bufferPool) {
+        this.cipherManager = cipherManager;
+        this.bufferPool = bufferPool;
+    }
+
+    public EncryptedObjectCodec(CipherManager cipherManager) {
+        this(cipherManager, new BufferPool());
+    }
+
+    /**
+     * Serializes, compresses and encrypts <code>obj</code>.
+     * @param obj The object to encode
+     * @param format Format negotiated for the connection
+     * @return Buffer containing the full frame, including the length prefix and nonce, between its position and limit. This should be given to {@link EncryptedObjectCodec#releaseFrame(ByteBuffer)} once it has been sent
+     * @throws GeneralSecurityException Any encryption errors
+     * @throws IOException If serializing the object fails
+     * @throws IllegalStateException If the encoded object is larger than {@link IEncryptedObjectStream#MAX_REQUEST_SIZE}
+     */
+    public @NotNull ByteBuffer encodeFrame(@NotNull Object obj, @NotNull WireFormat format) throws GeneralSecurityException, IOException {
+        synchronized(encodeLock) {
+            try {
+                return encodeFrameInternal(obj, format);
+            }   finally     {
+                if(serializeBuffer.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                    serializeBuffer = new BinaryWriter(1024);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses and encrypts a message that has already been serialized with <code>format</code>'s serializer.
+     * @param serialized Array containing the serialized message
+     * @param offset Index of the start of the message in <code>serialized</code>
+     * @param length Length of the message
+     * @param format Format negotiated for the connection
+     * @return Buffer containing the full frame, the same as {@link EncryptedObjectCodec#encodeFrame(Object, WireFormat)}
+     * @throws GeneralSecurityException Any encryption errors
+     * @throws IOException If compression fails
+     * @throws IllegalStateException If the encoded object is larger than {@link IEncryptedObjectStream#MAX_REQUEST_SIZE}
+     */
+    public @NotNull ByteBuffer encodeFrame(byte @NotNull [] serialized, int offset, int length, @NotNull WireFormat format) throws GeneralSecurityException, IOException {
+        synchronized(encodeLock) {
+            try {
+                serializeBuffer.reset();
+                serializeBuffer.writeByte(CompressionType.NONE.getId());
+                serializeBuffer.writeBytes(serialized, offset, length);
+                return encodeSerializeBuffer(format);
+            }   finally     {
+                if(serializeBuffer.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                    serializeBuffer = new BinaryWriter(1024);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer encodeFrameInternal(Object obj, WireFormat format) throws GeneralSecurityException, IOException {
+        BinaryWriter writer = serializeBuffer;
+        writer.reset();
+        // Space for the codec ID is reserved, so that uncompressed messages can be encrypted straight from the writer
+        writer.writeByte(CompressionType.NONE.getId());
+        format.getSerializer().serialize(obj, writer);
+        return encodeSerializeBuffer(format);
+    }
+
+    /**
+     * Encodes the serialize buffer, which contains a placeholder codec ID followed by the serialized message.
+     */
+    private ByteBuffer encodeSerializeBuffer(WireFormat format) throws GeneralSecurityException, IOException {
+        BinaryWriter writer = serializeBuffer;
+        int serializedLength = writer.size() - 1;
+
+        if(format.isLegacyFraming()) {
+            return ByteBuffer.wrap(encodeLegacyFrame(writer.getBuffer(), 1, serializedLength));
+        }
+
+        byte[] compressed = null;
+        ICompressionCodec compression = format.getCompression();
+        assert compression != null;
+        if(compression.getType() != CompressionType.NONE && serializedLength >= format.getCompressionThreshold()) {
+            compressed = compression.compress(writer.getBuffer(), 1, serializedLength);
+            // Send it uncompressed if compressing didn't help, so that the receiver doesn't waste time decompressing
+            if(compressed.length >= serializedLength) {
+                compressed = null;
+            }
+        }
+
+        if(encryptCipher == null) {
+            encryptCipher = cipherManager.createCipher();
+        }
+        cipherManager.initEncrypt(encryptCipher, encryptNonce);
+
+        int plaintextLength;
+        if(compressed == null) {
+            plaintextLength = writer.size();
+        }   else    {
+            headerBuffer.reset();
+            headerBuffer.writeByte(compression.getType().getId());
+            headerBuffer.writeVarInt(serializedLength);
+            plaintextLength = headerBuffer.size() + compressed.length;
+        }
+
+        int maxDataLength = encryptCipher.getOutputSize(plaintextLength);
+        checkLength(maxDataLength);
+
+        ByteBuffer frame = bufferPool.acquire(HEADER_LENGTH + maxDataLength + CipherManager.GCM_NONCE_LENGTH);
+        try {
+            frame.position(HEADER_LENGTH);
+            if(compressed == null) {
+                encryptCipher.doFinal(getSerializeView(), frame);
+            }   else    {
+                encryptCipher.update(ByteBuffer.wrap(headerBuffer.getBuffer(), 0, headerBuffer.size()), frame);
+                encryptCipher.doFinal(ByteBuffer.wrap(compressed), frame);
+            }
+        }   catch(GeneralSecurityException | RuntimeException ex) {
+            bufferPool.release(frame);
+            throw ex;
+        }
+
+        frame.putInt(0, frame.position() - HEADER_LENGTH);
+        frame.put(encryptNonce);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Wraps the serialize buffer, only creating a new wrapper if the writer had to grow its array.
+     */
+    private ByteBuffer getSerializeView() {
+        byte[] buffer = serializeBuffer.getBuffer();
+        if(serializeView == null || serializeView.array() != buffer) {
+            serializeView = ByteBuffer.wrap(buffer);
+        }
+
+        serializeView.clear();
+        serializeView.limit(serializeBuffer.size());
+        return serializeView;
+    }
+
+    private byte[] encodeLegacyFrame(byte[] serialized, int offset, int length) throws GeneralSecurityException, IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        // Reserve space for the length prefix, which is filled in once we know the length
+        byteArrayOutputStream.write(new byte[HEADER_LENGTH]);
+
+        GZIPOutputStream compressionStream = new GZIPOutputStream(byteArrayOutputStream);
+        Cipher cipher = cipherManager.createEncrypt();
+        CipherOutputStream encryptionStream = new CipherOutputStream(compressionStream, cipher);
+
+        encryptionStream.write(serialized, offset, length);
+        encryptionStream.close();
+        compressionStream.close();
+
+        int dataLength = byteArrayOutputStream.size() - HEADER_LENGTH;
+        checkLength(dataLength);
+        byteArrayOutputStream.write(cipher.getIV());
+
+        byte[] frame = byteArrayOutputStream.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, dataLength);
+        return frame;
+    }
+
+    /**
+     * Returns the buffer of a frame from {@link EncryptedObjectCodec#encodeFrame(Object, WireFormat)} to the pool.
+     * @param frame The frame, which must not be used after this
+     */
+    public void releaseFrame(@NotNull ByteBuffer frame) {
+        bufferPool.release(frame);
+    }
+
+    private void checkLength(int dataLength) {
+        if(dataLength > IEncryptedObjectStream.MAX_REQUEST_SIZE) {
+            throw new IllegalStateException(String.format("Size of serialized and encrypted object (%d bytes) was greater than the maximum request size of %d bytes", dataLength, IEncryptedObjectStream.MAX_REQUEST_SIZE));
+        }
+    }
+
+    /**
+     * Checks that the length read from a frame's prefix is valid.
+     * @param dataLength The length read from the prefix
+     * @return The length of the rest of the frame after the prefix, including the nonce
+     * @throws IllegalStateException If the length is negative or greater than {@link IEncryptedObjectStream#MAX_REQUEST_SIZE}
+     */
+    public int getBodyLength(int dataLength) {
+        if(dataLength < 0 || dataLength > IEncryptedObjectStream.MAX_REQUEST_SIZE) {
+            throw new IllegalStateException(String.format("Requested length (%d bytes) was greater than the max request size of %d bytes", dataLength, IEncryptedObjectStream.MAX_REQUEST_SIZE));
+        }
+
+        return dataLength + CipherManager.GCM_NONCE_LENGTH;
+    }
+
+    /**
+     * Decrypts, decompresses and deserializes the body of a frame, without copying it out of <code>body</code>.
+     * @param body Buffer containing the frame body, which is the data followed by the nonce, starting at its position. The position is moved to the end of the body
+     * @param dataLength Length of the data, as given in the frame's prefix
+     * @param format Format negotiated for the connection
+     * @return The decoded object
+     * @throws GeneralSecurityException If an error occurred during decryption
+     * @throws IOException If the data is corrupt
+     * @throws ClassNotFoundException If the object is of a type that is not loaded on the JVM
+     */
+    public @NotNull Object decodeBody(@NotNull ByteBuffer body, int dataLength, @NotNull WireFormat format) throws GeneralSecurityException, IOException, ClassNotFoundException {
+        if(body.remaining() < getBodyLength(dataLength)) {
+            throw new ProtocolException("Frame body was shorter than the length in its prefix");
+        }
+
+        int dataEnd = body.position() + dataLength;
+        int limit = body.limit();
+
+        synchronized(decodeLock) {
+            try {
+                body.get(dataEnd, decryptNonce);
+                body.limit(dataEnd);
+
+                if(format.isLegacyFraming()) {
+                    return decodeLegacyBody(body, dataLength, format);
+                }
+
+                return decodeBodyInternal(body, dataLength, format);
+            }   finally     {
+                body.limit(limit);
+                body.position(dataEnd + CipherManager.GCM_NONCE_LENGTH);
+
+                if(plaintextBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                    plaintextBuffer = ByteBuffer.allocate(1024);
+                }
+            }
+        }
+    }
+
+    private Object decodeLegacyBody(ByteBuffer body, int dataLength, WireFormat format) throws GeneralSecurityException, IOException, ClassNotFoundException {
+        byte[] data = new byte[dataLength];
+        body.get(data);
+
+        GZIPInputStream decompressionStream = new GZIPInputStream(new ByteArrayInputStream(data));
+        CipherInputStream decryptionStream = new CipherInputStream(decompressionStream, cipherManager.createDecrypt(decryptNonce));
+
+        return format.getSerializer().deserialize(decryptionStream.readAllBytes());
+    }
+
+    private Object decodeBodyInternal(ByteBuffer body, int dataLength, WireFormat format) throws GeneralSecurityException, IOException, ClassNotFoundException {
+        if(decryptCipher == null) {
+            decryptCipher = cipherManager.createCipher();
+        }
+        cipherManager.initDecrypt(decryptCipher, decryptNonce);
+
+        int maxPlaintextLength = decryptCipher.getOutputSize(dataLength);
+        if(plaintextBuffer.capacity() < maxPlaintextLength) {
+            plaintextBuffer = ByteBuffer.allocate(Math.max(maxPlaintextLength, plaintextBuffer.capacity() * 2));
+        }
+
+        plaintextBuffer.clear();
+        int plaintextLength = decryptCipher.doFinal(body, plaintextBuffer);
+        byte[] plaintext = plaintextBuffer.array();
+        if(plaintextLength == 0) {
+            throw new ProtocolException("Frame was missing the compression codec ID");
+        }
+
+        int compressionId = plaintext[0] & 0xFF;
+        CompressionType compressionType = CompressionType.fromId(compressionId);
+        if(compressionType == null) {
+            throw new ProtocolException("Unknown compression codec ID " + compressionId);
+        }
+
+        if(compressionType == CompressionType.NONE) {
+            return format.getSerializer().deserialize(plaintext, 1, plaintextLength - 1);
+        }
+
+        BinaryReader header = new BinaryReader(plaintext, 1, plaintextLength - 1);
+        int decompressedLength = header.readVarInt();
+        if(decompressedLength < 0 || decompressedLength > IEncryptedObjectStream.MAX_REQUEST_SIZE) {
+            throw new ProtocolException(String.format("Decompressed length (%d bytes) was greater than the max request size of %d bytes", decompressedLength, IEncryptedObjectStream.MAX_REQUEST_SIZE));
+        }
+
+        int payloadOffset = plaintextLength - header.remaining();
+        byte[] decompressed = compressionType.getDecoder().decompress(plaintext, payloadOffset, header.remaining(), decompressedLength);
+        return format.getSerializer().deserialize(decompressed);
+    }
+}
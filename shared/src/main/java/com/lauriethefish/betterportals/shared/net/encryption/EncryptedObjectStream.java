@@ -2,66 +2,101 @@ package com.lauriethefish.betterportals.shared.net.encryption;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import com.lauriethefish.betterportals.shared.net.stream.StreamAssembler;
+import com.lauriethefish.betterportals.shared.net.stream.StreamChunk;
+import lombok.Getter;
+import lombok.Setter;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class EncryptedObjectStream implements IEncryptedObjectStream    {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * Frames bigger than this use their own array, so that one big message doesn't use up memory for the rest of the connection.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1_048_576;
+
     private final DataInputStream inputStream;
-    private final DataOutputStream outputStream;
-    private final CipherManager cipherManager;
+    private final OutputStream outputStream;
+    private final EncryptedObjectCodec codec;
+    @Getter @Setter private volatile WireFormat wireFormat = WireFormat.LEGACY;
+    private final StreamAssembler streamAssembler = new StreamAssembler(); // Only used by the reading thread
+
+    // Reused between frames, and only grown when a bigger frame arrives. Only used by the reading thread
+    private byte[] readArray = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer readBuffer = ByteBuffer.wrap(readArray);
+
+    // Frames are encoded into shared buffers, so only one thread can write at a time
+    private final Object writeLock = new Object();
 
     @Inject
-    public EncryptedObjectStream(@Assisted InputStream inputStream, @Assisted OutputStream outputStream, CipherManager cipherManager) {
+    public EncryptedObjectStream(@Assisted InputStream inputStream, @Assisted OutputStream outputStream, EncryptedObjectCodec codec) {
         this.inputStream = new DataInputStream(inputStream);
-        this.outputStream = new DataOutputStream(outputStream);
-        this.cipherManager = cipherManager;
+        this.outputStream = outputStream;
+        this.codec = codec;
+    }
+
+    public EncryptedObjectStream(InputStream inputStream, OutputStream outputStream, CipherManager cipherManager) {
+        this(inputStream, outputStream, new EncryptedObjectCodec(cipherManager));
     }
 
     @Override
     public Object readObject() throws GeneralSecurityException, IOException, ClassNotFoundException {
-        int length = inputStream.readInt();
+        while(true) {
+            Object next = readFrame();
+            if(!(next instanceof StreamChunk)) {return next;}
 
-        if(length > MAX_REQUEST_SIZE) {
-            throw new IllegalStateException(String.format("Requested length (%d bytes) was greater than the max request size of %d bytes", length, MAX_REQUEST_SIZE));
+            byte[] message = streamAssembler.accept((StreamChunk) next);
+            if(message != null) {
+                return wireFormat.getSerializer().deserialize(message);
+            }
         }
+    }
 
-        byte[] data = new byte[length];
-        inputStream.readFully(data);
+    private Object readFrame() throws GeneralSecurityException, IOException, ClassNotFoundException {
+        int length = inputStream.readInt();
 
-        byte[] nonce = new byte[CipherManager.GCM_NONCE_LENGTH];
-        inputStream.readFully(nonce);
+        int bodyLength = codec.getBodyLength(length);
+        if(bodyLength > MAX_RETAINED_BUFFER_SIZE) {
+            byte[] body = new byte[bodyLength];
+            inputStream.readFully(body);
+            return codec.decodeBody(ByteBuffer.wrap(body), length, wireFormat);
+        }
 
-        GZIPInputStream decompressionStream = new GZIPInputStream(new ByteArrayInputStream(data));
-        CipherInputStream decryptionStream = new CipherInputStream(decompressionStream, cipherManager.createDecrypt(nonce));
+        if(bodyLength > readArray.length) {
+            readArray = new byte[Math.min(Math.max(bodyLength, readArray.length * 2), MAX_RETAINED_BUFFER_SIZE)];
+            readBuffer = ByteBuffer.wrap(readArray);
+        }
+        inputStream.readFully(readArray, 0, bodyLength);
 
-        return new ObjectInputStream(decryptionStream).readObject();
+        readBuffer.clear();
+        readBuffer.limit(bodyLength);
+        return codec.decodeBody(readBuffer, length, wireFormat);
     }
 
     @Override
     public void writeObject(Object obj) throws GeneralSecurityException, IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        GZIPOutputStream compressionStream = new GZIPOutputStream(byteArrayOutputStream);
-        Cipher cipher = cipherManager.createEncrypt();
-        CipherOutputStream encryptionStream = new CipherOutputStream(compressionStream, cipher);
-
-        new ObjectOutputStream(encryptionStream).writeObject(obj);
-        encryptionStream.close();
-        compressionStream.close();
-
-        byte[] data = byteArrayOutputStream.toByteArray();
+        synchronized(writeLock) {
+            writeFrame(codec.encodeFrame(obj, wireFormat));
+        }
+    }
 
-        if(data.length > MAX_REQUEST_SIZE) {
-            throw new IllegalStateException(String.format("Size of serialized and encrypted object (%d bytes) was greater than the maximum request size of %d bytes", data.length, MAX_REQUEST_SIZE));
+    @Override
+    public void writeSerialized(byte[] data, int offset, int length, WireFormat format) throws GeneralSecurityException, IOException {
+        synchronized(writeLock) {
+            writeFrame(codec.encodeFrame(data, offset, length, format));
         }
+    }
 
-        outputStream.writeInt(data.length);
-        outputStream.write(data);
-        outputStream.write(cipher.getIV());
+    private void writeFrame(ByteBuffer frame) throws IOException {
+        try {
+            outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }   finally     {
+            codec.releaseFrame(frame);
+        }
     }
 }
@@ -1,5 +1,7 @@
 package com.lauriethefish.betterportals.shared.net.encryption;
 
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 
@@ -8,6 +10,7 @@ import java.security.GeneralSecurityException;
  * Specifically, directly using a {@link javax.crypto.CipherOutputStream} isn't really possible since it has no way to flush pending bytes.
  *
  * Also uses compression since portal data transfer is pretty inefficient otherwise.
+ * Messages that were split into {@link com.lauriethefish.betterportals.shared.net.stream.StreamChunk}s are put back together before being returned from {@link IEncryptedObjectStream#readObject()}.
  */
 public interface IEncryptedObjectStream {
     /**
@@ -32,4 +35,27 @@ public interface IEncryptedObjectStream {
      * @throws IOException Any IO related exception in the underlying stream.
      */
     void writeObject(Object obj) throws GeneralSecurityException, IOException;
+
+    /**
+     * Writes a message that was already serialized, e.g. a frame from a {@link com.lauriethefish.betterportals.shared.net.stream.PrioritizedMessageQueue}.
+     * @param data Array containing the serialized message
+     * @param offset Index of the start of the message in <code>data</code>
+     * @param length Length of the message
+     * @param format Format that the message was serialized with
+     * @throws GeneralSecurityException Any encryption errors
+     * @throws IOException Any IO related exception in the underlying stream.
+     */
+    void writeSerialized(byte[] data, int offset, int length, WireFormat format) throws GeneralSecurityException, IOException;
+
+    /**
+     * Sets the format used for objects read and written after this call.
+     * {@link WireFormat#LEGACY} is used until this is called, which is what the handshake uses.
+     * @param wireFormat The new format
+     */
+    void setWireFormat(WireFormat wireFormat);
+
+    /**
+     * @return The format currently used for objects read and written
+     */
+    WireFormat getWireFormat();
 }
@@ -0,0 +1,126 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reads the fields written by {@link BinaryWriter}.
+ * Every read is bounds checked, so a truncated or corrupt message throws a {@link ProtocolException} instead of reading garbage.
+ */
+public class BinaryReader {
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+
+    public BinaryReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public BinaryReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    private void require(int count) throws ProtocolException {
+        if(count < 0 || limit - position < count) {
+            throw new ProtocolException("Unexpected end of message");
+        }
+    }
+
+    public int readByte() throws ProtocolException {
+        require(1);
+        return buffer[position++];
+    }
+
+    public boolean readBoolean() throws ProtocolException {
+        return readByte() != 0;
+    }
+
+    public int readVarInt() throws ProtocolException {
+        int result = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            int next = readByte();
+            result |= (next & 0x7F) << shift;
+            if((next & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new ProtocolException("Varint was too long");
+    }
+
+    public long readVarLong() throws ProtocolException {
+        long result = 0;
+        for(int shift = 0; shift < 70; shift += 7) {
+            int next = readByte();
+            result |= (long) (next & 0x7F) << shift;
+            if((next & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new ProtocolException("Varlong was too long");
+    }
+
+    public int readSignedVarInt() throws ProtocolException {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public int readInt() throws ProtocolException {
+        require(4);
+        int value = (buffer[position] & 0xFF) << 24
+                | (buffer[position + 1] & 0xFF) << 16
+                | (buffer[position + 2] & 0xFF) << 8
+                | (buffer[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    public long readLong() throws ProtocolException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() throws ProtocolException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws ProtocolException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public @Nullable String readString() throws ProtocolException {
+        int length = readVarInt() - 1;
+        if(length == -1) {return null;}
+
+        require(length);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public byte @Nullable [] readByteArray() throws ProtocolException {
+        int length = readVarInt() - 1;
+        if(length == -1) {return null;}
+
+        require(length);
+        byte[] value = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return value;
+    }
+
+    public @Nullable UUID readUuid() throws ProtocolException {
+        if(!readBoolean()) {return null;}
+
+        return new UUID(readLong(), readLong());
+    }
+
+    /**
+     * @return The number of bytes left to read
+     */
+    public int remaining() {
+        return limit - position;
+    }
+}
@@ -0,0 +1,158 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Writes the fields of a message to a growable byte array.
+ * Integers are written as varints, so small values (which most IDs and counts are) take a single byte.
+ * Nullable strings, byte arrays and UUIDs are prefixed so that null can be distinguished from empty.
+ */
+public class BinaryWriter {
+    private byte[] buffer;
+    private int position = 0;
+
+    public BinaryWriter() {
+        this(64);
+    }
+
+    public BinaryWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = position + extra;
+        if(required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, required));
+        }
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Writes <code>value</code> as an unsigned varint, 7 bits per byte.
+     * Negative values always take 5 bytes, so use {@link BinaryWriter#writeSignedVarInt(int)} for values that may be negative.
+     * @param value The value to write
+     */
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        while((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes <code>value</code> with zig-zag encoding, so that values close to zero are short whether positive or negative.
+     * @param value The value to write
+     */
+    public void writeSignedVarInt(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeFloat(float value) {
+        writeInt(Float.floatToIntBits(value));
+    }
+
+    public void writeDouble(double value) {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Writes <code>value</code> as UTF-8, prefixed with its length plus one. A prefix of zero means null.
+     * @param value The string to write
+     */
+    public void writeString(@Nullable String value) {
+        writeByteArray(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes <code>value</code> prefixed with its length plus one. A prefix of zero means null.
+     * @param value The array to write
+     */
+    public void writeByteArray(byte @Nullable [] value) {
+        if(value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        writeVarInt(value.length + 1);
+        writeBytes(value, 0, value.length);
+    }
+
+    public void writeBytes(byte @NotNull [] value, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(value, offset, buffer, position, length);
+        position += length;
+    }
+
+    public void writeUuid(@Nullable UUID value) {
+        writeBoolean(value != null);
+        if(value != null) {
+            writeLong(value.getMostSignificantBits());
+            writeLong(value.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * @return The number of bytes written so far
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * Discards everything written so far, keeping the same array so that the writer can be reused without allocating.
+     */
+    public void reset() {
+        position = 0;
+    }
+
+    /**
+     * @return The array being written to, which is only valid until the next write. The first {@link BinaryWriter#size()} bytes are used
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return A copy of the bytes written so far
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+}
@@ -0,0 +1,12 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads the fields of one message type, in the same order as its {@link IMessageWriter}.
+ * @param <T> The message type
+ */
+@FunctionalInterface
+public interface IMessageReader<T> {
+    @NotNull T read(@NotNull BinaryReader reader) throws ProtocolException;
+}
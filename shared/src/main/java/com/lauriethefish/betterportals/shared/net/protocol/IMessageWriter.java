@@ -0,0 +1,12 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes the fields of one message type, in the order given by its schema.
+ * @param <T> The message type
+ */
+@FunctionalInterface
+public interface IMessageWriter<T> {
+    void write(@NotNull T message, @NotNull BinaryWriter writer);
+}
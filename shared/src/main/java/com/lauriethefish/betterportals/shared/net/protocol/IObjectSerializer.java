@@ -0,0 +1,42 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Converts the objects sent between the proxy and servers to and from bytes, before encryption.
+ */
+public interface IObjectSerializer {
+    /**
+     * @param obj The object to serialize
+     * @return The serialized object
+     * @throws IOException If <code>obj</code> cannot be serialized
+     */
+    byte @NotNull [] serialize(@NotNull Object obj) throws IOException;
+
+    /**
+     * Serializes <code>obj</code> to the end of <code>writer</code>, which avoids copying the result if the serializer supports it.
+     * @param obj The object to serialize
+     * @param writer Writer to append the serialized object to
+     * @throws IOException If <code>obj</code> cannot be serialized
+     */
+    default void serialize(@NotNull Object obj, @NotNull BinaryWriter writer) throws IOException {
+        byte[] serialized = serialize(obj);
+        writer.writeBytes(serialized, 0, serialized.length);
+    }
+
+    /**
+     * @param data Array containing the serialized object
+     * @param offset Index of the start of the object in <code>data</code>
+     * @param length Length of the serialized object
+     * @return The deserialized object
+     * @throws IOException If the data is corrupt
+     * @throws ClassNotFoundException If the object is of a type that is not loaded on the JVM
+     */
+    @NotNull Object deserialize(byte @NotNull [] data, int offset, int length) throws IOException, ClassNotFoundException;
+
+    default @NotNull Object deserialize(byte @NotNull [] data) throws IOException, ClassNotFoundException {
+        return deserialize(data, 0, data.length);
+    }
+}
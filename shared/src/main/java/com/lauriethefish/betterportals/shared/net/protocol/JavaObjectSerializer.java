@@ -0,0 +1,43 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+
+/**
+ * Uses Java serialization, which was the only format before the binary protocol was added.
+ * This is still used for the handshake, so that servers and proxies on older versions can read it and reply that the versions don't match.
+ */
+public class JavaObjectSerializer implements IObjectSerializer {
+    public static final JavaObjectSerializer INSTANCE = new JavaObjectSerializer();
+
+    /**
+     * Every Java serialization stream starts with these two bytes.
+     * Binary messages never do, since they start with a message ID smaller than 128.
+     */
+    private static final int STREAM_MAGIC_FIRST = 0xAC;
+    private static final int STREAM_MAGIC_SECOND = 0xED;
+
+    private JavaObjectSerializer() { }
+
+    /**
+     * Finds if <code>data</code> was serialized with Java serialization, rather than the binary protocol.
+     * @param data The serialized data
+     * @return Whether the data starts with the Java serialization stream header
+     */
+    public static boolean isJavaSerialized(byte @NotNull [] data) {
+        return data.length >= 2 && (data[0] & 0xFF) == STREAM_MAGIC_FIRST && (data[1] & 0xFF) == STREAM_MAGIC_SECOND;
+    }
+
+    @Override
+    public byte @NotNull [] serialize(@NotNull Object obj) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new ObjectOutputStream(outputStream).writeObject(obj);
+        return outputStream.toByteArray();
+    }
+
+    @Override
+    public @NotNull Object deserialize(byte @NotNull [] data, int offset, int length) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(data, offset, length)).readObject();
+    }
+}
@@ -0,0 +1,398 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.shared.net.BatchResponse;
+import com.lauriethefish.betterportals.shared.net.DirectConnectionInfo;
+import com.lauriethefish.betterportals.shared.net.DisconnectNotice;
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.requests.BatchRequest;
+import com.lauriethefish.betterportals.shared.net.requests.DirectConnectionRequest;
+import com.lauriethefish.betterportals.shared.net.requests.DirectSessionRequest;
+import com.lauriethefish.betterportals.shared.net.requests.PreviousServerPutRequest;
+import com.lauriethefish.betterportals.shared.net.requests.RelayRequest;
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.requests.TeleportRequest;
+import com.lauriethefish.betterportals.shared.net.stream.StreamChunk;
+import lombok.AllArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary protocol used after the handshake, in place of Java serialization.
+ * Each message is its varint message ID, then its request ID if it is a {@link Request}, then its fields in the order given by its schema.
+ * Unlike Java serialization, no class descriptors are sent, so small requests are a few bytes rather than a few hundred.
+ *
+ * IDs below {@link MessageRegistry#FIRST_PLUGIN_MESSAGE_ID} are reserved for the types in this module, and the bukkit plugin registers its own types above it.
+ * IDs and field orders must never be changed without incrementing {@link MessageRegistry#PROTOCOL_VERSION}.
+ */
+@Singleton
+public class MessageRegistry implements IObjectSerializer {
+    /**
+     * Version of the binary protocol, sent in the handshake.
+     */
+    public static final int PROTOCOL_VERSION = 3;
+
+    /**
+     * From this version, frames are compressed with the codec negotiated in the handshake before being encrypted, rather than compressed with GZIP after.
+     * Version 1 uses the binary protocol with the legacy framing.
+     */
+    public static final int COMPRESS_BEFORE_ENCRYPT_VERSION = 2;
+
+    /**
+     * From this version, messages bigger than a frame may be split into {@link StreamChunk}s.
+     */
+    public static final int MULTIPLEXED_STREAMS_VERSION = 3;
+
+    /**
+     * Version sent by servers and proxies from before the binary protocol, which only support Java serialization.
+     */
+    public static final int LEGACY_PROTOCOL_VERSION = 0;
+
+    public static final int FIRST_PLUGIN_MESSAGE_ID = 32;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_BYTES = 1;
+    private static final int VALUE_STRING = 2;
+    private static final int VALUE_MESSAGE = 3;
+
+    @AllArgsConstructor
+    private static class MessageType<T> {
+        private final int id;
+        private final boolean isRequest;
+        private final IMessageWriter<T> writer;
+        private final IMessageReader<T> reader;
+    }
+
+    private final Map<Class<?>, MessageType<?>> typesByClass = new HashMap<>();
+    private final Map<Integer, MessageType<?>> typesById = new HashMap<>();
+
+    public MessageRegistry() {
+        register(1, DisconnectNotice.class, (message, writer) -> {}, reader -> new DisconnectNotice());
+        register(2, Response.class, this::writeResponse, this::readResponse);
+        register(3, RelayRequest.class, (request, writer) -> {
+            writer.writeString(request.getDestination());
+            writer.writeByteArray(request.getInnerRequest());
+        }, reader -> {
+            RelayRequest request = new RelayRequest();
+            request.setDestination(reader.readString());
+            request.setInnerRequest(reader.readByteArray());
+            return request;
+        });
+        register(4, TeleportRequest.class, this::writeTeleportRequest, this::readTeleportRequest);
+        register(5, PreviousServerPutRequest.class, (request, writer) -> {
+            writer.writeUuid(request.getPlayerId());
+            writer.writeString(request.getPreviousServer());
+        }, reader -> {
+            PreviousServerPutRequest request = new PreviousServerPutRequest();
+            request.setPlayerId(reader.readUuid());
+            request.setPreviousServer(reader.readString());
+            return request;
+        });
+        register(6, BatchRequest.class, (request, writer) -> {
+            writer.writeVarInt(request.getRequests().size());
+            for(Request inner : request.getRequests()) {
+                writeMessage(inner, writer);
+            }
+        }, reader -> {
+            BatchRequest request = new BatchRequest();
+            int count = readCount(reader);
+            for(int i = 0; i < count; i++) {
+                Object inner = readMessage(reader);
+                if(!(inner instanceof Request)) {
+                    throw new ProtocolException("Batch contained a message that wasn't a request");
+                }
+                request.getRequests().add((Request) inner);
+            }
+            return request;
+        });
+        register(7, BatchResponse.class, (batch, writer) -> {
+            writer.writeVarInt(batch.getResponses().size());
+            for(Response response : batch.getResponses()) {
+                writeResponse(response, writer);
+            }
+        }, reader -> {
+            int count = readCount(reader);
+            List<Response> responses = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                responses.add(readResponse(reader));
+            }
+            return new BatchResponse(responses);
+        });
+        register(8, DirectConnectionRequest.class, (request, writer) -> writer.writeString(request.getDestination()), reader -> {
+            DirectConnectionRequest request = new DirectConnectionRequest();
+            request.setDestination(reader.readString());
+            return request;
+        });
+        register(9, DirectSessionRequest.class, (request, writer) -> {
+            writer.writeUuid(request.getSessionId());
+            writer.writeUuid(request.getSessionKey());
+        }, reader -> {
+            DirectSessionRequest request = new DirectSessionRequest();
+            request.setSessionId(reader.readUuid());
+            request.setSessionKey(reader.readUuid());
+            return request;
+        });
+        register(10, DirectConnectionInfo.class, (info, writer) -> {
+            writer.writeString(info.getHost());
+            writer.writeVarInt(info.getPort());
+            writer.writeUuid(info.getSessionId());
+            writer.writeUuid(info.getSessionKey());
+        }, reader -> {
+            String host = reader.readString();
+            int port = reader.readVarInt();
+            UUID sessionId = reader.readUuid();
+            UUID sessionKey = reader.readUuid();
+            if(host == null || sessionId == null || sessionKey == null) {
+                throw new ProtocolException("Direct connection info was missing a field");
+            }
+            return new DirectConnectionInfo(host, port, sessionId, sessionKey);
+        });
+        register(11, StreamChunk.class, (chunk, writer) -> {
+            writer.writeVarInt(chunk.getStreamId());
+            writer.writeBoolean(chunk.isLast());
+            // Same format as writeByteArray, without copying the chunk out of the message first
+            writer.writeVarInt(chunk.getLength() + 1);
+            writer.writeBytes(chunk.getData(), chunk.getOffset(), chunk.getLength());
+        }, reader -> {
+            int streamId = reader.readVarInt();
+            boolean isLast = reader.readBoolean();
+            byte[] data = reader.readByteArray();
+            if(data == null) {
+                throw new ProtocolException("Stream chunk was missing its data");
+            }
+            return new StreamChunk(streamId, isLast, data, 0, data.length);
+        });
+    }
+
+    private static int readCount(BinaryReader reader) throws ProtocolException {
+        int count = reader.readVarInt();
+        // Each entry is at least one byte, so this avoids allocating for huge counts in corrupt messages
+        if(count < 0 || count > reader.remaining()) {
+            throw new ProtocolException("Invalid batch size " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Registers a message type.
+     * @param id ID sent before messages of this type. Must be unique
+     * @param type Class of the message
+     * @param writer Writes the fields of the message
+     * @param reader Reads the fields in the same order as <code>writer</code>
+     * @param <T> The message type
+     * @throws IllegalArgumentException If the ID or type is already registered
+     */
+    public <T> void register(int id, @NotNull Class<T> type, @NotNull IMessageWriter<T> writer, @NotNull IMessageReader<T> reader) {
+        if(typesById.containsKey(id) || typesByClass.containsKey(type)) {
+            throw new IllegalArgumentException(String.format("Message type %s or ID %d was registered twice", type.getName(), id));
+        }
+
+        MessageType<T> messageType = new MessageType<>(id, Request.class.isAssignableFrom(type), writer, reader);
+        typesById.put(id, messageType);
+        typesByClass.put(type, messageType);
+    }
+
+    /**
+     * Finds the highest protocol version supported by both sides of a connection.
+     * @param remoteVersion The version sent by the other side in the handshake
+     * @return The version to use, or {@link MessageRegistry#LEGACY_PROTOCOL_VERSION} if the other side only supports Java serialization
+     */
+    public int negotiateVersion(int remoteVersion) {
+        return Math.max(LEGACY_PROTOCOL_VERSION, Math.min(remoteVersion, PROTOCOL_VERSION));
+    }
+
+    /**
+     * @param protocolVersion A negotiated protocol version
+     * @return The serializer for messages after the handshake
+     */
+    public @NotNull IObjectSerializer getSerializer(int protocolVersion) {
+        return protocolVersion == LEGACY_PROTOCOL_VERSION ? JavaObjectSerializer.INSTANCE : this;
+    }
+
+    /**
+     * Finds the serializer that was used for relayed data, which depends on what the sending server negotiated with the proxy.
+     * @param data The serialized data
+     * @return The serializer to use to deserialize the data, and serialize any reply
+     */
+    public @NotNull IObjectSerializer detectSerializer(byte @NotNull [] data) {
+        return JavaObjectSerializer.isJavaSerialized(data) ? JavaObjectSerializer.INSTANCE : this;
+    }
+
+    @Override
+    public byte @NotNull [] serialize(@NotNull Object obj) {
+        BinaryWriter writer = new BinaryWriter();
+        writeMessage(obj, writer);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public void serialize(@NotNull Object obj, @NotNull BinaryWriter writer) {
+        writeMessage(obj, writer);
+    }
+
+    @Override
+    public @NotNull Object deserialize(byte @NotNull [] data, int offset, int length) throws ProtocolException {
+        BinaryReader reader = new BinaryReader(data, offset, length);
+        Object message = readMessage(reader);
+        if(reader.remaining() != 0) {
+            throw new ProtocolException(String.format("%d bytes were left over after reading message of type %s", reader.remaining(), message.getClass().getName()));
+        }
+        return message;
+    }
+
+    @Override
+    public @NotNull Object deserialize(byte @NotNull [] data) throws ProtocolException {
+        return deserialize(data, 0, data.length);
+    }
+
+    /**
+     * Writes the message ID, request ID if <code>message</code> is a request, then the fields of <code>message</code>.
+     * @param message The message to write
+     * @param writer Writer to write to
+     * @throws IllegalArgumentException If the type of <code>message</code> isn't registered
+     */
+    @SuppressWarnings("unchecked")
+    public void writeMessage(@NotNull Object message, @NotNull BinaryWriter writer) {
+        MessageType<Object> type = (MessageType<Object>) typesByClass.get(message.getClass());
+        if(type == null) {
+            throw new IllegalArgumentException("Message of type " + message.getClass().getName() + " is not registered with the binary protocol");
+        }
+
+        writer.writeVarInt(type.id);
+        if(message instanceof Request request) {
+            writer.writeVarInt(request.getId());
+        }
+        type.writer.write(message, writer);
+    }
+
+    /**
+     * Reads a message written by {@link MessageRegistry#writeMessage(Object, BinaryWriter)}.
+     * @param reader Reader to read from
+     * @return The message
+     * @throws ProtocolException If the message ID is unknown, or the message is corrupt
+     */
+    public @NotNull Object readMessage(@NotNull BinaryReader reader) throws ProtocolException {
+        int id = reader.readVarInt();
+        MessageType<?> type = typesById.get(id);
+        if(type == null) {
+            throw new ProtocolException("Unknown message ID " + id);
+        }
+
+        // The request ID comes before the fields, but can only be set once they have been read
+        int requestId = type.isRequest ? reader.readVarInt() : 0;
+        Object message = type.reader.read(reader);
+        if(type.isRequest) {
+            ((Request) message).setId(requestId);
+        }
+
+        return message;
+    }
+
+    /**
+     * Writes a value of any type that the protocol supports, used for response results.
+     * @param value The value, which must be null, a byte array, a string, or a registered message
+     * @param writer Writer to write to
+     */
+    public void writeValue(@Nullable Object value, @NotNull BinaryWriter writer) {
+        if(value == null) {
+            writer.writeByte(VALUE_NULL);
+        }   else if(value instanceof byte[] bytes) {
+            writer.writeByte(VALUE_BYTES);
+            writer.writeByteArray(bytes);
+        }   else if(value instanceof String string) {
+            writer.writeByte(VALUE_STRING);
+            writer.writeString(string);
+        }   else    {
+            writer.writeByte(VALUE_MESSAGE);
+            writeMessage(value, writer);
+        }
+    }
+
+    public @Nullable Object readValue(@NotNull BinaryReader reader) throws ProtocolException {
+        int valueType = reader.readByte();
+        return switch(valueType) {
+            case VALUE_NULL -> null;
+            case VALUE_BYTES -> reader.readByteArray();
+            case VALUE_STRING -> reader.readString();
+            case VALUE_MESSAGE -> readMessage(reader);
+            default -> throw new ProtocolException("Unknown value type " + valueType);
+        };
+    }
+
+    /**
+     * Errors are sent as their message, and a description of their cause.
+     * Unlike with Java serialization, the stack trace is not sent.
+     */
+    private void writeResponse(Response response, BinaryWriter writer) {
+        writer.writeVarInt(response.getId());
+
+        RequestException error = response.getError();
+        writer.writeBoolean(error != null);
+        if(error != null) {
+            writer.writeString(error.getMessage());
+            writer.writeString(error.getCause() == null ? null : error.getCause().toString());
+        }   else    {
+            writeValue(response.getResultUnchecked(), writer);
+        }
+    }
+
+    private Response readResponse(BinaryReader reader) throws ProtocolException {
+        Response response = new Response();
+        response.setId(reader.readVarInt());
+
+        if(reader.readBoolean()) {
+            RequestException error = new RequestException(reader.readString());
+            String cause = reader.readString();
+            if(cause != null) {
+                error.initCause(new RequestException(cause));
+            }
+            response.setError(error);
+        }   else    {
+            response.setResult(readValue(reader));
+        }
+        return response;
+    }
+
+    private void writeTeleportRequest(TeleportRequest request, BinaryWriter writer) {
+        writer.writeUuid(request.getPlayerId());
+        writer.writeString(request.getDestServer());
+        writer.writeUuid(request.getDestWorldId());
+        writer.writeString(request.getDestWorldName());
+        writer.writeDouble(request.getDestX());
+        writer.writeDouble(request.getDestY());
+        writer.writeDouble(request.getDestZ());
+        writer.writeFloat(request.getDestPitch());
+        writer.writeFloat(request.getDestYaw());
+        writer.writeByte((request.isFlying() ? 1 : 0) | (request.isGliding() ? 2 : 0));
+        writer.writeDouble(request.getDestVelX());
+        writer.writeDouble(request.getDestVelY());
+        writer.writeDouble(request.getDestVelZ());
+    }
+
+    private TeleportRequest readTeleportRequest(BinaryReader reader) throws ProtocolException {
+        TeleportRequest request = new TeleportRequest();
+        request.setPlayerId(reader.readUuid());
+        request.setDestServer(reader.readString());
+        request.setDestWorldId(reader.readUuid());
+        request.setDestWorldName(reader.readString());
+        request.setDestX(reader.readDouble());
+        request.setDestY(reader.readDouble());
+        request.setDestZ(reader.readDouble());
+        request.setDestPitch(reader.readFloat());
+        request.setDestYaw(reader.readFloat());
+        int flags = reader.readByte();
+        request.setFlying((flags & 1) != 0);
+        request.setGliding((flags & 2) != 0);
+        request.setDestVelX(reader.readDouble());
+        request.setDestVelY(reader.readDouble());
+        request.setDestVelZ(reader.readDouble());
+        return request;
+    }
+}
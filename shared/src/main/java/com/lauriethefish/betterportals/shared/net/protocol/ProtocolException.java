@@ -0,0 +1,14 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a binary message is truncated, or contains an unknown message ID or invalid field.
+ */
+public class ProtocolException extends IOException {
+    private static final long serialVersionUID = 1;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
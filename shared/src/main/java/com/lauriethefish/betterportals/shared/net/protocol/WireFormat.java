@@ -0,0 +1,61 @@
+package com.lauriethefish.betterportals.shared.net.protocol;
+
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.compression.ICompressionCodec;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * How objects are encoded on one connection, which is decided during the handshake.
+ */
+@Getter
+@AllArgsConstructor
+public class WireFormat {
+    /**
+     * Used for the handshake, and for the whole connection with versions from before the binary protocol.
+     * Objects are Java serialized, encrypted, then compressed with GZIP.
+     */
+    public static final WireFormat LEGACY = new WireFormat(JavaObjectSerializer.INSTANCE, null, 0, false);
+
+    private final @NotNull IObjectSerializer serializer;
+
+    /**
+     * Codec used to compress frames before they are encrypted, or null to use the legacy framing.
+     */
+    private final @Nullable ICompressionCodec compression;
+
+    /**
+     * Frames smaller than this many bytes are sent uncompressed, since compressing them saves little or nothing.
+     */
+    private final int compressionThreshold;
+
+    /**
+     * Whether large messages can be split into {@link com.lauriethefish.betterportals.shared.net.stream.StreamChunk}s, so that other messages can be sent between the chunks.
+     */
+    private final boolean chunkingSupported;
+
+    public boolean isLegacyFraming() {
+        return compression == null;
+    }
+
+    /**
+     * Creates the format for a connection after the handshake.
+     * @param messageRegistry Registry for the binary protocol
+     * @param protocolVersion The negotiated protocol version
+     * @param compressionType The negotiated compression codec
+     * @param compressionLevel Level for codecs that support it. This only affects what we send
+     * @param compressionThreshold Minimum size of frames that are compressed. This only affects what we send
+     * @return The format to use for the rest of the connection
+     */
+    public static @NotNull WireFormat create(@NotNull MessageRegistry messageRegistry, int protocolVersion, @NotNull CompressionType compressionType, int compressionLevel, int compressionThreshold) {
+        IObjectSerializer serializer = messageRegistry.getSerializer(protocolVersion);
+        if(protocolVersion < MessageRegistry.COMPRESS_BEFORE_ENCRYPT_VERSION) {
+            return new WireFormat(serializer, null, 0, false);
+        }
+
+        boolean chunkingSupported = protocolVersion >= MessageRegistry.MULTIPLEXED_STREAMS_VERSION;
+        return new WireFormat(serializer, compressionType.createCodec(compressionLevel), compressionThreshold, chunkingSupported);
+    }
+}
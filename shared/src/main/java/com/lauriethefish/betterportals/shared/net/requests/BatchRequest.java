@@ -0,0 +1,50 @@
+package com.lauriethefish.betterportals.shared.net.requests;
+
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
+import lombok.Getter;
+import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several requests sent to the same server in one tick, relayed as one message.
+ * The receiving server replies with a {@link com.lauriethefish.betterportals.shared.net.BatchResponse} once it has a response to every request.
+ * The requests are numbered by their index in the batch, and the responses are in the same order.
+ */
+@Getter
+@Setter
+public class BatchRequest extends Request {
+    private static final long serialVersionUID = 1L;
+
+    private List<Request> requests = new ArrayList<>();
+
+    /**
+     * @return The highest priority of the requests in the batch
+     */
+    @Override
+    public @NotNull MessagePriority getPriority() {
+        MessagePriority highest = MessagePriority.LOW;
+        for(Request request : requests) {
+            if(request.getPriority().ordinal() < highest.ordinal()) {
+                highest = request.getPriority();
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * @return The strictest threading requirement of the requests in the batch, since they are all handled together
+     */
+    @Override
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        ThreadingRequirement strictest = ThreadingRequirement.ANY_THREAD;
+        for(Request request : requests) {
+            if(request.getThreadingRequirement().ordinal() > strictest.ordinal()) {
+                strictest = request.getThreadingRequirement();
+            }
+        }
+        return strictest;
+    }
+}
@@ -0,0 +1,17 @@
+package com.lauriethefish.betterportals.shared.net.requests;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Sent to the proxy by a server that wants to send requests directly to another server, rather than relaying them through the proxy.
+ * The proxy creates a session key, tells the destination to expect a connection with it using a {@link DirectSessionRequest},
+ * then replies with a {@link com.lauriethefish.betterportals.shared.net.DirectConnectionInfo}.
+ */
+@Getter
+@Setter
+public class DirectConnectionRequest extends Request {
+    private static final long serialVersionUID = 1L;
+
+    private String destination;
+}
@@ -0,0 +1,25 @@
+package com.lauriethefish.betterportals.shared.net.requests;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * Sent by the proxy to tell a server to accept a direct connection from another server.
+ * The connecting server sends the session ID first, and the rest of the connection is encrypted with the session key.
+ */
+@Getter
+@Setter
+public class DirectSessionRequest extends Request {
+    private static final long serialVersionUID = 1L;
+
+    private UUID sessionId;
+    private UUID sessionKey;
+
+    @Override
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        return ThreadingRequirement.ANY_THREAD;
+    }
+}
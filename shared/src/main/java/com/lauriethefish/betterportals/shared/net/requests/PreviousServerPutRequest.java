@@ -1,7 +1,9 @@
 package com.lauriethefish.betterportals.shared.net.requests;
 
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
 import lombok.Getter;
 import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.UUID;
 
@@ -15,4 +17,16 @@ public class PreviousServerPutRequest extends Request   {
 
     private UUID playerId;
     private String previousServer;
+
+    // A player is waiting for this
+    @Override
+    public @NotNull MessagePriority getPriority() {
+        return MessagePriority.HIGH;
+    }
+
+    // Only sends another request, whose response is handled on the main thread
+    @Override
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        return ThreadingRequirement.ANY_THREAD;
+    }
 }
@@ -1,45 +1,41 @@
 package com.lauriethefish.betterportals.shared.net.requests;
 
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
 import lombok.Getter;
 import lombok.Setter;
-
-import java.io.*;
+import org.jetbrains.annotations.NotNull;
 
 /**
  * Used for when a client server wants to send a request to another client server.
  * The proxy will send the inner request to the client server.
  */
+@Getter
+@Setter
 public class RelayRequest extends Request   {
     private static final long serialVersionUID = 1L;
 
-    @Getter @Setter private String destination;
+    private String destination;
     /**
      * The inner request is stored as a byte array, since it contains types that the proxy might not be able to deserialize.
+     * It is serialized by the sending server, and may use either Java serialization or the binary protocol.
      */
     private byte[] innerRequest;
 
     /**
-     * Sets and serializes the request that will be relayed.
-     * @param request The request to be relayed
+     * Priority of the inner request, which is only known to the sending server.
      */
-    public void setInnerRequest(Request request) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            new ObjectOutputStream(outputStream).writeObject(request);
-        }   catch(IOException ex) {
-            // This should never happen
-        }
+    private transient MessagePriority priority;
 
-        this.innerRequest = outputStream.toByteArray();
+    @Override
+    public @NotNull MessagePriority getPriority() {
+        return priority == null ? MessagePriority.NORMAL : priority;
     }
 
     /**
-     * Deserializes the relayed request.
-     * @return The relayed request
-     * @throws ClassNotFoundException If a class in the relayed request doesn't exist on this server.
-     * @throws IOException If the inner request was corrupt somehow and was too short.
+     * Relayed requests are deserialized off the main thread, then the inner request is handled according to its own requirement.
      */
-    public Request getInnerRequest() throws ClassNotFoundException, IOException {
-        return (Request) new ObjectInputStream(new ByteArrayInputStream(innerRequest)).readObject();
+    @Override
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        return ThreadingRequirement.ANY_THREAD;
     }
 }
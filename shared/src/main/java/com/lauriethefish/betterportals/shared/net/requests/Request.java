@@ -1,7 +1,9 @@
 package com.lauriethefish.betterportals.shared.net.requests;
 
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
 import lombok.Getter;
 import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.Serializable;
 
@@ -12,4 +14,18 @@ public abstract class Request implements Serializable {
      * Request IDs are used to preserve order when sending and receiving many requests
      */
     @Getter @Setter private int id;
+
+    /**
+     * @return The priority that this request and its response are sent at
+     */
+    public @NotNull MessagePriority getPriority() {
+        return MessagePriority.NORMAL;
+    }
+
+    /**
+     * @return Which thread the receiving server can handle this request on
+     */
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        return ThreadingRequirement.MAIN_THREAD;
+    }
 }
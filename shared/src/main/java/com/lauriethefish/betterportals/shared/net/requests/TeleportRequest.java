@@ -1,7 +1,9 @@
 package com.lauriethefish.betterportals.shared.net.requests;
 
+import com.lauriethefish.betterportals.shared.net.stream.MessagePriority;
 import lombok.Getter;
 import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.UUID;
 
@@ -28,4 +30,16 @@ public class TeleportRequest extends Request    {
     private double destVelX;
     private double destVelY;
     private double destVelZ;
+
+    // A player is waiting for this
+    @Override
+    public @NotNull MessagePriority getPriority() {
+        return MessagePriority.HIGH;
+    }
+
+    // Only stored until the player joins
+    @Override
+    public @NotNull ThreadingRequirement getThreadingRequirement() {
+        return ThreadingRequirement.ANY_THREAD;
+    }
 }
@@ -0,0 +1,23 @@
+package com.lauriethefish.betterportals.shared.net.requests;
+
+/**
+ * Which thread a received request can be handled on.
+ * Requirements are ordered from least to most strict.
+ */
+public enum ThreadingRequirement {
+    /**
+     * Doesn't touch any state owned by the main thread, so is handled straight away on a worker thread.
+     */
+    ANY_THREAD,
+
+    /**
+     * Reads blocks in a region of a world, which is only consistent on the main thread.
+     * These are handled every tick without waiting behind other requests, since they only need to look at block data that is already kept up to date.
+     */
+    REGION_SNAPSHOT,
+
+    /**
+     * Uses the Bukkit API or other state owned by the main thread. These are handled on the main thread, within a time budget for each tick.
+     */
+    MAIN_THREAD
+}
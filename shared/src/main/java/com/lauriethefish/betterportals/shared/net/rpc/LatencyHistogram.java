@@ -0,0 +1,81 @@
+package com.lauriethefish.betterportals.shared.net.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets that grow exponentially, with 8 buckets for each power of two.
+ * Percentiles are accurate to within about 12%, which is plenty for finding slow servers, and recording is lock free and allocation free.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2; // Values below this get a bucket each
+
+    // Enough for latencies of over a day in microseconds
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (40 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    private static int getBucket(long micros) {
+        if(micros < LINEAR_LIMIT) {return (int) Math.max(micros, 0);}
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        int bucket = LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return The smallest value in <code>bucket</code>
+     */
+    private static long getBucketStart(int bucket) {
+        if(bucket < LINEAR_LIMIT) {return bucket;}
+
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+        int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param nanos The latency to add
+     */
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        counts.incrementAndGet(getBucket(micros));
+        totalCount.incrementAndGet();
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return Estimate of the latency at <code>percentile</code> in milliseconds, or zero if nothing has been recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = totalCount.get();
+        if(total == 0) {return 0.0;}
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += counts.get(bucket);
+            if(seen >= target) {
+                // Middle of the bucket, but never more than the largest value recorded
+                long middle = (getBucketStart(bucket) + getBucketStart(bucket + 1)) / 2;
+                return Math.min(middle, maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+}
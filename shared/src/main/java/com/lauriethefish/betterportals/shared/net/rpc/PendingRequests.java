@@ -0,0 +1,141 @@
+package com.lauriethefish.betterportals.shared.net.rpc;
+
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Requests sent on one connection that are waiting for a response.
+ * Each request is given an error if no response arrives before its deadline, so a lost response can't leave the sender waiting forever.
+ * Responses that arrive after this are ignored.
+ */
+public class PendingRequests {
+    /**
+     * Time to wait for a response. This is well above the time that the destination holds requests for block changes.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+
+    private final TimerWheel timerWheel;
+    private final int maxInFlight;
+    private final String destinationName;
+
+    private final AtomicInteger currentRequestId = new AtomicInteger();
+    private final ConcurrentMap<Integer, PendingRequest> requests = new ConcurrentHashMap<>();
+
+    private static class PendingRequest {
+        private final Consumer<Response> onFinish;
+        private volatile TimerWheel.Timeout timeout; // Null until scheduled, which may be after the response arrives
+
+        private PendingRequest(Consumer<Response> onFinish) {
+            this.onFinish = onFinish;
+        }
+
+        private void cancelTimeout() {
+            TimerWheel.Timeout timeout = this.timeout;
+            if(timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * @param timerWheel Wheel to schedule the timeouts on
+     * @param maxInFlight Maximum number of requests that can be waiting at once. Requests after this fail immediately
+     * @param destinationName Name of where the requests are sent, used in error messages
+     */
+    public PendingRequests(@NotNull TimerWheel timerWheel, int maxInFlight, @NotNull String destinationName) {
+        this.timerWheel = timerWheel;
+        this.maxInFlight = maxInFlight;
+        this.destinationName = destinationName;
+    }
+
+    /**
+     * Gives <code>request</code> a new ID, and waits for the response to it.
+     * @param request The request that is about to be sent
+     * @param onFinish Called with the response, or with an error if it times out or fails. This may be called on any thread
+     * @param timeoutMillis Time to wait for the response
+     * @return false if too many requests are already waiting, in which case <code>onFinish</code> has been given an error and the request should not be sent
+     */
+    public boolean add(@NotNull Request request, @NotNull Consumer<Response> onFinish, long timeoutMillis) {
+        if(requests.size() >= maxInFlight) {
+            fail(onFinish, new RequestException(String.format("Too many requests are waiting for a response from %s", destinationName)));
+            return false;
+        }
+
+        int requestId = currentRequestId.getAndIncrement();
+        request.setId(requestId);
+
+        PendingRequest pending = new PendingRequest(onFinish);
+        requests.put(requestId, pending);
+
+        String requestType = request.getClass().getSimpleName();
+        pending.timeout = timerWheel.schedule(() -> {
+            if(requests.remove(requestId, pending)) {
+                fail(onFinish, new RequestTimeoutException(String.format("%s to %s timed out after %dms", requestType, destinationName, timeoutMillis)));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public boolean add(@NotNull Request request, @NotNull Consumer<Response> onFinish) {
+        return add(request, onFinish, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Gives <code>response</code> to the request with its ID.
+     * @param response The received response
+     * @return false if no request with the ID is waiting, e.g. if it has already timed out
+     */
+    public boolean complete(@NotNull Response response) {
+        PendingRequest pending = requests.remove(response.getId());
+        if(pending == null) {return false;}
+
+        pending.cancelTimeout();
+        pending.onFinish.accept(response);
+        return true;
+    }
+
+    /**
+     * Stops waiting for a request without calling its callback, e.g. if it couldn't be sent.
+     * @param requestId ID of the request
+     * @return false if the request had already finished
+     */
+    public boolean remove(int requestId) {
+        PendingRequest pending = requests.remove(requestId);
+        if(pending == null) {return false;}
+
+        pending.cancelTimeout();
+        return true;
+    }
+
+    /**
+     * Gives every waiting request an error, e.g. when the connection is closed.
+     * @param error The error to give
+     */
+    public void failAll(@NotNull RequestException error) {
+        for(Integer requestId : requests.keySet()) {
+            PendingRequest pending = requests.remove(requestId);
+            if(pending == null) {continue;}
+
+            pending.cancelTimeout();
+            fail(pending.onFinish, error);
+        }
+    }
+
+    private void fail(Consumer<Response> onFinish, RequestException error) {
+        Response response = new Response();
+        response.setError(error);
+        onFinish.accept(response);
+    }
+
+    public int size() {
+        return requests.size();
+    }
+}
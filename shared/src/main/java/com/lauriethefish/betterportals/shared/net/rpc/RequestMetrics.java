@@ -0,0 +1,81 @@
+package com.lauriethefish.betterportals.shared.net.rpc;
+
+import com.google.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Round trip times of requests, for each request type and destination server.
+ */
+@Singleton
+public class RequestMetrics {
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    @AllArgsConstructor
+    private static class Key {
+        private final String requestType;
+        private final String destination;
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {return false;}
+            Key other = (Key) obj;
+            return requestType.equals(other.requestType) && destination.equals(other.destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return requestType.hashCode() * 31 + destination.hashCode();
+        }
+    }
+
+    @Getter
+    public static class Entry {
+        private final String requestType;
+        private final String destination;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+
+        private Entry(String requestType, String destination) {
+            this.requestType = requestType;
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * Records a request that has finished.
+     * @param requestType Type of the request
+     * @param destination Server that the request was sent to
+     * @param nanos Time between sending the request and receiving the response
+     * @param isFailure Whether the response was an error
+     * @param isTimeout Whether the error was because the request timed out
+     */
+    public void record(@NotNull Class<?> requestType, @NotNull String destination, long nanos, boolean isFailure, boolean isTimeout) {
+        Entry entry = entries.computeIfAbsent(new Key(requestType.getSimpleName(), destination), key -> new Entry(key.requestType, key.destination));
+        entry.histogram.record(nanos);
+        if(isFailure) {
+            entry.failures.incrementAndGet();
+        }
+        if(isTimeout) {
+            entry.timeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Every request type and destination that has been recorded, sorted by destination then type
+     */
+    public @NotNull List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>(entries.values());
+        result.sort(Comparator.comparing(Entry::getDestination).thenComparing(Entry::getRequestType));
+        return result;
+    }
+}
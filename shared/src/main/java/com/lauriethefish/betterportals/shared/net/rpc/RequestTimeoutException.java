@@ -0,0 +1,14 @@
+package com.lauriethefish.betterportals.shared.net.rpc;
+
+import com.lauriethefish.betterportals.shared.net.RequestException;
+
+/**
+ * Given to requests that didn't receive a response before their deadline.
+ */
+public class RequestTimeoutException extends RequestException {
+    private static final long serialVersionUID = 1;
+
+    public RequestTimeoutException(String message) {
+        super(message);
+    }
+}
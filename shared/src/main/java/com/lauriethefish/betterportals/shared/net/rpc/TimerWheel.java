@@ -0,0 +1,178 @@
+package com.lauriethefish.betterportals.shared.net.rpc;
+
+import com.google.inject.Singleton;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks after a delay, with a precision of one tick.
+ * Timeouts are put in the slot of the wheel for the tick that they expire on, so scheduling and cancelling are constant time however many requests are waiting.
+ * This matters since almost every timeout is cancelled before it expires, as the response arrives first.
+ *
+ * One thread is shared by all connections. It only runs while there are timeouts scheduled, so it doesn't outlive the plugin.
+ * Tasks are run on this thread, so they should only hand off work rather than doing it.
+ */
+@Singleton
+public class TimerWheel {
+    private static final long DEFAULT_TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512; // Must be a power of two
+
+    private final long tickNanos;
+    private final long startTime = System.nanoTime();
+
+    // Only used by the wheel thread
+    @SuppressWarnings("unchecked")
+    private final List<Timeout>[] slots = (List<Timeout>[]) new List<?>[WHEEL_SIZE];
+    private long lastProcessedTick = 0;
+
+    private final Queue<Timeout> addedTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger activeTimeouts = new AtomicInteger();
+    private final AtomicBoolean isThreadRunning = new AtomicBoolean();
+
+    /**
+     * A scheduled task, which can be cancelled until it runs.
+     */
+    public static class Timeout {
+        private final long deadlineTick;
+        private final Runnable task;
+        private final AtomicBoolean isDone = new AtomicBoolean();
+        private final TimerWheel wheel;
+
+        private Timeout(long deadlineTick, Runnable task, TimerWheel wheel) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+            this.wheel = wheel;
+        }
+
+        /**
+         * Stops the task from running.
+         * @return false if the task has already run or been cancelled
+         */
+        public boolean cancel() {
+            if(!isDone.compareAndSet(false, true)) {return false;}
+
+            // The timeout is left in its slot, and discarded when the slot is next processed
+            wheel.activeTimeouts.decrementAndGet();
+            return true;
+        }
+    }
+
+    public TimerWheel() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    public TimerWheel(long tickMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        for(int i = 0; i < slots.length; i++) {
+            slots[i] = new ArrayList<>();
+        }
+    }
+
+    private long getCurrentTick() {
+        return (System.nanoTime() - startTime) / tickNanos;
+    }
+
+    /**
+     * Schedules <code>task</code> to run on the wheel's thread after <code>delay</code>.
+     * @param task The task to run
+     * @param delay Minimum time before running the task
+     * @param unit Unit of <code>delay</code>
+     * @return Handle that can be used to cancel the task
+     */
+    public @NotNull Timeout schedule(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+        // Rounded up, so that tasks never run early
+        long deadlineTick = (System.nanoTime() - startTime + unit.toNanos(delay) + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(deadlineTick, task, this);
+
+        activeTimeouts.incrementAndGet();
+        addedTimeouts.add(timeout);
+        if(isThreadRunning.compareAndSet(false, true)) {
+            startThread();
+        }
+        return timeout;
+    }
+
+    /**
+     * @return The number of timeouts that haven't run or been cancelled
+     */
+    public int getActiveCount() {
+        return activeTimeouts.get();
+    }
+
+    private void startThread() {
+        Thread thread = new Thread(this::run, "BetterPortals request timeouts");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while(true) {
+            if(activeTimeouts.get() == 0) {
+                isThreadRunning.set(false);
+                // A timeout may have been scheduled after checking, but before the flag was cleared, in which case it won't have started another thread
+                if(activeTimeouts.get() == 0 || !isThreadRunning.compareAndSet(false, true)) {return;}
+            }
+
+            processTicks();
+
+            long nextTickTime = startTime + (lastProcessedTick + 1) * tickNanos;
+            long sleepTime = nextTickTime - System.nanoTime();
+            if(sleepTime > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                }   catch(InterruptedException ex) {
+                    isThreadRunning.set(false);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void processTicks() {
+        long currentTick = getCurrentTick();
+
+        Timeout added;
+        while((added = addedTimeouts.poll()) != null) {
+            if(added.deadlineTick <= lastProcessedTick) {
+                expire(added);
+            }   else    {
+                slots[(int) (added.deadlineTick & (WHEEL_SIZE - 1))].add(added);
+            }
+        }
+
+        // After a long pause, each slot only needs processing once
+        long firstTick = Math.max(lastProcessedTick + 1, currentTick - WHEEL_SIZE + 1);
+        for(long tick = firstTick; tick <= currentTick; tick++) {
+            Iterator<Timeout> iterator = slots[(int) (tick & (WHEEL_SIZE - 1))].iterator();
+            while(iterator.hasNext()) {
+                Timeout timeout = iterator.next();
+                if(timeout.isDone.get()) {
+                    iterator.remove();
+                }   else if(timeout.deadlineTick <= currentTick) {
+                    iterator.remove();
+                    expire(timeout);
+                }
+            }
+        }
+        lastProcessedTick = Math.max(lastProcessedTick, currentTick);
+    }
+
+    private void expire(Timeout timeout) {
+        if(!timeout.isDone.compareAndSet(false, true)) {return;}
+        activeTimeouts.decrementAndGet();
+
+        try {
+            timeout.task.run();
+        }   catch(RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.lauriethefish.betterportals.shared.net.stream;
+
+/**
+ * Order that queued messages are sent in. Messages of a higher priority are always sent first, and chunks of a large message can be interrupted by them.
+ */
+public enum MessagePriority {
+    /**
+     * Messages that a player is waiting on, e.g. teleports.
+     */
+    HIGH,
+
+    /**
+     * Most requests and responses, e.g. block changes since the last update.
+     */
+    NORMAL,
+
+    /**
+     * Large messages which can wait, e.g. the initial block data for a portal. Normal priority messages too big for one frame are sent at this priority.
+     */
+    LOW
+}
@@ -0,0 +1,232 @@
+package com.lauriethefish.betterportals.shared.net.stream;
+
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Queue of serialized messages waiting to be sent on one connection, which decides the order that frames are sent in.
+ * The highest priority message is always sent next. If the connection's format supports it, messages bigger than the chunk size are split into {@link StreamChunk}s,
+ * and messages of the same priority take turns sending a chunk, so a small message never waits for more than one chunk of a large one.
+ *
+ * All methods are thread safe.
+ */
+public class PrioritizedMessageQueue {
+    /**
+     * Largest amount of a message sent in one frame. Small enough that a high priority message waits at most a few milliseconds on a slow link.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 32_768;
+
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private final int chunkSize;
+
+    private final Object lock = new Object();
+    private final Deque<QueuedMessage>[] queues;
+    private final long[] queuedBytes = new long[PRIORITIES.length];
+    private final long[] sentMessages = new long[PRIORITIES.length];
+    private final long[] sentFrames = new long[PRIORITIES.length];
+    private final long[] sentBytes = new long[PRIORITIES.length];
+    private final long[] totalLatencyNanos = new long[PRIORITIES.length];
+    private final long[] maxLatencyNanos = new long[PRIORITIES.length];
+    private int nextStreamId = 1;
+    private boolean isClosed = false;
+
+    /**
+     * A frame taken from the queue, containing a whole serialized message or one chunk.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Frame {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        /**
+         * Format that the message was serialized with, which should also be used to encode the frame.
+         */
+        private final WireFormat format;
+    }
+
+    private static class QueuedMessage {
+        private final byte[] data;
+        private final WireFormat format;
+        private final long queueTime = System.nanoTime();
+        private final int streamId; // Zero if sent in one frame
+        private int position = 0;
+
+        private QueuedMessage(byte[] data, WireFormat format, int streamId) {
+            this.data = data;
+            this.format = format;
+            this.streamId = streamId;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public PrioritizedMessageQueue(int chunkSize) {
+        if(chunkSize <= 0) {throw new IllegalArgumentException("Chunk size must be positive");}
+
+        this.chunkSize = chunkSize;
+        this.queues = (Deque<QueuedMessage>[]) new Deque<?>[PRIORITIES.length];
+        for(int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    public PrioritizedMessageQueue() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Queues a serialized message.
+     * @param data The serialized message, which must not be modified after this
+     * @param format Format that the message was serialized with
+     * @param priority Priority of the message. Normal priority messages that need to be chunked are sent at low priority
+     * @return false if the queue has been closed, in which case the message is dropped
+     */
+    public boolean add(byte @NotNull [] data, @NotNull WireFormat format, @NotNull MessagePriority priority) {
+        boolean isChunked = format.isChunkingSupported() && data.length > chunkSize;
+        if(isChunked && priority == MessagePriority.NORMAL) {
+            priority = MessagePriority.LOW;
+        }
+
+        synchronized(lock) {
+            if(isClosed) {return false;}
+
+            int streamId = 0;
+            if(isChunked) {
+                streamId = nextStreamId;
+                // Stream IDs are reused after overflowing, by which point the old stream will have long finished
+                nextStreamId = nextStreamId == Integer.MAX_VALUE ? 1 : nextStreamId + 1;
+            }
+
+            queues[priority.ordinal()].add(new QueuedMessage(data, format, streamId));
+            queuedBytes[priority.ordinal()] += data.length;
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * @return The next frame to send, or null if nothing is queued
+     * @throws IOException If serializing a chunk fails
+     */
+    public @Nullable Frame poll() throws IOException {
+        synchronized(lock) {
+            return pollInternal();
+        }
+    }
+
+    /**
+     * Waits until a frame is available, then takes it.
+     * @return The next frame to send, or null if the queue was closed
+     * @throws InterruptedException If interrupted while waiting
+     * @throws IOException If serializing a chunk fails
+     */
+    public @Nullable Frame take() throws InterruptedException, IOException {
+        synchronized(lock) {
+            while(true) {
+                if(isClosed) {return null;}
+
+                Frame next = pollInternal();
+                if(next != null) {return next;}
+                lock.wait();
+            }
+        }
+    }
+
+    private Frame pollInternal() throws IOException {
+        for(int priority = 0; priority < queues.length; priority++) {
+            QueuedMessage message = queues[priority].poll();
+            if(message == null) {continue;}
+
+            if(message.streamId == 0) {
+                onSent(priority, message, message.data.length);
+                return new Frame(message.data, 0, message.data.length, message.format);
+            }
+
+            int length = Math.min(chunkSize, message.data.length - message.position);
+            boolean isLast = message.position + length == message.data.length;
+            StreamChunk chunk = new StreamChunk(message.streamId, isLast, message.data, message.position, length);
+            byte[] serializedChunk = message.format.getSerializer().serialize(chunk);
+            message.position += length;
+
+            if(isLast) {
+                onSent(priority, message, length);
+            }   else    {
+                // Let the other messages of this priority send something before the next chunk
+                queues[priority].add(message);
+                sentFrames[priority]++;
+                sentBytes[priority] += length;
+                queuedBytes[priority] -= length;
+            }
+            return new Frame(serializedChunk, 0, serializedChunk.length, message.format);
+        }
+
+        return null;
+    }
+
+    private void onSent(int priority, QueuedMessage message, int length) {
+        long latency = System.nanoTime() - message.queueTime;
+        sentMessages[priority]++;
+        sentFrames[priority]++;
+        sentBytes[priority] += length;
+        queuedBytes[priority] -= length;
+        totalLatencyNanos[priority] += latency;
+        maxLatencyNanos[priority] = Math.max(maxLatencyNanos[priority], latency);
+    }
+
+    /**
+     * @return The total size of all queued messages that haven't been sent yet
+     */
+    public long getQueuedBytes() {
+        synchronized(lock) {
+            long total = 0;
+            for(long bytes : queuedBytes) {
+                total += bytes;
+            }
+            return total;
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized(lock) {
+            for(Deque<QueuedMessage> queue : queues) {
+                if(!queue.isEmpty()) {return false;}
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param priority The priority to get the statistics of
+     * @return The current queue depth and the counters since the queue was created for <code>priority</code>
+     */
+    public @NotNull StreamStatistics getStatistics(@NotNull MessagePriority priority) {
+        int i = priority.ordinal();
+        synchronized(lock) {
+            return new StreamStatistics(queues[i].size(), queuedBytes[i], sentMessages[i], sentFrames[i], sentBytes[i], totalLatencyNanos[i], maxLatencyNanos[i]);
+        }
+    }
+
+    /**
+     * Removes everything in the queue, and stops any more messages being added.
+     * Threads waiting in {@link PrioritizedMessageQueue#take()} return null.
+     */
+    public void close() {
+        synchronized(lock) {
+            isClosed = true;
+            for(int i = 0; i < queues.length; i++) {
+                queues[i].clear();
+                queuedBytes[i] = 0;
+            }
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.lauriethefish.betterportals.shared.net.stream;
+
+import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Sends objects on a blocking {@link IEncryptedObjectStream} from a thread of its own, in the order decided by a {@link PrioritizedMessageQueue}.
+ * Objects are serialized on the thread that sends them, so sending never blocks on the socket.
+ */
+public class PrioritizedObjectWriter {
+    private final IEncryptedObjectStream objectStream;
+    private final PrioritizedMessageQueue queue = new PrioritizedMessageQueue();
+    private final String threadName;
+    private final Consumer<Exception> onError;
+
+    /**
+     * @param objectStream Stream to write to
+     * @param threadName Name of the writing thread
+     * @param onError Called on the writing thread if writing fails, after which nothing else is written
+     */
+    public PrioritizedObjectWriter(@NotNull IEncryptedObjectStream objectStream, @NotNull String threadName, @NotNull Consumer<Exception> onError) {
+        this.objectStream = objectStream;
+        this.threadName = threadName;
+        this.onError = onError;
+    }
+
+    /**
+     * Starts the thread that writes queued objects.
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            PrioritizedMessageQueue.Frame frame;
+            while((frame = queue.take()) != null) {
+                objectStream.writeSerialized(frame.getData(), frame.getOffset(), frame.getLength(), frame.getFormat());
+            }
+        }   catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }   catch(Exception ex) {
+            queue.close();
+            onError.accept(ex);
+        }
+    }
+
+    /**
+     * Queues <code>obj</code> to be sent, using the stream's current format.
+     * @param obj The object to send
+     * @param priority Priority of the object
+     * @return false if the writer has been closed
+     * @throws IOException If serializing the object fails
+     */
+    public boolean send(@NotNull Object obj, @NotNull MessagePriority priority) throws IOException {
+        WireFormat format = objectStream.getWireFormat();
+        return queue.add(format.getSerializer().serialize(obj), format, priority);
+    }
+
+    /**
+     * Queues <code>obj</code> to be sent, at the priority of the request if it is one, otherwise normal priority.
+     * @param obj The object to send
+     * @return false if the writer has been closed
+     * @throws IOException If serializing the object fails
+     */
+    public boolean send(@NotNull Object obj) throws IOException {
+        return send(obj, obj instanceof Request ? ((Request) obj).getPriority() : MessagePriority.NORMAL);
+    }
+
+    public @NotNull StreamStatistics getStatistics(@NotNull MessagePriority priority) {
+        return queue.getStatistics(priority);
+    }
+
+    /**
+     * Drops anything that hasn't been sent yet, and stops the writing thread.
+     */
+    public void close() {
+        queue.close();
+    }
+}
@@ -0,0 +1,58 @@
+package com.lauriethefish.betterportals.shared.net.stream;
+
+import com.lauriethefish.betterportals.shared.net.encryption.IEncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.protocol.BinaryWriter;
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the {@link StreamChunk}s received on one connection until each message is complete.
+ * Not thread safe, since each connection is only read by one thread.
+ */
+public class StreamAssembler {
+    /**
+     * Limits the memory that a bad actor can use up by starting streams and never finishing them.
+     * Each connection only sends a few large messages at once, so this is never reached normally.
+     */
+    private static final int MAX_OPEN_STREAMS = 64;
+
+    private final Map<Integer, BinaryWriter> openStreams = new HashMap<>();
+    private long openBytes = 0;
+
+    /**
+     * Adds a chunk to its stream.
+     * @param chunk The received chunk
+     * @return The whole serialized message if this was the last chunk, otherwise null
+     * @throws ProtocolException If too many streams are open, or the streams are bigger than {@link IEncryptedObjectStream#MAX_REQUEST_SIZE}
+     */
+    public byte[] accept(@NotNull StreamChunk chunk) throws ProtocolException {
+        BinaryWriter stream = openStreams.get(chunk.getStreamId());
+        if(stream == null) {
+            // Messages that fit in one chunk are never chunked, so there's no need to copy them
+            if(chunk.isLast() && chunk.getOffset() == 0 && chunk.getLength() == chunk.getData().length) {
+                return chunk.getData();
+            }
+
+            if(openStreams.size() >= MAX_OPEN_STREAMS) {
+                throw new ProtocolException("Too many streams were open at once");
+            }
+            stream = new BinaryWriter(chunk.getLength() * 2);
+            openStreams.put(chunk.getStreamId(), stream);
+        }
+
+        openBytes += chunk.getLength();
+        if(openBytes > IEncryptedObjectStream.MAX_REQUEST_SIZE) {
+            throw new ProtocolException(String.format("Streamed messages were greater than the max request size of %d bytes", IEncryptedObjectStream.MAX_REQUEST_SIZE));
+        }
+        stream.writeBytes(chunk.getData(), chunk.getOffset(), chunk.getLength());
+
+        if(!chunk.isLast()) {return null;}
+
+        openStreams.remove(chunk.getStreamId());
+        openBytes -= stream.size();
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,19 @@
+package com.lauriethefish.betterportals.shared.net.stream;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Part of a message that was too big to send in one frame.
+ * Chunks of different messages can be sent between each other, so the receiver collects the chunks for each stream until the last one arrives.
+ */
+@Getter
+@AllArgsConstructor
+public class StreamChunk {
+    private final int streamId;
+    private final boolean isLast;
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+}
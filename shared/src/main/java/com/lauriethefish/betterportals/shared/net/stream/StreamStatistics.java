@@ -0,0 +1,32 @@
+package com.lauriethefish.betterportals.shared.net.stream;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Counters for the messages sent at one priority on a connection, taken when {@link PrioritizedMessageQueue#getStatistics(MessagePriority)} was called.
+ */
+@Getter
+@AllArgsConstructor
+public class StreamStatistics {
+    private final int queuedMessages;
+    private final long queuedBytes;
+
+    private final long sentMessages;
+    private final long sentFrames;
+    private final long sentBytes;
+
+    /**
+     * Time between each message being queued and its last frame being taken to be sent.
+     */
+    private final long totalLatencyNanos;
+    private final long maxLatencyNanos;
+
+    public double getAverageLatencyMillis() {
+        return sentMessages == 0 ? 0.0 : totalLatencyNanos / (sentMessages * 1_000_000.0);
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / 1_000_000.0;
+    }
+}
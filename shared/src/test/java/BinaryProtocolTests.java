@@ -0,0 +1,232 @@
+import com.lauriethefish.betterportals.shared.net.BatchResponse;
+import com.lauriethefish.betterportals.shared.net.DirectConnectionInfo;
+import com.lauriethefish.betterportals.shared.net.DisconnectNotice;
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.protocol.*;
+import com.lauriethefish.betterportals.shared.net.requests.BatchRequest;
+import com.lauriethefish.betterportals.shared.net.requests.DirectConnectionRequest;
+import com.lauriethefish.betterportals.shared.net.requests.DirectSessionRequest;
+import com.lauriethefish.betterportals.shared.net.requests.PreviousServerPutRequest;
+import com.lauriethefish.betterportals.shared.net.requests.RelayRequest;
+import com.lauriethefish.betterportals.shared.net.requests.TeleportRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryProtocolTests {
+    private final MessageRegistry registry = new MessageRegistry();
+
+    private TeleportRequest makeTeleportRequest() {
+        TeleportRequest request = new TeleportRequest();
+        request.setId(1234);
+        request.setPlayerId(UUID.randomUUID());
+        request.setDestServer("lobby");
+        request.setDestWorldId(UUID.randomUUID());
+        request.setDestWorldName("world_nether");
+        request.setDestX(-124.5);
+        request.setDestY(64.0);
+        request.setDestZ(3001.25);
+        request.setDestPitch(12.5f);
+        request.setDestYaw(-90.0f);
+        request.setGliding(true);
+        request.setDestVelX(0.1);
+        request.setDestVelY(-0.08);
+        request.setDestVelZ(0.0);
+        return request;
+    }
+
+    private Response makeRelayedResponse() {
+        Response response = new Response();
+        response.setId(77);
+        response.setResult(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        return response;
+    }
+
+    @Test
+    public void testVarIntRoundTrip() throws ProtocolException {
+        int[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+
+        BinaryWriter writer = new BinaryWriter(1);
+        for(int value : values) {
+            writer.writeVarInt(value);
+            writer.writeSignedVarInt(value);
+            writer.writeVarLong(value * 3L);
+        }
+
+        BinaryReader reader = new BinaryReader(writer.toByteArray());
+        for(int value : values) {
+            assertEquals(value, reader.readVarInt());
+            assertEquals(value, reader.readSignedVarInt());
+            assertEquals(value * 3L, reader.readVarLong());
+        }
+        assertEquals(0, reader.remaining());
+    }
+
+    @Test
+    public void testSmallValuesAreOneByte() {
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeVarInt(127);
+        writer.writeSignedVarInt(-64);
+        writer.writeString(null);
+        assertEquals(3, writer.size());
+    }
+
+    @Test
+    public void testTeleportRequestRoundTrip() throws ProtocolException {
+        TeleportRequest request = makeTeleportRequest();
+        TeleportRequest result = (TeleportRequest) registry.deserialize(registry.serialize(request));
+
+        assertEquals(request.getId(), result.getId());
+        assertEquals(request.getPlayerId(), result.getPlayerId());
+        assertEquals(request.getDestServer(), result.getDestServer());
+        assertEquals(request.getDestWorldId(), result.getDestWorldId());
+        assertEquals(request.getDestWorldName(), result.getDestWorldName());
+        assertEquals(request.getDestX(), result.getDestX());
+        assertEquals(request.getDestY(), result.getDestY());
+        assertEquals(request.getDestZ(), result.getDestZ());
+        assertEquals(request.getDestPitch(), result.getDestPitch());
+        assertEquals(request.getDestYaw(), result.getDestYaw());
+        assertFalse(result.isFlying());
+        assertTrue(result.isGliding());
+        assertEquals(request.getDestVelY(), result.getDestVelY());
+    }
+
+    @Test
+    public void testOtherMessagesRoundTrip() throws ProtocolException {
+        RelayRequest relayRequest = new RelayRequest();
+        relayRequest.setId(5);
+        relayRequest.setDestination("survival");
+        relayRequest.setInnerRequest(new byte[]{9, 8, 7});
+        RelayRequest relayResult = (RelayRequest) registry.deserialize(registry.serialize(relayRequest));
+        assertEquals(5, relayResult.getId());
+        assertEquals("survival", relayResult.getDestination());
+        assertArrayEquals(relayRequest.getInnerRequest(), relayResult.getInnerRequest());
+
+        PreviousServerPutRequest putRequest = new PreviousServerPutRequest();
+        putRequest.setPlayerId(UUID.randomUUID());
+        PreviousServerPutRequest putResult = (PreviousServerPutRequest) registry.deserialize(registry.serialize(putRequest));
+        assertEquals(putRequest.getPlayerId(), putResult.getPlayerId());
+        assertNull(putResult.getPreviousServer());
+
+        assertTrue(registry.deserialize(registry.serialize(new DisconnectNotice())) instanceof DisconnectNotice);
+    }
+
+    @Test
+    public void testResponseRoundTrip() throws Exception {
+        Response result = (Response) registry.deserialize(registry.serialize(makeRelayedResponse()));
+        assertEquals(77, result.getId());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, (byte[]) result.getResult());
+
+        Response errorResponse = new Response();
+        errorResponse.setError(new RequestException(new IllegalStateException("Cause"), "Request failed"));
+        Response errorResult = (Response) registry.deserialize(registry.serialize(errorResponse));
+
+        RequestException error = assertThrows(RequestException.class, errorResult::getResult);
+        assertEquals("Request failed", error.getMessage());
+        assertEquals(new IllegalStateException("Cause").toString(), error.getCause().getMessage());
+    }
+
+    @Test
+    public void testBatchRoundTrip() throws Exception {
+        BatchRequest batch = new BatchRequest();
+        batch.setId(3);
+        batch.getRequests().add(makeTeleportRequest());
+        PreviousServerPutRequest putRequest = new PreviousServerPutRequest();
+        putRequest.setId(1);
+        putRequest.setPlayerId(UUID.randomUUID());
+        batch.getRequests().add(putRequest);
+
+        for(IObjectSerializer serializer : new IObjectSerializer[]{registry, JavaObjectSerializer.INSTANCE}) {
+            BatchRequest result = (BatchRequest) serializer.deserialize(serializer.serialize(batch));
+            assertEquals(3, result.getId());
+            assertEquals(2, result.getRequests().size());
+            assertEquals(makeTeleportRequest().getDestWorldName(), ((TeleportRequest) result.getRequests().get(0)).getDestWorldName());
+            assertEquals(1, result.getRequests().get(1).getId());
+            assertEquals(putRequest.getPlayerId(), ((PreviousServerPutRequest) result.getRequests().get(1)).getPlayerId());
+
+            Response errorResponse = new Response();
+            errorResponse.setId(1);
+            errorResponse.setError(new RequestException("Request failed"));
+            Response wrapped = new Response();
+            wrapped.setResult(new BatchResponse(Arrays.asList(makeRelayedResponse(), errorResponse)));
+
+            BatchResponse batchResult = (BatchResponse) ((Response) serializer.deserialize(serializer.serialize(wrapped))).getResult();
+            assertEquals(2, batchResult.getResponses().size());
+            assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, (byte[]) batchResult.getResponses().get(0).getResult());
+            assertEquals(1, batchResult.getResponses().get(1).getId());
+            assertThrows(RequestException.class, batchResult.getResponses().get(1)::getResult);
+        }
+
+        // A batch claiming more requests than it has bytes for
+        assertThrows(ProtocolException.class, () -> registry.deserialize(new byte[]{6, 0, 100, 1}));
+    }
+
+    @Test
+    public void testDirectConnectionRoundTrip() throws Exception {
+        DirectConnectionRequest connectionRequest = new DirectConnectionRequest();
+        connectionRequest.setId(8);
+        connectionRequest.setDestination("survival");
+        DirectConnectionRequest connectionResult = (DirectConnectionRequest) registry.deserialize(registry.serialize(connectionRequest));
+        assertEquals(8, connectionResult.getId());
+        assertEquals("survival", connectionResult.getDestination());
+
+        DirectSessionRequest sessionRequest = new DirectSessionRequest();
+        sessionRequest.setSessionId(UUID.randomUUID());
+        sessionRequest.setSessionKey(UUID.randomUUID());
+        DirectSessionRequest sessionResult = (DirectSessionRequest) registry.deserialize(registry.serialize(sessionRequest));
+        assertEquals(sessionRequest.getSessionId(), sessionResult.getSessionId());
+        assertEquals(sessionRequest.getSessionKey(), sessionResult.getSessionKey());
+
+        Response response = new Response();
+        response.setResult(new DirectConnectionInfo("10.0.0.2", 25511, UUID.randomUUID(), UUID.randomUUID()));
+        DirectConnectionInfo info = (DirectConnectionInfo) ((Response) registry.deserialize(registry.serialize(response))).getResult();
+        DirectConnectionInfo expected = (DirectConnectionInfo) response.getResult();
+        assertEquals("10.0.0.2", info.getHost());
+        assertEquals(25511, info.getPort());
+        assertEquals(expected.getSessionId(), info.getSessionId());
+        assertEquals(expected.getSessionKey(), info.getSessionKey());
+    }
+
+    @Test
+    public void testCorruptMessagesAreRejected() {
+        byte[] data = registry.serialize(makeTeleportRequest());
+
+        assertThrows(ProtocolException.class, () -> registry.deserialize(data, 0, data.length - 1));
+        assertThrows(ProtocolException.class, () -> registry.deserialize(new byte[]{127}));
+        assertThrows(IllegalArgumentException.class, () -> registry.serialize(new Object()));
+    }
+
+    @Test
+    public void testDetectsFormatOfRelayedData() throws Exception {
+        byte[] javaData = JavaObjectSerializer.INSTANCE.serialize(makeTeleportRequest());
+        byte[] binaryData = registry.serialize(makeTeleportRequest());
+
+        assertSame(JavaObjectSerializer.INSTANCE, registry.detectSerializer(javaData));
+        assertSame(registry, registry.detectSerializer(binaryData));
+    }
+
+    @Test
+    public void testHandshakeNegotiation() {
+        assertEquals(MessageRegistry.LEGACY_PROTOCOL_VERSION, registry.negotiateVersion(0));
+        assertEquals(MessageRegistry.PROTOCOL_VERSION, registry.negotiateVersion(MessageRegistry.PROTOCOL_VERSION + 5));
+        assertSame(JavaObjectSerializer.INSTANCE, registry.getSerializer(MessageRegistry.LEGACY_PROTOCOL_VERSION));
+        assertSame(registry, registry.getSerializer(MessageRegistry.PROTOCOL_VERSION));
+    }
+
+    /**
+     * The binary protocol should be much smaller than Java serialization, which is what was sent before it.
+     */
+    @Test
+    public void testSmallerThanJavaSerialization() throws Exception {
+        Object[] messages = {makeTeleportRequest(), makeRelayedResponse()};
+        for(Object message : messages) {
+            int javaSize = JavaObjectSerializer.INSTANCE.serialize(message).length;
+            int binarySize = registry.serialize(message).length;
+            assertTrue(binarySize * 4 < javaSize, message.getClass().getSimpleName());
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.compression.ICompressionCodec;
+import com.lauriethefish.betterportals.shared.net.encryption.CipherManager;
+import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectCodec;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionCodecTests {
+    private final MessageRegistry registry = new MessageRegistry();
+    private EncryptedObjectCodec codec;
+
+    @BeforeEach
+    public void setUp() throws NoSuchAlgorithmException {
+        CipherManager cipherManager = new CipherManager();
+        cipherManager.init(UUID.randomUUID());
+        codec = new EncryptedObjectCodec(cipherManager);
+    }
+
+    private byte[] makeRandom(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    // Similar to a serialized block change set: small values with lots of repetition
+    private byte[] makeRepetitive(int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(length);
+        for(int i = 0; i < length; i++) {
+            data[i] = (byte) (random.nextInt(10) == 0 ? random.nextInt(4) : i % 7);
+        }
+        return data;
+    }
+
+    private int getFrameSize(Object obj, WireFormat format) throws Exception {
+        ByteBuffer frame = codec.encodeFrame(obj, format);
+        int size = frame.remaining();
+        codec.releaseFrame(frame);
+        return size;
+    }
+
+    private void assertRoundTrip(ICompressionCodec compressionCodec, byte[] data) throws ProtocolException {
+        // Compress from the middle of a larger array, to check that offsets are used correctly
+        byte[] padded = new byte[data.length + 20];
+        System.arraycopy(data, 0, padded, 10, data.length);
+
+        byte[] compressed = compressionCodec.compress(padded, 10, data.length);
+        byte[] decompressed = compressionCodec.getType().getDecoder().decompress(compressed, 0, compressed.length, data.length);
+        assertArrayEquals(data, decompressed, String.format("%s with %d bytes", compressionCodec.getType(), data.length));
+    }
+
+    @Test
+    public void testCodecRoundTrips() throws ProtocolException {
+        for(CompressionType type : CompressionType.values()) {
+            ICompressionCodec compressionCodec = type.createCodec(CompressionType.DEFAULT_LEVEL);
+            for(int length : new int[]{0, 1, 12, 13, 100, 70_000, 300_000}) {
+                assertRoundTrip(compressionCodec, makeRandom(length));
+                assertRoundTrip(compressionCodec, makeRepetitive(length));
+            }
+        }
+    }
+
+    @Test
+    public void testLz4LongAndOverlappingMatches() throws ProtocolException {
+        ICompressionCodec lz4 = CompressionType.LZ4.createCodec(CompressionType.DEFAULT_LEVEL);
+
+        // A run of one byte is encoded as a match overlapping itself, with a length over 255
+        byte[] run = new byte[5000];
+        Arrays.fill(run, (byte) 7);
+        assertRoundTrip(lz4, run);
+        assertTrue(lz4.compress(run, 0, run.length).length < 50);
+
+        byte[] pattern = new byte[1000];
+        for(int i = 0; i < pattern.length; i++) {
+            pattern[i] = (byte) (i % 3);
+        }
+        assertRoundTrip(lz4, pattern);
+    }
+
+    @Test
+    public void testCorruptDataIsRejected() {
+        byte[] data = makeRepetitive(10_000);
+        for(CompressionType type : new CompressionType[]{CompressionType.DEFLATE, CompressionType.LZ4}) {
+            ICompressionCodec decoder = type.getDecoder();
+            byte[] compressed = type.createCodec(CompressionType.DEFAULT_LEVEL).compress(data, 0, data.length);
+
+            assertThrows(ProtocolException.class, () -> decoder.decompress(compressed, 0, compressed.length / 2, data.length));
+            assertThrows(ProtocolException.class, () -> decoder.decompress(compressed, 0, compressed.length, data.length - 1));
+            assertThrows(ProtocolException.class, () -> decoder.decompress(compressed, 0, compressed.length, data.length + 1));
+        }
+
+        // An offset pointing before the start of the output
+        byte[] badOffset = {0x10, 1, 0x40, 0x00, 0x10, 1};
+        assertThrows(ProtocolException.class, () -> CompressionType.LZ4.getDecoder().decompress(badOffset, 0, badOffset.length, 10));
+    }
+
+    @Test
+    public void testConfigNames() throws ProtocolException {
+        assertEquals(CompressionType.LZ4, CompressionType.fromConfigName("LZ4"));
+        assertEquals(CompressionType.NONE, CompressionType.fromConfigName(null));
+        assertEquals(CompressionType.NONE, CompressionType.fromConfigName("zstd"));
+        assertNull(CompressionType.fromId(100));
+
+        // Older clients send a level of zero, which shouldn't stop the codec from being created
+        assertRoundTrip(CompressionType.DEFLATE.createCodec(0), makeRepetitive(500));
+    }
+
+    @Test
+    public void testFrameRoundTrips() throws Exception {
+        WireFormat[] formats = {
+                WireFormat.LEGACY,
+                WireFormat.create(registry, MessageRegistry.COMPRESS_BEFORE_ENCRYPT_VERSION - 1, CompressionType.LZ4, 6, 0),
+                WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.NONE, 6, 0),
+                WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.DEFLATE, 9, 64),
+                WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.LZ4, 6, 64),
+        };
+
+        for(WireFormat format : formats) {
+            for(byte[] result : new byte[][]{new byte[0], makeRandom(1000), makeRepetitive(50_000)}) {
+                Response response = new Response();
+                response.setId(5);
+                response.setResult(result);
+
+                ByteBuffer frame = codec.encodeFrame(response, format);
+                int dataLength = frame.getInt();
+                assertEquals(frame.remaining(), codec.getBodyLength(dataLength));
+
+                Response decoded = (Response) codec.decodeBody(frame, dataLength, format);
+                assertFalse(frame.hasRemaining());
+                codec.releaseFrame(frame);
+
+                assertEquals(5, decoded.getId());
+                assertArrayEquals(result, (byte[]) decoded.getResult());
+            }
+        }
+    }
+
+    @Test
+    public void testCompressionShrinksFrames() throws Exception {
+        Response response = new Response();
+        response.setResult(makeRepetitive(50_000));
+
+        int uncompressedSize = getFrameSize(response, WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.NONE, 6, 0));
+        int lz4Size = getFrameSize(response, WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.LZ4, 6, 0));
+        int deflateSize = getFrameSize(response, WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.DEFLATE, 6, 0));
+        int legacySize = getFrameSize(response, WireFormat.LEGACY);
+
+        assertTrue(lz4Size * 2 < uncompressedSize);
+        assertTrue(deflateSize < lz4Size);
+        // GZIP can't compress ciphertext, so the legacy framing is no smaller than not compressing at all
+        assertTrue(legacySize >= uncompressedSize);
+
+        // Frames below the threshold aren't compressed, so are the same size as with no compression
+        Response small = new Response();
+        small.setResult(makeRepetitive(100));
+        assertEquals(getFrameSize(small, WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.NONE, 6, 0)),
+                getFrameSize(small, WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.LZ4, 6, 256)));
+    }
+
+    @Test
+    public void testIncompressibleFramesAreSentUncompressed() throws Exception {
+        Response response = new Response();
+        response.setResult(makeRandom(20_000));
+
+        int uncompressedSize = getFrameSize(response, WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.NONE, 6, 0));
+        for(CompressionType type : new CompressionType[]{CompressionType.DEFLATE, CompressionType.LZ4}) {
+            int frameSize = getFrameSize(response, WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, type, CompressionType.DEFAULT_LEVEL, 0));
+            assertEquals(uncompressedSize, frameSize, type.toString());
+        }
+    }
+}
@@ -1,5 +1,11 @@
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.encryption.BufferPool;
 import com.lauriethefish.betterportals.shared.net.encryption.CipherManager;
+import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectCodec;
 import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -7,11 +13,13 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class EncryptedObjectStreamTests {
     private static class TestTransmit implements Serializable {
@@ -58,4 +66,113 @@ public class EncryptedObjectStreamTests {
         assertEquals(obj, result);
     }
 
+    private Response makeResponse(int id, int resultLength) {
+        byte[] result = new byte[resultLength];
+        for(int i = 0; i < resultLength; i++) {
+            result[i] = (byte) (i * 31 + id);
+        }
+
+        Response response = new Response();
+        response.setId(id);
+        response.setResult(result);
+        return response;
+    }
+
+    @Test
+    public void testFramesOfDifferentSizes() throws GeneralSecurityException, IOException, ClassNotFoundException {
+        WireFormat format = WireFormat.create(new MessageRegistry(), MessageRegistry.PROTOCOL_VERSION, CompressionType.NONE, CompressionType.DEFAULT_LEVEL, 256);
+        // Includes frames bigger than the reused buffers, and going back to small frames after them
+        int[] sizes = {0, 100, 5000, 100, 2_000_000, 50, 700_000, 10};
+
+        ByteArrayOutputStream testOutput = new ByteArrayOutputStream();
+        EncryptedObjectStream writeStream = new EncryptedObjectStream(null, testOutput, cipherManager);
+        writeStream.setWireFormat(format);
+        for(int i = 0; i < sizes.length; i++) {
+            writeStream.writeObject(makeResponse(i, sizes[i]));
+        }
+
+        EncryptedObjectStream readStream = new EncryptedObjectStream(new ByteArrayInputStream(testOutput.toByteArray()), null, cipherManager);
+        readStream.setWireFormat(format);
+        for(int i = 0; i < sizes.length; i++) {
+            Response response = (Response) readStream.readObject();
+            assertEquals(i, response.getId());
+            assertArrayEquals((byte[]) makeResponse(i, sizes[i]).getResultUnchecked(), (byte[]) response.getResultUnchecked());
+        }
+    }
+
+    @Test
+    public void testBufferPoolReusesBuffers() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer buffer = pool.acquire(1000);
+        assertEquals(1024, buffer.capacity());
+        buffer.position(500);
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire(600);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertNotSame(reused, pool.acquire(600));
+
+        // Buffers too big to be pooled aren't kept
+        ByteBuffer large = pool.acquire(BufferPool.MAX_POOLED_SIZE + 1);
+        pool.release(large);
+        assertNotSame(large, pool.acquire(BufferPool.MAX_POOLED_SIZE + 1));
+    }
+
+    @Test
+    public void testPooledFramesDecodeCorrectly() throws GeneralSecurityException, IOException, ClassNotFoundException {
+        EncryptedObjectCodec codec = new EncryptedObjectCodec(cipherManager);
+        MessageRegistry registry = new MessageRegistry();
+
+        for(CompressionType type : CompressionType.values()) {
+            WireFormat format = WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, type, CompressionType.DEFAULT_LEVEL, 256);
+            // Released frames are reused, so later frames must not be affected by what was left in them
+            for(int i = 0; i < 50; i++) {
+                Response response = makeResponse(i, i % 2 == 0 ? 40_000 : 300);
+                ByteBuffer frame = codec.encodeFrame(response, format);
+                int dataLength = frame.getInt(0);
+
+                // Decoding doesn't modify the frame, so it can be decoded again
+                for(int j = 0; j < 2; j++) {
+                    Response decoded = (Response) codec.decodeBody(frame.position(EncryptedObjectCodec.HEADER_LENGTH), dataLength, format);
+                    assertEquals(i, decoded.getId());
+                    assertArrayEquals((byte[]) response.getResultUnchecked(), (byte[]) decoded.getResultUnchecked(), type.toString());
+                }
+                codec.releaseFrame(frame);
+            }
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Once the codec's buffers have grown to fit, encoding and decoding should only allocate the decoded message and what AES-GCM allocates internally.
+     * Creating a new cipher for each frame allocated several kilobytes.
+     */
+    @Test
+    public void testSteadyStateAllocation() throws GeneralSecurityException, IOException, ClassNotFoundException {
+        WireFormat format = WireFormat.create(new MessageRegistry(), MessageRegistry.PROTOCOL_VERSION, CompressionType.LZ4, CompressionType.DEFAULT_LEVEL, 256);
+        EncryptedObjectCodec codec = new EncryptedObjectCodec(cipherManager);
+        Response response = makeResponse(1, 200);
+
+        int iterations = 20_000;
+        long allocatedBefore = 0;
+        for(int i = 0; i < iterations * 2; i++) {
+            // Only measure the second half, after the JIT and the buffers have warmed up
+            if(i == iterations) {
+                allocatedBefore = getAllocatedBytes();
+            }
+
+            ByteBuffer frame = codec.encodeFrame(response, format);
+            int dataLength = frame.getInt();
+            codec.decodeBody(frame, dataLength, format);
+            codec.releaseFrame(frame);
+        }
+        long allocatedPerMessage = (getAllocatedBytes() - allocatedBefore) / iterations;
+
+        assertTrue(allocatedPerMessage < 4096, String.format("Allocated %d bytes per message", allocatedPerMessage));
+    }
 }
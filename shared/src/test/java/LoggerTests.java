@@ -0,0 +1,113 @@
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import com.lauriethefish.betterportals.shared.logging.OverrideLogger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoggerTests {
+    private static final int ITERATIONS = 1_000_000;
+
+    /**
+     * Tolerance for the allocation of the measurement itself, which is far less than a single byte per iteration.
+     */
+    private static final long ALLOCATION_TOLERANCE = 16_384;
+
+    private final List<LogRecord> records = new ArrayList<>();
+    private Logger logger;
+
+    @BeforeEach
+    public void setUp() {
+        java.util.logging.Logger parent = java.util.logging.Logger.getAnonymousLogger();
+        parent.setUseParentHandlers(false);
+        parent.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        });
+
+        logger = new OverrideLogger(parent);
+    }
+
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void logHotPath(UUID id, int count, double time) {
+        logger.finer("Processing block changes with ID %s", id);
+        logger.finer("Change count: %d", count);
+        logger.fine("Update took %.3f ms", time);
+        logger.finest("Flag: %b", count == 0);
+        logger.finest("Origin: %s, Dest: %s", id, id);
+    }
+
+    @Test
+    public void testFormatsWhenEnabled() {
+        logger.setLevel(Level.FINEST);
+
+        logger.finer("Change count: %d", 42);
+        logger.fine("Took %.1fms", 1.25);
+        logger.finest("%s and %s", "a", "b");
+        logger.info("%s %s %s", "a", "b", "c");
+
+        assertEquals(4, records.size());
+        assertEquals("[FNR] Change count: 42", records.get(0).getMessage());
+        assertEquals("[FNE] Took 1.3ms", records.get(1).getMessage());
+        assertEquals("[FST] a and b", records.get(2).getMessage());
+        assertEquals("a b c", records.get(3).getMessage());
+    }
+
+    @Test
+    public void testDisabledLevelsNotFormatted() {
+        logger.setLevel(Level.INFO);
+
+        // Would throw an IllegalFormatConversionException if it was formatted
+        logger.fine("%d", "not a number");
+        logger.finer("%d", 1.0);
+        logger.finest(() -> {
+            throw new AssertionError("Supplier invoked for disabled level");
+        });
+
+        assertTrue(records.isEmpty());
+    }
+
+    /**
+     * Runs the hot path used by the block map and external block watchers with debug logging disabled.
+     * This should not allocate at all, since formatting and boxing are skipped.
+     */
+    @Test
+    public void testDisabledHotPathDoesNotAllocate() {
+        logger.setLevel(Level.INFO);
+        UUID id = UUID.randomUUID();
+
+        // Warm up so that the measured loop is compiled
+        for(int i = 0; i < ITERATIONS; i++) {
+            logHotPath(id, i, i);
+        }
+
+        long allocatedBefore = getAllocatedBytes();
+        for(int i = 0; i < ITERATIONS; i++) {
+            logHotPath(id, i, i);
+        }
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        assertTrue(allocated < ALLOCATION_TOLERANCE, String.format("Disabled log calls allocated %d bytes", allocated));
+        assertTrue(records.isEmpty());
+    }
+}
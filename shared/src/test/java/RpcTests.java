@@ -0,0 +1,141 @@
+import com.lauriethefish.betterportals.shared.net.RequestException;
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.requests.BatchRequest;
+import com.lauriethefish.betterportals.shared.net.requests.PreviousServerPutRequest;
+import com.lauriethefish.betterportals.shared.net.requests.Request;
+import com.lauriethefish.betterportals.shared.net.requests.ThreadingRequirement;
+import com.lauriethefish.betterportals.shared.net.rpc.LatencyHistogram;
+import com.lauriethefish.betterportals.shared.net.rpc.PendingRequests;
+import com.lauriethefish.betterportals.shared.net.rpc.RequestTimeoutException;
+import com.lauriethefish.betterportals.shared.net.rpc.TimerWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RpcTests {
+    private final TimerWheel timerWheel = new TimerWheel(5);
+
+    @Test
+    public void testTimerWheelRunsAndCancels() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger cancelledRuns = new AtomicInteger();
+
+        long startTime = System.nanoTime();
+        timerWheel.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+        TimerWheel.Timeout cancelled = timerWheel.schedule(cancelledRuns::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(50));
+        Thread.sleep(50);
+        assertEquals(0, cancelledRuns.get());
+        assertEquals(0, timerWheel.getActiveCount());
+
+        // The thread stops once nothing is scheduled, and should start again for the next timeout
+        CountDownLatch second = new CountDownLatch(1);
+        timerWheel.schedule(second::countDown, 10, TimeUnit.MILLISECONDS);
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPendingRequestCompletes() {
+        PendingRequests pending = new PendingRequests(timerWheel, 10, "test");
+        List<Response> received = new ArrayList<>();
+
+        PreviousServerPutRequest first = new PreviousServerPutRequest();
+        PreviousServerPutRequest second = new PreviousServerPutRequest();
+        assertTrue(pending.add(first, received::add));
+        assertTrue(pending.add(second, received::add));
+        assertNotEquals(first.getId(), second.getId());
+        assertEquals(2, pending.size());
+
+        Response response = new Response();
+        response.setId(second.getId());
+        assertTrue(pending.complete(response));
+        assertFalse(pending.complete(response));
+        assertEquals(List.of(response), received);
+
+        assertTrue(pending.remove(first.getId()));
+        assertEquals(0, pending.size());
+        assertEquals(1, received.size());
+        assertEquals(0, timerWheel.getActiveCount());
+    }
+
+    @Test
+    public void testPendingRequestTimesOut() throws InterruptedException {
+        PendingRequests pending = new PendingRequests(timerWheel, 10, "test");
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Response> received = new ArrayList<>();
+
+        PreviousServerPutRequest request = new PreviousServerPutRequest();
+        pending.add(request, (response) -> {
+            received.add(response);
+            latch.countDown();
+        }, 20);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(RequestTimeoutException.class, received.get(0).getError());
+
+        // The response arrived too late, so it shouldn't be given to the callback again
+        Response late = new Response();
+        late.setId(request.getId());
+        assertFalse(pending.complete(late));
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void testPendingRequestLimitAndFailAll() {
+        PendingRequests pending = new PendingRequests(timerWheel, 2, "test");
+        List<Response> received = new ArrayList<>();
+
+        assertTrue(pending.add(new PreviousServerPutRequest(), received::add));
+        assertTrue(pending.add(new PreviousServerPutRequest(), received::add));
+        assertFalse(pending.add(new PreviousServerPutRequest(), received::add));
+        assertEquals(1, received.size());
+        assertNotNull(received.get(0).getError());
+
+        pending.failAll(new RequestException("Disconnected"));
+        assertEquals(3, received.size());
+        assertEquals("Disconnected", received.get(2).getError().getMessage());
+        assertEquals(0, pending.size());
+        assertEquals(0, timerWheel.getActiveCount());
+    }
+
+    @Test
+    public void testBatchThreadingRequirement() {
+        BatchRequest batch = new BatchRequest();
+        assertEquals(ThreadingRequirement.ANY_THREAD, batch.getThreadingRequirement());
+
+        batch.getRequests().add(new PreviousServerPutRequest());
+        assertEquals(ThreadingRequirement.ANY_THREAD, batch.getThreadingRequirement());
+
+        // One request that needs the main thread means the whole batch is handled there
+        batch.getRequests().add(new Request() {});
+        assertEquals(ThreadingRequirement.MAIN_THREAD, batch.getThreadingRequirement());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.getPercentileMillis(50.0));
+
+        for(int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100.0, histogram.getMaxMillis());
+
+        // Each bucket is within an eighth of its value
+        assertEquals(50.0, histogram.getPercentileMillis(50.0), 50.0 / 8);
+        assertEquals(99.0, histogram.getPercentileMillis(99.0), 99.0 / 8);
+        assertEquals(100.0, histogram.getPercentileMillis(100.0), 100.0 / 8);
+        assertTrue(histogram.getPercentileMillis(100.0) <= 100.0);
+    }
+}
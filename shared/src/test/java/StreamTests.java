@@ -0,0 +1,193 @@
+import com.lauriethefish.betterportals.shared.net.Response;
+import com.lauriethefish.betterportals.shared.net.compression.CompressionType;
+import com.lauriethefish.betterportals.shared.net.encryption.CipherManager;
+import com.lauriethefish.betterportals.shared.net.encryption.EncryptedObjectStream;
+import com.lauriethefish.betterportals.shared.net.protocol.MessageRegistry;
+import com.lauriethefish.betterportals.shared.net.protocol.ProtocolException;
+import com.lauriethefish.betterportals.shared.net.protocol.WireFormat;
+import com.lauriethefish.betterportals.shared.net.requests.TeleportRequest;
+import com.lauriethefish.betterportals.shared.net.stream.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamTests {
+    private final MessageRegistry registry = new MessageRegistry();
+    private final WireFormat format = WireFormat.create(registry, MessageRegistry.PROTOCOL_VERSION, CompressionType.NONE, CompressionType.DEFAULT_LEVEL, 256);
+
+    private Response makeResponse(int id, int resultLength) {
+        byte[] result = new byte[resultLength];
+        for(int i = 0; i < resultLength; i++) {
+            result[i] = (byte) (i * 31 + id);
+        }
+
+        Response response = new Response();
+        response.setId(id);
+        response.setResult(result);
+        return response;
+    }
+
+    private void add(PrioritizedMessageQueue queue, Object message, MessagePriority priority) throws Exception {
+        assertTrue(queue.add(registry.serialize(message), format, priority));
+    }
+
+    private void receive(PrioritizedMessageQueue.Frame frame, StreamAssembler assembler, List<Object> received) throws Exception {
+        Object next = registry.deserialize(frame.getData(), frame.getOffset(), frame.getLength());
+        if(next instanceof StreamChunk) {
+            byte[] message = assembler.accept((StreamChunk) next);
+            if(message == null) {return;}
+            next = registry.deserialize(message);
+        }
+        received.add(next);
+    }
+
+    /**
+     * Takes every frame from the queue and puts the chunked messages back together.
+     * @return The messages in the order that their last frame was sent
+     */
+    private List<Object> drain(PrioritizedMessageQueue queue, StreamAssembler assembler) throws Exception {
+        List<Object> received = new ArrayList<>();
+        PrioritizedMessageQueue.Frame frame;
+        while((frame = queue.poll()) != null) {
+            receive(frame, assembler, received);
+        }
+        return received;
+    }
+
+    private List<Object> drain(PrioritizedMessageQueue queue) throws Exception {
+        return drain(queue, new StreamAssembler());
+    }
+
+    @Test
+    public void testHigherPrioritiesAreSentFirst() throws Exception {
+        PrioritizedMessageQueue queue = new PrioritizedMessageQueue(1024);
+        add(queue, makeResponse(0, 10), MessagePriority.LOW);
+        add(queue, makeResponse(1, 10), MessagePriority.NORMAL);
+        add(queue, makeResponse(2, 10), MessagePriority.HIGH);
+        add(queue, makeResponse(3, 10), MessagePriority.NORMAL);
+
+        List<Object> received = drain(queue);
+        int[] expectedOrder = {2, 1, 3, 0};
+        for(int i = 0; i < expectedOrder.length; i++) {
+            assertEquals(expectedOrder[i], ((Response) received.get(i)).getId());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testLargeMessagesAreChunked() throws Exception {
+        PrioritizedMessageQueue queue = new PrioritizedMessageQueue(1024);
+        Response snapshot = makeResponse(0, 100_000);
+        add(queue, snapshot, MessagePriority.NORMAL);
+        add(queue, makeResponse(1, 10), MessagePriority.NORMAL);
+
+        // The snapshot is moved to low priority since it needs chunking
+        assertEquals(1, queue.getStatistics(MessagePriority.LOW).getQueuedMessages());
+
+        // The small response goes before the snapshot. Part way through the snapshot, a teleport should be sent before the next chunk
+        StreamAssembler assembler = new StreamAssembler();
+        List<Object> received = new ArrayList<>();
+        receive(queue.poll(), assembler, received);
+        receive(queue.poll(), assembler, received);
+        TeleportRequest teleport = new TeleportRequest();
+        teleport.setPlayerId(UUID.randomUUID());
+        add(queue, teleport, teleport.getPriority());
+
+        received.addAll(drain(queue, assembler));
+        assertEquals(3, received.size());
+        assertEquals(1, ((Response) received.get(0)).getId());
+        assertInstanceOf(TeleportRequest.class, received.get(1));
+        assertArrayEquals((byte[]) snapshot.getResultUnchecked(), (byte[]) ((Response) received.get(2)).getResultUnchecked());
+
+        StreamStatistics stats = queue.getStatistics(MessagePriority.LOW);
+        assertEquals(0, stats.getQueuedMessages());
+        assertEquals(0, stats.getQueuedBytes());
+        assertEquals(1, stats.getSentMessages());
+        assertTrue(stats.getSentFrames() > 90);
+    }
+
+    @Test
+    public void testStreamsOfTheSamePriorityInterleave() throws Exception {
+        PrioritizedMessageQueue queue = new PrioritizedMessageQueue(1024);
+        add(queue, makeResponse(0, 50_000), MessagePriority.LOW);
+        add(queue, makeResponse(1, 5000), MessagePriority.LOW);
+
+        // The smaller message finishes first, since the streams take turns
+        List<Object> received = drain(queue);
+        assertEquals(1, ((Response) received.get(0)).getId());
+        assertEquals(0, ((Response) received.get(1)).getId());
+    }
+
+    @Test
+    public void testLegacyFormatIsNotChunked() throws Exception {
+        PrioritizedMessageQueue queue = new PrioritizedMessageQueue(1024);
+        WireFormat legacy = WireFormat.create(registry, MessageRegistry.COMPRESS_BEFORE_ENCRYPT_VERSION, CompressionType.NONE, CompressionType.DEFAULT_LEVEL, 256);
+        byte[] data = registry.serialize(makeResponse(0, 10_000));
+        queue.add(data, legacy, MessagePriority.NORMAL);
+
+        PrioritizedMessageQueue.Frame frame = queue.poll();
+        assertNotNull(frame);
+        assertSame(data, frame.getData());
+        assertNull(queue.poll());
+
+        queue.close();
+        assertFalse(queue.add(data, legacy, MessagePriority.NORMAL));
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void testAssemblerLimits() throws Exception {
+        StreamAssembler assembler = new StreamAssembler();
+        byte[] data = new byte[10];
+        for(int i = 0; i < 64; i++) {
+            assertNull(assembler.accept(new StreamChunk(i, false, data, 0, data.length)));
+        }
+        assertThrows(ProtocolException.class, () -> assembler.accept(new StreamChunk(100, false, data, 0, data.length)));
+
+        // Finishing a stream makes room for another
+        assertEquals(20, assembler.accept(new StreamChunk(0, true, data, 0, data.length)).length);
+        assertNull(assembler.accept(new StreamChunk(100, false, data, 0, data.length)));
+    }
+
+    @Test
+    public void testWriterThroughEncryptedStream() throws Exception {
+        CipherManager cipherManager = new CipherManager();
+        cipherManager.init(UUID.randomUUID());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        EncryptedObjectStream writeStream = new EncryptedObjectStream(null, output, cipherManager);
+        writeStream.setWireFormat(format);
+
+        PrioritizedObjectWriter writer = new PrioritizedObjectWriter(writeStream, "Test writer", Throwable::printStackTrace);
+        int[] sizes = {100, 200_000, 5, 3_000_000};
+        for(int i = 0; i < sizes.length; i++) {
+            assertTrue(writer.send(makeResponse(i, sizes[i])));
+        }
+        writer.start();
+
+        long timeout = System.currentTimeMillis() + 10_000;
+        while(writer.getStatistics(MessagePriority.LOW).getSentMessages() + writer.getStatistics(MessagePriority.NORMAL).getSentMessages() < sizes.length) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        writer.close();
+
+        EncryptedObjectStream readStream = new EncryptedObjectStream(new ByteArrayInputStream(output.toByteArray()), null, cipherManager);
+        readStream.setWireFormat(format);
+        boolean[] seen = new boolean[sizes.length];
+        for(int i = 0; i < sizes.length; i++) {
+            Response response = (Response) readStream.readObject();
+            assertArrayEquals((byte[]) makeResponse(response.getId(), sizes[response.getId()]).getResultUnchecked(), (byte[]) response.getResultUnchecked());
+            seen[response.getId()] = true;
+        }
+        for(boolean wasSeen : seen) {
+            assertTrue(wasSeen);
+        }
+    }
+}